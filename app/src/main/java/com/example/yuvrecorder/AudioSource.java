@@ -3,8 +3,13 @@ package com.example.yuvrecorder;
 import android.media.AudioFormat;
 import android.media.AudioRecord;
 import android.media.MediaRecorder;
+import android.os.Build;
 import android.util.Log;
 
+import com.tuya.record.TuyaByteRing;
+
+import java.nio.ByteBuffer;
+
 public class AudioSource {
     private static final String TAG = "AudioSource";
     private static AudioSource mAudioSource;
@@ -18,11 +23,20 @@ public class AudioSource {
     private Thread workThread;
     private volatile  boolean loop = false;
     private AudioCallBack mCallback;
+    private volatile TuyaByteRing ringBuffer;
+    private volatile AudioRingCallBack mRingCallback;
 
     public interface AudioCallBack {
         public void sendData(byte[] data, int audioFmt, int channelCount, int sampleRatent);
     }
 
+    public interface AudioRingCallBack {
+        /**
+         * Called after size bytes of PCM were read straight into the ring given to setRingBuffer.
+         */
+        public void onDataCommitted(int size, int audioFmt, int channelCount, int sampleRate);
+    }
+
 
     public static AudioSource getInstance(){
         if (mAudioSource == null) {
@@ -85,6 +99,17 @@ public class AudioSource {
                 }
 
                 while (loop && !Thread.interrupted()) {
+                    TuyaByteRing ring = ringBuffer;
+                    if (ring != null) {
+                        int size = readIntoRing(ring, audioBuf.length);
+                        AudioRingCallBack ringCallback = mRingCallback;
+                        if (size > 0 && ringCallback != null) {
+                            ringCallback.onDataCommitted(size, audioRecord.getAudioFormat(),
+                                    audioRecord.getChannelCount(), audioRecord.getSampleRate());
+                        }
+                        continue;
+                    }
+
                     int size = audioRecord.read(audioBuf,0,audioBuf.length);
                     if (size > 0) {
                         if (mCallback != null) {
@@ -106,6 +131,51 @@ public class AudioSource {
         workThread.start();
     }
 
+    /**
+     * Reads PCM straight into the free space of the ring, without going through audioBuf.
+     *
+     * @return Number of bytes committed into the ring.
+     */
+    private int readIntoRing(TuyaByteRing ring, int length) {
+        ByteBuffer[] slices = ring.reserve(length);
+        if (slices.length == 0) {
+            // The encoder is behind. Keep draining the microphone and let the ring drop its oldest audio.
+            int size = audioRecord.read(audioBuf, 0, length);
+            if (size > 0) {
+                ring.overrunPush(audioBuf, 0, size);
+            }
+            return size;
+        }
+
+        int total = 0;
+        for (ByteBuffer slice : slices) {
+            int wanted = slice.remaining();
+            int size;
+            if (!slice.isDirect()) {
+                size = audioRecord.read(slice.array(), slice.arrayOffset(), wanted);
+            } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+                size = audioRecord.read(slice, wanted);
+            } else {
+                // No direct reads before Lollipop: go through audioBuf, which is at least as long.
+                size = audioRecord.read(audioBuf, 0, wanted);
+                if (size > 0) {
+                    slice.duplicate().put(audioBuf, 0, size);
+                }
+            }
+            if (size <= 0) {
+                break;
+            }
+            total += size;
+            if (size < wanted) {
+                break;
+            }
+        }
+        if (total > 0) {
+            ring.commit(total);
+        }
+        return total;
+    }
+
     public void stopRecord() {
         Log.i(TAG, "==stopRecord== stop record");
         if (audioRecord != null) {
@@ -145,4 +215,13 @@ public class AudioSource {
         this.mCallback = callback;
     }
 
+    /**
+     * Makes the capture thread read straight into the given ring instead of audioBuf. Pass null to go back to
+     * delivering byte arrays through the AudioCallBack.
+     */
+    public void setRingBuffer(TuyaByteRing ring, AudioRingCallBack callback) {
+        this.mRingCallback = callback;
+        this.ringBuffer = ring;
+    }
+
 }
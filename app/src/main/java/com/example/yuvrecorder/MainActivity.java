@@ -9,6 +9,7 @@ import android.Manifest;
 import android.content.Context;
 import android.content.Intent;
 import android.content.pm.PackageManager;
+import android.graphics.ImageFormat;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
@@ -20,6 +21,7 @@ import android.view.View;
 import android.widget.Button;
 
 import com.tuya.record.TuyaAudioEncoder;
+import com.tuya.record.TuyaCodecProbe;
 import com.tuya.record.TuyaMediaMuxer;
 import com.tuya.record.TuyaVideoEncoder;
 
@@ -90,6 +92,9 @@ public class MainActivity extends AppCompatActivity implements  View.OnClickList
         mVideoSource = VideoSource.getInstance();
         mAudioSource = AudioSource.getInstance();
         yuvrecorder = new TuyaMediaMuxer();
+        // Benchmarks the encoders on first launch; later launches read the ranking back.
+        TuyaCodecProbe.setCacheFile(new File(getCacheDir(), "codec_probe.bin"));
+        TuyaCodecProbe.probeInBackground("video/avc");
         mp4File = getApplicationContext().getFilesDir().getAbsolutePath()+"/a.mp4";
 
         mAudioSource.setCallback(new AudioSource.AudioCallBack() {
@@ -105,10 +110,15 @@ public class MainActivity extends AppCompatActivity implements  View.OnClickList
 
         mVideoSource.setCallback(new VideoSource.Callback() {
             @Override
-            public void sendVideoData(byte[] data, int fmt, int width, int height, int frameRate, long timeMS) {
+            public boolean acceptVideoData(long timeNs) {
+                return yuvrecorder != null && bStarted && yuvrecorder.shouldAcceptVideoFrame(timeNs);
+            }
+
+            @Override
+            public void sendVideoData(byte[] data, int fmt, int width, int height, int frameRate, long timeNs) {
                 if (yuvrecorder != null && bStarted) {
                     long time = System.currentTimeMillis() - startPts;
-                    TuyaVideoEncoder.VideoFrame videoFrame = new TuyaVideoEncoder.VideoFrame(data, fmt, width, height,frameRate, timeMS);
+                    TuyaVideoEncoder.VideoFrame videoFrame = new TuyaVideoEncoder.VideoFrame(data, fmt, width, height,frameRate, timeNs);
                     yuvrecorder.writeVideoFrame(videoFrame);
                 }
             }
@@ -167,6 +177,7 @@ public class MainActivity extends AppCompatActivity implements  View.OnClickList
             //stop recording
             //stop audio capture
             //stop video capture
+            mAudioSource.setRingBuffer(null, null);
             yuvrecorder.stopRecord();
             mAudioSource.stopRecord();
             //mAudioSource.release();
@@ -181,6 +192,8 @@ public class MainActivity extends AppCompatActivity implements  View.OnClickList
 
             //start recording
             //720p/1080p/16000/44100/48000/8000/22050
+            // The encoders start in the background; the preview frames they will get are NV21.
+            yuvrecorder.setVideoSourceFormat(ImageFormat.NV21);
             yuvrecorder.startRecord(
                     true,
                     44100,
@@ -193,6 +206,15 @@ public class MainActivity extends AppCompatActivity implements  View.OnClickList
                     2048*1024,
                     mp4File
             );
+            // Let the capture thread write PCM straight into the audio encoder's ring.
+            mAudioSource.setRingBuffer(yuvrecorder.getAudioInputRing(), new AudioSource.AudioRingCallBack() {
+                @Override
+                public void onDataCommitted(int size, int audioFmt, int channelCount, int sampleRate) {
+                    if (yuvrecorder != null && bStarted) {
+                        yuvrecorder.writeBufferedAudio(sampleRate, channelCount, audioFmt);
+                    }
+                }
+            });
 
 
             bStarted = true;
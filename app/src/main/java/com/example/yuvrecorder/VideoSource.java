@@ -4,6 +4,7 @@ import android.app.Activity;
 import android.content.Context;
 import android.graphics.ImageFormat;
 import android.hardware.Camera;
+import android.os.SystemClock;
 import android.util.DisplayMetrics;
 import android.util.Log;
 import android.view.Surface;
@@ -50,6 +51,9 @@ public class VideoSource {
     }
 
     public interface Callback {
+        // Asked before a frame is copied or converted; frames it turns down are not sent.
+        public boolean acceptVideoData(long timeNs);
+
         public void sendVideoData(byte[] data, int fmt, int width, int height, int frameRate, long timeNs);
     }
 
@@ -255,24 +259,20 @@ public class VideoSource {
             if (data != null) {
                 camera.getParameters();
 
-                if (mCallback != null) {
-                    byte[] nv12 = null;
+                if (mCallback != null && mCallback.acceptVideoData(SystemClock.elapsedRealtimeNanos())) {
+                    // The encoder converts to its input format itself, straight into the codec buffer.
+                    long captureNs = System.nanoTime();
                     int length = size.width * size.height * 3 / 2;
                     if (mbChangeVdieoSouce) {
                         byte[] i420Buffer = new byte[length];
                         byte[] i420Buffer360p = new byte[640 * 360 * 3 / 2];
-                        byte[] nv21Buffer360p = new byte[640 * 360 * 3 / 2];
-                        nv12 = new byte[640 * 360 * 3 / 2];
                         YuvUtils.yuvCompress(data, size.width, size.height, i420Buffer, size.width, size.height, 0, 0, false);
                         YuvUtils.yuvScaleI420(i420Buffer, size.width, size.height, i420Buffer360p, 640, 360, 0);
-                        YuvUtils.yuvI420ToNV21(i420Buffer360p, 640, 360, nv21Buffer360p);
-                        NV21ToNV12(nv21Buffer360p, nv12);
+                        mCallback.sendVideoData(i420Buffer360p, YuvUtils.FOURCC_I420, 640, 360, frameRate, captureNs);
                     } else {
-                        nv12 = new byte[length];
-                        NV21ToNV12(data, nv12);
+                        // The preview buffer goes back to the camera below, the encoder may still hold the frame.
+                        mCallback.sendVideoData(data.clone(), fmt, size.width, size.height, frameRate, captureNs);
                     }
-
-                    mCallback.sendVideoData(nv12, fmt, size.width, size.height, frameRate, System.currentTimeMillis());
                 }
                 camera.addCallbackBuffer(data);
             } else {
@@ -281,16 +281,6 @@ public class VideoSource {
         }
     }
 
-    private void NV21ToNV12(byte[] nv21, byte[] nv12) {
-        System.arraycopy(nv21, 0, nv12, 0, nv21.length * 2 / 3);
-
-        int uvStart = nv21.length * 2 / 3;
-        for (int i = uvStart; i < nv21.length; i += 2) {
-            nv12[i + 1] = nv21[i];
-            nv12[i] = nv21[i + 1];
-        }
-    }
-
     public void changeVideoSourceTo360() {
         mbChangeVdieoSouce = !mbChangeVdieoSouce;
     }
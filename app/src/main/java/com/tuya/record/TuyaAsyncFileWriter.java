@@ -0,0 +1,338 @@
+package com.tuya.record;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Appends to a file from a thread of its own, so the caller never waits on storage unless it is a few buffers ahead.
+ *
+ * Writes are copied into large buffers, and only full buffers are written, as many as are ready in one gathering
+ * write: every write but the last one of the file covers whole buffers at offsets that are multiples of the buffer
+ * size, which suits flash storage, and small packets cost no system call each. How often the data is forced to the
+ * device is set by {@link Durability}.
+ *
+ * An I/O error on the writer thread is thrown by the next {@link #write} or by {@link #close()}. Calls are meant to
+ * come from one thread; the statistics can be read from any.
+ */
+public final class TuyaAsyncFileWriter implements Closeable {
+    public static final int DEFAULT_BUFFER_BYTES = 256 * 1024;
+    public static final int DEFAULT_BUFFER_COUNT = 4;
+    private static final int LATENCY_SAMPLES = 1024;
+    private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+    public enum Durability {
+        /**
+         * Leave it to the system. A crash of the device may lose whatever it has not written yet.
+         */
+        NEVER,
+        /**
+         * Force the data to the device at most every sync interval, and on close.
+         */
+        INTERVAL,
+        /**
+         * Force the data to the device on close only, so once per file or segment.
+         */
+        ON_CLOSE
+    }
+
+    /**
+     * Statistics of a writer at some point.
+     */
+    public static final class Stats {
+        public final long bytesWritten;
+        public final long writes;
+        public final long syncs;
+        /**
+         * Bytes written per second spent writing, not counting syncs.
+         */
+        public final long bytesPerSecond;
+        public final long latencyP50Us;
+        public final long latencyP90Us;
+        public final long latencyP99Us;
+        public final long maxLatencyUs;
+
+        Stats(long bytesWritten, long writes, long syncs, long bytesPerSecond, long[] latenciesUs, long maxLatencyUs) {
+            this.bytesWritten = bytesWritten;
+            this.writes = writes;
+            this.syncs = syncs;
+            this.bytesPerSecond = bytesPerSecond;
+            this.latencyP50Us = percentile(latenciesUs, 50);
+            this.latencyP90Us = percentile(latenciesUs, 90);
+            this.latencyP99Us = percentile(latenciesUs, 99);
+            this.maxLatencyUs = maxLatencyUs;
+        }
+
+        private static long percentile(long[] sorted, int percent) {
+            if (sorted.length == 0) {
+                return 0;
+            }
+            return sorted[Math.min(sorted.length - 1, sorted.length * percent / 100)];
+        }
+
+        @Override
+        public String toString() {
+            return bytesWritten + " bytes in " + writes + " writes, " + syncs + " syncs, " + bytesPerSecond / 1024
+                    + " KiB/s, latency p50 " + latencyP50Us + " p90 " + latencyP90Us + " p99 " + latencyP99Us
+                    + " max " + maxLatencyUs + " us";
+        }
+    }
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final Durability durability;
+    private final long syncIntervalNs;
+    private final BlockingQueue<ByteBuffer> free;
+    private final BlockingQueue<ByteBuffer> ready;
+    private final Thread thread;
+    private ByteBuffer current;
+    private boolean closed;
+    private volatile IOException error;
+
+    // Written on the writer thread, read under the lock by getStats().
+    private final long[] latenciesUs = new long[LATENCY_SAMPLES];
+    private long latencyCount;
+    private long maxLatencyUs;
+    private long bytesWritten;
+    private long writes;
+    private long syncs;
+    private long writeNs;
+
+    public TuyaAsyncFileWriter(File path, Durability durability, long syncIntervalMs) throws IOException {
+        this(path, durability, syncIntervalMs, DEFAULT_BUFFER_BYTES, DEFAULT_BUFFER_COUNT);
+    }
+
+    /**
+     * @param path
+     *            File to create or overwrite.
+     * @param syncIntervalMs
+     *            Time between syncs with {@link Durability#INTERVAL}.
+     * @param bufferBytes
+     *            Size of each buffer, and so of the writes.
+     * @param bufferCount
+     *            Buffers to fill ahead of the writer thread, at least 2.
+     */
+    public TuyaAsyncFileWriter(File path, Durability durability, long syncIntervalMs, int bufferBytes,
+                               int bufferCount) throws IOException {
+        if (bufferBytes <= 0 || bufferCount < 2) {
+            throw new IllegalArgumentException("bufferBytes " + bufferBytes + " bufferCount " + bufferCount);
+        }
+        this.durability = durability;
+        this.syncIntervalNs = syncIntervalMs * 1000000L;
+        free = new ArrayBlockingQueue<>(bufferCount);
+        ready = new ArrayBlockingQueue<>(bufferCount + 1);
+        for (int i = 1; i < bufferCount; i++) {
+            free.add(ByteBuffer.allocateDirect(bufferBytes));
+        }
+        current = ByteBuffer.allocateDirect(bufferBytes);
+        file = new RandomAccessFile(path, "rw");
+        file.setLength(0);
+        channel = file.getChannel();
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, "TuyaFileWriter");
+        thread.start();
+    }
+
+    /**
+     * Copies the remaining bytes of the buffers, leaving their positions as they are. Blocks only while every buffer is
+     * waiting to be written.
+     */
+    public void write(ByteBuffer[] buffers) throws IOException {
+        for (ByteBuffer buffer : buffers) {
+            write(buffer);
+        }
+    }
+
+    /**
+     * Copies the remaining bytes of the buffer, leaving its position as it is.
+     */
+    public void write(ByteBuffer buffer) throws IOException {
+        checkOpen();
+        ByteBuffer source = buffer.duplicate();
+        while (source.hasRemaining()) {
+            if (!current.hasRemaining()) {
+                submit();
+                current = takeUninterruptibly(free);
+                checkOpen();
+            }
+            int count = Math.min(source.remaining(), current.remaining());
+            int limit = source.limit();
+            source.limit(source.position() + count);
+            current.put(source);
+            source.limit(limit);
+        }
+    }
+
+    /**
+     * Writes what is left, syncs as the durability asks, and closes the file.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (current.position() > 0) {
+            submit();
+        }
+        putUninterruptibly(ready, END);
+        boolean interrupted = false;
+        while (thread.isAlive()) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        try {
+            if (error == null && durability != Durability.NEVER) {
+                channel.force(false);
+                synchronized (this) {
+                    syncs++;
+                }
+            }
+        } finally {
+            file.close();
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    /**
+     * @return What has been written so far.
+     */
+    public synchronized Stats getStats() {
+        long[] sorted = Arrays.copyOf(latenciesUs, (int) Math.min(latencyCount, LATENCY_SAMPLES));
+        Arrays.sort(sorted);
+        long bytesPerSecond = writeNs > 0 ? bytesWritten * 1000000000L / writeNs : 0;
+        return new Stats(bytesWritten, writes, syncs, bytesPerSecond, sorted, maxLatencyUs);
+    }
+
+    private void submit() {
+        current.flip();
+        putUninterruptibly(ready, current);
+        current = null;
+    }
+
+    private void checkOpen() throws IOException {
+        if (error != null) {
+            throw error;
+        }
+        if (closed) {
+            throw new IOException("closed");
+        }
+    }
+
+    private void writeLoop() {
+        List<ByteBuffer> batch = new ArrayList<>();
+        long lastSyncNs = System.nanoTime();
+        boolean end = false;
+        while (!end) {
+            batch.clear();
+            ByteBuffer buffer = takeUninterruptibly(ready);
+            // Everything filled meanwhile goes in the same write.
+            while (buffer != null) {
+                if (buffer == END) {
+                    end = true;
+                    break;
+                }
+                batch.add(buffer);
+                buffer = ready.poll();
+            }
+            if (batch.isEmpty()) {
+                continue;
+            }
+            if (error == null) {
+                try {
+                    writeBatch(batch.toArray(new ByteBuffer[0]));
+                    if (durability == Durability.INTERVAL && System.nanoTime() - lastSyncNs >= syncIntervalNs) {
+                        channel.force(false);
+                        lastSyncNs = System.nanoTime();
+                        synchronized (this) {
+                            syncs++;
+                        }
+                    }
+                } catch (IOException e) {
+                    error = e;
+                }
+            }
+            // Buffers go back even after an error, so the caller does not block before seeing it.
+            for (ByteBuffer written : batch) {
+                written.clear();
+                free.offer(written);
+            }
+        }
+    }
+
+    private void writeBatch(ByteBuffer[] batch) throws IOException {
+        long remaining = 0;
+        for (ByteBuffer buffer : batch) {
+            remaining += buffer.remaining();
+        }
+        long bytes = remaining;
+        long start = System.nanoTime();
+        while (remaining > 0) {
+            remaining -= channel.write(batch);
+        }
+        long elapsed = System.nanoTime() - start;
+        synchronized (this) {
+            long latencyUs = elapsed / 1000;
+            latenciesUs[(int) (latencyCount++ % LATENCY_SAMPLES)] = latencyUs;
+            maxLatencyUs = Math.max(maxLatencyUs, latencyUs);
+            bytesWritten += bytes;
+            writes++;
+            writeNs += elapsed;
+        }
+    }
+
+    private static ByteBuffer takeUninterruptibly(BlockingQueue<ByteBuffer> queue) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return queue.take();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static void putUninterruptibly(BlockingQueue<ByteBuffer> queue, ByteBuffer buffer) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    queue.put(buffer);
+                    return;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
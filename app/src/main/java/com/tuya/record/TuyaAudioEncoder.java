@@ -1,17 +1,20 @@
 package com.tuya.record;
 
+import android.annotation.TargetApi;
 import android.media.AudioFormat;
 import android.media.MediaCodec;
 import android.media.MediaCodecInfo;
 import android.media.MediaCodecList;
 import android.media.MediaFormat;
+import android.os.Build;
 import android.os.SystemClock;
 import android.util.Log;
 
-
+import androidx.annotation.NonNull;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 
 public class TuyaAudioEncoder {
@@ -24,17 +27,35 @@ public class TuyaAudioEncoder {
 
     private volatile boolean isEncodeReady;
     private ByteBuffer[] outputBuffers;
-    private byte[] intputBuffer;
 
     private Thread outputThread;
     private volatile boolean running;
-    private TuyaRingBuffer tuyaRingBuffer;
+    private final TuyaByteRing tuyaRingBuffer;
+    // Set when the input ring knows the capture time of its bytes.
+    private final TuyaTimestampedRingBuffer timestampedRing;
     private boolean endOfStream;
-    private long audioTimestampBase;
+    // Times PCM was waiting but the codec had no free input buffer.
+    private volatile long noInputBufferCount;
+    // Timestamp of the last input buffer, which the next one must exceed.
+    private long lastInputPtsUs;
+    private volatile long queuedInputBytes;
+
+    // Asynchronous mode: the codec calls back on TuyaCodecThread instead of being polled by outputThread.
+    private final boolean asyncMode;
+    private final Object inputLock = new Object();
+    // Guarded by inputLock.
+    private final ArrayDeque<Integer> freeInputBuffers = new ArrayDeque<>();
+    private boolean endOfStreamPending;
+
+    // Encoded frames are copied into buffers from this pool before they reach the callback.
+    private volatile TuyaBufferPool outputPool = new TuyaBufferPool(DEFAULT_OUTPUT_POOL_BYTES);
 
 
     private static final int MEDIA_CODEC_RELEASE_TIMEOUT_MS = 5000;
     private static final int DEQUEUE_OUTPUT_BUFFER_TIMEOUT_US = 50000;
+    // Samples per channel in one AAC-LC access unit.
+    private static final int AAC_FRAME_SAMPLES = 1024;
+    private static final long DEFAULT_OUTPUT_POOL_BYTES = 256 * 1024;
 
 
     /**
@@ -46,12 +67,23 @@ public class TuyaAudioEncoder {
         private final int sampleRate;
 
         private final byte[] data;
+        private final long captureNanos;
 
         public AudioSamples(int audioFormat, int channelCount, int sampleRate, byte[] data) {
+            this(audioFormat, channelCount, sampleRate, data, -1);
+        }
+
+        /**
+         * @param captureNanos
+         *            {@link System#nanoTime()} at which the first sample was captured, or -1 if the samples were
+         *            captured just before they are encoded.
+         */
+        public AudioSamples(int audioFormat, int channelCount, int sampleRate, byte[] data, long captureNanos) {
             this.audioFormat = audioFormat;
             this.channelCount = channelCount;
             this.sampleRate = sampleRate;
             this.data = data;
+            this.captureNanos = captureNanos;
         }
 
         public int getAudioFormat() {
@@ -69,20 +101,41 @@ public class TuyaAudioEncoder {
         public byte[] getData() {
             return data;
         }
+
+        public long getCaptureNanos() {
+            return captureNanos;
+        }
+
+        /**
+         * @return How long the samples play.
+         */
+        public long getDurationNanos() {
+            return data.length / (channelCount * bytesPerSample(audioFormat)) * 1000000000L / sampleRate;
+        }
     }
 
     public TuyaAudioEncoder(Settings setting, Callback callback) {
+        this(setting, callback, new TuyaTimestampedRingBuffer(1024*50,
+                setting.sampleRate, setting.channelCount * bytesPerSample(setting.audioFmt)));
+    }
+
+    /**
+     * @param inputRing
+     *            Ring to take PCM from, for instance a {@link TuyaMappedRingBuffer} so that audio not yet encoded
+     *            survives a crash. The caller keeps ownership of it.
+     */
+    public TuyaAudioEncoder(Settings setting, Callback callback, TuyaByteRing inputRing) {
         this.settings = setting;
         this.callback = callback;
-        tuyaRingBuffer = new TuyaRingBuffer(1024*50);
-        intputBuffer = new byte[2048];
+        tuyaRingBuffer = inputRing;
+        timestampedRing = inputRing instanceof TuyaTimestampedRingBuffer ? (TuyaTimestampedRingBuffer) inputRing : null;
         this.endOfStream = false;
-        this.audioTimestampBase = 0L;
+        this.asyncMode = TuyaCodecThread.isAsyncSupported();
     }
 
 
     public AudioCodecStatus initEncode() {
-        audioTimestampBase = 0L;
+        lastInputPtsUs = 0;
         MediaCodecInfo audioCodecInfo = selectCodec(MimeType.AAC.mimeType());
         if (audioCodecInfo == null) {
             Log.e(TAG, "initAudioParam Unable to find an appropriate codec for " + MimeType.AAC.mimeType());
@@ -101,11 +154,23 @@ public class TuyaAudioEncoder {
         Log.i(TAG, "initAudioParam audio format: " + format.toString());
 
         try {
-            codec = MediaCodec.createEncoderByType(MimeType.AAC.mimeType());
+            if (asyncMode) {
+                TuyaCodecThread.acquire();
+                codec = TuyaCodecThread.createCodec(MimeType.AAC.mimeType(), true);
+                setAsyncCallback();
+            } else {
+                codec = MediaCodec.createEncoderByType(MimeType.AAC.mimeType());
+            }
         } catch (IOException e) {
             e.printStackTrace();
+            if (asyncMode) {
+                TuyaCodecThread.release();
+            }
+            codec = null;
+            return AudioCodecStatus.UNINITIALIZED;
         }
 
+        running = true;
         try {
             codec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
 
@@ -117,10 +182,13 @@ public class TuyaAudioEncoder {
         } catch (IllegalStateException e) {
             e.printStackTrace();
         }
+        if (asyncMode) {
+            isEncodeReady = true;
+            return AudioCodecStatus.OK;
+        }
 
         outputBuffers = codec.getOutputBuffers();
 
-        running = true;
         outputThread = createOutputThread();
         outputThread.start();
         isEncodeReady = true;
@@ -143,76 +211,249 @@ public class TuyaAudioEncoder {
         final int audioSampleChannelCount = audioSamples.getChannelCount();
         final int audioFormat = audioSamples.getAudioFormat();
 
-        if (audioSampleRate != settings.sampleRate ||
-                audioSampleChannelCount != settings.channelCount ||
-                audioFormat != settings.audioFmt) {
-            AudioCodecStatus status = resetCodec(audioSampleRate, audioSampleChannelCount, audioFormat);
-            if (status != AudioCodecStatus.OK) {
-                return status;
-            }
+        AudioCodecStatus status = checkFormat(audioSampleRate, audioSampleChannelCount, audioFormat);
+        if (status != AudioCodecStatus.OK) {
+            return status;
         }
 
         final AudioCodecStatus returnValue;
+        if (audioSamples.getCaptureNanos() >= 0 && timestampedRing != null) {
+            timestampedRing.overrunPush(audioSampleBuffer, 0, audioSampleBuffer.length, audioSamples.getCaptureNanos());
+            return encodeRingBuffer();
+        }
         returnValue = encodeByteBuffer(audioSampleBuffer,  audioSampleChannelCount*audioSampleRate*audioFormat/8);
         return returnValue;
     }
 
+    /**
+     * Encodes PCM that a producer has already committed into {@link #getInputRing()}, for instance with
+     * {@link TuyaByteRing#reserve(int)} and {@link TuyaByteRing#commit(int)}.
+     */
+    public AudioCodecStatus encodeBuffered(int sampleRate, int channelCount, int audioFormat) {
+        if (codec == null) {
+            return AudioCodecStatus.UNINITIALIZED;
+        }
 
-    private AudioCodecStatus encodeByteBuffer(byte[] audioSampleBuffer, int bufferSize) {
-        // Frame timestamp rounded to the nearest microsecond.
+        AudioCodecStatus status = checkFormat(sampleRate, channelCount, audioFormat);
+        if (status != AudioCodecStatus.OK) {
+            return status;
+        }
+        return encodeRingBuffer();
+    }
 
-        tuyaRingBuffer.overrunPush(audioSampleBuffer);
+    /**
+     * @return The ring the encoder takes its PCM from. Producers may write into it directly.
+     */
+    public TuyaByteRing getInputRing() {
+        return tuyaRingBuffer;
+    }
 
-        if (tuyaRingBuffer.sizeUsed() >= 2048) {
-            tuyaRingBuffer.pop(intputBuffer);
-        } else if (tuyaRingBuffer.sizeFree() <= 2048) {
-            Log.e(TAG, "no memory for recording audio sample buffer." + tuyaRingBuffer.sizeFree());
-            return AudioCodecStatus.MEMORY;
-        } else {
+    private AudioCodecStatus checkFormat(int audioSampleRate, int audioSampleChannelCount, int audioFormat) {
+        if (audioSampleRate != settings.sampleRate ||
+                audioSampleChannelCount != settings.channelCount ||
+                audioFormat != settings.audioFmt) {
+            return resetCodec(audioSampleRate, audioSampleChannelCount, audioFormat);
+        }
+        return AudioCodecStatus.OK;
+    }
+
+
+    private AudioCodecStatus encodeByteBuffer(byte[] audioSampleBuffer, int bufferSize) {
+        tuyaRingBuffer.overrunPush(audioSampleBuffer, 0, audioSampleBuffer.length);
+        return encodeRingBuffer();
+    }
+
+    /**
+     * Moves buffered PCM into as many codec input buffers as are free, each filled with whole AAC frames up to its
+     * capacity, so the ring does not build up and overrun while the codec has room.
+     */
+    private AudioCodecStatus encodeRingBuffer() {
+        final int frameBytes = aacFrameBytes();
+        if (tuyaRingBuffer.sizeUsed() < frameBytes) {
+            if (tuyaRingBuffer.sizeFree() <= frameBytes) {
+                Log.e(TAG, "no memory for recording audio sample buffer." + tuyaRingBuffer.sizeFree());
+            }
             return AudioCodecStatus.MEMORY;
         }
+        if (asyncMode) {
+            // Whatever the codec cannot take now is fed from onInputBufferAvailable.
+            synchronized (inputLock) {
+                feedInputLocked();
+            }
+            return AudioCodecStatus.OK;
+        }
+
+        while (tuyaRingBuffer.sizeUsed() >= frameBytes) {
+            long relativeTS = nextPresentationTimeUs();
+
+            // No timeout. Leave the PCM in the ring if the encoder falls behind.
+            int index;
+            try {
+                index = codec.dequeueInputBuffer(0 /* timeout */);
+            } catch (IllegalStateException e) {
+                Log.e(TAG, "dequeueInputBuffer failed", e);
+                return AudioCodecStatus.ERROR;
+            }
+
+            if (index == -1) {
+                noInputBufferCount++;
+                Log.d(TAG, "No input buffers available, " + tuyaRingBuffer.sizeUsed() + " bytes buffered");
+                return AudioCodecStatus.NO_OUTPUT; // See webrtc bug 2887.
+            }
+
+            ByteBuffer buffer;
+            try {
+                buffer = codec.getInputBuffers()[index];
+            } catch (IllegalStateException e) {
+                Log.e(TAG, "getInputBuffers failed", e);
+                return AudioCodecStatus.ERROR;
+            }
 
-        long presentationTimestampUs = System.currentTimeMillis()*1000;
-        if (audioTimestampBase == 0L) {
-            audioTimestampBase = presentationTimestampUs;
+            // The PCM stays in the ring until an input buffer is available, then moves in one bulk copy.
+            final int size = fillInputBuffer(buffer, frameBytes);
+
+            try {
+                codec.queueInputBuffer(
+                        index, 0 /* offset */, size, relativeTS, 0 /* flags */);
+            } catch (IllegalStateException e) {
+                Log.e(TAG, "queueInputBuffer failed", e);
+                // IllegalStateException thrown when the codec is in the wrong state.
+                return AudioCodecStatus.ERROR;
+            }
+            queuedInputBytes += size;
         }
-        long relativeTS = presentationTimestampUs - audioTimestampBase;
+        return AudioCodecStatus.OK;
+    }
 
+    /**
+     * @return Unread PCM bytes lost because the input ring overran.
+     */
+    public long getOverrunBytes() {
+        return tuyaRingBuffer.overrunBytes();
+    }
 
-        // No timeout.  Don't block for an input buffer, drop frames if the encoder falls behind.
-        int index;
-        try {
-            index = codec.dequeueInputBuffer(0 /* timeout */);
-        } catch (IllegalStateException e) {
-            Log.e(TAG, "dequeueInputBuffer failed", e);
-            return AudioCodecStatus.ERROR;
+    /**
+     * @return How many times PCM was waiting but the codec had no free input buffer.
+     */
+    public long getNoInputBufferCount() {
+        return noInputBufferCount;
+    }
+
+    /**
+     * @return PCM bytes handed to the codec so far.
+     */
+    public long getQueuedInputBytes() {
+        return queuedInputBytes;
+    }
+
+    /**
+     * @return Timestamp for the next input buffer, in microseconds on the {@link System#nanoTime()} clock like the
+     *         video track's.
+     */
+    private long nextPresentationTimeUs() {
+        // Capture time of the first sample going in, when the ring tracks it. Otherwise assume the buffered PCM
+        // ends now.
+        long presentationTimestampUs = timestampedRing != null
+                ? timestampedRing.readPresentationTimeUs()
+                : System.nanoTime()/1000 - bytesToUs(tuyaRingBuffer.sizeUsed());
+        // Neither source is guaranteed to move forward, for instance after a burst of backlogged reads.
+        if (presentationTimestampUs <= lastInputPtsUs) {
+            presentationTimestampUs = lastInputPtsUs + 1;
+        }
+        lastInputPtsUs = presentationTimestampUs;
+        return presentationTimestampUs;
+    }
+
+    /**
+     * Fills free input buffers from the ring. Called with inputLock held, from the thread that pushed PCM or from the
+     * codec thread when a buffer frees up; the lock makes them take turns as the ring's one consumer.
+     */
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private void feedInputLocked() {
+        final int frameBytes = aacFrameBytes();
+        while (running && !freeInputBuffers.isEmpty() && tuyaRingBuffer.sizeUsed() >= frameBytes) {
+            int index = freeInputBuffers.poll();
+            long relativeTS = nextPresentationTimeUs();
+            try {
+                int size = fillInputBuffer(codec.getInputBuffer(index), frameBytes);
+                codec.queueInputBuffer(index, 0 /* offset */, size, relativeTS, 0 /* flags */);
+                queuedInputBytes += size;
+            } catch (IllegalStateException e) {
+                Log.e(TAG, "queueInputBuffer failed", e);
+                return;
+            }
+        }
+        if (running && endOfStreamPending && !freeInputBuffers.isEmpty()) {
+            endOfStreamPending = false;
+            try {
+                codec.queueInputBuffer(freeInputBuffers.poll(), 0 /* offset */, 0, System.nanoTime()/1000,
+                        MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+            } catch (IllegalStateException e) {
+                Log.e(TAG, "queueInputBuffer failed", e);
+            }
         }
+    }
 
-        if (index == -1) {
-            // Encoder is falling behind.  No input buffers available.  Drop the frame.
-            Log.d(TAG, "Dropped frame, no input buffers available");
-            return AudioCodecStatus.NO_OUTPUT; // See webrtc bug 2887.
+    /**
+     * Must be called before configure.
+     */
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private void setAsyncCallback() {
+        codec.setCallback(new AsyncCallback());
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private class AsyncCallback extends MediaCodec.Callback {
+        @Override
+        public void onInputBufferAvailable(@NonNull MediaCodec mediaCodec, int index) {
+            synchronized (inputLock) {
+                if (!running) {
+                    return;
+                }
+                freeInputBuffers.add(index);
+                feedInputLocked();
+            }
         }
 
-        ByteBuffer buffer;
-        try {
-            buffer = codec.getInputBuffers()[index];
-        } catch (IllegalStateException e) {
-            Log.e(TAG, "getInputBuffers failed", e);
-            return AudioCodecStatus.ERROR;
+        @Override
+        public void onOutputBufferAvailable(@NonNull MediaCodec mediaCodec, int index,
+                                            @NonNull MediaCodec.BufferInfo info) {
+            if (!running) {
+                return;
+            }
+            try {
+                if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                    Log.i(TAG, "Recv Audio Encoder BUFFER_FLAG_END_OF_STREAM");
+                    mediaCodec.releaseOutputBuffer(index, false);
+                    return;
+                }
+                deliverOutput(mediaCodec, mediaCodec.getOutputBuffer(index), index, info);
+            } catch (IllegalStateException e) {
+                Log.e(TAG, "deliverOutput failed", e);
+            }
         }
 
-        fillInputBuffer(buffer, intputBuffer);
+        @Override
+        public void onError(@NonNull MediaCodec mediaCodec, @NonNull MediaCodec.CodecException e) {
+            Log.e(TAG, "Audio encoder error", e);
+        }
 
-        try {
-            codec.queueInputBuffer(
-                    index, 0 /* offset */, intputBuffer.length, relativeTS, 0 /* flags */);
-        } catch (IllegalStateException e) {
-            Log.e(TAG, "queueInputBuffer failed", e);
-            // IllegalStateException thrown when the codec is in the wrong state.
-            return AudioCodecStatus.ERROR;
+        @Override
+        public void onOutputFormatChanged(@NonNull MediaCodec mediaCodec, @NonNull MediaFormat format) {
+            callback.onAddAudioTrack(format);
         }
-        return AudioCodecStatus.OK;
+    }
+
+    private int bytesPerFrame() {
+        return settings.channelCount * bytesPerSample(settings.audioFmt);
+    }
+
+    private int aacFrameBytes() {
+        return AAC_FRAME_SAMPLES * bytesPerFrame();
+    }
+
+    private long bytesToUs(long bytes) {
+        return bytes / bytesPerFrame() * 1000000L / settings.sampleRate;
     }
 
 
@@ -229,8 +470,15 @@ public class TuyaAudioEncoder {
         }
 
         endOfStream = true;
+        if (asyncMode) {
+            synchronized (inputLock) {
+                endOfStreamPending = true;
+                feedInputLocked();
+            }
+            return AudioCodecStatus.OK;
+        }
 
-        long presentationTimestampUs = System.currentTimeMillis()*1000;
+        long presentationTimestampUs = System.nanoTime()/1000;
 
         // No timeout.  Don't block for an input buffer, drop frames if the encoder falls behind.
         int index;
@@ -258,7 +506,7 @@ public class TuyaAudioEncoder {
 
         try {
             codec.queueInputBuffer(
-                    index, 0 /* offset */, intputBuffer.length, presentationTimestampUs, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                    index, 0 /* offset */, 0, presentationTimestampUs, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
         } catch (IllegalStateException e) {
             Log.e(TAG, "queueInputBuffer failed", e);
             // IllegalStateException thrown when the codec is in the wrong state.
@@ -267,8 +515,15 @@ public class TuyaAudioEncoder {
         return AudioCodecStatus.OK;
     }
 
-    private void fillInputBuffer(ByteBuffer buffer, byte[] audioSampleBuffer) {
-        buffer.put(audioSampleBuffer);
+    /**
+     * Fills an input buffer with as many whole AAC frames as fit, or whole sample frames if it is smaller than one.
+     */
+    private int fillInputBuffer(ByteBuffer buffer, int frameBytes) {
+        int length = Math.min(buffer.capacity(), tuyaRingBuffer.sizeUsed());
+        int unit = length >= frameBytes ? frameBytes : bytesPerFrame();
+        buffer.clear();
+        buffer.limit(length - length % unit);
+        return tuyaRingBuffer.drainTo(buffer);
     }
 
     private AudioCodecStatus resetCodec(int audioSampleRate, int audioSampleChannelCount, int audioFormat) {
@@ -279,11 +534,40 @@ public class TuyaAudioEncoder {
         settings.sampleRate = audioSampleRate;
         settings.channelCount = audioSampleChannelCount;
         settings.audioFmt = audioFormat;
+        if (timestampedRing != null) {
+            timestampedRing.setFormat(audioSampleRate, audioSampleChannelCount * bytesPerSample(audioFormat));
+        }
         return initEncode();
     }
 
+    private static int bytesPerSample(int audioFormat) {
+        switch (audioFormat) {
+            case AudioFormat.ENCODING_PCM_8BIT:
+                return 1;
+            case AudioFormat.ENCODING_PCM_FLOAT:
+                return 4;
+            default:
+                return 2;
+        }
+    }
+
     public AudioCodecStatus release() {
+        Log.i(TAG, "Audio input: queued " + queuedInputBytes + " bytes, overrun " + getOverrunBytes()
+                + " bytes, no input buffer " + noInputBufferCount + " times");
         AudioCodecStatus returnValue = AudioCodecStatus.OK;
+        if (asyncMode) {
+            if (codec != null) {
+                synchronized (inputLock) {
+                    running = false;
+                    freeInputBuffers.clear();
+                    endOfStreamPending = false;
+                }
+                releaseCodecOnOutputThread();
+                TuyaCodecThread.release();
+            }
+            codec = null;
+            return returnValue;
+        }
         if (outputThread == null) {
             returnValue = AudioCodecStatus.OK;
         } else {
@@ -391,33 +675,53 @@ public class TuyaAudioEncoder {
             if (outputBuffers == null) {
                 return;
             }
-            ByteBuffer codecOutputBuffer = outputBuffers[index];
-            codecOutputBuffer.position(info.offset);
-            codecOutputBuffer.limit(info.offset + info.size);
-
-            if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
-                Log.d(TAG, "Config frame generated. Offset: " + info.offset + ". Size: " + info.size);
-                info.size = 0;
-            } else {
+            deliverOutput(codec, outputBuffers[index], index, info);
+        } catch (IllegalStateException e) {
+            Log.e(TAG, "deliverOutput failed", e);
+        }
+    }
 
-                final ByteBuffer frameBuffer;
-                frameBuffer = codecOutputBuffer.slice();
+    /**
+     * Hands an encoded buffer to the callback and returns it to the codec. Used by both modes.
+     */
+    private void deliverOutput(
+            MediaCodec mediaCodec, ByteBuffer codecOutputBuffer, int index, MediaCodec.BufferInfo info) {
+        codecOutputBuffer.position(info.offset);
+        codecOutputBuffer.limit(info.offset + info.size);
+
+        if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+            Log.d(TAG, "Config frame generated. Offset: " + info.offset + ". Size: " + info.size);
+            info.size = 0;
+            mediaCodec.releaseOutputBuffer(index, false);
+        } else {
 
+            // Copy the frame out so the codec gets its buffer back before the muxer writes it.
+            final ByteBuffer frameBuffer = outputPool.acquire(info.size);
+            if (frameBuffer != null) {
+                frameBuffer.put(codecOutputBuffer);
+                frameBuffer.flip();
+            }
 
-                try {
-                    codec.releaseOutputBuffer(index, false);
-                } catch (Exception e) {
-                    Log.e(TAG, "releaseOutputBuffer failed", e);
-                }
+            try {
+                mediaCodec.releaseOutputBuffer(index, false);
+            } catch (Exception e) {
+                Log.e(TAG, "releaseOutputBuffer failed", e);
+            }
 
-                //Log.e(TAG, "audio ts =====> " + info.presentationTimeUs);
-                if (!endOfStream) {
-                    callback.onAudioSample(frameBuffer, info);
-                }
+            if (frameBuffer == null) {
+                Log.w(TAG, "Output pool full, dropped frame of " + info.size + " bytes");
+                return;
+            }
 
+            info.offset = 0;
+            //Log.e(TAG, "audio ts =====> " + info.presentationTimeUs);
+            if (!endOfStream) {
+                // The callback now owns frameBuffer and returns it to the output pool.
+                callback.onAudioSample(frameBuffer, info);
+            } else {
+                outputPool.release(frameBuffer);
             }
-        } catch (IllegalStateException e) {
-            Log.e(TAG, "deliverOutput failed", e);
+
         }
     }
 
@@ -508,7 +812,30 @@ public class TuyaAudioEncoder {
 
 
 
+    /**
+     * Makes encoded frames come from the given pool, for instance one shared with the video encoder. Call before
+     * {@link #initEncode()}.
+     */
+    public void setOutputPool(TuyaBufferPool pool) {
+        if (pool == null) {
+            throw new IllegalArgumentException("pool is null");
+        }
+        outputPool = pool;
+    }
+
+    /**
+     * @return The pool that buffers passed to {@link Callback#onAudioSample} must be released to.
+     */
+    public TuyaBufferPool getOutputPool() {
+        return outputPool;
+    }
+
     public interface Callback {
+        /**
+         * @param outBuf
+         *            Encoded frame in a buffer from {@link #getOutputPool()}. The callback owns it and must release it
+         *            to the pool once it is done, on any thread.
+         */
         public void onAudioSample(ByteBuffer outBuf, MediaCodec.BufferInfo bufferInfo);
         public void onAddAudioTrack(MediaFormat format);
 
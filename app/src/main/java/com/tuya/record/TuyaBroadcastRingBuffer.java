@@ -0,0 +1,386 @@
+package com.tuya.record;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A ring buffer with a single writer and any number of readers, each with its own cursor. One capture stream (PCM or
+ * YUV) can feed the encoder, a level meter, a voice-activity detector and a network tap without copying it per
+ * consumer.
+ *
+ * The writer never blocks: when the ring is full it overwrites the oldest bytes. What happens to a reader that falls
+ * that far behind is chosen per reader with {@link OverrunPolicy}. Positions are absolute 64-bit byte counts, so they
+ * never wrap.
+ *
+ * Before overwriting, the writer publishes how far it is about to write and then looks at every reader cursor. A
+ * reader commits its cursor with a CAS and then checks that claim. Either the writer saw the reader's new cursor, or
+ * the reader sees the writer's claim, so a reader never hands out torn data.
+ */
+public final class TuyaBroadcastRingBuffer {
+    /**
+     * Returned by the read methods of a {@link OverrunPolicy#DETECT_LAG} reader that was overrun.
+     */
+    public static final int LAGGED = -1;
+
+    /**
+     * What happens to a reader that falls more than a whole buffer behind the writer.
+     */
+    public enum OverrunPolicy {
+        /**
+         * The writer leaves the reader alone. The reader's next read notices, skips to the oldest byte still available
+         * and returns {@link #LAGGED} once, so the consumer knows the stream has a gap.
+         */
+        DETECT_LAG,
+
+        /**
+         * The writer pushes the reader's cursor forward before overwriting its data. Reads never report a gap; the
+         * skipped bytes are only counted in {@link Reader#lostBytes()}.
+         */
+        PUSH_FORWARD
+    }
+
+    /**
+     * Elements are stored here as bytes.
+     */
+    private final byte[] buffer;
+
+    /**
+     * Absolute position of the next byte to write. Written by the writer only.
+     */
+    private final AtomicLong writePosition = new AtomicLong();
+
+    /**
+     * Absolute position the writer is about to write up to. Everything before claimPosition - capacity may already be
+     * overwritten. Written by the writer only.
+     */
+    private final AtomicLong claimPosition = new AtomicLong();
+
+    /**
+     * Registered readers. Replaced as a whole on register and unregister so the writer can walk it without locking.
+     */
+    private volatile Reader[] readers = new Reader[0];
+
+    /**
+     * Creates a ring buffer that can store up to the given number of bytes.
+     *
+     * @param capacity
+     *            How many bytes can be stored in the buffer.
+     */
+    public TuyaBroadcastRingBuffer(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        buffer = new byte[capacity];
+    }
+
+    /**
+     * @return How many bytes can be stored in the buffer in total.
+     */
+    public final int sizeTotal() {
+        return buffer.length;
+    }
+
+    /**
+     * @return Total number of bytes written since the buffer was created.
+     */
+    public final long writePosition() {
+        return writePosition.get();
+    }
+
+    /**
+     * @return How many readers are registered.
+     */
+    public final int readerCount() {
+        return readers.length;
+    }
+
+    /**
+     * Adds a reader. It starts at the current write position, so it only sees bytes written from now on.
+     *
+     * @param policy
+     *            What to do when this reader falls more than a buffer behind.
+     */
+    public synchronized Reader register(OverrunPolicy policy) {
+        Objects.requireNonNull(policy);
+
+        Reader reader = new Reader(policy, writePosition.get());
+        Reader[] current = readers;
+        Reader[] updated = Arrays.copyOf(current, current.length + 1);
+        updated[current.length] = reader;
+        readers = updated;
+        return reader;
+    }
+
+    /**
+     * Removes a reader. Its cursor is no longer maintained by the writer.
+     */
+    public synchronized void unregister(Reader reader) {
+        Reader[] current = readers;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i] == reader) {
+                Reader[] updated = new Reader[current.length - 1];
+                System.arraycopy(current, 0, updated, 0, i);
+                System.arraycopy(current, i + 1, updated, i, current.length - i - 1);
+                readers = updated;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Adds elements to the end of the buffer, overwriting the oldest ones when it is full. Writer thread only.
+     *
+     * @param bytes
+     *            Adds entire array to buffer.
+     */
+    public final void push(byte... bytes) {
+        Objects.requireNonNull(bytes);
+
+        push(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Adds elements to the end of the buffer, overwriting the oldest ones when it is full. Writer thread only.
+     *
+     * @param bytes
+     *            Array that contains elements to be added.
+     * @param index
+     *            Where to begin extracting elements.
+     * @param length
+     *            How many elements to extract. Only the last capacity bytes are kept if it is larger.
+     */
+    public final void push(byte[] bytes, int index, int length) {
+        Objects.requireNonNull(bytes);
+
+        if (length > buffer.length) {
+            index += length - buffer.length;
+            length = buffer.length;
+        }
+        if (length <= 0) {
+            return;
+        }
+
+        long write = writePosition.get();
+        long end = write + length;
+        claimPosition.set(end);
+
+        long oldest = end - buffer.length;
+        for (Reader reader : readers) {
+            reader.makeRoom(oldest);
+        }
+
+        int offset = (int) (write % buffer.length);
+        int first = Math.min(length, buffer.length - offset);
+        System.arraycopy(bytes, index, buffer, offset, first);
+        if (first < length) {
+            System.arraycopy(bytes, index + first, buffer, 0, length - first);
+        }
+        writePosition.set(end);
+    }
+
+    /**
+     * An independent cursor into the buffer. Each reader must be used by one thread at a time.
+     */
+    public final class Reader {
+        private final OverrunPolicy policy;
+
+        /**
+         * Absolute position of the next byte to read.
+         */
+        private final AtomicLong readPosition;
+
+        /**
+         * Bytes this reader never saw because it was overrun.
+         */
+        private final AtomicLong lostBytes = new AtomicLong();
+
+        /**
+         * How many times this reader was overrun.
+         */
+        private final AtomicLong overruns = new AtomicLong();
+
+        private Reader(OverrunPolicy policy, long position) {
+            this.policy = policy;
+            this.readPosition = new AtomicLong(position);
+        }
+
+        /**
+         * @return The overrun policy chosen at registration.
+         */
+        public OverrunPolicy policy() {
+            return policy;
+        }
+
+        /**
+         * @return Absolute position of the next byte this reader will see.
+         */
+        public long position() {
+            return readPosition.get();
+        }
+
+        /**
+         * @return How many bytes are waiting for this reader, at most the buffer capacity.
+         */
+        public int sizeUsed() {
+            long read = readPosition.get();
+            return (int) Math.min(writePosition.get() - read, buffer.length);
+        }
+
+        /**
+         * @return Total number of bytes skipped because this reader was overrun.
+         */
+        public long lostBytes() {
+            return lostBytes.get();
+        }
+
+        /**
+         * @return How many times this reader was overrun.
+         */
+        public long overruns() {
+            return overruns.get();
+        }
+
+        /**
+         * Retrieves elements without removing them.
+         *
+         * @return Number of elements copied, or {@link #LAGGED} if a DETECT_LAG reader was overrun. In that case the
+         *         cursor was moved to the oldest available byte and nothing was copied.
+         */
+        public int peek(byte[] bytes, int index, int length) {
+            Objects.requireNonNull(bytes);
+
+            return read(bytes, index, null, length, false);
+        }
+
+        /**
+         * Moves elements to the given array.
+         *
+         * @return Number of elements removed, or {@link #LAGGED} if a DETECT_LAG reader was overrun. In that case the
+         *         cursor was moved to the oldest available byte and nothing was copied.
+         */
+        public int pop(byte[] bytes, int index, int length) {
+            Objects.requireNonNull(bytes);
+
+            return read(bytes, index, null, length, true);
+        }
+
+        /**
+         * Moves elements into the given buffer, up to its remaining space.
+         *
+         * @return Number of elements moved, or {@link #LAGGED} if a DETECT_LAG reader was overrun. Either way the
+         *         position of dst only covers valid bytes.
+         */
+        public int drainTo(ByteBuffer dst) {
+            Objects.requireNonNull(dst);
+
+            return read(null, 0, dst, dst.remaining(), true);
+        }
+
+        /**
+         * Skips elements.
+         *
+         * @param elements
+         *            Number of elements to skip.
+         */
+        public void drop(int elements) {
+            while (true) {
+                long read = readPosition.get();
+                long dropping = Math.min(elements, writePosition.get() - read);
+                if (dropping <= 0 || readPosition.compareAndSet(read, read + dropping)) {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Skips everything written so far.
+         */
+        public void clear() {
+            while (true) {
+                long read = readPosition.get();
+                long write = writePosition.get();
+                if (read >= write || readPosition.compareAndSet(read, write)) {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Called by the writer before it overwrites everything before oldest.
+         */
+        private void makeRoom(long oldest) {
+            while (true) {
+                long read = readPosition.get();
+                if (read >= oldest || policy == OverrunPolicy.DETECT_LAG) {
+                    // The read itself is what synchronizes with the reader's last commit.
+                    return;
+                }
+                if (readPosition.compareAndSet(read, oldest)) {
+                    lostBytes.addAndGet(oldest - read);
+                    overruns.incrementAndGet();
+                    return;
+                }
+            }
+        }
+
+        private int read(byte[] bytes, int index, ByteBuffer dst, int length, boolean consume) {
+            final int dstPosition = dst != null ? dst.position() : 0;
+            while (true) {
+                long read = readPosition.get();
+                long available = writePosition.get() - read;
+                if (available > buffer.length && policy == OverrunPolicy.DETECT_LAG) {
+                    return lagged(read);
+                }
+
+                int copying = (int) Math.min(Math.min(length, available), buffer.length);
+                if (copying <= 0) {
+                    return 0;
+                }
+
+                int offset = (int) (read % buffer.length);
+                int first = Math.min(copying, buffer.length - offset);
+                if (dst != null) {
+                    dst.put(buffer, offset, first);
+                    if (first < copying) {
+                        dst.put(buffer, 0, copying - first);
+                    }
+                } else {
+                    System.arraycopy(buffer, offset, bytes, index, first);
+                    if (first < copying) {
+                        System.arraycopy(buffer, 0, bytes, index + first, copying - first);
+                    }
+                }
+
+                if (!readPosition.compareAndSet(read, consume ? read + copying : read)) {
+                    // The writer pushed us forward while copying.
+                    if (dst != null) {
+                        dst.position(dstPosition);
+                    }
+                    continue;
+                }
+                if (policy == OverrunPolicy.DETECT_LAG && claimPosition.get() - buffer.length > read) {
+                    // The writer may have started overwriting what we copied. A PUSH_FORWARD reader does not need
+                    // this check: the writer would have moved its cursor and failed the CAS above.
+                    if (dst != null) {
+                        dst.position(dstPosition);
+                    }
+                    return lagged(read);
+                }
+                return copying;
+            }
+        }
+
+        /**
+         * Moves a DETECT_LAG reader to the oldest byte that is still valid.
+         */
+        private int lagged(long read) {
+            long oldest = Math.max(read, claimPosition.get() - buffer.length);
+            readPosition.set(oldest);
+            lostBytes.addAndGet(oldest - read);
+            overruns.incrementAndGet();
+            return LAGGED;
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package com.tuya.record;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+/**
+ * A pool of direct buffers for encoded packets on their way from an encoder to the muxer.
+ *
+ * The encoder copies each access unit into a buffer from {@link #acquire(int)} and gives the codec buffer back right
+ * away; whoever consumes the packet hands the pooled buffer back with {@link #release(ByteBuffer)}. Buffers come in
+ * power-of-two size classes starting at {@link #MIN_BUFFER_SIZE}, so once every class in use has enough buffers for
+ * the packets in flight, nothing is allocated any more.
+ *
+ * The bytes allocated by the pool, free or handed out, never exceed its capacity. When a new buffer would go over it,
+ * free buffers of other classes are discarded first; if that is not enough, acquire fails and the caller drops the
+ * packet.
+ *
+ * All methods are thread-safe.
+ */
+public final class TuyaBufferPool {
+    /**
+     * Size of the smallest class. Smaller requests get a buffer of this size.
+     */
+    public static final int MIN_BUFFER_SIZE = 1024;
+
+    private static final int MIN_CLASS_SHIFT = 10;
+    private static final int CLASS_COUNT = 31 - MIN_CLASS_SHIFT;
+
+    private final long capacity;
+    private final ArrayDeque<ByteBuffer>[] free;
+    private final Set<ByteBuffer> outstanding = Collections.newSetFromMap(new IdentityHashMap<ByteBuffer, Boolean>());
+
+    private long allocatedBytes;
+    private long allocations;
+    private long rejections;
+
+    /**
+     * @param capacity
+     *            How many bytes the pool may allocate in total.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public TuyaBufferPool(long capacity) {
+        if (capacity < MIN_BUFFER_SIZE) {
+            throw new IllegalArgumentException("capacity too small: " + capacity);
+        }
+        this.capacity = capacity;
+        free = new ArrayDeque[CLASS_COUNT];
+        for (int i = 0; i < CLASS_COUNT; i++) {
+            free[i] = new ArrayDeque<>();
+        }
+    }
+
+    /**
+     * Hands out a buffer for a packet of the given size.
+     *
+     * @param size
+     *            How many bytes the caller will put in the buffer.
+     * @return A direct buffer with position 0 and limit size, or null if the pool is at its capacity.
+     */
+    public synchronized ByteBuffer acquire(int size) {
+        if (size < 0) {
+            throw new IllegalArgumentException("negative size: " + size);
+        }
+        int sizeClass = sizeClass(size);
+        ByteBuffer buffer = free[sizeClass].poll();
+        if (buffer == null) {
+            int classSize = classSize(sizeClass);
+            if (!makeRoom(classSize)) {
+                rejections++;
+                return null;
+            }
+            buffer = ByteBuffer.allocateDirect(classSize);
+            allocatedBytes += classSize;
+            allocations++;
+        }
+        outstanding.add(buffer);
+        buffer.clear();
+        buffer.limit(size);
+        return buffer;
+    }
+
+    /**
+     * Takes back a buffer from {@link #acquire(int)}. The caller must not touch it afterwards.
+     *
+     * @param buffer
+     *            Buffer to return. Its position and limit do not matter.
+     */
+    public synchronized void release(ByteBuffer buffer) {
+        if (!outstanding.remove(buffer)) {
+            throw new IllegalArgumentException("buffer was not acquired from this pool");
+        }
+        free[sizeClass(buffer.capacity())].add(buffer);
+    }
+
+    /**
+     * Discards every free buffer, for instance when recording stops. Buffers handed out are not affected.
+     */
+    public synchronized void trim() {
+        for (int i = 0; i < CLASS_COUNT; i++) {
+            while (!free[i].isEmpty()) {
+                free[i].poll();
+                allocatedBytes -= classSize(i);
+            }
+        }
+    }
+
+    /**
+     * @return How many bytes the pool may allocate in total.
+     */
+    public long capacity() {
+        return capacity;
+    }
+
+    /**
+     * @return Bytes held by the pool, free or handed out.
+     */
+    public synchronized long allocatedBytes() {
+        return allocatedBytes;
+    }
+
+    /**
+     * @return Number of buffers handed out and not released yet.
+     */
+    public synchronized int outstandingBuffers() {
+        return outstanding.size();
+    }
+
+    /**
+     * @return Number of buffers allocated since the pool was created. Stops growing in the steady state.
+     */
+    public synchronized long allocations() {
+        return allocations;
+    }
+
+    /**
+     * @return Number of times acquire failed because the pool was at its capacity.
+     */
+    public synchronized long rejections() {
+        return rejections;
+    }
+
+    /**
+     * Discards free buffers, largest first, until a new buffer of the given size fits in the capacity.
+     */
+    private boolean makeRoom(int classSize) {
+        for (int i = CLASS_COUNT - 1; i >= 0 && allocatedBytes + classSize > capacity; i--) {
+            while (!free[i].isEmpty() && allocatedBytes + classSize > capacity) {
+                free[i].poll();
+                allocatedBytes -= classSize(i);
+            }
+        }
+        return allocatedBytes + classSize <= capacity;
+    }
+
+    private static int sizeClass(int size) {
+        if (size <= MIN_BUFFER_SIZE) {
+            return 0;
+        }
+        if (size > 1 << 30) {
+            throw new IllegalArgumentException("size too large: " + size);
+        }
+        return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_CLASS_SHIFT;
+    }
+
+    private static int classSize(int sizeClass) {
+        return 1 << (sizeClass + MIN_CLASS_SHIFT);
+    }
+}
@@ -0,0 +1,130 @@
+package com.tuya.record;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The byte-level operations shared by the ring buffers the encoders can read from. {@link TuyaRingBuffer} and
+ * {@link TuyaSpscRingBuffer} keep their elements in memory, {@link TuyaMappedRingBuffer} keeps them in a file so they
+ * survive a crash. Which threads may call which methods is documented by each implementation.
+ */
+public interface TuyaByteRing {
+    /**
+     * @return How many bytes are stored in the buffer.
+     */
+    int sizeUsed();
+
+    /**
+     * @return How many bytes can be stored in the buffer in total.
+     */
+    int sizeTotal();
+
+    /**
+     * @return How many bytes are free in the buffer.
+     */
+    int sizeFree();
+
+    /**
+     * @return Total number of unread bytes discarded by overrunPush.
+     */
+    long overrunBytes();
+
+    /**
+     * Adds elements to the end of the buffer.
+     *
+     * @param bytes
+     *            Array that contains elements to be added.
+     * @param index
+     *            Where to begin extracting elements.
+     * @param length
+     *            How many elements to extract.
+     * @return Number of elements added. May be less than length if there is not enough free space.
+     */
+    int push(byte[] bytes, int index, int length);
+
+    /**
+     * Adds elements to the end of the buffer, discarding the oldest ones when there is not enough free space.
+     *
+     * @param bytes
+     *            Array that contains elements to be added.
+     * @param index
+     *            Where to begin extracting elements.
+     * @param length
+     *            How many elements to extract.
+     */
+    void overrunPush(byte[] bytes, int index, int length);
+
+    /**
+     * Moves elements from the given buffer, up to its remaining bytes or the free space, whichever is smaller.
+     *
+     * @param src
+     *            Source of the elements. Its position is advanced by the number of elements added.
+     * @return Number of elements added.
+     */
+    int fillFrom(ByteBuffer src);
+
+    /**
+     * Hands out the free space of the buffer so a producer can write into it in place. Nothing is visible to readers
+     * until {@link #commit(int)}.
+     *
+     * @param length
+     *            How many bytes the caller would like to write.
+     * @return Zero, one or two slices covering up to length free bytes, in stream order.
+     */
+    ByteBuffer[] reserve(int length);
+
+    /**
+     * Publishes bytes written into the slices returned by {@link #reserve(int)}.
+     *
+     * @param length
+     *            How many bytes were written, from the start of the first slice.
+     */
+    void commit(int length);
+
+    /**
+     * Retrieves elements without removing them.
+     *
+     * @param bytes
+     *            Array to store the elements in.
+     * @param index
+     *            Where to begin storing elements.
+     * @param length
+     *            Maximum number of elements to retrieve.
+     * @return Number of elements retrieved.
+     */
+    int peek(byte[] bytes, int index, int length);
+
+    /**
+     * Moves elements to the given array.
+     *
+     * @param bytes
+     *            Array to store the elements in.
+     * @param index
+     *            Where to begin storing elements.
+     * @param length
+     *            Maximum number of elements to remove.
+     * @return Number of elements removed.
+     */
+    int pop(byte[] bytes, int index, int length);
+
+    /**
+     * Moves elements into the given buffer, up to its remaining space.
+     *
+     * @param dst
+     *            Destination of the elements. Its position is advanced by the number of elements moved.
+     * @return Number of elements moved.
+     */
+    int drainTo(ByteBuffer dst);
+
+    /**
+     * Removes elements without returning them.
+     *
+     * @param elements
+     *            Number of elements to remove.
+     */
+    void drop(int elements);
+
+    /**
+     * Removes all elements.
+     */
+    void clear();
+}
@@ -0,0 +1,487 @@
+package com.tuya.record;
+
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Finds out which video encoder of the device is fastest, once.
+ *
+ * The probe enumerates every encoder for a MIME type and, for each colour format it supports from
+ * {@link TuyaVideoEncoder#ENCODER_COLOR_FORMATS}, encodes {@link #BENCHMARK_FRAMES} synthetic frames and measures the
+ * throughput. Results are ranked fastest first and saved to a small binary file together with the build fingerprint and
+ * API level, so later sessions read them back in a few milliseconds and a system update starts over.
+ * {@link TuyaVideoEncoder} then opens the fastest encoder instead of the first one listed, which is sometimes a slow
+ * software codec.
+ *
+ * Encoder enumeration is cached in memory too, so starting a codec does not walk the codec list each time.
+ *
+ * A benchmark competes with a live recording for the encoders and would measure them under load, so the background
+ * probe waits while {@link TuyaMediaMuxer} records and throws away results taken while a recording ran.
+ */
+public final class TuyaCodecProbe {
+    private static final String TAG = "TuyaCodecProbe";
+
+    public static final int BENCHMARK_WIDTH = 1280;
+    public static final int BENCHMARK_HEIGHT = 720;
+    public static final int BENCHMARK_FRAMES = 30;
+    public static final int BENCHMARK_FPS = 30;
+    public static final int BENCHMARK_BITRATE = 2000000;
+    private static final long BENCHMARK_TIMEOUT_MS = 3000;
+    private static final int DEQUEUE_TIMEOUT_US = 10000;
+    // Made before timing starts and cycled through.
+    private static final int SYNTHETIC_FRAMES = 4;
+
+    private static final int FILE_MAGIC = 0x54435052; // 'TCPR'
+    private static final int FILE_VERSION = 1;
+
+    /**
+     * Throughput of one encoder with one colour format.
+     */
+    public static final class Result {
+        public final String mimeType;
+        public final String codecName;
+        public final int colorFormat;
+        /**
+         * Frames encoded per second, or 0 if the encoder could not be started with this colour format.
+         */
+        public final float framesPerSecond;
+
+        public Result(String mimeType, String codecName, int colorFormat, float framesPerSecond) {
+            this.mimeType = mimeType;
+            this.codecName = codecName;
+            this.colorFormat = colorFormat;
+            this.framesPerSecond = framesPerSecond;
+        }
+
+        @Override
+        public String toString() {
+            return codecName + " " + mimeType + " color " + colorFormat + ": " + framesPerSecond + " fps";
+        }
+    }
+
+    private static final Comparator<Result> FASTEST_FIRST = new Comparator<Result>() {
+        @Override
+        public int compare(Result a, Result b) {
+            return Float.compare(b.framesPerSecond, a.framesPerSecond);
+        }
+    };
+
+    // Guarded by TuyaCodecProbe.class.
+    private static File cacheFile;
+    private static final Map<String, List<Result>> results = new HashMap<>();
+    private static final Map<String, List<MediaCodecInfo>> encoders = new HashMap<>();
+    private static Thread probeThread;
+    private static int activeRecordings;
+    // Counts recordings ever started, so a probe can tell whether one ran while it measured.
+    private static long recordingsStarted;
+
+    private TuyaCodecProbe() {
+    }
+
+    /**
+     * Sets where results are kept and reads those of earlier sessions. Call once, early, for instance with a file in
+     * the application's cache directory.
+     */
+    public static synchronized void setCacheFile(File file) {
+        cacheFile = file;
+        results.clear();
+        if (!file.exists()) {
+            return;
+        }
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+            List<Result> cached = readResults(in, Build.FINGERPRINT, Build.VERSION.SDK_INT);
+            if (cached == null) {
+                Log.i(TAG, "Probe results are from another build, probing again");
+                return;
+            }
+            for (Result result : cached) {
+                resultsFor(result.mimeType).add(result);
+            }
+            Log.i(TAG, "Loaded " + cached.size() + " probe results");
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot read probe results from " + file, e);
+        }
+    }
+
+    /**
+     * Tells the probe a recording started, so that a background probe waits for it to stop.
+     */
+    static synchronized void recordingStarted() {
+        activeRecordings++;
+        recordingsStarted++;
+    }
+
+    /**
+     * Tells the probe a recording started with {@link #recordingStarted} stopped.
+     */
+    static synchronized void recordingStopped() {
+        if (activeRecordings > 0) {
+            activeRecordings--;
+        }
+        TuyaCodecProbe.class.notifyAll();
+    }
+
+    /**
+     * Runs {@link #probe} on a background thread unless there are results for the MIME type already. The probe waits
+     * while a recording runs, and starts over if one ran while it measured.
+     */
+    public static synchronized void probeInBackground(final String mimeType) {
+        if (results.containsKey(mimeType) || probeThread != null) {
+            return;
+        }
+        probeThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    long started;
+                    do {
+                        started = awaitNoRecording();
+                        if (started < 0) {
+                            return;
+                        }
+                    } while (!store(mimeType, measure(mimeType), started));
+                } finally {
+                    synchronized (TuyaCodecProbe.class) {
+                        probeThread = null;
+                    }
+                }
+            }
+        }, "TuyaCodecProbe");
+        probeThread.start();
+    }
+
+    /**
+     * Benchmarks every encoder for the MIME type and saves the results, unless a recording ran meanwhile. Takes a few
+     * seconds; do not call on a thread that delivers frames.
+     *
+     * @return The results, fastest first.
+     */
+    public static List<Result> probe(String mimeType) {
+        long started;
+        synchronized (TuyaCodecProbe.class) {
+            started = activeRecordings > 0 ? -1 : recordingsStarted;
+        }
+        List<Result> probed = measure(mimeType);
+        store(mimeType, probed, started);
+        return probed;
+    }
+
+    /**
+     * Waits until no recording runs.
+     *
+     * @return The recording count to check the results against, or -1 if interrupted.
+     */
+    private static synchronized long awaitNoRecording() {
+        try {
+            while (activeRecordings > 0) {
+                TuyaCodecProbe.class.wait();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return -1;
+        }
+        return recordingsStarted;
+    }
+
+    /**
+     * Keeps and saves results unless a recording ran while they were measured.
+     *
+     * @param started
+     *            Recording count when measuring began, or -1 if one was running.
+     * @return Whether the results were kept.
+     */
+    private static synchronized boolean store(String mimeType, List<Result> probed, long started) {
+        if (started < 0 || activeRecordings > 0 || recordingsStarted != started) {
+            Log.i(TAG, "Probe of " + mimeType + " ran during a recording, results not kept");
+            return false;
+        }
+        List<Result> list = resultsFor(mimeType);
+        list.clear();
+        list.addAll(probed);
+        save();
+        return true;
+    }
+
+    private static List<Result> measure(String mimeType) {
+        List<Result> probed = new ArrayList<>();
+        for (MediaCodecInfo info : listEncoders(mimeType)) {
+            int[] colorFormats = info.getCapabilitiesForType(mimeType).colorFormats;
+            for (int colorFormat : TuyaVideoEncoder.ENCODER_COLOR_FORMATS) {
+                if (!contains(colorFormats, colorFormat)) {
+                    continue;
+                }
+                Result result = new Result(mimeType, info.getName(), colorFormat,
+                        benchmark(info.getName(), mimeType, colorFormat));
+                Log.i(TAG, "Probed " + result);
+                probed.add(result);
+            }
+        }
+        Collections.sort(probed, FASTEST_FIRST);
+        return probed;
+    }
+
+    /**
+     * @return Results for the MIME type, fastest first, or an empty list if it was not probed yet.
+     */
+    public static synchronized List<Result> getResults(String mimeType) {
+        List<Result> list = results.get(mimeType);
+        return list != null ? new ArrayList<>(list) : Collections.<Result>emptyList();
+    }
+
+    /**
+     * @return The fastest encoder for the MIME type that is still on the device, or the first one listed if it was not
+     *         probed. Null if there is none.
+     */
+    static MediaCodecInfo selectEncoder(String mimeType) {
+        List<MediaCodecInfo> candidates = listEncoders(mimeType);
+        for (Result result : getResults(mimeType)) {
+            if (result.framesPerSecond <= 0) {
+                break;
+            }
+            for (MediaCodecInfo info : candidates) {
+                if (info.getName().equals(result.codecName)) {
+                    return info;
+                }
+            }
+        }
+        return candidates.isEmpty() ? null : candidates.get(0);
+    }
+
+    /**
+     * @return The given colour formats with those the encoder handles fastest first, or the given array as it is if the
+     *         encoder was not probed.
+     */
+    static int[] rankColorFormats(String mimeType, String codecName, int[] colorFormats) {
+        int[] order = new int[colorFormats.length];
+        int count = 0;
+        for (Result result : getResults(mimeType)) {
+            if (result.codecName.equals(codecName) && result.framesPerSecond > 0
+                    && contains(colorFormats, result.colorFormat) && !contains(order, count, result.colorFormat)) {
+                order[count++] = result.colorFormat;
+            }
+        }
+        if (count == 0) {
+            return colorFormats;
+        }
+        for (int colorFormat : colorFormats) {
+            if (!contains(order, count, colorFormat)) {
+                order[count++] = colorFormat;
+            }
+        }
+        return order;
+    }
+
+    /**
+     * @return Encoders for the MIME type in the order the codec list gives them. Enumerated once per process.
+     */
+    static synchronized List<MediaCodecInfo> listEncoders(String mimeType) {
+        List<MediaCodecInfo> list = encoders.get(mimeType);
+        if (list != null) {
+            return list;
+        }
+        list = new ArrayList<>();
+        int numCodecs = MediaCodecList.getCodecCount();
+        for (int i = 0; i < numCodecs; i++) {
+            MediaCodecInfo codecInfo = MediaCodecList.getCodecInfoAt(i);
+            if (!codecInfo.isEncoder()) {
+                continue;
+            }
+            for (String type : codecInfo.getSupportedTypes()) {
+                if (type.equalsIgnoreCase(mimeType)) {
+                    list.add(codecInfo);
+                    break;
+                }
+            }
+        }
+        encoders.put(mimeType, list);
+        return list;
+    }
+
+    /**
+     * Encodes synthetic frames with the given encoder in synchronous mode.
+     *
+     * @return Frames encoded per second, or 0 if the encoder failed.
+     */
+    private static float benchmark(String codecName, String mimeType, int colorFormat) {
+        MediaCodec codec = null;
+        try {
+            codec = MediaCodec.createByCodecName(codecName);
+            MediaFormat format = MediaFormat.createVideoFormat(mimeType, BENCHMARK_WIDTH, BENCHMARK_HEIGHT);
+            format.setInteger(MediaFormat.KEY_BIT_RATE, BENCHMARK_BITRATE);
+            format.setInteger(MediaFormat.KEY_FRAME_RATE, BENCHMARK_FPS);
+            format.setInteger(MediaFormat.KEY_COLOR_FORMAT, colorFormat);
+            format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, 1);
+            codec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            codec.start();
+
+            int frameSize = TuyaYuvLayout.forColorFormat(colorFormat, BENCHMARK_WIDTH, BENCHMARK_HEIGHT, 0, 0).size;
+            byte[][] frames = new byte[SYNTHETIC_FRAMES][];
+            for (int i = 0; i < SYNTHETIC_FRAMES; i++) {
+                frames[i] = syntheticFrame(frameSize, i);
+            }
+            ByteBuffer[] inputBuffers = codec.getInputBuffers();
+            MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+            int queued = 0;
+            int encoded = 0;
+            long startMs = SystemClock.elapsedRealtime();
+            long deadlineMs = startMs + BENCHMARK_TIMEOUT_MS;
+            while (encoded < BENCHMARK_FRAMES && SystemClock.elapsedRealtime() < deadlineMs) {
+                if (queued < BENCHMARK_FRAMES) {
+                    int index = codec.dequeueInputBuffer(queued == encoded ? DEQUEUE_TIMEOUT_US : 0);
+                    if (index >= 0) {
+                        ByteBuffer buffer = inputBuffers[index];
+                        buffer.clear();
+                        byte[] frame = frames[queued % SYNTHETIC_FRAMES];
+                        int size = Math.min(frame.length, buffer.remaining());
+                        buffer.put(frame, 0, size);
+                        codec.queueInputBuffer(index, 0, size, queued * 1000000L / BENCHMARK_FPS, 0);
+                        queued++;
+                    }
+                }
+                int index = codec.dequeueOutputBuffer(info, queued < BENCHMARK_FRAMES ? 0 : DEQUEUE_TIMEOUT_US);
+                if (index >= 0) {
+                    if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0 && info.size > 0) {
+                        encoded++;
+                    }
+                    codec.releaseOutputBuffer(index, false);
+                }
+            }
+            long elapsedMs = Math.max(1, SystemClock.elapsedRealtime() - startMs);
+            return encoded * 1000f / elapsedMs;
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "Cannot benchmark " + codecName + " with color format " + colorFormat, e);
+            return 0;
+        } finally {
+            if (codec != null) {
+                try {
+                    codec.stop();
+                } catch (Exception e) {
+                    Log.w(TAG, "Benchmark encoder stop failed", e);
+                }
+                codec.release();
+            }
+        }
+    }
+
+    /**
+     * Diagonal stripes, shifted from one frame to the next so the encoder has motion to estimate.
+     */
+    private static byte[] syntheticFrame(int size, int index) {
+        byte[] frame = new byte[size];
+        for (int i = 0; i < size; i++) {
+            frame[i] = (byte) (((i % BENCHMARK_WIDTH) + i / BENCHMARK_WIDTH + index * 4) & 0xff);
+        }
+        return frame;
+    }
+
+    /**
+     * Writes every result to the cache file. Called with the class lock held.
+     */
+    private static void save() {
+        if (cacheFile == null) {
+            return;
+        }
+        List<Result> all = new ArrayList<>();
+        for (List<Result> list : results.values()) {
+            all.addAll(list);
+        }
+        // Written aside and renamed, so a crash never leaves a truncated file behind.
+        File tmp = new File(cacheFile.getPath() + ".tmp");
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(tmp))) {
+            writeResults(out, Build.FINGERPRINT, Build.VERSION.SDK_INT, all);
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot write probe results to " + tmp, e);
+            return;
+        }
+        if (!tmp.renameTo(cacheFile)) {
+            Log.e(TAG, "Cannot rename " + tmp + " to " + cacheFile);
+        }
+    }
+
+    // Visible for testing.
+    static void writeResults(OutputStream out, String fingerprint, int sdkInt, List<Result> list) throws IOException {
+        DataOutputStream data = new DataOutputStream(out);
+        data.writeInt(FILE_MAGIC);
+        data.writeInt(FILE_VERSION);
+        data.writeUTF(fingerprint);
+        data.writeInt(sdkInt);
+        data.writeInt(list.size());
+        for (Result result : list) {
+            data.writeUTF(result.mimeType);
+            data.writeUTF(result.codecName);
+            data.writeInt(result.colorFormat);
+            data.writeFloat(result.framesPerSecond);
+        }
+        data.flush();
+    }
+
+    /**
+     * @return The results in the stream, fastest first, or null if they were written by another build or version of
+     *         the file.
+     */
+    // Visible for testing.
+    static List<Result> readResults(InputStream in, String fingerprint, int sdkInt) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        if (data.readInt() != FILE_MAGIC || data.readInt() != FILE_VERSION) {
+            return null;
+        }
+        if (!data.readUTF().equals(fingerprint) || data.readInt() != sdkInt) {
+            return null;
+        }
+        int count = data.readInt();
+        if (count < 0) {
+            throw new IOException("corrupt probe results: " + count + " entries");
+        }
+        List<Result> list = new ArrayList<>(Math.min(count, 256));
+        for (int i = 0; i < count; i++) {
+            list.add(new Result(data.readUTF(), data.readUTF(), data.readInt(), data.readFloat()));
+        }
+        Collections.sort(list, FASTEST_FIRST);
+        return list;
+    }
+
+    private static List<Result> resultsFor(String mimeType) {
+        List<Result> list = results.get(mimeType);
+        if (list == null) {
+            list = new ArrayList<>();
+            results.put(mimeType, list);
+        }
+        return list;
+    }
+
+    private static boolean contains(int[] values, int value) {
+        return contains(values, values.length, value);
+    }
+
+    private static boolean contains(int[] values, int count, int value) {
+        for (int i = 0; i < count; i++) {
+            if (values[i] == value) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,114 @@
+package com.tuya.record;
+
+import android.media.MediaCodec;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * The thread on which encoders in asynchronous mode receive their MediaCodec callbacks. One thread is shared by every
+ * encoder that is running, and quits when the last one releases it.
+ *
+ * Before API 23, MediaCodec.setCallback has no Handler parameter and delivers callbacks on the looper of the thread
+ * that created the codec, so codecs for asynchronous mode are created on this thread.
+ */
+final class TuyaCodecThread {
+    private static final String TAG = "TuyaCodecThread";
+
+    private static HandlerThread thread;
+    private static Handler handler;
+    private static int users;
+
+    private TuyaCodecThread() {
+    }
+
+    /**
+     * @return Whether this device supports MediaCodec callbacks. Older devices keep the polling output threads.
+     */
+    static boolean isAsyncSupported() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP;
+    }
+
+    /**
+     * Starts the thread if needed and counts the caller as a user until {@link #release()}.
+     */
+    static synchronized Handler acquire() {
+        if (thread == null) {
+            thread = new HandlerThread(TAG);
+            thread.start();
+            handler = new Handler(thread.getLooper());
+        }
+        users++;
+        return handler;
+    }
+
+    /**
+     * Stops the thread once every user has released it. Callbacks already posted still run.
+     */
+    static synchronized void release() {
+        if (users == 0) {
+            Log.e(TAG, "release without acquire");
+            return;
+        }
+        users--;
+        if (users == 0) {
+            thread.quitSafely();
+            thread = null;
+            handler = null;
+        }
+    }
+
+    /**
+     * Creates a codec whose callbacks will run on the shared thread. The caller must hold a reference from
+     * {@link #acquire()}.
+     *
+     * @param name
+     *            Codec name, or a MIME type if byType is true.
+     */
+    static MediaCodec createCodec(final String name, final boolean byType) throws IOException {
+        final Handler codecHandler;
+        synchronized (TuyaCodecThread.class) {
+            codecHandler = handler;
+        }
+        if (codecHandler == null) {
+            throw new IllegalStateException("codec thread not acquired");
+        }
+
+        final MediaCodec[] created = new MediaCodec[1];
+        final IOException[] failure = new IOException[1];
+        final CountDownLatch done = new CountDownLatch(1);
+        codecHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    created[0] = byType ? MediaCodec.createEncoderByType(name) : MediaCodec.createByCodecName(name);
+                } catch (IOException | IllegalArgumentException e) {
+                    failure[0] = e instanceof IOException ? (IOException) e : new IOException(e);
+                } finally {
+                    done.countDown();
+                }
+            }
+        });
+
+        boolean interrupted = false;
+        while (true) {
+            try {
+                done.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+        return created[0];
+    }
+}
@@ -0,0 +1,36 @@
+package com.tuya.record;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import java.nio.ByteBuffer;
+
+/**
+ * What {@link TuyaMediaMuxer} writes encoded packets into. The calls follow {@link android.media.MediaMuxer}, whose
+ * errors are unchecked {@link IllegalStateException}s; implementations report I/O errors the same way.
+ */
+public interface TuyaContainerWriter {
+    /**
+     * @param format
+     *            Output format of an encoder, with its codec specific data.
+     * @return Index of the track for {@link #writeSampleData}.
+     */
+    int addTrack(MediaFormat format);
+
+    /**
+     * Called once every track is added, before the first sample.
+     */
+    void start();
+
+    void writeSampleData(int trackIndex, ByteBuffer byteBuf, MediaCodec.BufferInfo bufferInfo);
+
+    /**
+     * Finishes the file. Only valid after {@link #start()}.
+     */
+    void stop();
+
+    /**
+     * Frees the resources held, whether started or not.
+     */
+    void release();
+}
@@ -0,0 +1,131 @@
+package com.tuya.record;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Writes a fragmented MP4 file with {@link TuyaFragmentedMp4Writer}, taking tracks and samples the way
+ * {@link android.media.MediaMuxer} does. Unlike it, everything up to the last complete fragment stays playable if the
+ * process dies while recording.
+ *
+ * Supports H.264 video and AAC audio.
+ */
+public final class TuyaFragmentedMp4Muxer implements TuyaContainerWriter {
+    private final TuyaFragmentedMp4Writer writer;
+    private final TuyaAsyncFileWriter output;
+
+    /**
+     * Writes on the calling thread.
+     *
+     * @param fragmentDurationUs
+     *            Minimum duration of a fragment, or 0 for one fragment per GOP.
+     */
+    public TuyaFragmentedMp4Muxer(String path, long fragmentDurationUs) throws IOException {
+        writer = new TuyaFragmentedMp4Writer(new File(path), fragmentDurationUs);
+        output = null;
+    }
+
+    /**
+     * Writes through a {@link TuyaAsyncFileWriter}.
+     *
+     * @param fragmentDurationUs
+     *            Minimum duration of a fragment, or 0 for one fragment per GOP.
+     * @param syncIntervalMs
+     *            Time between syncs with {@link TuyaAsyncFileWriter.Durability#INTERVAL}.
+     */
+    public TuyaFragmentedMp4Muxer(String path, long fragmentDurationUs, TuyaAsyncFileWriter.Durability durability,
+                                  long syncIntervalMs) throws IOException {
+        output = new TuyaAsyncFileWriter(new File(path), durability, syncIntervalMs);
+        writer = new TuyaFragmentedMp4Writer(output, fragmentDurationUs);
+    }
+
+    /**
+     * @return Statistics of the file writer, or null when writing on the calling thread.
+     */
+    public TuyaAsyncFileWriter.Stats getFileStats() {
+        return output != null ? output.getStats() : null;
+    }
+
+    @Override
+    public int addTrack(MediaFormat format) {
+        String mime = format.getString(MediaFormat.KEY_MIME);
+        if (MediaFormat.MIMETYPE_VIDEO_AVC.equals(mime)) {
+            return writer.addAvcTrack(format.getInteger(MediaFormat.KEY_WIDTH),
+                    format.getInteger(MediaFormat.KEY_HEIGHT),
+                    codecSpecificData(format, "csd-0"), codecSpecificData(format, "csd-1"));
+        }
+        if (MediaFormat.MIMETYPE_AUDIO_AAC.equals(mime)) {
+            return writer.addAacTrack(format.getInteger(MediaFormat.KEY_SAMPLE_RATE),
+                    format.getInteger(MediaFormat.KEY_CHANNEL_COUNT), codecSpecificData(format, "csd-0"));
+        }
+        throw new IllegalArgumentException("unsupported track " + mime);
+    }
+
+    @Override
+    public void start() {
+        try {
+            writer.start();
+        } catch (IOException e) {
+            throw new IllegalStateException("cannot start", e);
+        }
+    }
+
+    @Override
+    public void writeSampleData(int trackIndex, ByteBuffer byteBuf, MediaCodec.BufferInfo bufferInfo) {
+        if (bufferInfo.size == 0 || (bufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+            return;
+        }
+        ByteBuffer sample = byteBuf.duplicate();
+        sample.limit(bufferInfo.offset + bufferInfo.size);
+        sample.position(bufferInfo.offset);
+        try {
+            writer.writeSample(trackIndex, sample, bufferInfo.presentationTimeUs,
+                    (bufferInfo.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0);
+        } catch (IOException e) {
+            throw new IllegalStateException("cannot write sample", e);
+        }
+    }
+
+    @Override
+    public void stop() {
+        try {
+            writer.stop();
+        } catch (IOException e) {
+            throw new IllegalStateException("cannot stop", e);
+        }
+    }
+
+    @Override
+    public void release() {
+        try {
+            writer.close();
+        } catch (IOException e) {
+            throw new IllegalStateException("cannot close", e);
+        }
+    }
+
+    /**
+     * @return The named codec specific data without its Annex B start code, if any.
+     */
+    private static byte[] codecSpecificData(MediaFormat format, String key) {
+        ByteBuffer csd = format.getByteBuffer(key);
+        if (csd == null) {
+            throw new IllegalArgumentException("missing " + key);
+        }
+        csd = csd.duplicate();
+        if (csd.remaining() >= 4 && csd.get(csd.position()) == 0 && csd.get(csd.position() + 1) == 0) {
+            if (csd.get(csd.position() + 2) == 1) {
+                csd.position(csd.position() + 3);
+            } else if (csd.get(csd.position() + 2) == 0 && csd.get(csd.position() + 3) == 1) {
+                csd.position(csd.position() + 4);
+            }
+        }
+        byte[] bytes = new byte[csd.remaining()];
+        csd.get(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,764 @@
+package com.tuya.record;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Writes H.264 and AAC into a fragmented MP4 file in plain Java, with no Android dependency.
+ *
+ * {@link #start()} writes {@code ftyp} and a {@code moov} that describes the tracks but holds no samples. Samples are
+ * then kept in memory and written as one {@code moof}/{@code mdat} fragment at a time, with a single gathering write of
+ * the headers and every track's data. A fragment ends at the first video key frame once it lasts at least the
+ * configured duration, so with a duration of 0 each GOP is one fragment; without a video track it ends on duration
+ * alone. Fragments are held in memory, so one also ends without a key frame once it runs {@link #KEY_FRAME_WAIT_US}
+ * past the duration or holds {@link #MAX_FRAGMENT_BYTES}; the fragment after it then starts mid-GOP. The file is
+ * playable up to the last complete fragment at any time: a crash loses the fragment in progress, and {@link #stop()}
+ * only writes that last fragment.
+ *
+ * Fragments go straight to the file, or through a {@link TuyaAsyncFileWriter} so the caller does not wait on storage.
+ *
+ * Video samples may come in Annex B, as MediaCodec produces them; they are rewritten with 4-byte NAL lengths.
+ *
+ * Not thread-safe: call from one thread, such as the muxer's write thread.
+ */
+public final class TuyaFragmentedMp4Writer implements Closeable {
+    public static final int VIDEO_TIMESCALE = 90000;
+    /**
+     * Fragment duration used without a video track when 0 is asked for.
+     */
+    public static final long AUDIO_ONLY_FRAGMENT_US = 1000000;
+    /**
+     * How long past its duration a fragment waits for a video key frame before it ends without one.
+     */
+    public static final long KEY_FRAME_WAIT_US = 2000000;
+    /**
+     * Sample data a fragment holds at most before it ends without waiting for a video key frame.
+     */
+    public static final int MAX_FRAGMENT_BYTES = 8 * 1024 * 1024;
+
+    private static final int SAMPLE_FLAGS_SYNC = 0x02000000;
+    private static final int SAMPLE_FLAGS_NON_SYNC = 0x01010000;
+    private static final int TRUN_FLAGS = 0x000701; // data offset, and duration, size and flags for each sample
+    private static final int TFHD_DEFAULT_BASE_IS_MOOF = 0x020000;
+    private static final int[] UNITY_MATRIX = {0x00010000, 0, 0, 0, 0x00010000, 0, 0, 0, 0x40000000};
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final TuyaAsyncFileWriter output;
+    private final long fragmentDurationUs;
+    private final List<Track> tracks = new ArrayList<>();
+    private boolean started;
+    private boolean hasVideo;
+    private boolean hasBasePts;
+    private long basePtsUs;
+    private int sequenceNumber;
+    private long fragments;
+    private long bytesWritten;
+
+    private static final class Track {
+        final int id;
+        final boolean video;
+        final int timescale;
+        final byte[] sampleEntry;
+        final int width;
+        final int height;
+
+        // Samples not written yet; the last one waits for the next to know its duration.
+        ByteBuffer data = ByteBuffer.allocateDirect(64 * 1024);
+        long[] decodeTimes = new long[64];
+        int[] sizes = new int[64];
+        int[] flags = new int[64];
+        int count;
+        long lastDecodeTime = -1;
+        long lastDuration;
+
+        Track(int id, boolean video, int timescale, byte[] sampleEntry, int width, int height) {
+            this.id = id;
+            this.video = video;
+            this.timescale = timescale;
+            this.sampleEntry = sampleEntry;
+            this.width = width;
+            this.height = height;
+        }
+    }
+
+    /**
+     * @param path
+     *            File to create or overwrite.
+     * @param fragmentDurationUs
+     *            Minimum duration of a fragment. 0 ends a fragment at each video key frame.
+     */
+    public TuyaFragmentedMp4Writer(File path, long fragmentDurationUs) throws IOException {
+        this.fragmentDurationUs = checkFragmentDuration(fragmentDurationUs);
+        file = new RandomAccessFile(path, "rw");
+        file.setLength(0);
+        channel = file.getChannel();
+        output = null;
+    }
+
+    /**
+     * @param output
+     *            Writer of a new file, closed by {@link #close()}.
+     * @param fragmentDurationUs
+     *            Minimum duration of a fragment. 0 ends a fragment at each video key frame.
+     */
+    public TuyaFragmentedMp4Writer(TuyaAsyncFileWriter output, long fragmentDurationUs) {
+        this.fragmentDurationUs = checkFragmentDuration(fragmentDurationUs);
+        file = null;
+        channel = null;
+        this.output = output;
+    }
+
+    private static long checkFragmentDuration(long fragmentDurationUs) {
+        if (fragmentDurationUs < 0) {
+            throw new IllegalArgumentException("negative fragment duration: " + fragmentDurationUs);
+        }
+        return fragmentDurationUs;
+    }
+
+    /**
+     * @param sps
+     *            Sequence parameter set, without start code.
+     * @param pps
+     *            Picture parameter set, without start code.
+     * @return Index of the track for {@link #writeSample}.
+     */
+    public int addAvcTrack(int width, int height, byte[] sps, byte[] pps) {
+        checkNotStarted();
+        if (sps.length < 4 || pps.length == 0) {
+            throw new IllegalArgumentException("invalid parameter sets");
+        }
+        BoxBuffer avcC = new BoxBuffer(64);
+        avcC.start("avcC");
+        avcC.put8(1);
+        avcC.put8(sps[1]);
+        avcC.put8(sps[2]);
+        avcC.put8(sps[3]);
+        avcC.put8(0xFF); // 4-byte NAL lengths
+        avcC.put8(0xE1); // one SPS
+        avcC.put16(sps.length);
+        avcC.put(sps);
+        avcC.put8(1);
+        avcC.put16(pps.length);
+        avcC.put(pps);
+        avcC.end();
+
+        BoxBuffer entry = new BoxBuffer(128 + sps.length + pps.length);
+        entry.start("avc1");
+        entry.putZeros(6);
+        entry.put16(1); // data reference index
+        entry.putZeros(16);
+        entry.put16(width);
+        entry.put16(height);
+        entry.put32(0x00480000); // 72 dpi
+        entry.put32(0x00480000);
+        entry.put32(0);
+        entry.put16(1); // frame count
+        entry.putZeros(32); // compressor name
+        entry.put16(0x0018);
+        entry.put16(0xFFFF);
+        entry.put(avcC.toArray());
+        entry.end();
+
+        hasVideo = true;
+        return addTrack(new Track(tracks.size() + 1, true, VIDEO_TIMESCALE, entry.toArray(), width, height));
+    }
+
+    /**
+     * @param audioSpecificConfig
+     *            AudioSpecificConfig of the stream, as in MediaCodec's csd-0.
+     * @return Index of the track for {@link #writeSample}.
+     */
+    public int addAacTrack(int sampleRate, int channelCount, byte[] audioSpecificConfig) {
+        checkNotStarted();
+        int decoderSpecificInfo = 2 + audioSpecificConfig.length;
+        int decoderConfig = 13 + decoderSpecificInfo;
+        int esDescriptor = 3 + 2 + decoderConfig + 3;
+        if (esDescriptor + 2 > 127) {
+            throw new IllegalArgumentException("AudioSpecificConfig too long: " + audioSpecificConfig.length);
+        }
+        BoxBuffer esds = new BoxBuffer(64);
+        esds.startFull("esds", 0, 0);
+        esds.put8(0x03);
+        esds.put8(esDescriptor);
+        esds.put16(0); // ES_ID
+        esds.put8(0);
+        esds.put8(0x04);
+        esds.put8(decoderConfig);
+        esds.put8(0x40); // MPEG-4 audio
+        esds.put8(0x15); // audio stream
+        esds.putZeros(3); // buffer size
+        esds.put32(0); // max bitrate
+        esds.put32(0); // average bitrate
+        esds.put8(0x05);
+        esds.put8(audioSpecificConfig.length);
+        esds.put(audioSpecificConfig);
+        esds.put8(0x06);
+        esds.put8(1);
+        esds.put8(0x02);
+        esds.end();
+
+        BoxBuffer entry = new BoxBuffer(96);
+        entry.start("mp4a");
+        entry.putZeros(6);
+        entry.put16(1); // data reference index
+        entry.putZeros(8);
+        entry.put16(channelCount);
+        entry.put16(16);
+        entry.putZeros(4);
+        entry.put32(sampleRate << 16);
+        entry.put(esds.toArray());
+        entry.end();
+
+        return addTrack(new Track(tracks.size() + 1, false, sampleRate, entry.toArray(), 0, 0));
+    }
+
+    private int addTrack(Track track) {
+        tracks.add(track);
+        return tracks.size() - 1;
+    }
+
+    /**
+     * Writes {@code ftyp} and {@code moov}. Tracks cannot be added afterwards.
+     */
+    public void start() throws IOException {
+        checkNotStarted();
+        if (tracks.isEmpty()) {
+            throw new IllegalStateException("no tracks");
+        }
+        started = true;
+
+        BoxBuffer header = new BoxBuffer(1024);
+        header.start("ftyp");
+        header.putType("isom");
+        header.put32(0x200);
+        header.putType("isom");
+        header.putType("iso6");
+        header.putType("mp41");
+        header.end();
+
+        header.start("moov");
+        header.startFull("mvhd", 0, 0);
+        header.putZeros(8); // creation and modification time
+        header.put32(1000);
+        header.put32(0); // duration, unknown up front
+        header.put32(0x00010000);
+        header.put16(0x0100);
+        header.putZeros(10);
+        header.putMatrix();
+        header.putZeros(24);
+        header.put32(tracks.size() + 1);
+        header.end();
+        for (Track track : tracks) {
+            putTrak(header, track);
+        }
+        header.start("mvex");
+        for (Track track : tracks) {
+            header.startFull("trex", 0, 0);
+            header.put32(track.id);
+            header.put32(1); // sample description index
+            header.putZeros(12);
+            header.end();
+        }
+        header.end();
+        header.end();
+
+        write(new ByteBuffer[]{header.flip()});
+    }
+
+    private static void putTrak(BoxBuffer box, Track track) {
+        box.start("trak");
+        box.startFull("tkhd", 0, 3); // enabled, in movie
+        box.putZeros(8);
+        box.put32(track.id);
+        box.putZeros(4);
+        box.put32(0); // duration
+        box.putZeros(8);
+        box.put16(0); // layer
+        box.put16(0); // alternate group
+        box.put16(track.video ? 0 : 0x0100);
+        box.put16(0);
+        box.putMatrix();
+        box.put32(track.width << 16);
+        box.put32(track.height << 16);
+        box.end();
+
+        box.start("mdia");
+        box.startFull("mdhd", 0, 0);
+        box.putZeros(8);
+        box.put32(track.timescale);
+        box.put32(0);
+        box.put16(0x55C4); // "und"
+        box.put16(0);
+        box.end();
+        box.startFull("hdlr", 0, 0);
+        box.put32(0);
+        box.putType(track.video ? "vide" : "soun");
+        box.putZeros(12);
+        box.put((track.video ? "VideoHandler" : "SoundHandler").getBytes(ASCII));
+        box.put8(0);
+        box.end();
+
+        box.start("minf");
+        if (track.video) {
+            box.startFull("vmhd", 0, 1);
+            box.putZeros(8);
+        } else {
+            box.startFull("smhd", 0, 0);
+            box.putZeros(4);
+        }
+        box.end();
+        box.start("dinf");
+        box.startFull("dref", 0, 0);
+        box.put32(1);
+        box.startFull("url ", 0, 1); // media in this file
+        box.end();
+        box.end();
+        box.end();
+        box.start("stbl");
+        box.startFull("stsd", 0, 0);
+        box.put32(1);
+        box.put(track.sampleEntry);
+        box.end();
+        // The samples are all in fragments.
+        for (String type : new String[]{"stts", "stsc", "stco"}) {
+            box.startFull(type, 0, 0);
+            box.put32(0);
+            box.end();
+        }
+        box.startFull("stsz", 0, 0);
+        box.putZeros(8);
+        box.end();
+        box.end();
+        box.end();
+        box.end();
+        box.end();
+    }
+
+    /**
+     * Adds a sample. The data is copied, so the buffer can be reused as soon as this returns.
+     *
+     * @param trackIndex
+     *            Index returned when the track was added.
+     * @param data
+     *            Sample from its position to its limit. The position is not changed.
+     * @param presentationTimeUs
+     *            Presentation time. Samples of a track must come in increasing order.
+     */
+    public void writeSample(int trackIndex, ByteBuffer data, long presentationTimeUs, boolean keyFrame)
+            throws IOException {
+        if (!started) {
+            throw new IllegalStateException("not started");
+        }
+        Track track = tracks.get(trackIndex);
+        if (!hasBasePts) {
+            hasBasePts = true;
+            basePtsUs = presentationTimeUs;
+        }
+        long decodeTime = (Math.max(0, presentationTimeUs - basePtsUs) * track.timescale + 500000) / 1000000;
+        if (decodeTime <= track.lastDecodeTime) {
+            decodeTime = track.lastDecodeTime + 1;
+        }
+        track.lastDecodeTime = decodeTime;
+
+        int size = track.video ? appendAvcSample(track, data) : appendRaw(track, data);
+        ensureSamples(track, track.count + 1);
+        track.decodeTimes[track.count] = decodeTime;
+        track.sizes[track.count] = size;
+        track.flags[track.count] = keyFrame || !track.video ? SAMPLE_FLAGS_SYNC : SAMPLE_FLAGS_NON_SYNC;
+        track.count++;
+
+        boolean endFragment;
+        long spanUs = (decodeTime - track.decodeTimes[0]) * 1000000 / track.timescale;
+        if (track.video) {
+            endFragment = keyFrame && track.count > 1 && spanUs >= fragmentDurationUs;
+        } else {
+            endFragment = !hasVideo && track.count > 1
+                    && spanUs >= (fragmentDurationUs > 0 ? fragmentDurationUs : AUDIO_ONLY_FRAGMENT_US);
+        }
+        if (!endFragment && track.count > 1) {
+            endFragment = spanUs >= fragmentDurationUs + KEY_FRAME_WAIT_US || bufferedBytes() >= MAX_FRAGMENT_BYTES;
+        }
+        if (endFragment) {
+            writeFragment(false);
+        }
+    }
+
+    private int bufferedBytes() {
+        int bytes = 0;
+        for (Track track : tracks) {
+            bytes += track.data.position();
+        }
+        return bytes;
+    }
+
+    /**
+     * Writes the samples still in memory. The file is complete afterwards.
+     */
+    public void stop() throws IOException {
+        if (started) {
+            writeFragment(true);
+            started = false;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            stop();
+        } finally {
+            if (output != null) {
+                output.close();
+            } else {
+                file.close();
+            }
+        }
+    }
+
+    /**
+     * @return Fragments written so far.
+     */
+    public long getFragmentCount() {
+        return fragments;
+    }
+
+    /**
+     * @return Bytes written to the file so far, or handed to the {@link TuyaAsyncFileWriter}.
+     */
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    /**
+     * Writes the samples whose duration is known, or every sample when the stream ends, as one fragment.
+     */
+    private void writeFragment(boolean last) throws IOException {
+        int[] counts = new int[tracks.size()];
+        int[] bytes = new int[tracks.size()];
+        boolean any = false;
+        for (int i = 0; i < tracks.size(); i++) {
+            Track track = tracks.get(i);
+            counts[i] = last ? track.count : Math.max(0, track.count - 1);
+            for (int s = 0; s < counts[i]; s++) {
+                bytes[i] += track.sizes[s];
+            }
+            any |= counts[i] > 0;
+        }
+        if (!any) {
+            return;
+        }
+
+        BoxBuffer moof = new BoxBuffer(256);
+        int[] dataOffsetAt = new int[tracks.size()];
+        moof.start("moof");
+        moof.startFull("mfhd", 0, 0);
+        moof.put32(++sequenceNumber);
+        moof.end();
+        for (int i = 0; i < tracks.size(); i++) {
+            Track track = tracks.get(i);
+            int count = counts[i];
+            if (count == 0) {
+                continue;
+            }
+            moof.start("traf");
+            moof.startFull("tfhd", 0, TFHD_DEFAULT_BASE_IS_MOOF);
+            moof.put32(track.id);
+            moof.end();
+            moof.startFull("tfdt", 1, 0);
+            moof.put64(track.decodeTimes[0]);
+            moof.end();
+            moof.startFull("trun", 0, TRUN_FLAGS);
+            moof.put32(count);
+            dataOffsetAt[i] = moof.position();
+            moof.put32(0);
+            for (int s = 0; s < count; s++) {
+                long duration;
+                if (s + 1 < track.count) {
+                    duration = track.decodeTimes[s + 1] - track.decodeTimes[s];
+                } else {
+                    // End of stream: assume the previous duration, or a frame at 30 fps or of 1024 samples.
+                    duration = track.lastDuration > 0 ? track.lastDuration
+                            : track.video ? VIDEO_TIMESCALE / 30 : 1024;
+                }
+                track.lastDuration = duration;
+                moof.put32((int) duration);
+                moof.put32(track.sizes[s]);
+                moof.put32(track.flags[s]);
+            }
+            moof.end();
+            moof.end();
+        }
+        moof.end();
+
+        // Data offsets count from the start of moof, past the mdat header.
+        int offset = moof.position() + 8;
+        for (int i = 0; i < tracks.size(); i++) {
+            if (counts[i] > 0) {
+                moof.putAt(dataOffsetAt[i], offset);
+                offset += bytes[i];
+            }
+        }
+        long mdatSize = 8L + offset - moof.position() - 8;
+        if (mdatSize > 0xFFFFFFFFL) {
+            throw new IOException("fragment too large: " + mdatSize);
+        }
+        moof.put32((int) mdatSize);
+        moof.putType("mdat");
+
+        List<ByteBuffer> buffers = new ArrayList<>(tracks.size() + 1);
+        buffers.add(moof.flip());
+        for (int i = 0; i < tracks.size(); i++) {
+            if (counts[i] > 0) {
+                ByteBuffer slice = tracks.get(i).data.duplicate();
+                slice.position(0);
+                slice.limit(bytes[i]);
+                buffers.add(slice);
+            }
+        }
+        write(buffers.toArray(new ByteBuffer[0]));
+        fragments++;
+
+        for (int i = 0; i < tracks.size(); i++) {
+            if (counts[i] > 0) {
+                dropSamples(tracks.get(i), counts[i], bytes[i]);
+            }
+        }
+    }
+
+    private void write(ByteBuffer[] buffers) throws IOException {
+        long remaining = 0;
+        for (ByteBuffer buffer : buffers) {
+            remaining += buffer.remaining();
+        }
+        bytesWritten += remaining;
+        if (output != null) {
+            output.write(buffers);
+            return;
+        }
+        while (remaining > 0) {
+            remaining -= channel.write(buffers);
+        }
+    }
+
+    /**
+     * Forgets the given number of written samples, moving those left to the front.
+     */
+    private static void dropSamples(Track track, int count, int bytes) {
+        int left = track.count - count;
+        System.arraycopy(track.decodeTimes, count, track.decodeTimes, 0, left);
+        System.arraycopy(track.sizes, count, track.sizes, 0, left);
+        System.arraycopy(track.flags, count, track.flags, 0, left);
+        track.count = left;
+        track.data.flip();
+        track.data.position(bytes);
+        track.data.compact();
+    }
+
+    private static void ensureSamples(Track track, int count) {
+        if (count > track.sizes.length) {
+            int capacity = track.sizes.length * 2;
+            track.decodeTimes = Arrays.copyOf(track.decodeTimes, capacity);
+            track.sizes = Arrays.copyOf(track.sizes, capacity);
+            track.flags = Arrays.copyOf(track.flags, capacity);
+        }
+    }
+
+    private static void ensureData(Track track, int bytes) {
+        if (track.data.remaining() < bytes) {
+            int capacity = track.data.capacity();
+            while (capacity - track.data.position() < bytes) {
+                capacity *= 2;
+            }
+            ByteBuffer grown = ByteBuffer.allocateDirect(capacity);
+            track.data.flip();
+            grown.put(track.data);
+            track.data = grown;
+        }
+    }
+
+    private static int appendRaw(Track track, ByteBuffer sample) {
+        int size = sample.remaining();
+        ensureData(track, size);
+        track.data.put(sample.duplicate());
+        return size;
+    }
+
+    /**
+     * Copies an H.264 access unit, replacing Annex B start codes with 4-byte NAL lengths. A sample that does not start
+     * with a start code is taken to have lengths already.
+     *
+     * @return Bytes appended.
+     */
+    private static int appendAvcSample(Track track, ByteBuffer sample) {
+        int start = sample.position();
+        int end = sample.limit();
+        int nal = startCodeEnd(sample, start, end);
+        if (nal < 0) {
+            return appendRaw(track, sample);
+        }
+        // Each start code of 3 bytes grows by one; 4-byte ones keep their size.
+        ensureData(track, (end - start) * 4 / 3 + 4);
+        int before = track.data.position();
+        while (nal >= 0) {
+            int next = findStartCode(sample, nal, end);
+            int nalEnd = next < 0 ? end : next;
+            int nextNal = next < 0 ? -1 : startCodeEnd(sample, next, end);
+            if (nalEnd > nal) {
+                ByteBuffer unit = sample.duplicate();
+                unit.limit(nalEnd);
+                unit.position(nal);
+                track.data.putInt(nalEnd - nal);
+                track.data.put(unit);
+            }
+            nal = nextNal;
+        }
+        return track.data.position() - before;
+    }
+
+    /**
+     * @return Index just past the start code at the given index, or -1 if there is none there.
+     */
+    private static int startCodeEnd(ByteBuffer buffer, int index, int end) {
+        if (index + 3 <= end && buffer.get(index) == 0 && buffer.get(index + 1) == 0) {
+            if (buffer.get(index + 2) == 1) {
+                return index + 3;
+            }
+            if (index + 4 <= end && buffer.get(index + 2) == 0 && buffer.get(index + 3) == 1) {
+                return index + 4;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return Index of the next start code at or after the given index, or -1.
+     */
+    private static int findStartCode(ByteBuffer buffer, int from, int end) {
+        for (int i = from; i + 3 <= end; i++) {
+            if (buffer.get(i + 2) > 1) {
+                // Neither this position nor the next two can start a start code.
+                i += 2;
+                continue;
+            }
+            if (startCodeEnd(buffer, i, end) >= 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void checkNotStarted() {
+        if (started) {
+            throw new IllegalStateException("already started");
+        }
+    }
+
+    /**
+     * A growable big-endian buffer for nested boxes, whose sizes are filled in when they end.
+     */
+    private static final class BoxBuffer {
+        private ByteBuffer buffer;
+        private int[] starts = new int[16];
+        private int depth;
+
+        BoxBuffer(int capacity) {
+            buffer = ByteBuffer.allocate(capacity);
+        }
+
+        void start(String type) {
+            if (depth == starts.length) {
+                starts = Arrays.copyOf(starts, depth * 2);
+            }
+            starts[depth++] = buffer.position();
+            put32(0);
+            putType(type);
+        }
+
+        void startFull(String type, int version, int flags) {
+            start(type);
+            put32((version << 24) | flags);
+        }
+
+        void end() {
+            int start = starts[--depth];
+            buffer.putInt(start, buffer.position() - start);
+        }
+
+        int position() {
+            return buffer.position();
+        }
+
+        void putAt(int index, int value) {
+            buffer.putInt(index, value);
+        }
+
+        void putType(String type) {
+            put(type.getBytes(ASCII));
+        }
+
+        void put8(int value) {
+            ensure(1);
+            buffer.put((byte) value);
+        }
+
+        void put16(int value) {
+            ensure(2);
+            buffer.putShort((short) value);
+        }
+
+        void put32(int value) {
+            ensure(4);
+            buffer.putInt(value);
+        }
+
+        void put64(long value) {
+            ensure(8);
+            buffer.putLong(value);
+        }
+
+        void put(byte[] bytes) {
+            ensure(bytes.length);
+            buffer.put(bytes);
+        }
+
+        void putZeros(int count) {
+            ensure(count);
+            for (int i = 0; i < count; i++) {
+                buffer.put((byte) 0);
+            }
+        }
+
+        void putMatrix() {
+            for (int value : UNITY_MATRIX) {
+                put32(value);
+            }
+        }
+
+        ByteBuffer flip() {
+            buffer.flip();
+            return buffer;
+        }
+
+        byte[] toArray() {
+            return Arrays.copyOf(buffer.array(), buffer.position());
+        }
+
+        private void ensure(int bytes) {
+            if (buffer.remaining() < bytes) {
+                ByteBuffer grown = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + bytes));
+                buffer.flip();
+                grown.put(buffer);
+                buffer = grown;
+            }
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package com.tuya.record;
+
+/**
+ * Brings frames from a source faster than the encoder's frame rate down to that rate, deciding from the timestamp
+ * alone so that frames it drops are never copied or converted.
+ *
+ * A frame is kept when it arrives no earlier than a quarter interval before the next slot, which absorbs jitter in the
+ * source; the slot then moves one interval on. Kept frames therefore follow the target cadence as closely as the source
+ * allows: a 30 fps source paced to 20 fps keeps two frames out of three, a 60 fps source paced to 30 fps every other
+ * one. After a gap in the source the slots start over from the next frame instead of letting a burst through.
+ *
+ * Frames dropped here are counted apart from frames the encoder drops when it falls behind. Not thread-safe: call from
+ * the thread that delivers frames.
+ */
+public final class TuyaFramePacer {
+    private static final long NANOS_PER_SECOND = 1000000000L;
+
+    private final long intervalNs;
+    private long nextSlotNs;
+    private long lastTimestampNs;
+    private boolean started;
+    private long keptFrames;
+    private long decimatedFrames;
+
+    /**
+     * @param fps
+     *            Frame rate to pace to. 0 or less keeps every frame.
+     */
+    public TuyaFramePacer(int fps) {
+        this.intervalNs = fps > 0 ? NANOS_PER_SECOND / fps : 0;
+    }
+
+    /**
+     * Decides whether a frame is kept.
+     *
+     * @param timestampNs
+     *            Capture or arrival time of the frame, from a monotonic clock.
+     * @return Whether to encode the frame. If not, it should be dropped before any work is done on it.
+     */
+    public boolean accept(long timestampNs) {
+        if (intervalNs == 0) {
+            keptFrames++;
+            return true;
+        }
+        if (!started || timestampNs < lastTimestampNs) {
+            // First frame, or the clock went back: start over.
+            started = true;
+            nextSlotNs = timestampNs;
+        }
+        lastTimestampNs = timestampNs;
+        if (timestampNs < nextSlotNs - intervalNs / 4) {
+            decimatedFrames++;
+            return false;
+        }
+        nextSlotNs += intervalNs;
+        if (nextSlotNs < timestampNs) {
+            // The source paused: do not let the frames after it through in a burst.
+            nextSlotNs = timestampNs + intervalNs;
+        }
+        keptFrames++;
+        return true;
+    }
+
+    /**
+     * Forgets the cadence, for instance when recording starts again. The counters are kept.
+     */
+    public void reset() {
+        started = false;
+    }
+
+    /**
+     * @return Frames kept so far.
+     */
+    public long getKeptFrames() {
+        return keptFrames;
+    }
+
+    /**
+     * @return Frames dropped so far to bring the source down to the target frame rate.
+     */
+    public long getDecimatedFrames() {
+        return decimatedFrames;
+    }
+}
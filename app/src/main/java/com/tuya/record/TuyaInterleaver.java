@@ -0,0 +1,164 @@
+package com.tuya.record;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Puts the packets of several tracks, each arriving in its own order from its own encoder thread, into one sequence
+ * ordered by presentation time, as containers expect them.
+ *
+ * A packet is released once every track has a packet queued, so nothing earlier can arrive from them, or once a packet
+ * at least the reorder window later has been seen on any track, so a track that goes quiet holds the others back by
+ * the window at most. A packet that arrives after a later one was released is late: it is still released, first, and
+ * counted.
+ *
+ * Not thread-safe, except for the statistics: use from the muxer's write thread.
+ *
+ * @param <T>
+ *            Type of the packets.
+ */
+public final class TuyaInterleaver<T> {
+    private static final class Entry<T> {
+        final long ptsUs;
+        final T    packet;
+
+        Entry(long ptsUs, T packet) {
+            this.ptsUs = ptsUs;
+            this.packet = packet;
+        }
+    }
+
+    private final List<ArrayDeque<Entry<T>>> queues;
+    private final long windowUs;
+    private long newestPtsUs = Long.MIN_VALUE;
+    private long lastReleasedPtsUs = Long.MIN_VALUE;
+    private int size;
+    private volatile long occupancyUs;
+    private volatile long maxOccupancyUs;
+    private volatile int maxPackets;
+    private volatile long latePackets;
+
+    /**
+     * @param trackCount
+     *            Number of tracks, numbered from 0. With one track packets go out as they come.
+     * @param windowUs
+     *            How long a packet is held back at most while waiting for the other tracks.
+     */
+    public TuyaInterleaver(int trackCount, long windowUs) {
+        if (trackCount < 1 || windowUs < 0) {
+            throw new IllegalArgumentException("trackCount " + trackCount + " windowUs " + windowUs);
+        }
+        this.windowUs = windowUs;
+        queues = new ArrayList<>(trackCount);
+        for (int i = 0; i < trackCount; i++) {
+            queues.add(new ArrayDeque<Entry<T>>());
+        }
+    }
+
+    /**
+     * Queues a packet. Packets of a track must be pushed in presentation order.
+     */
+    public void push(int track, long ptsUs, T packet) {
+        if (ptsUs < lastReleasedPtsUs) {
+            latePackets++;
+        }
+        queues.get(track).add(new Entry<>(ptsUs, packet));
+        newestPtsUs = Math.max(newestPtsUs, ptsUs);
+        size++;
+        if (size > maxPackets) {
+            maxPackets = size;
+        }
+        updateOccupancy();
+    }
+
+    /**
+     * @return The earliest packet if it can be released, or null.
+     */
+    public T poll() {
+        return release(false);
+    }
+
+    /**
+     * @return The earliest packet without waiting for the other tracks, or null if none is queued. For draining at the
+     *         end of the stream, or when nothing has arrived for a while.
+     */
+    public T flush() {
+        return release(true);
+    }
+
+    /**
+     * @return Packets queued.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return Time between the earliest queued packet and the latest packet seen, as of the last push or release.
+     */
+    public long getOccupancyUs() {
+        return occupancyUs;
+    }
+
+    /**
+     * @return Largest {@link #getOccupancyUs()} so far.
+     */
+    public long getMaxOccupancyUs() {
+        return maxOccupancyUs;
+    }
+
+    /**
+     * @return Most packets queued at once so far.
+     */
+    public int getMaxPackets() {
+        return maxPackets;
+    }
+
+    /**
+     * @return Packets that arrived after a later packet was released, so are out of order in the output.
+     */
+    public long getLatePackets() {
+        return latePackets;
+    }
+
+    private T release(boolean force) {
+        ArrayDeque<Entry<T>> earliest = earliestQueue();
+        if (earliest == null) {
+            return null;
+        }
+        long ptsUs = earliest.peek().ptsUs;
+        if (!force && newestPtsUs - ptsUs < windowUs) {
+            for (ArrayDeque<Entry<T>> queue : queues) {
+                if (queue.isEmpty()) {
+                    return null;
+                }
+            }
+        }
+        Entry<T> entry = earliest.poll();
+        size--;
+        lastReleasedPtsUs = Math.max(lastReleasedPtsUs, ptsUs);
+        updateOccupancy();
+        return entry.packet;
+    }
+
+    private ArrayDeque<Entry<T>> earliestQueue() {
+        ArrayDeque<Entry<T>> earliest = null;
+        for (ArrayDeque<Entry<T>> queue : queues) {
+            Entry<T> head = queue.peek();
+            if (head != null && (earliest == null || head.ptsUs < earliest.peek().ptsUs)) {
+                earliest = queue;
+            }
+        }
+        return earliest;
+    }
+
+    private void updateOccupancy() {
+        ArrayDeque<Entry<T>> earliest = earliestQueue();
+        long occupancy = earliest == null ? 0 : newestPtsUs - earliest.peek().ptsUs;
+        occupancyUs = occupancy;
+        if (occupancy > maxOccupancyUs) {
+            maxOccupancyUs = occupancy;
+        }
+    }
+}
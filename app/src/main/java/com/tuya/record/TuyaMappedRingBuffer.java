@@ -0,0 +1,292 @@
+package com.tuya.record;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Objects;
+
+/**
+ * A ring buffer whose elements live in a memory-mapped file, so the last capacity bytes written survive a crash of the
+ * process. Reopening the file recovers the unread bytes by mapping it again; nothing is replayed or copied.
+ *
+ * The file starts with a small header holding the read and write positions, followed by the data area:
+ *
+ * <pre>
+ *     0  int   magic
+ *     4  int   version
+ *     8  int   capacity
+ *    16  long  read position
+ *    24  long  write position
+ *    64  ...   capacity bytes of data
+ * </pre>
+ *
+ * The ring itself is a {@link TuyaSpscRingBuffer} over the data area, with the same one producer, one consumer rule.
+ * The producer stores the write position only after the bytes are in place. The stored read position only ever moves
+ * forward, and overrunPush moves it past the bytes it is about to overwrite before touching them. So whatever moment
+ * the process dies, the header never covers torn data; at worst a few bytes the consumer had already taken are handed
+ * out again.
+ *
+ * Dirty pages of the mapping belong to the kernel and are written back even if the process dies. Call {@link #force()}
+ * to also survive a power loss.
+ */
+public final class TuyaMappedRingBuffer implements TuyaByteRing, Closeable {
+    private static final int MAGIC = 0x54524E47; // "TRNG"
+    private static final int VERSION = 1;
+
+    private static final int MAGIC_OFFSET = 0;
+    private static final int VERSION_OFFSET = 4;
+    private static final int CAPACITY_OFFSET = 8;
+    private static final int READ_OFFSET = 16;
+    private static final int WRITE_OFFSET = 24;
+
+    /**
+     * Size of the header in front of the data area.
+     */
+    static final int HEADER_SIZE = 64;
+
+    private final RandomAccessFile file;
+
+    /**
+     * The whole file. Only used with absolute gets and puts, which are safe from both threads.
+     */
+    private final MappedByteBuffer mapping;
+
+    private final TuyaSpscRingBuffer ring;
+
+    /**
+     * Unread bytes found in the file when it was opened.
+     */
+    private final int recoveredBytes;
+
+    /**
+     * Last read position stored in the header. Guarded by this.
+     */
+    private long storedReadPosition;
+
+    /**
+     * Opens the ring stored in the given file, creating it if needed. If the file holds a ring of the same capacity,
+     * its unread bytes are available right away. Otherwise the file is resized and the ring starts empty.
+     *
+     * @param path
+     *            File to map. Its parent directory must exist.
+     * @param capacity
+     *            How many bytes can be stored in the buffer.
+     */
+    public TuyaMappedRingBuffer(File path, int capacity) throws IOException {
+        Objects.requireNonNull(path);
+        if (capacity <= 0 || capacity > Integer.MAX_VALUE - HEADER_SIZE) {
+            throw new IllegalArgumentException("invalid capacity: " + capacity);
+        }
+
+        file = new RandomAccessFile(path, "rw");
+        try {
+            long size = HEADER_SIZE + (long) capacity;
+            if (file.length() != size) {
+                file.setLength(size);
+            }
+            mapping = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+
+        long read = mapping.getLong(READ_OFFSET);
+        long write = mapping.getLong(WRITE_OFFSET);
+        boolean valid = mapping.getInt(MAGIC_OFFSET) == MAGIC
+                && mapping.getInt(VERSION_OFFSET) == VERSION
+                && mapping.getInt(CAPACITY_OFFSET) == capacity
+                && read >= 0 && read <= write;
+        if (valid) {
+            // The consumer's last store may be older than the producer's overrun.
+            read = Math.max(read, write - capacity);
+        } else {
+            read = 0;
+            write = 0;
+            mapping.putInt(MAGIC_OFFSET, 0);
+            mapping.putInt(VERSION_OFFSET, VERSION);
+            mapping.putInt(CAPACITY_OFFSET, capacity);
+            mapping.putLong(WRITE_OFFSET, 0);
+            mapping.putLong(READ_OFFSET, 0);
+            mapping.putInt(MAGIC_OFFSET, MAGIC);
+        }
+        storedReadPosition = read;
+        mapping.putLong(READ_OFFSET, read);
+
+        ByteBuffer data = mapping.duplicate();
+        data.position(HEADER_SIZE);
+        ring = new TuyaSpscRingBuffer(data.slice(), read, write);
+        recoveredBytes = (int) (write - read);
+    }
+
+    /**
+     * @return How many unread bytes were found in the file when it was opened.
+     */
+    public final int recoveredBytes() {
+        return recoveredBytes;
+    }
+
+    /**
+     * @return How many bytes are stored in the buffer.
+     */
+    public final int sizeUsed() {
+        return ring.sizeUsed();
+    }
+
+    /**
+     * @return How many bytes can be stored in the buffer in total.
+     */
+    public final int sizeTotal() {
+        return ring.sizeTotal();
+    }
+
+    /**
+     * @return How many bytes are free in the buffer.
+     */
+    public final int sizeFree() {
+        return ring.sizeFree();
+    }
+
+    /**
+     * @return Total number of unread bytes discarded by overrunPush since the buffer was opened.
+     */
+    public final long overrunBytes() {
+        return ring.overrunBytes();
+    }
+
+    /**
+     * Adds elements to the end of the buffer. Producer thread only.
+     *
+     * @return Number of elements added. May be less than length if there is not enough free space.
+     */
+    public final int push(byte[] bytes, int index, int length) {
+        int pushed = ring.push(bytes, index, length);
+        storeWritePosition();
+        return pushed;
+    }
+
+    /**
+     * Adds elements to the end of the buffer, discarding the oldest ones when there is not enough free space. Producer
+     * thread only.
+     */
+    public final void overrunPush(byte[] bytes, int index, int length) {
+        Objects.requireNonNull(bytes);
+
+        // Step the stored read position past what is about to be overwritten before overwriting it.
+        long oldest = ring.writePosition() + Math.min(length, ring.sizeTotal()) - ring.sizeTotal();
+        storeReadPosition(oldest);
+        ring.overrunPush(bytes, index, length);
+        storeWritePosition();
+    }
+
+    /**
+     * Moves elements from the given buffer. Producer thread only.
+     *
+     * @return Number of elements added.
+     */
+    public final int fillFrom(ByteBuffer src) {
+        int filled = ring.fillFrom(src);
+        storeWritePosition();
+        return filled;
+    }
+
+    /**
+     * Hands out the free space of the buffer so a producer can write into it in place. The slices are views of the
+     * mapped file. Producer thread only.
+     *
+     * @return Zero, one or two slices covering up to length free bytes, in stream order.
+     */
+    public final ByteBuffer[] reserve(int length) {
+        return ring.reserve(length);
+    }
+
+    /**
+     * Publishes bytes written into the slices returned by {@link #reserve(int)}. Producer thread only.
+     */
+    public final void commit(int length) {
+        ring.commit(length);
+        storeWritePosition();
+    }
+
+    /**
+     * Retrieves elements without removing them. Consumer thread only.
+     *
+     * @return Number of elements retrieved.
+     */
+    public final int peek(byte[] bytes, int index, int length) {
+        return ring.peek(bytes, index, length);
+    }
+
+    /**
+     * Moves elements to the given array. Consumer thread only.
+     *
+     * @return Number of elements removed.
+     */
+    public final int pop(byte[] bytes, int index, int length) {
+        int popped = ring.pop(bytes, index, length);
+        storeReadPosition(ring.readPosition());
+        return popped;
+    }
+
+    /**
+     * Moves elements into the given buffer, up to its remaining space. Consumer thread only.
+     *
+     * @return Number of elements moved.
+     */
+    public final int drainTo(ByteBuffer dst) {
+        int drained = ring.drainTo(dst);
+        storeReadPosition(ring.readPosition());
+        return drained;
+    }
+
+    /**
+     * Removes elements without returning them. Consumer thread only.
+     */
+    public final void drop(int elements) {
+        ring.drop(elements);
+        storeReadPosition(ring.readPosition());
+    }
+
+    /**
+     * Removes all elements. Consumer thread only.
+     */
+    public final void clear() {
+        ring.clear();
+        storeReadPosition(ring.readPosition());
+    }
+
+    /**
+     * Writes the mapping back to the storage device, so the buffer also survives a power loss. Blocks; do not call it
+     * for every push.
+     */
+    public final void force() {
+        mapping.force();
+    }
+
+    /**
+     * Writes the mapping back and closes the file. The buffer must not be used afterwards.
+     */
+    @Override
+    public void close() throws IOException {
+        mapping.force();
+        file.close();
+    }
+
+    private void storeWritePosition() {
+        mapping.putLong(WRITE_OFFSET, ring.writePosition());
+    }
+
+    /**
+     * Stores the read position, unless a later one is already stored. Both threads move it, so a stale value from one
+     * of them must not step it back over bytes the other is overwriting.
+     */
+    private synchronized void storeReadPosition(long position) {
+        if (position > storedReadPosition) {
+            storedReadPosition = position;
+            mapping.putLong(READ_OFFSET, position);
+        }
+    }
+}
@@ -4,23 +4,41 @@ package com.tuya.record;
 import android.media.AudioFormat;
 import android.media.MediaCodec;
 import android.media.MediaFormat;
-import android.media.MediaMuxer;
+import android.os.SystemClock;
 import android.util.Log;
 
 
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 public class TuyaMediaMuxer implements TuyaVideoEncoder.Callback, TuyaAudioEncoder.Callback {
     private static final String TAG = "TuyaMediaMuxer";
 
-    private TuyaVideoEncoder tuyaVideoEncoder;
+    private volatile TuyaVideoEncoder tuyaVideoEncoder;
     private TuyaAudioEncoder tuyaAudioEncoder;
-    private MediaMuxer       mediaMuxer;
+    private TuyaContainerWriter mediaMuxer;
+    // Fragment duration of the fragmented MP4 files to write, or -1 to write regular ones with MediaMuxer.
+    private long fragmentDurationUs = -1;
+    /**
+     * GOP length in fragmented MP4 files with one fragment per GOP.
+     */
+    public static final int FRAGMENT_KEY_FRAME_INTERVAL_SEC = 2;
+    // How fragmented MP4 files are written: through a TuyaAsyncFileWriter with this durability, or directly if null.
+    private TuyaAsyncFileWriter.Durability fileDurability = TuyaAsyncFileWriter.Durability.ON_CLOSE;
+    private long fileSyncIntervalMs;
+    private volatile TuyaAsyncFileWriter.Stats lastFileStats;
 
 
     private        int     audioTrackIndex   = -1;
@@ -30,6 +48,9 @@ public class TuyaMediaMuxer implements TuyaVideoEncoder.Callback, TuyaAudioEncod
     private        boolean isVideoFmtChanged = false;
     private static int     AUDIO_ONLY        = 0x1;
     private static int     VIDEO_ONLY        = 0x2;
+    private static final int PRE_ROLL_VIDEO  = 0;
+    private static final int PRE_ROLL_AUDIO  = 1;
+    public static final long DEFAULT_OUTPUT_POOL_BYTES = 8 * 1024 * 1024;
     private        int     recordMode;
 
     private boolean isMediaMuxerStart = false;
@@ -40,12 +61,126 @@ public class TuyaMediaMuxer implements TuyaVideoEncoder.Callback, TuyaAudioEncod
     private          MediaFormat audioFormat;
     private          MediaFormat videoFormat;
     private volatile boolean running;
+    private          TuyaByteRing audioInputRing;
+    private          TuyaPacketRingBuffer preRoll;
+    private volatile boolean isPreRolling;
+    // The encoder's GOP can be far longer than the ring keeps, and the ring only restarts on a key frame, so one is
+    // asked for every half retention span and whenever the ring rejects a frame. The span counts from the last key
+    // frame or request.
+    private          long    preRollKeyFrameUs;
+    private          boolean preRollKeyFrameRequested;
+    private          TuyaBufferPool outputPool = new TuyaBufferPool(DEFAULT_OUTPUT_POOL_BYTES);
+    private          TuyaRateController rateController;
+    private volatile long bytesProduced;
+    private volatile long bytesWritten;
+    // Why the file of the current recording stopped being written, or null.
+    private volatile RuntimeException writeError;
+
+    // Resolution switch: when frames change size, a second encoder is started for the new size in the background while
+    // the current one keeps encoding frames scaled to its own size. The next frame after it is ready goes to the new
+    // encoder, and the old one drains on its own thread. The new encoder's frames go to a new segment whose track is
+    // set up with its parameter sets, since a track cannot change size. If that file cannot be created they stay in the
+    // current one with their parameter sets in-band, which not every player follows; the same goes for a switch during
+    // pre-roll, whose packets all go to the first file.
+    private static final long VIDEO_DRAIN_TIMEOUT_MS = 1000;
+    private          VideoOutput activeVideoOutput;
+    private          VideoOutput standbyVideoOutput;
+    private          boolean isStandbyPrepared;
+    private          int videoGenerations;
+    // Generation whose packets are being written. Older generations are cut at the first key frame of a newer one.
+    private          int writtenVideoGeneration;
+    private          long lastVideoPtsUs;
+    private          long lastAudioPtsUs;
+    private          long retiredDroppedFrames;
+    // Brings the source down to the encoder's frame rate before any work is done on a frame, see shouldAcceptVideoFrame.
+    private volatile TuyaFramePacer videoPacer;
+
+    // Encoders are created, configured and started here rather than on the first frame, on the capture threads. Frames
+    // that arrive meanwhile wait in the pre-start queues, the oldest dropped when they are full.
+    private static final int PRE_START_VIDEO_FRAMES = 8;
+    private static final int PRE_START_AUDIO_CHUNKS = 32;
+    private static final ExecutorService ENCODER_STARTER = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "TuyaEncoderStart");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    private          int videoSourceFormat;
+    private volatile Future<Boolean> encoderStartup;
+    private final    ArrayDeque<TuyaVideoEncoder.VideoFrame> preStartVideo = new ArrayDeque<>();
+    private final    ArrayDeque<TuyaAudioEncoder.AudioSamples> preStartAudio = new ArrayDeque<>();
+    private volatile long droppedBeforeStart;
+    private          long startRequestedMs;
+    private volatile long encoderStartupMs = -1;
+    private volatile long timeToFirstVideoFrameMs = -1;
+
+    // Segmented recording: the write thread moves on to a new file at the first key frame past a segment boundary,
+    // with the encoders still running, and the previous file is finished on SEGMENT_FINALIZER.
+    private static final ExecutorService SEGMENT_FINALIZER = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "TuyaSegmentFinalize");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    private          long segmentDurationUs;
+    private          long segmentBytes;
+    private          SegmentListener segmentListener;
+    // Written on the write thread only.
+    private          Segment segment;
+
+    /**
+     * Told about each file of a recording once it is complete.
+     */
+    public interface SegmentListener {
+        /**
+         * Called on a background thread, one segment at a time and in order. The last segment of a recording is
+         * reported before the recording's write thread ends.
+         *
+         * @param path
+         *            The finished file, see {@link #segmentPath}.
+         * @param index
+         *            0 for the first segment of the recording.
+         * @param durationUs
+         *            Time from the first to the last sample in the file.
+         * @param bytes
+         *            Size of the file.
+         */
+        void onSegmentComplete(String path, int index, long durationUs, long bytes);
+    }
+
+    private static final class Segment {
+        final String basePath;
+        final int    index;
+        final String path;
+        // Format the video track of the file was added with.
+        MediaFormat videoFormat;
+        long firstPtsUs = -1;
+        long lastPtsUs;
+        long bytes;
+        boolean keyFrameRequested;
+
+        Segment(String basePath, int index) {
+            this.basePath = basePath;
+            this.index = index;
+            this.path = segmentPath(basePath, index);
+        }
+
+        long getDurationUs() {
+            return firstPtsUs < 0 ? 0 : lastPtsUs - firstPtsUs;
+        }
+    }
 
 
     class MediaTrackData {
         long                  trackId;
         MediaCodec.BufferInfo bufferInfo;
         ByteBuffer            byteBuf;
+        // Format of the encoder a video packet comes from.
+        MediaFormat           videoFormat;
 
         public MediaTrackData(ByteBuffer byteBuf, int trackId, MediaCodec.BufferInfo bufferInfo) {
             this.byteBuf = byteBuf;
@@ -67,13 +202,341 @@ public class TuyaMediaMuxer implements TuyaVideoEncoder.Callback, TuyaAudioEncod
 
     }
 
-    private LinkedBlockingQueue<MediaTrackData> mediaTrackData;
+    // Packets waiting for the write thread, within a byte budget.
+    public static final long DEFAULT_OUTPUT_QUEUE_BYTES = 4 * 1024 * 1024;
+    private          long outputQueueBytes = DEFAULT_OUTPUT_QUEUE_BYTES;
+    private          TuyaMuxerQueue.Policy outputQueuePolicy = TuyaMuxerQueue.Policy.DROP_GOP;
+    private          TuyaMuxerQueue.WatermarkListener outputQueueListener;
+    private volatile TuyaMuxerQueue<MediaTrackData> mediaTrackData;
+    // Held while a video packet is prepared and queued, instead of the muxer lock while the queue may block.
+    private final    Object videoQueueLock = new Object();
+    private final    TuyaMuxerQueue.Callback<MediaTrackData> outputQueueCallback =
+            new TuyaMuxerQueue.Callback<MediaTrackData>() {
+                @Override
+                public void onDropped(MediaTrackData packet, TuyaMuxerQueue.DropReason reason) {
+                    outputPool.release(packet.getByteBuf());
+                }
+
+                @Override
+                public void onKeyFrameNeeded() {
+                    TuyaVideoEncoder encoder = tuyaVideoEncoder;
+                    if (encoder != null) {
+                        encoder.requestKeyFrame(0);
+                    }
+                }
+            };
+
+    // Puts the packets the two encoder threads queue in presentation order before they are written.
+    public static final long DEFAULT_INTERLEAVE_WINDOW_US = 200000;
+    private static final int INTERLEAVE_VIDEO = 0;
+    private static final int INTERLEAVE_AUDIO = 1;
+    private          long interleaveWindowUs = DEFAULT_INTERLEAVE_WINDOW_US;
+    private volatile TuyaInterleaver<MediaTrackData> interleaver;
+
+    /**
+     * Passes the output of one video encoder to the muxer, tagged with the generation of the encoder. Every resolution
+     * switch starts a new generation.
+     */
+    private class VideoOutput implements TuyaVideoEncoder.Callback {
+        final int              generation;
+        final TuyaVideoEncoder encoder;
+        // Parameter sets of this encoder when the track was added with another one's, put in front of its first key
+        // frame so players pick up the new size.
+        ByteBuffer config;
+        // Output format of this encoder, which its frames are written with.
+        MediaFormat format;
+
+        VideoOutput(TuyaVideoEncoder.Settings settings) {
+            this.generation = videoGenerations++;
+            this.encoder = new TuyaVideoEncoder(settings, TuyaVideoEncoder.MimeType.H264, true, this);
+            this.encoder.setOutputPool(outputPool);
+        }
+
+        @Override
+        public void onVideoFrame(ByteBuffer frame, MediaCodec.BufferInfo bufferInfo) {
+            writeEncodedVideo(this, frame, bufferInfo);
+        }
+
+        @Override
+        public void onAddVideoTrack(MediaFormat format) {
+            addVideoFormat(this, format);
+        }
+    }
 
 
     public TuyaMediaMuxer() {
 
     }
 
+    /**
+     * Makes the next recording take its PCM from the given ring, for instance a {@link TuyaMappedRingBuffer} so that
+     * audio captured before a crash is encoded after restart. Call before {@link #startRecord}. The caller keeps
+     * ownership of the ring; pass null to go back to an in-memory one.
+     */
+    public synchronized void setAudioInputRing(TuyaByteRing ring) {
+        this.audioInputRing = ring;
+    }
+
+    /**
+     * Caps the memory used by encoded packets waiting to be written. When the write thread falls that far behind, new
+     * packets are dropped, and the video encoder restarts from a key frame. Call while not recording.
+     *
+     * @param bytes
+     *            Bytes of pooled packet buffers to allocate at most, see {@link TuyaBufferPool}.
+     */
+    public synchronized void setOutputPoolCapacity(long bytes) {
+        if (isStartRecord) {
+            throw new IllegalStateException("recording");
+        }
+        outputPool = new TuyaBufferPool(bytes);
+    }
+
+    /**
+     * @return The pool encoded packets travel in, for its statistics.
+     */
+    public synchronized TuyaBufferPool getOutputPool() {
+        return outputPool;
+    }
+
+    /**
+     * Chooses the container of the next recordings. A fragmented MP4 file is written as it goes, so a recording cut
+     * short by a crash or a full disk stays playable up to its last fragment; a regular one is written by
+     * {@link android.media.MediaMuxer} and needs {@link #stopRecord()} to complete. Call while not recording.
+     *
+     * @param fragmented
+     *            Whether to write fragmented MP4.
+     * @param fragmentDurationUs
+     *            Minimum duration of a fragment, or 0 for one fragment per GOP. Ignored when not fragmented. The
+     *            encoder's GOP is set to match, or to {@link #FRAGMENT_KEY_FRAME_INTERVAL_SEC} for 0.
+     */
+    public synchronized void setFragmentedMp4(boolean fragmented, long fragmentDurationUs) {
+        if (isStartRecord) {
+            throw new IllegalStateException("recording");
+        }
+        if (fragmented && fragmentDurationUs < 0) {
+            throw new IllegalArgumentException("negative fragment duration: " + fragmentDurationUs);
+        }
+        this.fragmentDurationUs = fragmented ? fragmentDurationUs : -1;
+    }
+
+    /**
+     * Chooses how fragmented MP4 files are written, see {@link #setFragmentedMp4}. By default a
+     * {@link TuyaAsyncFileWriter} writes them in large batches on a thread of its own and syncs each file when it is
+     * closed. Call while not recording.
+     *
+     * @param durability
+     *            When to force the data to the device, or null to write on the write thread with no batching.
+     * @param syncIntervalMs
+     *            Time between syncs with {@link TuyaAsyncFileWriter.Durability#INTERVAL}.
+     */
+    public synchronized void setFileDurability(TuyaAsyncFileWriter.Durability durability, long syncIntervalMs) {
+        if (isStartRecord) {
+            throw new IllegalStateException("recording");
+        }
+        this.fileDurability = durability;
+        this.fileSyncIntervalMs = syncIntervalMs;
+    }
+
+    /**
+     * @return Throughput and latency of the file writer of the last finished file or segment, or null if none was
+     *         written through a {@link TuyaAsyncFileWriter}.
+     */
+    public TuyaAsyncFileWriter.Stats getLastFileStats() {
+        return lastFileStats;
+    }
+
+    /**
+     * @return Why the file of the current or last recording stopped being written, or null if it did not. Packets
+     *         after the error are dropped, and the file is closed as usual on {@link #stopRecord()}.
+     */
+    public RuntimeException getWriteError() {
+        return writeError;
+    }
+
+    /**
+     * @return GOP length of new encoders. Fragments end on key frames, so in fragmented MP4 there is one at least every
+     *         fragment; otherwise key frames only come when asked for.
+     */
+    private int keyFrameIntervalSec() {
+        if (fragmentDurationUs < 0) {
+            return 3000;
+        }
+        if (fragmentDurationUs == 0) {
+            return FRAGMENT_KEY_FRAME_INTERVAL_SEC;
+        }
+        return (int) Math.max(1, (fragmentDurationUs + 999999) / 1000000);
+    }
+
+    private TuyaContainerWriter createContainerWriter(String path) throws IOException {
+        if (fragmentDurationUs >= 0) {
+            if (fileDurability != null) {
+                return new TuyaFragmentedMp4Muxer(path, fragmentDurationUs, fileDurability, fileSyncIntervalMs);
+            }
+            return new TuyaFragmentedMp4Muxer(path, fragmentDurationUs);
+        }
+        return new TuyaPlatformMuxer(path);
+    }
+
+    /**
+     * Splits the next recordings into files of about the given duration or size. The split happens at the first key
+     * frame past the limit, asked for as soon as it is reached, while the encoders keep running; each file starts with
+     * the codec configuration and plays on its own. Files after the first are named by {@link #segmentPath}; a change
+     * of video size starts one of them too, with or without limits. Call while not recording.
+     *
+     * @param durationUs
+     *            Duration of a segment, or 0 for no limit.
+     * @param bytes
+     *            Encoded bytes in a segment, or 0 for no limit.
+     * @param listener
+     *            Told about each finished segment, including the last one, or null.
+     */
+    public synchronized void setSegmentation(long durationUs, long bytes, SegmentListener listener) {
+        if (isStartRecord) {
+            throw new IllegalStateException("recording");
+        }
+        if (durationUs < 0 || bytes < 0) {
+            throw new IllegalArgumentException("negative segment limit");
+        }
+        this.segmentDurationUs = durationUs;
+        this.segmentBytes = bytes;
+        this.segmentListener = listener;
+    }
+
+    /**
+     * @return The file segment {@code index} of a recording to {@code path} is written to: {@code path} itself for the
+     *         first one, then {@code _1}, {@code _2}... inserted before the extension.
+     */
+    public static String segmentPath(String path, int index) {
+        if (index == 0) {
+            return path;
+        }
+        int dot = path.lastIndexOf('.');
+        if (dot <= path.lastIndexOf(File.separatorChar)) {
+            dot = path.length();
+        }
+        return path.substring(0, dot) + "_" + index + path.substring(dot);
+    }
+
+    /**
+     * Sets how long packets may wait for the other track so they are written in presentation order. A longer window
+     * copes with more skew between the encoders, at the cost of holding more packets in the output pool. Call while not
+     * recording.
+     *
+     * @param windowUs
+     *            Reorder window, {@link #DEFAULT_INTERLEAVE_WINDOW_US} by default. 0 writes packets as they come unless
+     *            both tracks have some waiting.
+     */
+    public synchronized void setInterleaveWindow(long windowUs) {
+        if (isStartRecord) {
+            throw new IllegalStateException("recording");
+        }
+        if (windowUs < 0) {
+            throw new IllegalArgumentException("negative window: " + windowUs);
+        }
+        this.interleaveWindowUs = windowUs;
+    }
+
+    /**
+     * @return The interleaver of the current or last recording, for its statistics, or null if there has been none.
+     */
+    public TuyaInterleaver<?> getInterleaver() {
+        return interleaver;
+    }
+
+    /**
+     * Bounds the packets waiting to be written, for when storage stalls. Call while not recording.
+     *
+     * @param bytes
+     *            Encoded bytes to hold at most, {@link #DEFAULT_OUTPUT_QUEUE_BYTES} by default. Should be well under
+     *            the output pool capacity, which bounds the same packets in memory.
+     * @param policy
+     *            What to do with packets beyond that, {@link TuyaMuxerQueue.Policy#DROP_GOP} by default. With
+     *            {@link TuyaMuxerQueue.Policy#BLOCK} the encoder threads wait, for a second at most. In async mode
+     *            that is the codec thread both encoders share, so both stall together.
+     * @param listener
+     *            Told when the queue goes over 3/4 of the budget and back under 1/4, for instance to lower the
+     *            bitrate, or null.
+     */
+    public synchronized void setOutputQueue(long bytes, TuyaMuxerQueue.Policy policy,
+                                            TuyaMuxerQueue.WatermarkListener listener) {
+        if (isStartRecord) {
+            throw new IllegalStateException("recording");
+        }
+        if (bytes <= 0) {
+            throw new IllegalArgumentException("capacity " + bytes);
+        }
+        this.outputQueueBytes = bytes;
+        this.outputQueuePolicy = policy;
+        this.outputQueueListener = listener;
+    }
+
+    /**
+     * @return The queue of the current or last recording, for its drop counts, or null if there has been none.
+     */
+    public TuyaMuxerQueue<?> getOutputQueue() {
+        return mediaTrackData;
+    }
+
+    /**
+     * Lets the given controller adjust the video bitrate while recording, based on dropped frames, the depth of the
+     * write queue and how fast packets are written. Each recording starts it over from the configured bitrate. Call
+     * before {@link #startRecord}; pass null to keep the bitrate fixed.
+     */
+    public synchronized void setRateController(TuyaRateController controller) {
+        this.rateController = controller;
+    }
+
+    /**
+     * Tells the video encoder, which is started before the first frame arrives, what the frames will look like so it
+     * can pick a colour format they are copied into as they are. Call before {@link #startRecord}.
+     *
+     * @param pixelFmt
+     *            {@link TuyaVideoEncoder.VideoFrame#getPixelFmt()} of the frames to come, or 0 if unknown.
+     */
+    public synchronized void setVideoSourceFormat(int pixelFmt) {
+        this.videoSourceFormat = pixelFmt;
+    }
+
+    /**
+     * @return Completes once the encoders of the current recording are started, with whether all of them could be.
+     *         Null when not recording.
+     */
+    public Future<Boolean> getEncoderStartup() {
+        return encoderStartup;
+    }
+
+    /**
+     * @return How long creating, configuring and starting the encoders took, or -1 if they are not started yet.
+     */
+    public long getEncoderStartupMs() {
+        return encoderStartupMs;
+    }
+
+    /**
+     * @return Time from {@link #startRecord} or {@link #startPreRoll} to the first encoded video frame, or -1 if there
+     *         is none yet.
+     */
+    public long getTimeToFirstVideoFrameMs() {
+        return timeToFirstVideoFrameMs;
+    }
+
+    /**
+     * Creates a packet ring suitable for {@link #startPreRoll}.
+     *
+     * @param capacity
+     *            Bytes of encoded data to keep at most.
+     * @param maxPackets
+     *            Packets to keep at most.
+     * @param retainUs
+     *            How much history to keep.
+     * @param video
+     *            Whether video is recorded, in which case the ring keeps whole GOPs.
+     */
+    public static TuyaPacketRingBuffer createPreRollBuffer(int capacity, int maxPackets, long retainUs, boolean video) {
+        return new TuyaPacketRingBuffer(capacity, maxPackets,
+                video ? PRE_ROLL_VIDEO : TuyaPacketRingBuffer.NO_GOP_TRACK, retainUs);
+    }
+
     public synchronized int startRecord(
             boolean audio,
             int samplesRate,
@@ -112,35 +575,233 @@ public class TuyaMediaMuxer implements TuyaVideoEncoder.Callback, TuyaAudioEncod
         if (audio) recordMode += AUDIO_ONLY;
         if (video) recordMode += VIDEO_ONLY;
         try {
-            mediaMuxer = new MediaMuxer(recrodFile, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+            mediaMuxer = createContainerWriter(recrodFile);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return -1;
+        }
+        createEncoders(audio, samplesRate, channelCount, audioBitrate, video, width, height, fps, videoBitrate);
+        preRoll = null;
+        isPreRolling = false;
+        segment = new Segment(recrodFile, 0);
+        startWriteThread();
+        Log.e(TAG, "startRecord leave.");
+
+        return 0;
+    }
+
+    /**
+     * Starts the encoders without a file. Encoded packets go into the given ring, which keeps the last few seconds
+     * aligned on GOPs; {@link #triggerRecord(String)} then writes that history to a new file ahead of the live packets.
+     *
+     * @param preRollBuffer
+     *            Ring to keep the history in, see {@link #createPreRollBuffer}.
+     */
+    public synchronized int startPreRoll(
+            boolean audio,
+            int samplesRate,
+            int channelCount,
+            int audioBitrate,
+            boolean video,
+            int width,
+            int height,
+            int fps,
+            int videoBitrate,
+            TuyaPacketRingBuffer preRollBuffer) {
+        Log.d(TAG, "startPreRoll enter.");
+        if (isStartRecord) {
+            Log.e(TAG, "startPreRoll while recording.");
+            return -1;
+        }
+
+        this.recordMode = 0;
+        if (audio) recordMode += AUDIO_ONLY;
+        if (video) recordMode += VIDEO_ONLY;
+        mediaMuxer = null;
+        createEncoders(audio, samplesRate, channelCount, audioBitrate, video, width, height, fps, videoBitrate);
+        preRoll = preRollBuffer;
+        preRollKeyFrameUs = -1;
+        preRollKeyFrameRequested = false;
+        isPreRolling = true;
+        return 0;
+    }
+
+    /**
+     * Opens the file for a recording started with {@link #startPreRoll}. The buffered history is written first, then
+     * recording continues live until {@link #stopRecord()}.
+     */
+    public synchronized int triggerRecord(String recrodFile) {
+        Log.d(TAG, "triggerRecord " + recrodFile);
+        if (!isPreRolling) {
+            return -1;
+        }
+        try {
+            mediaMuxer = createContainerWriter(recrodFile);
         } catch (IOException e) {
             e.printStackTrace();
             return -1;
         }
+        isPreRolling = false;
+        // The ring starts with a key frame, and audio must not be held back until the write thread flushes it.
+        isKeyFrameArrived = preRoll.packetCount() > 0;
+        segment = new Segment(recrodFile, 0);
+        startWriteThread();
+        return 0;
+    }
+
+    private void createEncoders(
+            boolean audio,
+            int samplesRate,
+            int channelCount,
+            int audioBitrate,
+            boolean video,
+            int width,
+            int height,
+            int fps,
+            int videoBitrate) {
         if (audio) {
             TuyaAudioEncoder.Settings audioSettings = new TuyaAudioEncoder.Settings(
                     samplesRate, channelCount, audioBitrate, AudioFormat.ENCODING_PCM_16BIT);
-            tuyaAudioEncoder = new TuyaAudioEncoder(audioSettings, this);
+            tuyaAudioEncoder = audioInputRing != null
+                    ? new TuyaAudioEncoder(audioSettings, this, audioInputRing)
+                    : new TuyaAudioEncoder(audioSettings, this);
+            tuyaAudioEncoder.setOutputPool(outputPool);
         }
 
         if (video) {
             TuyaVideoEncoder.Settings videoSettins = new TuyaVideoEncoder.Settings(
-                    width, height, 3000, videoBitrate, fps);
-            tuyaVideoEncoder = new TuyaVideoEncoder(videoSettins, TuyaVideoEncoder.MimeType.H264, true, this);
+                    width, height, keyFrameIntervalSec(), videoBitrate, fps);
+            videoPacer = new TuyaFramePacer(fps);
+            activeVideoOutput = new VideoOutput(videoSettins);
+            writtenVideoGeneration = activeVideoOutput.generation;
+            tuyaVideoEncoder = activeVideoOutput.encoder;
+            if (rateController != null) {
+                rateController.reset(videoBitrate);
+            }
         }
+        bytesProduced = 0;
+        bytesWritten = 0;
+        lastVideoPtsUs = 0;
+        lastAudioPtsUs = 0;
+        retiredDroppedFrames = 0;
+        droppedBeforeStart = 0;
         isAudioAdd = false;
         isVideoAdd = false;
+        // The track set follows recordMode: a track the new recording lacks must not keep its old index.
+        audioTrackIndex = -1;
+        videoTrackIndex = -1;
         audioFormat = null;
         videoFormat = null;
+        if (!isStartRecord) {
+            TuyaCodecProbe.recordingStarted();
+        }
         isStartRecord = true;
         isKeyFrameArrived = false;
-        mediaTrackData = new LinkedBlockingQueue<>();
+        startEncoders();
+    }
+
+    /**
+     * Starts the encoders of a new recording on {@link #ENCODER_STARTER}. Called with the muxer lock held.
+     */
+    private void startEncoders() {
+        final TuyaVideoEncoder videoEncoder = tuyaVideoEncoder;
+        final TuyaAudioEncoder audioEncoder = tuyaAudioEncoder;
+        final int pixelFmt = videoSourceFormat;
+        startRequestedMs = SystemClock.elapsedRealtime();
+        encoderStartupMs = -1;
+        timeToFirstVideoFrameMs = -1;
+        encoderStartup = ENCODER_STARTER.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                boolean started = true;
+                if (videoEncoder != null) {
+                    TuyaVideoEncoder.VideoCodecStatus status = videoEncoder.initEncode(pixelFmt);
+                    if (status != TuyaVideoEncoder.VideoCodecStatus.OK) {
+                        Log.e(TAG, "Cannot start video encoder: " + status);
+                        started = false;
+                    }
+                }
+                if (audioEncoder != null) {
+                    TuyaAudioEncoder.AudioCodecStatus status = audioEncoder.initEncode();
+                    if (status != TuyaAudioEncoder.AudioCodecStatus.OK) {
+                        Log.e(TAG, "Cannot start audio encoder: " + status);
+                        started = false;
+                    }
+                }
+                encoderStartupMs = SystemClock.elapsedRealtime() - startRequestedMs;
+                Log.i(TAG, "Encoders started in " + encoderStartupMs + " ms");
+                return started;
+            }
+        });
+    }
+
+    private boolean isEncoderStartupDone() {
+        Future<Boolean> startup = encoderStartup;
+        return startup == null || startup.isDone();
+    }
+
+    /**
+     * Waits for the encoders to be started, so they are not released while starting. Called with the muxer lock held.
+     */
+    private void awaitEncoderStartup() {
+        Future<Boolean> startup = encoderStartup;
+        if (startup == null) {
+            return;
+        }
+        try {
+            startup.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            Log.e(TAG, "Encoder start failed", e.getCause());
+        }
+        encoderStartup = null;
+    }
+
+    /**
+     * Keeps an input for when the encoders are started, dropping the oldest one if the queue is full.
+     *
+     * @return Whether one was dropped.
+     */
+    private static <T> boolean queuePreStart(ArrayDeque<T> queue, T item, int capacity) {
+        synchronized (queue) {
+            boolean dropped = false;
+            if (queue.size() == capacity) {
+                queue.poll();
+                dropped = true;
+            }
+            queue.add(item);
+            return dropped;
+        }
+    }
+
+    private static <T> T pollPreStart(ArrayDeque<T> queue) {
+        synchronized (queue) {
+            return queue.poll();
+        }
+    }
+
+    private void clearPreStart() {
+        synchronized (preStartVideo) {
+            preStartVideo.clear();
+        }
+        synchronized (preStartAudio) {
+            preStartAudio.clear();
+        }
+    }
+
+    private void startWriteThread() {
+        TuyaMuxerQueue<MediaTrackData> queue = new TuyaMuxerQueue<>(outputQueueBytes, outputQueuePolicy,
+                outputQueueCallback);
+        if (outputQueueListener != null) {
+            queue.setWatermarks(outputQueueBytes * 3 / 4, outputQueueBytes / 4, outputQueueListener);
+        }
+        mediaTrackData = queue;
+        interleaver = new TuyaInterleaver<>(recordMode == (VIDEO_ONLY + AUDIO_ONLY) ? 2 : 1, interleaveWindowUs);
+        writeError = null;
         running = true;
         writeThread = new Thread(writeTask);
         writeThread.start();
-        Log.e(TAG, "startRecord leave.");
-
-        return 0;
     }
 
     public synchronized int stopRecord() {
@@ -149,7 +810,19 @@ public class TuyaMediaMuxer implements TuyaVideoEncoder.Callback, TuyaAudioEncod
             return 0;
         }
         isStartRecord = false;
+        TuyaCodecProbe.recordingStopped();
         running = false;
+        discardStandbyVideoEncoder();
+        awaitEncoderStartup();
+        clearPreStart();
+        if (isPreRolling) {
+            // Never triggered: there is no write thread and no file.
+            isPreRolling = false;
+            preRoll = null;
+            stopRecoredThread();
+            outputPool.trim();
+            return 0;
+        }
         try {
             writeThread.interrupt();
             writeThread.join();
@@ -160,52 +833,291 @@ public class TuyaMediaMuxer implements TuyaVideoEncoder.Callback, TuyaAudioEncod
     }
 
 
+    /**
+     * Tells a capture source whether the next frame is wanted, so that frames left out to keep to the configured frame
+     * rate are dropped before they are copied or converted. Call once per captured frame, from the thread that
+     * delivers frames, and hand only the accepted ones to {@link #writeVideoFrame}.
+     *
+     * @param timestampNs
+     *            Capture or arrival time of the frame, from a monotonic clock such as
+     *            {@link SystemClock#elapsedRealtimeNanos()}.
+     * @return Whether video is being recorded and the frame fits the frame rate.
+     */
+    public boolean shouldAcceptVideoFrame(long timestampNs) {
+        if ((recordMode & VIDEO_ONLY) == 0 || tuyaVideoEncoder == null || !isStartRecord) {
+            return false;
+        }
+        TuyaFramePacer pacer = videoPacer;
+        return pacer == null || pacer.accept(timestampNs);
+    }
+
+    /**
+     * Encodes a frame the source got the go-ahead for from {@link #shouldAcceptVideoFrame}.
+     */
     public void writeVideoFrame(TuyaVideoEncoder.VideoFrame frame) {
         if ((recordMode & VIDEO_ONLY) != 0) {
-            if (tuyaVideoEncoder != null) {
-                if (tuyaVideoEncoder.isEncodeReady() != true) {
-                    tuyaVideoEncoder.initEncode();
+            if (tuyaVideoEncoder != null && isStartRecord) {
+                if (!isEncoderStartupDone()) {
+                    if (queuePreStart(preStartVideo, frame, PRE_START_VIDEO_FRAMES)) {
+                        droppedBeforeStart++;
+                    }
+                    return;
                 }
-                if (isStartRecord) {
-                    tuyaVideoEncoder.encode(frame, false);
+                TuyaVideoEncoder.VideoFrame queued;
+                while ((queued = pollPreStart(preStartVideo)) != null) {
+                    encodeVideoFrame(queued);
                 }
+                encodeVideoFrame(frame);
+            }
+        }
 
+    }
+
+    private void encodeVideoFrame(TuyaVideoEncoder.VideoFrame frame) {
+        TuyaVideoEncoder encoder = tuyaVideoEncoder;
+        if (encoder == null) {
+            return;
+        }
+        if (encoder.isEncodeReady() != true) {
+            // It could not be started in the background; try again with the actual frame format.
+            encoder.initEncode(frame.getPixelFmt());
+        }
+        TuyaVideoEncoder.Settings settings = encoder.getSettings();
+        if (frame.getWidth() != settings.width || frame.getHeight() != settings.height) {
+            TuyaVideoEncoder next = switchVideoEncoder(frame);
+            if (next != null) {
+                encoder = next;
+            } else {
+                // Not ready yet: the current encoder takes the frame at its own size meanwhile.
+                frame = TuyaVideoEncoder.scaleFrame(frame, settings.width, settings.height);
+                if (frame == null) {
+                    return;
+                }
             }
         }
+        encoder.encode(frame, false);
+    }
 
+    /**
+     * @return Video frames left out by {@link #shouldAcceptVideoFrame} to keep to the configured frame rate.
+     */
+    public long getDecimatedVideoFrames() {
+        TuyaFramePacer pacer = videoPacer;
+        return pacer != null ? pacer.getDecimatedFrames() : 0;
+    }
+
+    /**
+     * @return Video frames dropped because the encoders or the writer fell behind, or because too many arrived before
+     *         the encoders were started, for the current recording.
+     */
+    public synchronized long getDroppedVideoFrames() {
+        TuyaVideoEncoder encoder = tuyaVideoEncoder;
+        return droppedBeforeStart + retiredDroppedFrames + (encoder != null ? encoder.getDroppedFrames() : 0);
+    }
+
+    /**
+     * Moves video to an encoder for the size of the given frame. The first call starts one in the background; once it
+     * is running, the call that finds it ready hands over to it and lets the current encoder drain.
+     *
+     * @return The encoder to give the frame to, or null to keep using the current one with the frame scaled. If the new
+     *         encoder could not be started, the current one, which then resets itself for the new size.
+     */
+    private synchronized TuyaVideoEncoder switchVideoEncoder(TuyaVideoEncoder.VideoFrame frame) {
+        if (!isStartRecord || activeVideoOutput == null) {
+            return null;
+        }
+        VideoOutput standby = standbyVideoOutput;
+        if (standby != null) {
+            TuyaVideoEncoder.Settings settings = standby.encoder.getSettings();
+            if (settings.width != frame.getWidth() || settings.height != frame.getHeight()) {
+                // The size changed again before the switch.
+                discardStandbyVideoEncoder();
+                standby = null;
+            }
+        }
+        if (standby == null) {
+            TuyaVideoEncoder.Settings current = activeVideoOutput.encoder.getSettings();
+            standbyVideoOutput = new VideoOutput(new TuyaVideoEncoder.Settings(frame.getWidth(), frame.getHeight(),
+                    current.keyFrameIntervalSec, current.bitrate, current.fps));
+            isStandbyPrepared = false;
+            prepareVideoEncoder(standbyVideoOutput, frame.getPixelFmt());
+            return null;
+        }
+        if (!isStandbyPrepared) {
+            return null;
+        }
+        if (!standby.encoder.isEncodeReady()) {
+            Log.e(TAG, "Cannot start a video encoder for " + frame.getWidth() + "x" + frame.getHeight()
+                    + ", resetting the current one.");
+            standbyVideoOutput = null;
+            return activeVideoOutput.encoder;
+        }
+
+        Log.i(TAG, "Switching video to " + frame.getWidth() + "x" + frame.getHeight());
+        final VideoOutput retired = activeVideoOutput;
+        activeVideoOutput = standby;
+        standbyVideoOutput = null;
+        tuyaVideoEncoder = standby.encoder;
+        retiredDroppedFrames += retired.encoder.getDroppedFrames();
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                retired.encoder.drainAndRelease(VIDEO_DRAIN_TIMEOUT_MS);
+            }
+        }, "VideoEncoderDrain").start();
+        return standby.encoder;
+    }
+
+    /**
+     * Configures and starts the encoder of the given output on its own thread, so frames keep flowing meanwhile.
+     */
+    private void prepareVideoEncoder(final VideoOutput output, final int pixelFmt) {
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                TuyaVideoEncoder.VideoCodecStatus status = output.encoder.initEncode(pixelFmt);
+                Log.d(TAG, "Standby video encoder started: " + status);
+                synchronized (TuyaMediaMuxer.this) {
+                    if (standbyVideoOutput == output) {
+                        isStandbyPrepared = true;
+                        return;
+                    }
+                }
+                // Discarded while starting.
+                output.encoder.release();
+            }
+        }, "VideoEncoderPrepare").start();
+    }
+
+    /**
+     * Drops the encoder started for a switch that will not happen. Called with the muxer lock held.
+     */
+    private void discardStandbyVideoEncoder() {
+        final VideoOutput standby = standbyVideoOutput;
+        if (standby == null) {
+            return;
+        }
+        standbyVideoOutput = null;
+        if (isStandbyPrepared) {
+            // Otherwise the thread starting it releases it when done.
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    standby.encoder.release();
+                }
+            }, "VideoEncoderRelease").start();
+        }
+        isStandbyPrepared = false;
     }
 
     public void writeAudioSample(TuyaAudioEncoder.AudioSamples audioSamples) {
         if ((recordMode & AUDIO_ONLY) != 0) {
-            if (tuyaAudioEncoder != null) {
-                if (tuyaAudioEncoder.isEncodeReady() != true) {
-                    tuyaAudioEncoder.initEncode();
+            TuyaAudioEncoder encoder = tuyaAudioEncoder;
+            if (encoder != null && isStartRecord) {
+                if (!isEncoderStartupDone()) {
+                    // Capture sources reuse their buffer. The capture time goes along, so the samples are not stamped
+                    // with the time they are encoded at.
+                    long captureNanos = audioSamples.getCaptureNanos() >= 0 ? audioSamples.getCaptureNanos()
+                            : System.nanoTime() - audioSamples.getDurationNanos();
+                    TuyaAudioEncoder.AudioSamples copy = new TuyaAudioEncoder.AudioSamples(
+                            audioSamples.getAudioFormat(), audioSamples.getChannelCount(),
+                            audioSamples.getSampleRate(), audioSamples.getData().clone(), captureNanos);
+                    queuePreStart(preStartAudio, copy, PRE_START_AUDIO_CHUNKS);
+                    return;
+                }
+                if (encoder.isEncodeReady() != true) {
+                    encoder.initEncode();
                 }
-                if (isStartRecord) {
-                    tuyaAudioEncoder.encode(audioSamples);
+                TuyaAudioEncoder.AudioSamples queued;
+                while ((queued = pollPreStart(preStartAudio)) != null) {
+                    encoder.encode(queued);
+                }
+                encoder.encode(audioSamples);
+            }
+        }
+    }
+
+    /**
+     * Encodes PCM that the capture side has already committed into {@link #getAudioInputRing()}.
+     */
+    public void writeBufferedAudio(int sampleRate, int channelCount, int audioFormat) {
+        if ((recordMode & AUDIO_ONLY) != 0) {
+            TuyaAudioEncoder encoder = tuyaAudioEncoder;
+            // Until the encoder is started, the PCM simply stays in the ring.
+            if (encoder != null && isStartRecord && isEncoderStartupDone()) {
+                if (encoder.isEncodeReady() != true) {
+                    encoder.initEncode();
                 }
+                encoder.encodeBuffered(sampleRate, channelCount, audioFormat);
             }
         }
     }
 
+    /**
+     * @return The ring the audio encoder reads PCM from, so a capture source can write into it without an extra copy.
+     *         Null when audio is not being recorded.
+     */
+    public TuyaByteRing getAudioInputRing() {
+        TuyaAudioEncoder encoder = tuyaAudioEncoder;
+        return encoder != null ? encoder.getInputRing() : null;
+    }
 
     @Override
-    public synchronized void onAudioSample(ByteBuffer outBuf, MediaCodec.BufferInfo bufferInfo) {
+    public void onAudioSample(ByteBuffer outBuf, MediaCodec.BufferInfo bufferInfo) {
+        MediaTrackData packet = prepareAudio(outBuf, bufferInfo);
+        if (packet != null) {
+            queuePacket(packet, false, true, true);
+        }
+    }
+
+    /**
+     * @return The packet to queue for an encoded audio buffer, or null if it was consumed or dropped here.
+     */
+    private synchronized MediaTrackData prepareAudio(ByteBuffer outBuf, MediaCodec.BufferInfo bufferInfo) {
         if (isStartRecord) {
+            if (isPreRolling) {
+                preRoll.push(PRE_ROLL_AUDIO, outBuf, bufferInfo.presentationTimeUs, bufferInfo.flags);
+                outputPool.release(outBuf);
+                return null;
+            }
             if ((!isKeyFrameArrived) && (recordMode == (VIDEO_ONLY + AUDIO_ONLY))) {
                 Log.e(TAG, "Wait video key frame to write.");
-                return;
+                outputPool.release(outBuf);
+                return null;
             }
             //Log.e(TAG, "Write audio ts " + bufferInfo.presentationTimeUs);
             //mediaMuxer.writeSampleData(audioTrackIndex, outBuf, bufferInfo);
 
-            try {
-                mediaTrackData.put(new MediaTrackData(outBuf, audioTrackIndex, bufferInfo));
-            } catch (InterruptedException e) {
-                e.printStackTrace();
+            // Containers reject a track going backwards; the encoder's timestamps come from the capture clock.
+            if (bufferInfo.presentationTimeUs <= lastAudioPtsUs) {
+                bufferInfo.presentationTimeUs = lastAudioPtsUs + 1;
             }
+            lastAudioPtsUs = bufferInfo.presentationTimeUs;
+
+            return new MediaTrackData(outBuf, audioTrackIndex, bufferInfo);
+        } else {
+            outputPool.release(outBuf);
+            return null;
         }
+    }
 
+    /**
+     * Hands a packet to the write thread. Called without the muxer lock: with {@link TuyaMuxerQueue.Policy#BLOCK} this
+     * waits for room, and {@link #stopRecord()} and the other encoder's synchronous output thread must not wait with
+     * it. In async mode the wait still holds up the shared codec thread, see {@link TuyaMuxerQueue.Policy#BLOCK}.
+     */
+    private void queuePacket(MediaTrackData packet, boolean video, boolean keyFrame, boolean reference) {
+        int size = packet.getBufferInfo().size;
+        try {
+            if (mediaTrackData.put(packet, video, keyFrame, reference, size)) {
+                synchronized (this) {
+                    bytesProduced += size;
+                }
+            }
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+            outputPool.release(packet.getByteBuf());
+        }
     }
 
     @Override
@@ -215,19 +1127,121 @@ public class TuyaMediaMuxer implements TuyaVideoEncoder.Callback, TuyaAudioEncod
     }
 
     @Override
-    public synchronized void onVideoFrame(ByteBuffer frame, MediaCodec.BufferInfo bufferInfo) {
+    public void onVideoFrame(ByteBuffer frame, MediaCodec.BufferInfo bufferInfo) {
+        VideoOutput output;
+        synchronized (this) {
+            output = activeVideoOutput;
+        }
+        writeEncodedVideo(output, frame, bufferInfo);
+    }
+
+    /**
+     * Queues an encoded frame from the given output. Around a resolution switch, the new encoder's frames are written
+     * from its first key frame on, with its parameter sets in front, and the old encoder's frames stop there.
+     */
+    private void writeEncodedVideo(VideoOutput output, ByteBuffer frame, MediaCodec.BufferInfo bufferInfo) {
+        // Queued outside the muxer lock, but under one of its own so that frames of both encoders keep their order.
+        synchronized (videoQueueLock) {
+            MediaTrackData packet = prepareVideo(output, frame, bufferInfo);
+            if (packet == null) {
+                return;
+            }
+            ByteBuffer data = packet.getByteBuf();
+            boolean keyFrame = (bufferInfo.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0;
+            boolean reference = keyFrame || outputQueuePolicy != TuyaMuxerQueue.Policy.DROP_NON_REFERENCE
+                    || TuyaMuxerQueue.isAvcReference(data);
+            queuePacket(packet, true, keyFrame, reference);
+        }
+        synchronized (this) {
+            updateRateControl();
+        }
+    }
+
+    /**
+     * @return The packet to queue for an encoded frame, or null if it was consumed or dropped here.
+     */
+    private synchronized MediaTrackData prepareVideo(VideoOutput output, ByteBuffer frame,
+                                                     MediaCodec.BufferInfo bufferInfo) {
+        if (isStartRecord && output != null && output.generation != writtenVideoGeneration) {
+            if (output.generation < writtenVideoGeneration) {
+                outputPool.release(frame);
+                return null;
+            }
+            if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) == 0) {
+                outputPool.release(frame);
+                output.encoder.requestKeyFrame(0);
+                return null;
+            }
+            if (output.config != null) {
+                ByteBuffer withConfig = outputPool.acquire(output.config.remaining() + frame.remaining());
+                if (withConfig == null) {
+                    outputPool.release(frame);
+                    output.encoder.requestKeyFrame(0);
+                    return null;
+                }
+                withConfig.put(output.config.duplicate());
+                withConfig.put(frame);
+                withConfig.flip();
+                outputPool.release(frame);
+                frame = withConfig;
+                bufferInfo.offset = 0;
+                bufferInfo.size = frame.remaining();
+            }
+            Log.i(TAG, "Video continues with encoder generation " + output.generation);
+            writtenVideoGeneration = output.generation;
+        }
+        if (isStartRecord && timeToFirstVideoFrameMs < 0) {
+            timeToFirstVideoFrameMs = SystemClock.elapsedRealtime() - startRequestedMs;
+            Log.i(TAG, "First video frame encoded " + timeToFirstVideoFrameMs + " ms after start");
+        }
+        // The two encoders deliver on different threads; keep the track in order.
+        if (bufferInfo.presentationTimeUs <= lastVideoPtsUs) {
+            bufferInfo.presentationTimeUs = lastVideoPtsUs + 1;
+        }
+        lastVideoPtsUs = bufferInfo.presentationTimeUs;
+
         if (isStartRecord) {
+            if (isPreRolling) {
+                boolean stored = preRoll.push(PRE_ROLL_VIDEO, frame, bufferInfo.presentationTimeUs, bufferInfo.flags);
+                outputPool.release(frame);
+                requestPreRollKeyFrame(output, bufferInfo, stored);
+                return null;
+            }
 
             //Log.e(TAG, "Write video ts " + bufferInfo.presentationTimeUs + " key " + bufferInfo.flags);
             //mediaMuxer.writeSampleData(videoTrackIndex, frame, bufferInfo);
 
-            try {
-                mediaTrackData.put(new MediaTrackData(frame, videoTrackIndex, bufferInfo));
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
+            MediaTrackData packet = new MediaTrackData(frame, videoTrackIndex, bufferInfo);
+            packet.videoFormat = output != null ? output.format : null;
+            return packet;
+        } else {
+            outputPool.release(frame);
+            return null;
         }
+    }
 
+    /**
+     * Asks for a key frame when the pre-roll ring needs one to keep its history. Called with the muxer lock held.
+     */
+    private void requestPreRollKeyFrame(VideoOutput output, MediaCodec.BufferInfo bufferInfo, boolean stored) {
+        long ptsUs = bufferInfo.presentationTimeUs;
+        if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0) {
+            preRollKeyFrameUs = ptsUs;
+            preRollKeyFrameRequested = false;
+        } else if (preRollKeyFrameUs < 0) {
+            preRollKeyFrameUs = ptsUs;
+        }
+        boolean due = ptsUs - preRollKeyFrameUs >= preRoll.retainUs() / 2;
+        if (!due && (stored || preRollKeyFrameRequested)) {
+            return;
+        }
+        TuyaVideoEncoder encoder = output != null ? output.encoder : tuyaVideoEncoder;
+        if (encoder != null) {
+            // Counted from the request too, so one the codec ignores is repeated.
+            preRollKeyFrameUs = ptsUs;
+            preRollKeyFrameRequested = true;
+            encoder.requestKeyFrame(0);
+        }
     }
 
     @Override
@@ -236,16 +1250,91 @@ public class TuyaMediaMuxer implements TuyaVideoEncoder.Callback, TuyaAudioEncod
         videoFormat = format;
     }
 
+    /**
+     * The track keeps the first format it gets. An encoder started for a resolution switch has its parameter sets kept
+     * aside instead, for {@link #writeEncodedVideo}, and its format for the segment its frames start.
+     */
+    private synchronized void addVideoFormat(VideoOutput output, MediaFormat format) {
+        output.format = format;
+        if (videoFormat == null || output.generation == writtenVideoGeneration) {
+            onAddVideoTrack(format);
+            return;
+        }
+        Log.d(TAG, "Video format for switch " + format.toString());
+        output.config = parameterSets(format);
+    }
+
+    private static boolean sameParameterSets(MediaFormat a, MediaFormat b) {
+        if (a == b) {
+            return true;
+        }
+        ByteBuffer configA = parameterSets(a);
+        ByteBuffer configB = parameterSets(b);
+        return configA == null ? configB == null : configA.equals(configB);
+    }
+
+    private static ByteBuffer parameterSets(MediaFormat format) {
+        ByteBuffer csd0 = format.getByteBuffer("csd-0");
+        ByteBuffer csd1 = format.getByteBuffer("csd-1");
+        int size = (csd0 != null ? csd0.remaining() : 0) + (csd1 != null ? csd1.remaining() : 0);
+        if (size == 0) {
+            return null;
+        }
+        ByteBuffer config = ByteBuffer.allocate(size);
+        if (csd0 != null) {
+            config.put(csd0.duplicate());
+        }
+        if (csd1 != null) {
+            config.put(csd1.duplicate());
+        }
+        config.flip();
+        return config;
+    }
+
+    /**
+     * Feeds the rate controller and applies its decision. Called with the muxer lock held, once per video frame.
+     */
+    private void updateRateControl() {
+        TuyaRateController controller = rateController;
+        TuyaVideoEncoder encoder = tuyaVideoEncoder;
+        if (controller == null || encoder == null) {
+            return;
+        }
+        int current = controller.getBitrate();
+        int next = controller.update(SystemClock.elapsedRealtime(), retiredDroppedFrames + encoder.getDroppedFrames(),
+                mediaTrackData.size(), bytesProduced, bytesWritten);
+        if (next != current && !encoder.setBitrate(next)) {
+            Log.w(TAG, "Cannot change the bitrate to " + next + " on this device.");
+        }
+    }
+
     Runnable writeTask = new Runnable() {
         @Override
         public void run() {
+            TuyaInterleaver<MediaTrackData> order = interleaver;
+            long idleMs = Math.max(1, interleaveWindowUs / 1000);
 
             while (running && !Thread.interrupted()) {
                 try {
-                    MediaTrackData data = mediaTrackData.take();
+                    MediaTrackData data = order.size() > 0
+                            ? mediaTrackData.poll(idleMs, TimeUnit.MILLISECONDS) : mediaTrackData.take();
+                    if (data == null) {
+                        // Nothing came for a whole window: what waits cannot be overtaken any more.
+                        while ((data = order.flush()) != null) {
+                            writeOrDiscard(data);
+                        }
+                        continue;
+                    }
+                    if (writeError != null) {
+                        outputPool.release(data.getByteBuf());
+                        continue;
+                    }
 
                     if (!isVideoAdd && videoFormat != null) {
                         videoTrackIndex = mediaMuxer.addTrack(videoFormat);
+                        if (segment != null) {
+                            segment.videoFormat = videoFormat;
+                        }
                         isVideoAdd = true;
 
                         if (!isMediaMuxerStart && (((isVideoAdd) && (isAudioAdd)) ||
@@ -253,6 +1342,7 @@ public class TuyaMediaMuxer implements TuyaVideoEncoder.Callback, TuyaAudioEncod
                         ) {
                             isMediaMuxerStart = true;
                             mediaMuxer.start();
+                            flushPreRoll();
                         }
                     }
 
@@ -264,32 +1354,284 @@ public class TuyaMediaMuxer implements TuyaVideoEncoder.Callback, TuyaAudioEncod
                         ) {
                             isMediaMuxerStart = true;
                             mediaMuxer.start();
+                            flushPreRoll();
                         }
                     }
 
-
-                    if (isMediaMuxerStart) {
-                        if (data.getTrackId() == audioTrackIndex) {
-                            mediaMuxer.writeSampleData(audioTrackIndex, data.getByteBuf(), data.getBufferInfo());
-                        } else if (data.getTrackId() == videoTrackIndex) {
-                            if (!isKeyFrameArrived) {
-                                MediaCodec.BufferInfo bufferInfo = data.getBufferInfo();
-                                tuyaVideoEncoder.requestKeyFrame(10L);
-                                isKeyFrameArrived = (bufferInfo.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0;
-                            }
-                            mediaMuxer.writeSampleData(videoTrackIndex, data.getByteBuf(), data.getBufferInfo());
-                        }
+                    if (!isMediaMuxerStart || (data.getTrackId() != videoTrackIndex
+                            && data.getTrackId() != audioTrackIndex)) {
+                        outputPool.release(data.getByteBuf());
+                        continue;
+                    }
+                    int track = data.getTrackId() == videoTrackIndex || recordMode != (VIDEO_ONLY + AUDIO_ONLY)
+                            ? INTERLEAVE_VIDEO : INTERLEAVE_AUDIO;
+                    order.push(track, data.getBufferInfo().presentationTimeUs, data);
+                    while ((data = order.poll()) != null) {
+                        writeOrDiscard(data);
                     }
 
                 } catch (InterruptedException e) {
                     e.printStackTrace();
+                } catch (RuntimeException e) {
+                    // Adding a track or starting the file failed.
+                    onWriteError(e);
                 }
             }
-            mediaTrackData.clear();
+            MediaTrackData data;
+            while ((data = order.flush()) != null) {
+                writeOrDiscard(data);
+            }
+            while ((data = mediaTrackData.poll()) != null) {
+                outputPool.release(data.getByteBuf());
+            }
+            Log.d(TAG, "Interleaver: max " + order.getMaxPackets() + " packets, " + order.getMaxOccupancyUs()
+                    + " us, " + order.getLatePackets() + " late.");
             stopRecoredThread();
+            outputPool.trim();
         }
     };
 
+    /**
+     * Writes a packet unless writing failed before, and gives its buffer back to the pool. Called on the write thread.
+     */
+    private void writeOrDiscard(MediaTrackData data) {
+        if (writeError != null) {
+            outputPool.release(data.getByteBuf());
+            return;
+        }
+        try {
+            writePacket(data);
+        } catch (RuntimeException e) {
+            onWriteError(e);
+        }
+    }
+
+    /**
+     * Stops writing after the file failed, for instance with a full disk. The write thread keeps taking packets so
+     * their buffers go back to the pool, and the recording is torn down as usual on {@link #stopRecord()}. Called on
+     * the write thread.
+     */
+    private void onWriteError(RuntimeException e) {
+        Log.e(TAG, "Cannot write the recording, dropping packets until it stops", e);
+        if (writeError == null) {
+            writeError = e;
+        }
+    }
+
+    /**
+     * Writes a packet the interleaver released, and gives its buffer back to the pool. Called on the write thread.
+     */
+    private void writePacket(MediaTrackData data) {
+        try {
+            if (data.getTrackId() == audioTrackIndex) {
+                if (videoTrackIndex < 0) {
+                    maybeStartSegment(data.getBufferInfo());
+                }
+                writeSample(audioTrackIndex, data.getByteBuf(), data.getBufferInfo());
+            } else if (data.getTrackId() == videoTrackIndex) {
+                if (!isKeyFrameArrived) {
+                    MediaCodec.BufferInfo bufferInfo = data.getBufferInfo();
+                    tuyaVideoEncoder.requestKeyFrame(10L);
+                    isKeyFrameArrived = (bufferInfo.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0;
+                }
+                MediaCodec.BufferInfo info = data.getBufferInfo();
+                Segment current = segment;
+                if (current != null && current.videoFormat != null && data.videoFormat != null
+                        && (info.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0
+                        && !sameParameterSets(data.videoFormat, current.videoFormat)) {
+                    // A resolution switch: the track cannot change size, so a new file starts.
+                    startSegment(info, data.videoFormat);
+                } else {
+                    maybeStartSegment(info);
+                }
+                writeSample(videoTrackIndex, data.getByteBuf(), info);
+            }
+        } finally {
+            outputPool.release(data.getByteBuf());
+        }
+    }
+
+
+    /**
+     * Writes the packets buffered before {@link #triggerRecord(String)}. Called on the write thread right after the
+     * muxer starts, so they land ahead of every live packet.
+     */
+    private void flushPreRoll() {
+        TuyaPacketRingBuffer ring = preRoll;
+        if (ring == null) {
+            return;
+        }
+        preRoll = null;
+
+        final MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        int flushed = ring.drainTo(new TuyaPacketRingBuffer.PacketCallback() {
+            @Override
+            public void onPacket(int track, ByteBuffer data, long presentationTimeUs, int flags) {
+                int trackIndex = track == PRE_ROLL_VIDEO ? videoTrackIndex : audioTrackIndex;
+                if (trackIndex < 0) {
+                    return;
+                }
+                if (track == PRE_ROLL_VIDEO && (flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0) {
+                    isKeyFrameArrived = true;
+                }
+                info.set(data.position(), data.remaining(), presentationTimeUs, flags);
+                writeSample(trackIndex, data, info);
+            }
+        });
+        Log.d(TAG, "Flushed " + flushed + " pre-roll packets.");
+    }
+
+    /**
+     * Writes a packet to the current segment. Called on the write thread.
+     */
+    private void writeSample(int trackIndex, ByteBuffer data, MediaCodec.BufferInfo info) {
+        mediaMuxer.writeSampleData(trackIndex, data, info);
+        bytesWritten += info.size;
+        Segment current = segment;
+        if (current != null) {
+            if (current.firstPtsUs < 0) {
+                current.firstPtsUs = info.presentationTimeUs;
+            }
+            current.lastPtsUs = Math.max(current.lastPtsUs, info.presentationTimeUs);
+            current.bytes += info.size;
+        }
+    }
+
+    /**
+     * Moves on to a new segment if the current one is full and the given packet, of the track segments are cut on, can
+     * start the next one. Called on the write thread before the packet is written.
+     */
+    private void maybeStartSegment(MediaCodec.BufferInfo info) {
+        Segment current = segment;
+        if (current == null || current.firstPtsUs < 0) {
+            return;
+        }
+        boolean full = (segmentDurationUs > 0 && info.presentationTimeUs - current.firstPtsUs >= segmentDurationUs)
+                || (segmentBytes > 0 && current.bytes >= segmentBytes);
+        if (!full) {
+            return;
+        }
+        if (videoTrackIndex >= 0 && (info.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) == 0) {
+            TuyaVideoEncoder encoder = tuyaVideoEncoder;
+            if (!current.keyFrameRequested && encoder != null) {
+                current.keyFrameRequested = true;
+                encoder.requestKeyFrame(0);
+            }
+            return;
+        }
+        startSegment(info, current.videoFormat);
+    }
+
+    /**
+     * Moves on to a new segment starting with the given packet. Called on the write thread before the packet is
+     * written.
+     *
+     * @param video
+     *            Format to add the video track with.
+     */
+    private void startSegment(MediaCodec.BufferInfo info, MediaFormat video) {
+        Segment current = segment;
+        Segment next = new Segment(current.basePath, current.index + 1);
+        TuyaContainerWriter nextMuxer;
+        try {
+            nextMuxer = createContainerWriter(next.path);
+            // Same order as the first file, so the track indices carried by queued packets still hold.
+            if (audioTrackIndex >= 0 && audioTrackIndex < videoTrackIndex) {
+                nextMuxer.addTrack(audioFormat);
+            }
+            if (videoTrackIndex >= 0) {
+                if (video == null) {
+                    video = videoFormat;
+                }
+                nextMuxer.addTrack(video);
+                next.videoFormat = video;
+            }
+            if (audioTrackIndex >= 0 && audioTrackIndex > videoTrackIndex) {
+                nextMuxer.addTrack(audioFormat);
+            }
+            nextMuxer.start();
+        } catch (IOException | IllegalStateException | IllegalArgumentException e) {
+            Log.e(TAG, "Cannot start segment " + next.path + ", continuing in " + current.path, e);
+            current.firstPtsUs = info.presentationTimeUs;
+            current.keyFrameRequested = false;
+            // After a resolution switch, the parameter sets in front of the key frame are all players get.
+            current.videoFormat = video;
+            return;
+        }
+        Log.i(TAG, "Segment " + next.index + " starts at " + info.presentationTimeUs);
+        final TuyaContainerWriter previous = mediaMuxer;
+        mediaMuxer = nextMuxer;
+        segment = next;
+        final Segment finished = current;
+        final SegmentListener listener = segmentListener;
+        SEGMENT_FINALIZER.execute(new Runnable() {
+            @Override
+            public void run() {
+                finishSegment(previous, true, finished, listener);
+            }
+        });
+    }
+
+    /**
+     * Stops and releases the muxer of a segment, then reports the segment.
+     */
+    private void finishSegment(TuyaContainerWriter muxer, boolean started, Segment finished,
+                               SegmentListener listener) {
+        if (started) {
+            try {
+                muxer.stop();
+            } catch (IllegalStateException e) {
+                e.printStackTrace();
+            }
+        }
+        // Also when never started, so the file is closed.
+        try {
+            muxer.release();
+        } catch (IllegalStateException e) {
+            e.printStackTrace();
+        }
+        if (muxer instanceof TuyaFragmentedMp4Muxer) {
+            TuyaAsyncFileWriter.Stats stats = ((TuyaFragmentedMp4Muxer) muxer).getFileStats();
+            if (stats != null) {
+                Log.i(TAG, "File written: " + stats);
+                lastFileStats = stats;
+            }
+        }
+        if (finished != null && listener != null) {
+            listener.onSegmentComplete(finished.path, finished.index, finished.getDurationUs(),
+                    new File(finished.path).length());
+        }
+    }
+
+    /**
+     * Finishes the last segment on {@link #SEGMENT_FINALIZER} behind the earlier ones, so they are reported in order,
+     * and waits for it: the file is complete once the recording stops.
+     */
+    private void finishLastSegment(final TuyaContainerWriter muxer, final boolean started, final Segment finished,
+                                   final SegmentListener listener) {
+        Future<?> last = SEGMENT_FINALIZER.submit(new Runnable() {
+            @Override
+            public void run() {
+                finishSegment(muxer, started, finished, listener);
+            }
+        });
+        // stopRecord interrupts the write thread to end it, but the wait must not be cut short.
+        boolean interrupted = Thread.interrupted();
+        while (true) {
+            try {
+                last.get();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            } catch (ExecutionException e) {
+                Log.e(TAG, "Cannot finish the last segment", e.getCause());
+                break;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
 
     private void stopRecoredThread() {
         if (tuyaVideoEncoder != null) {
@@ -307,19 +1649,11 @@ public class TuyaMediaMuxer implements TuyaVideoEncoder.Callback, TuyaAudioEncod
 
         isAudioAdd = false;
         isVideoAdd = false;
-        if (isMediaMuxerStart) {
-            try {
-                mediaMuxer.stop();
-            } catch (IllegalStateException e) {
-                e.printStackTrace();
-            }
-
-            try {
-                mediaMuxer.release();
-            } catch (IllegalStateException e) {
-                e.printStackTrace();
-            }
+        if (mediaMuxer != null) {
+            finishLastSegment(mediaMuxer, isMediaMuxerStart, isMediaMuxerStart ? segment : null, segmentListener);
+            mediaMuxer = null;
         }
+        segment = null;
         isMediaMuxerStart = false;
 
     }
@@ -0,0 +1,374 @@
+package com.tuya.record;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Queue of encoded packets between the encoder threads and the write thread, holding a bounded number of bytes.
+ *
+ * When a packet does not fit, the {@link Policy} decides: wait for the writer, or make room by dropping video so that
+ * what is written still decodes. Dropped packets are handed to the {@link Callback}, to give their buffers back, and
+ * counted by {@link DropReason}. Crossing the high watermark, and coming back under the low one, is reported to a
+ * {@link WatermarkListener} so the producers can slow down, for instance by lowering the bitrate.
+ *
+ * @param <T>
+ *            Type of the packets.
+ */
+public final class TuyaMuxerQueue<T> {
+    public static final long DEFAULT_BLOCK_TIMEOUT_MS = 1000;
+
+    public enum Policy {
+        /**
+         * Make the producer wait for room, which pushes back on the encoder. A packet still without room after the
+         * block timeout is dropped, so a stalled writer cannot hang the producer.
+         *
+         * The wait happens on whichever thread delivers the packet. When the encoders run asynchronously they share
+         * one callback thread, so a wait for one track stalls both encoders, and PCM piling up meanwhile may overrun
+         * the audio ring. Prefer a dropping policy there.
+         */
+        BLOCK,
+        /**
+         * Drop queued video frames no other frame refers to, oldest first, then whole GOPs as with {@link #DROP_GOP}.
+         */
+        DROP_NON_REFERENCE,
+        /**
+         * Drop queued video from the oldest frame up to the next key frame, as many GOPs as needed. When no later key
+         * frame is queued, video is dropped until the next one arrives.
+         */
+        DROP_GOP
+    }
+
+    public enum DropReason {
+        NON_REFERENCE,
+        GOP,
+        /**
+         * No video left to drop, so the incoming packet was.
+         */
+        OVERFLOW,
+        BLOCK_TIMEOUT
+    }
+
+    /**
+     * Called on the producer thread with the queue locked, so implementations should return quickly.
+     */
+    public interface Callback<T> {
+        /**
+         * Gives back the resources of a packet that will not be written.
+         */
+        void onDropped(T packet, DropReason reason);
+
+        /**
+         * Video is dropped until the next key frame, which should be asked for.
+         */
+        void onKeyFrameNeeded();
+    }
+
+    public interface WatermarkListener {
+        /**
+         * @param high
+         *            True when the queue went over the high watermark, false when it went back under the low one.
+         * @param bytes
+         *            Bytes queued.
+         */
+        void onQueueWatermark(boolean high, long bytes);
+    }
+
+    private static final class Entry<T> {
+        final T       packet;
+        final boolean video;
+        final boolean keyFrame;
+        final boolean reference;
+        final int     bytes;
+
+        Entry(T packet, boolean video, boolean keyFrame, boolean reference, int bytes) {
+            this.packet = packet;
+            this.video = video;
+            this.keyFrame = keyFrame;
+            this.reference = reference;
+            this.bytes = bytes;
+        }
+    }
+
+    private final ArrayDeque<Entry<T>> entries = new ArrayDeque<>();
+    private final long capacityBytes;
+    private final Policy policy;
+    private final Callback<T> callback;
+    private final long[] dropped = new long[DropReason.values().length];
+    private long blockTimeoutMs = DEFAULT_BLOCK_TIMEOUT_MS;
+    private long highWatermark;
+    private long lowWatermark;
+    private WatermarkListener watermarkListener;
+    private boolean aboveHigh;
+    private boolean skipUntilKeyFrame;
+    private long bytes;
+    private long maxBytes;
+
+    /**
+     * @param capacityBytes
+     *            Bytes of packets to hold at most. A single larger packet is still accepted into an empty queue.
+     * @param callback
+     *            Told about every packet dropped.
+     */
+    public TuyaMuxerQueue(long capacityBytes, Policy policy, Callback<T> callback) {
+        if (capacityBytes <= 0) {
+            throw new IllegalArgumentException("capacity " + capacityBytes);
+        }
+        this.capacityBytes = capacityBytes;
+        this.policy = policy;
+        this.callback = callback;
+        this.highWatermark = capacityBytes * 3 / 4;
+        this.lowWatermark = capacityBytes / 4;
+    }
+
+    /**
+     * @param high
+     *            Bytes over which the listener is told, 3/4 of the capacity by default.
+     * @param low
+     *            Bytes under which it is told again once the high watermark was crossed, 1/4 by default.
+     */
+    public synchronized void setWatermarks(long high, long low, WatermarkListener listener) {
+        if (low > high) {
+            throw new IllegalArgumentException("low " + low + " > high " + high);
+        }
+        this.highWatermark = high;
+        this.lowWatermark = low;
+        this.watermarkListener = listener;
+    }
+
+    /**
+     * @param timeoutMs
+     *            How long {@link Policy#BLOCK} waits for room at most.
+     */
+    public synchronized void setBlockTimeout(long timeoutMs) {
+        this.blockTimeoutMs = timeoutMs;
+    }
+
+    /**
+     * Queues a packet, or drops it or older ones according to the policy.
+     *
+     * @param video
+     *            Whether the packet is video, which can be dropped by frames or GOPs. Audio is only dropped when it
+     *            does not fit.
+     * @param reference
+     *            Whether other frames may refer to this video frame. Always true for key frames.
+     * @param size
+     *            Bytes the packet counts for.
+     * @return Whether the packet was queued.
+     */
+    public synchronized boolean put(T packet, boolean video, boolean keyFrame, boolean reference, int size)
+            throws InterruptedException {
+        Entry<T> entry = new Entry<>(packet, video, keyFrame, reference || keyFrame, size);
+        if (video && skipUntilKeyFrame) {
+            if (!keyFrame) {
+                drop(entry, DropReason.GOP);
+                return false;
+            }
+            skipUntilKeyFrame = false;
+        }
+        if (!fits(size)) {
+            if (policy == Policy.BLOCK) {
+                long deadline = System.currentTimeMillis() + blockTimeoutMs;
+                long left = blockTimeoutMs;
+                while (!fits(size) && left > 0) {
+                    wait(left);
+                    left = deadline - System.currentTimeMillis();
+                }
+                if (!fits(size)) {
+                    drop(entry, DropReason.BLOCK_TIMEOUT);
+                    return false;
+                }
+            } else {
+                if (policy == Policy.DROP_NON_REFERENCE) {
+                    dropNonReference(size);
+                    if (!fits(size) && video && !entry.reference) {
+                        drop(entry, DropReason.NON_REFERENCE);
+                        return false;
+                    }
+                }
+                // Then whole GOPs.
+                if (!dropGops(size, entry)) {
+                    return false;
+                }
+            }
+        }
+        entries.add(entry);
+        bytes += size;
+        maxBytes = Math.max(maxBytes, bytes);
+        if (!aboveHigh && bytes > highWatermark) {
+            aboveHigh = true;
+            notifyWatermark(true);
+        }
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * @return The oldest packet, waiting for one if needed.
+     */
+    public synchronized T take() throws InterruptedException {
+        while (entries.isEmpty()) {
+            wait();
+        }
+        return removeFirst();
+    }
+
+    /**
+     * @return The oldest packet, or null if none came within the timeout.
+     */
+    public synchronized T poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + unit.toMillis(timeout);
+        long left = unit.toMillis(timeout);
+        while (entries.isEmpty() && left > 0) {
+            wait(left);
+            left = deadline - System.currentTimeMillis();
+        }
+        return entries.isEmpty() ? null : removeFirst();
+    }
+
+    /**
+     * @return The oldest packet, or null.
+     */
+    public synchronized T poll() {
+        return entries.isEmpty() ? null : removeFirst();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return Bytes queued.
+     */
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * @return Most bytes queued at once so far.
+     */
+    public synchronized long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * @return Packets dropped so far for the given reason.
+     */
+    public synchronized long getDropped(DropReason reason) {
+        return dropped[reason.ordinal()];
+    }
+
+    /**
+     * Tells whether an H.264 access unit can be dropped without breaking the frames after it, from the nal_ref_idc of
+     * its first slice. Works on Annex B data, as MediaCodec produces it.
+     *
+     * @param data
+     *            Access unit from its position to its limit.
+     * @return True unless the first slice has a nal_ref_idc of 0; also true if no slice is found.
+     */
+    public static boolean isAvcReference(ByteBuffer data) {
+        int end = data.limit();
+        for (int i = data.position(); i + 3 < end; i++) {
+            if (data.get(i) == 0 && data.get(i + 1) == 0 && data.get(i + 2) == 1) {
+                int header = data.get(i + 3) & 0xFF;
+                int type = header & 0x1F;
+                if (type == 1 || type == 5) {
+                    return (header & 0x60) != 0;
+                }
+                i += 3;
+            }
+        }
+        return true;
+    }
+
+    private boolean fits(int size) {
+        return entries.isEmpty() || bytes + size <= capacityBytes;
+    }
+
+    private T removeFirst() {
+        Entry<T> entry = entries.poll();
+        bytes -= entry.bytes;
+        if (aboveHigh && bytes < lowWatermark) {
+            aboveHigh = false;
+            notifyWatermark(false);
+        }
+        notifyAll();
+        return entry.packet;
+    }
+
+    private void dropNonReference(int size) {
+        Iterator<Entry<T>> it = entries.iterator();
+        while (!fits(size) && it.hasNext()) {
+            Entry<T> queued = it.next();
+            if (queued.video && !queued.reference) {
+                it.remove();
+                bytes -= queued.bytes;
+                drop(queued, DropReason.NON_REFERENCE);
+            }
+        }
+    }
+
+    /**
+     * Drops whole GOPs of queued video, oldest first, until the incoming packet fits.
+     *
+     * @return Whether the incoming packet is to be queued. It is dropped if it still does not fit, or if it is video
+     *         continuing a GOP dropped here.
+     */
+    private boolean dropGops(int size, Entry<T> incoming) {
+        while (!fits(size)) {
+            if (!dropOldestGop()) {
+                drop(incoming, DropReason.OVERFLOW);
+                return false;
+            }
+        }
+        if (incoming.video && skipUntilKeyFrame) {
+            if (!incoming.keyFrame) {
+                drop(incoming, DropReason.GOP);
+                return false;
+            }
+            skipUntilKeyFrame = false;
+        }
+        return true;
+    }
+
+    /**
+     * Drops queued video from the oldest frame up to the next queued key frame, or all of it if there is none, in which
+     * case video is skipped until the next key frame comes.
+     *
+     * @return Whether there was video to drop.
+     */
+    private boolean dropOldestGop() {
+        boolean droppedVideo = false;
+        Iterator<Entry<T>> it = entries.iterator();
+        while (it.hasNext()) {
+            Entry<T> queued = it.next();
+            if (!queued.video) {
+                continue;
+            }
+            if (droppedVideo && queued.keyFrame) {
+                return true;
+            }
+            it.remove();
+            bytes -= queued.bytes;
+            droppedVideo = true;
+            drop(queued, DropReason.GOP);
+        }
+        if (droppedVideo && !skipUntilKeyFrame) {
+            skipUntilKeyFrame = true;
+            callback.onKeyFrameNeeded();
+        }
+        return droppedVideo;
+    }
+
+    private void drop(Entry<T> entry, DropReason reason) {
+        dropped[reason.ordinal()]++;
+        callback.onDropped(entry.packet, reason);
+    }
+
+    private void notifyWatermark(boolean high) {
+        if (watermarkListener != null) {
+            watermarkListener.onQueueWatermark(high, bytes);
+        }
+    }
+}
@@ -0,0 +1,318 @@
+package com.tuya.record;
+
+import java.nio.ByteBuffer;
+import java.util.Objects;
+
+/**
+ * A ring of encoded packets for pre-event recording: it keeps the last few seconds of encoder output so that a file
+ * started by a trigger can begin with that history.
+ *
+ * Payloads are stored back to back in one preallocated direct arena; a packet never straddles the end of the arena,
+ * the unused tail is skipped instead. The per-packet metadata (track, presentation time, flags) lives in parallel
+ * arrays, so pushing allocates nothing.
+ *
+ * Eviction always removes a whole GOP, so the oldest packet kept is a sync frame of the GOP track and the ring can be
+ * written to a new file as is. Packets arriving while the ring is empty are dropped until the next sync frame. When
+ * no GOP track is given (audio only), every packet is its own GOP.
+ *
+ * All methods are synchronized: the audio and video output threads both push, and the muxer drains.
+ */
+public final class TuyaPacketRingBuffer {
+    /**
+     * Flag of a packet that starts a GOP. Same value as MediaCodec.BUFFER_FLAG_SYNC_FRAME.
+     */
+    public static final int FLAG_SYNC = 1;
+
+    /**
+     * GOP track that makes every packet a GOP of its own.
+     */
+    public static final int NO_GOP_TRACK = -1;
+
+    /**
+     * Receives packets from {@link #drainTo(PacketCallback)}.
+     */
+    public interface PacketCallback {
+        /**
+         * @param data
+         *            Payload, from position to limit. Only valid during the call.
+         */
+        void onPacket(int track, ByteBuffer data, long presentationTimeUs, int flags);
+    }
+
+    /**
+     * Payloads are stored here.
+     */
+    private final ByteBuffer arena;
+
+    /**
+     * View of the arena handed to {@link PacketCallback}.
+     */
+    private final ByteBuffer readView;
+
+    private final int gopTrack;
+    private final long retainUs;
+
+    private final int[] tracks;
+    private final int[] flags;
+    private final long[] presentationTimesUs;
+    private final int[] offsets;
+    private final int[] sizes;
+
+    /**
+     * Arena bytes taken by each packet, including the tail it skipped to avoid wrapping.
+     */
+    private final int[] regions;
+
+    /**
+     * Slot of the oldest packet.
+     */
+    private int head;
+
+    /**
+     * Number of packets stored.
+     */
+    private int count;
+
+    /**
+     * Arena offset where the next packet goes if it fits.
+     */
+    private int tail;
+
+    /**
+     * Sum of the regions of all stored packets.
+     */
+    private int bytesUsed;
+
+    private long droppedPackets;
+
+    /**
+     * Creates a packet ring with preallocated storage.
+     *
+     * @param capacity
+     *            Size of the payload arena in bytes.
+     * @param maxPackets
+     *            How many packets can be stored at most.
+     * @param gopTrack
+     *            Track whose sync frames start a GOP, or {@link #NO_GOP_TRACK}.
+     * @param retainUs
+     *            How much history to keep. Older GOPs are evicted once the newer ones cover this span on their own.
+     */
+    public TuyaPacketRingBuffer(int capacity, int maxPackets, int gopTrack, long retainUs) {
+        if (capacity <= 0 || maxPackets <= 0) {
+            throw new IllegalArgumentException("capacity and maxPackets must be positive: " + capacity + ", "
+                    + maxPackets);
+        }
+        arena = ByteBuffer.allocateDirect(capacity);
+        readView = arena.duplicate();
+        this.gopTrack = gopTrack;
+        this.retainUs = retainUs;
+        tracks = new int[maxPackets];
+        flags = new int[maxPackets];
+        presentationTimesUs = new long[maxPackets];
+        offsets = new int[maxPackets];
+        sizes = new int[maxPackets];
+        regions = new int[maxPackets];
+    }
+
+    /**
+     * @return How many packets are stored.
+     */
+    public synchronized int packetCount() {
+        return count;
+    }
+
+    /**
+     * @return How many arena bytes are in use, including skipped tails.
+     */
+    public synchronized int sizeUsed() {
+        return bytesUsed;
+    }
+
+    /**
+     * @return Size of the payload arena in bytes.
+     */
+    public synchronized int sizeTotal() {
+        return arena.capacity();
+    }
+
+    /**
+     * @return Span between the oldest and the newest packet stored.
+     */
+    public synchronized long durationUs() {
+        if (count == 0) {
+            return 0;
+        }
+        return presentationTimesUs[slot(count - 1)] - presentationTimesUs[head];
+    }
+
+    /**
+     * @return How much history the ring keeps.
+     */
+    public long retainUs() {
+        return retainUs;
+    }
+
+    /**
+     * @return Packets rejected because they did not start a GOP or could not fit even in an empty arena.
+     */
+    public synchronized long droppedPackets() {
+        return droppedPackets;
+    }
+
+    /**
+     * Copies a packet into the ring, evicting whole GOPs from the front to make room.
+     *
+     * @param track
+     *            Track the packet belongs to.
+     * @param data
+     *            Payload, from position to limit. Its position is not changed.
+     * @param presentationTimeUs
+     *            Presentation time of the packet.
+     * @param flags
+     *            Packet flags, {@link #FLAG_SYNC} marks a GOP start.
+     * @return Whether the packet was stored.
+     */
+    public synchronized boolean push(int track, ByteBuffer data, long presentationTimeUs, int flags) {
+        Objects.requireNonNull(data);
+
+        boolean gopStart = isGopStart(track, flags);
+        if (count == 0 && !gopStart) {
+            // Nothing to decode it against.
+            droppedPackets++;
+            return false;
+        }
+
+        int size = data.remaining();
+        int offset;
+        while ((offset = place(size)) < 0 || count == tracks.length) {
+            if (count == 0) {
+                droppedPackets++;
+                return false;
+            }
+            evictGop();
+            if (count == 0 && !gopStart) {
+                // Its GOP is gone, and the rest of it goes with it.
+                droppedPackets++;
+                return false;
+            }
+        }
+
+        int slot = slot(count);
+        int region = offset == tail ? size : arena.capacity() - tail + size;
+        ByteBuffer src = data.duplicate();
+        arena.clear();
+        arena.position(offset);
+        arena.put(src);
+
+        tracks[slot] = track;
+        this.flags[slot] = flags;
+        presentationTimesUs[slot] = presentationTimeUs;
+        offsets[slot] = offset;
+        sizes[slot] = size;
+        regions[slot] = region;
+        count++;
+        bytesUsed += region;
+        tail = (offset + size) % arena.capacity();
+
+        trimToRetention(presentationTimeUs);
+        return true;
+    }
+
+    /**
+     * Hands every packet to the callback, oldest first, then empties the ring.
+     *
+     * @return Number of packets delivered.
+     */
+    public synchronized int drainTo(PacketCallback callback) {
+        Objects.requireNonNull(callback);
+
+        int delivered = count;
+        for (int i = 0; i < delivered; i++) {
+            int slot = slot(i);
+            readView.clear();
+            readView.position(offsets[slot]);
+            readView.limit(offsets[slot] + sizes[slot]);
+            callback.onPacket(tracks[slot], readView, presentationTimesUs[slot], flags[slot]);
+        }
+        clear();
+        return delivered;
+    }
+
+    /**
+     * Removes all packets.
+     */
+    public synchronized void clear() {
+        head = 0;
+        count = 0;
+        tail = 0;
+        bytesUsed = 0;
+    }
+
+    private boolean isGopStart(int track, int flags) {
+        return gopTrack == NO_GOP_TRACK || (track == gopTrack && (flags & FLAG_SYNC) != 0);
+    }
+
+    private int slot(int index) {
+        return (head + index) % tracks.length;
+    }
+
+    /**
+     * @return Arena offset for a payload of the given size, or -1 if it does not fit right now.
+     */
+    private int place(int size) {
+        int capacity = arena.capacity();
+        if (size > capacity) {
+            return -1;
+        }
+        if (count == 0) {
+            tail = 0;
+        }
+        int free = capacity - bytesUsed;
+        int toEnd = capacity - tail;
+        if (size <= Math.min(free, toEnd)) {
+            return tail;
+        }
+        if (free > toEnd && size <= free - toEnd) {
+            // Skip the tail of the arena and start over at 0.
+            return 0;
+        }
+        return -1;
+    }
+
+    /**
+     * Removes the oldest GOP: the head packet and everything up to the next GOP start.
+     */
+    private void evictGop() {
+        do {
+            bytesUsed -= regions[head];
+            head = (head + 1) % tracks.length;
+            count--;
+        } while (count > 0 && !isGopStart(tracks[head], flags[head]));
+    }
+
+    /**
+     * Evicts the oldest GOP while the GOPs after it still cover the retention span.
+     */
+    private void trimToRetention(long newestUs) {
+        while (true) {
+            int next = nextGopStart();
+            if (next < 0 || newestUs - presentationTimesUs[slot(next)] < retainUs) {
+                return;
+            }
+            evictGop();
+        }
+    }
+
+    /**
+     * @return Index, relative to head, of the second GOP start, or -1 if there is only one GOP.
+     */
+    private int nextGopStart() {
+        for (int i = 1; i < count; i++) {
+            int slot = slot(i);
+            if (isGopStart(tracks[slot], flags[slot])) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,45 @@
+package com.tuya.record;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Writes a regular MP4 file with the platform's {@link MediaMuxer}. Its index is written by {@link #stop()}, so a
+ * recording cut short before that cannot be played.
+ */
+public final class TuyaPlatformMuxer implements TuyaContainerWriter {
+    private final MediaMuxer muxer;
+
+    public TuyaPlatformMuxer(String path) throws IOException {
+        muxer = new MediaMuxer(path, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+    }
+
+    @Override
+    public int addTrack(MediaFormat format) {
+        return muxer.addTrack(format);
+    }
+
+    @Override
+    public void start() {
+        muxer.start();
+    }
+
+    @Override
+    public void writeSampleData(int trackIndex, ByteBuffer byteBuf, MediaCodec.BufferInfo bufferInfo) {
+        muxer.writeSampleData(trackIndex, byteBuf, bufferInfo);
+    }
+
+    @Override
+    public void stop() {
+        muxer.stop();
+    }
+
+    @Override
+    public void release() {
+        muxer.release();
+    }
+}
@@ -0,0 +1,213 @@
+package com.tuya.record;
+
+/**
+ * Adapts the video bitrate to how well the rest of the pipeline keeps up, so a slow disk lowers the quality for a while
+ * instead of dropping frames.
+ *
+ * It is fed cumulative counters at regular intervals: frames the encoder dropped, packets waiting in the muxer queue,
+ * bytes handed to the muxer and bytes it wrote out. An interval is congested if frames were dropped, the queue is at
+ * or above its high watermark, or the writer kept less than {@link #WRITER_KEEP_UP_PERCENT} of what was produced. It
+ * is clear if nothing was dropped, the queue is at or below its low watermark and the writer kept up.
+ *
+ * The bitrate drops by {@link #DECREASE_PERCENT} after {@link #DECREASE_INTERVALS} congested intervals in a row, and
+ * rises by {@link #INCREASE_PERCENT} only after {@link #INCREASE_INTERVALS} clear ones, always within the configured
+ * bounds. Anything in between holds the bitrate, which together with the two watermarks keeps it from oscillating.
+ *
+ * All methods are thread-safe.
+ */
+public final class TuyaRateController {
+    public static final long DEFAULT_INTERVAL_MS = 1000;
+    public static final int DECREASE_INTERVALS = 1;
+    public static final int INCREASE_INTERVALS = 5;
+    public static final int DECREASE_PERCENT = 25;
+    public static final int INCREASE_PERCENT = 10;
+    public static final int WRITER_KEEP_UP_PERCENT = 90;
+    public static final int DEFAULT_LOW_WATERMARK = 2;
+    public static final int DEFAULT_HIGH_WATERMARK = 30;
+
+    public enum Decision {
+        HOLD,
+        DECREASE,
+        INCREASE
+    }
+
+    public interface Listener {
+        /**
+         * Called once per interval, on the thread that calls {@link #update}, with the figures the decision was
+         * based on. Keep it short: encoded frames wait while it runs.
+         *
+         * @param droppedFrames
+         *            Frames dropped during the interval.
+         * @param queueDepth
+         *            Packets waiting to be written at the end of the interval.
+         * @param producedBitsPerSecond
+         *            Rate at which packets were handed to the muxer.
+         * @param writtenBitsPerSecond
+         *            Rate at which the muxer wrote them out.
+         */
+        void onRateDecision(Decision decision, int previousBitrate, int bitrate, long droppedFrames, int queueDepth,
+                            long producedBitsPerSecond, long writtenBitsPerSecond);
+    }
+
+    private final int minBitrate;
+    private final int maxBitrate;
+    private final long intervalMs;
+    private int lowWatermark = DEFAULT_LOW_WATERMARK;
+    private int highWatermark = DEFAULT_HIGH_WATERMARK;
+    private Listener listener;
+
+    private int bitrate;
+    private long lastUpdateMs = -1;
+    private long lastDroppedFrames;
+    private long lastBytesProduced;
+    private long lastBytesWritten;
+    private int congestedIntervals;
+    private int clearIntervals;
+
+    /**
+     * @param minBitrate
+     *            Lowest bitrate the controller may set, in bits per second.
+     * @param maxBitrate
+     *            Highest bitrate the controller may set, in bits per second.
+     */
+    public TuyaRateController(int minBitrate, int maxBitrate) {
+        this(minBitrate, maxBitrate, DEFAULT_INTERVAL_MS);
+    }
+
+    /**
+     * @param intervalMs
+     *            How often a decision is made.
+     */
+    public TuyaRateController(int minBitrate, int maxBitrate, long intervalMs) {
+        if (minBitrate <= 0 || maxBitrate < minBitrate || intervalMs <= 0) {
+            throw new IllegalArgumentException("invalid bounds: " + minBitrate + ".." + maxBitrate + " every "
+                    + intervalMs + " ms");
+        }
+        this.minBitrate = minBitrate;
+        this.maxBitrate = maxBitrate;
+        this.intervalMs = intervalMs;
+    }
+
+    /**
+     * Sets the queue depths, in packets, at or below which the muxer is considered idle and at or above which it is
+     * considered behind.
+     */
+    public synchronized void setQueueWatermarks(int low, int high) {
+        if (low < 0 || high <= low) {
+            throw new IllegalArgumentException("invalid watermarks: " + low + ", " + high);
+        }
+        lowWatermark = low;
+        highWatermark = high;
+    }
+
+    public synchronized void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Starts over for a new recording.
+     *
+     * @param initialBitrate
+     *            Bitrate the encoder was configured with. Clamped to the bounds.
+     * @return The bitrate to start with.
+     */
+    public synchronized int reset(int initialBitrate) {
+        bitrate = clamp(initialBitrate);
+        lastUpdateMs = -1;
+        congestedIntervals = 0;
+        clearIntervals = 0;
+        return bitrate;
+    }
+
+    /**
+     * @return The bitrate last decided on.
+     */
+    public synchronized int getBitrate() {
+        return bitrate;
+    }
+
+    /**
+     * Feeds the current counters. Makes a decision once an interval has passed since the previous one.
+     *
+     * @param nowMs
+     *            Monotonic time in milliseconds.
+     * @param droppedFrames
+     *            Frames dropped so far.
+     * @param queueDepth
+     *            Packets currently waiting to be written.
+     * @param bytesProduced
+     *            Encoded bytes handed to the muxer so far.
+     * @param bytesWritten
+     *            Encoded bytes written out so far.
+     * @return The bitrate the encoder should use from now on.
+     */
+    public int update(long nowMs, long droppedFrames, int queueDepth, long bytesProduced, long bytesWritten) {
+        Listener notify;
+        Decision decision;
+        int previousBitrate;
+        int newBitrate;
+        long drops;
+        long producedBps;
+        long writtenBps;
+        synchronized (this) {
+            if (lastUpdateMs < 0) {
+                snapshot(nowMs, droppedFrames, bytesProduced, bytesWritten);
+                return bitrate;
+            }
+            long elapsedMs = nowMs - lastUpdateMs;
+            if (elapsedMs < intervalMs) {
+                return bitrate;
+            }
+
+            drops = droppedFrames - lastDroppedFrames;
+            producedBps = (bytesProduced - lastBytesProduced) * 8000 / elapsedMs;
+            writtenBps = (bytesWritten - lastBytesWritten) * 8000 / elapsedMs;
+            snapshot(nowMs, droppedFrames, bytesProduced, bytesWritten);
+
+            boolean writerBehind = writtenBps * 100 < producedBps * WRITER_KEEP_UP_PERCENT;
+            if (drops > 0 || queueDepth >= highWatermark || writerBehind) {
+                congestedIntervals++;
+                clearIntervals = 0;
+            } else if (queueDepth <= lowWatermark) {
+                clearIntervals++;
+                congestedIntervals = 0;
+            } else {
+                congestedIntervals = 0;
+                clearIntervals = 0;
+            }
+
+            previousBitrate = bitrate;
+            decision = Decision.HOLD;
+            if (congestedIntervals >= DECREASE_INTERVALS) {
+                congestedIntervals = 0;
+                bitrate = clamp((int) ((long) bitrate * (100 - DECREASE_PERCENT) / 100));
+                if (bitrate < previousBitrate) {
+                    decision = Decision.DECREASE;
+                }
+            } else if (clearIntervals >= INCREASE_INTERVALS) {
+                clearIntervals = 0;
+                bitrate = clamp((int) Math.min(Integer.MAX_VALUE, (long) bitrate * (100 + INCREASE_PERCENT) / 100));
+                if (bitrate > previousBitrate) {
+                    decision = Decision.INCREASE;
+                }
+            }
+            newBitrate = bitrate;
+            notify = listener;
+        }
+        if (notify != null) {
+            notify.onRateDecision(decision, previousBitrate, newBitrate, drops, queueDepth, producedBps, writtenBps);
+        }
+        return newBitrate;
+    }
+
+    private void snapshot(long nowMs, long droppedFrames, long bytesProduced, long bytesWritten) {
+        lastUpdateMs = nowMs;
+        lastDroppedFrames = droppedFrames;
+        lastBytesProduced = bytesProduced;
+        lastBytesWritten = bytesWritten;
+    }
+
+    private int clamp(int value) {
+        return Math.max(minBitrate, Math.min(maxBitrate, value));
+    }
+}
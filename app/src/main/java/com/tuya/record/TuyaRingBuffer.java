@@ -1,12 +1,21 @@
 package com.tuya.record;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ScatteringByteChannel;
 import java.util.Objects;
 
 /**
  * A ring buffer backed by a byte array. Very memory efficient.
  */
-public final class TuyaRingBuffer {
+public final class TuyaRingBuffer implements TuyaByteRing {
+    /**
+     * Byte order used by the short and float views. Matches the PCM layout delivered by AudioRecord.
+     */
+    private static final boolean NATIVE_BIG_ENDIAN = ByteOrder.nativeOrder() == ByteOrder.BIG_ENDIAN;
+
     /**
      * Elements are stored here as bytes.
      */
@@ -22,6 +31,16 @@ public final class TuyaRingBuffer {
      */
     private int size;
 
+    /**
+     * Number of unread bytes lost to overrunPush.
+     */
+    private long overrunBytes;
+
+    /**
+     * Two views of buffer pointed at the used or free region for channel I/O, so a transfer allocates nothing.
+     */
+    private final ByteBuffer[] segments;
+
     /**
      * Creates a ring buffer that can store up to the given number of bytes.
      *
@@ -30,6 +49,7 @@ public final class TuyaRingBuffer {
      */
     public TuyaRingBuffer(int capacity) {
         buffer = new byte[capacity];
+        segments = new ByteBuffer[]{ByteBuffer.wrap(buffer), ByteBuffer.wrap(buffer)};
     }
 
     /**
@@ -46,6 +66,13 @@ public final class TuyaRingBuffer {
         return buffer.length;
     }
 
+    /**
+     * @return Total number of unread bytes discarded by overrunPush since the buffer was created.
+     */
+    public final long overrunBytes() {
+        return overrunBytes;
+    }
+
     /**
      * @return How many bytes are free in the buffer.
      */
@@ -164,6 +191,7 @@ public final class TuyaRingBuffer {
     public final void overrunPush(byte[] bytes, int index, int length) {
         Objects.requireNonNull(bytes);
 
+        overrunBytes += Math.max(0, size + length - buffer.length);
         int bytesRemaining = length;
         int bytesOffset = index;
         if (!overflows(length)) {
@@ -292,9 +320,100 @@ public final class TuyaRingBuffer {
      * @return Number of elements placed into the given ByteBuffer object.
      */
     public final int peek(ByteBuffer byteBuffer, int length) {
-        byte[] array = byteBuffer.array();
-        int index = byteBuffer.arrayOffset() + byteBuffer.position();
-        return peek(array, index, length);
+        if (byteBuffer.hasArray()) {
+            byte[] array = byteBuffer.array();
+            int index = byteBuffer.arrayOffset() + byteBuffer.position();
+            return peek(array, index, length);
+        }
+
+        // Direct buffer, copy in bulk and leave its position untouched like the array case.
+        int position = byteBuffer.position();
+        int read = copyTo(byteBuffer, length);
+        byteBuffer.position(position);
+        return read;
+    }
+
+    /**
+     * Moves elements from the buffer into the given ByteBuffer, up to its remaining space. Wrap-around is handled with
+     * at most two bulk copies.
+     *
+     * @param dst
+     *            Heap or direct buffer, for instance a MediaCodec input buffer. Its position is advanced by the number
+     *            of elements moved.
+     *
+     * @return Number of elements moved.
+     */
+    public final int drainTo(ByteBuffer dst) {
+        Objects.requireNonNull(dst);
+
+        int read = copyTo(dst, dst.remaining());
+        drop(read);
+        return read;
+    }
+
+    /**
+     * Adds the remaining elements of the given ByteBuffer to the end of the buffer.
+     *
+     * @param src
+     *            Heap or direct buffer. Its position is advanced by the number of elements added.
+     *
+     * @return Number of bytes added. It may not insert every element when the buffer has not enough free space.
+     */
+    public final int fillFrom(ByteBuffer src) {
+        Objects.requireNonNull(src);
+
+        int copying = Math.min(src.remaining(), sizeFree());
+        int offset = nextOffset();
+        int first = Math.min(copying, buffer.length - offset);
+        src.get(buffer, offset, first);
+        if (first < copying) {
+            src.get(buffer, 0, copying - first);
+        }
+        advance(copying);
+        return copying;
+    }
+
+    /**
+     * Writes the stored elements to the channel with a single gathering write, then removes as many as the channel
+     * accepted.
+     *
+     * @param channel
+     *            File, socket or pipe. A non-blocking channel may take only part of the data, or none.
+     *
+     * @return Number of elements written and removed.
+     */
+    public final long writeTo(GatheringByteChannel channel) throws IOException {
+        Objects.requireNonNull(channel);
+
+        int count = pointSegments(start, size);
+        if (count == 0) {
+            return 0;
+        }
+        long written = channel.write(segments, 0, count);
+        drop((int) written);
+        return written;
+    }
+
+    /**
+     * Fills the free space of the buffer from the channel with a single scattering read.
+     *
+     * @param channel
+     *            File, socket or pipe.
+     *
+     * @return Number of elements added, or -1 if the channel reached end-of-stream.
+     */
+    public final long readFrom(ScatteringByteChannel channel) throws IOException {
+        Objects.requireNonNull(channel);
+
+        int count = pointSegments(nextOffset(), sizeFree());
+        if (count == 0) {
+            return 0;
+        }
+        long read = channel.read(segments, 0, count);
+        if (read > 0) {
+            advance((int) read);
+        }
+        return read;
     }
 
     /**
@@ -320,6 +439,44 @@ public final class TuyaRingBuffer {
         }
     }
 
+    /**
+     * Exposes the free space at the end of the buffer for writing in place, for instance by AudioRecord.read. Nothing
+     * becomes visible until {@link #commit(int)} is called.
+     *
+     * @param length
+     *            How many bytes the caller would like to write.
+     *
+     * @return Up to two writable slices, in order, covering at most length free bytes. Empty if the buffer is full.
+     */
+    public final ByteBuffer[] reserve(int length) {
+        int reserving = Math.min(length, sizeFree());
+        if (reserving <= 0) {
+            return new ByteBuffer[0];
+        }
+
+        int offset = nextOffset();
+        int firstHalfSize = Math.min(reserving, buffer.length - offset);
+        ByteBuffer first = ByteBuffer.wrap(buffer, offset, firstHalfSize).slice();
+        if (firstHalfSize == reserving) {
+            return new ByteBuffer[]{first};
+        }
+        ByteBuffer second = ByteBuffer.wrap(buffer, 0, reserving - firstHalfSize).slice();
+        return new ByteBuffer[]{first, second};
+    }
+
+    /**
+     * Publishes bytes written into the slices returned by {@link #reserve(int)}.
+     *
+     * @param length
+     *            How many bytes were written, counted from the start of the first slice.
+     */
+    public final void commit(int length) {
+        if (length < 0 || length > sizeFree()) {
+            throw new IllegalArgumentException("Cannot commit " + length + " bytes, " + sizeFree() + " free");
+        }
+        advance(length);
+    }
+
     /**
      * Removes elements from the buffer and returns them.
      *
@@ -422,6 +579,13 @@ public final class TuyaRingBuffer {
         return new ShortView();
     }
 
+    /**
+     * Creates a view of this byte buffer that allows you to access its elements as floats.
+     */
+    public final FloatView floatView() {
+        return new FloatView();
+    }
+
     /**
      * Checks if its possible to access the given number of bytes without passing the end of the buffer.
      *
@@ -453,6 +617,26 @@ public final class TuyaRingBuffer {
         start = (start + overflow) % buffer.length;
     }
 
+    /**
+     * Copies elements from the start of the buffer into the given ByteBuffer without removing them.
+     *
+     * @param dst
+     *            Destination, its position is advanced.
+     * @param length
+     *            How many elements to copy at most.
+     *
+     * @return Number of elements copied.
+     */
+    private final int copyTo(ByteBuffer dst, int length) {
+        int toRead = Math.min(Math.min(length, size), dst.remaining());
+        int first = Math.min(toRead, buffer.length - start);
+        dst.put(buffer, start, first);
+        if (first < toRead) {
+            dst.put(buffer, 0, toRead - first);
+        }
+        return toRead;
+    }
+
     /**
      * @return The position from where to start placing new elements into the buffer.
      */
@@ -471,7 +655,7 @@ public final class TuyaRingBuffer {
         if (start >= offset) {
             if (size > 0) {
                 // The beginning of the ring buffer is in front of us.
-                return offset - start;
+                return start - offset;
             } else {
                 return buffer.length - offset;
             }
@@ -482,6 +666,63 @@ public final class TuyaRingBuffer {
         }
     }
 
+    /**
+     * Points {@link #segments} at the given region of the array, split where it wraps around.
+     *
+     * @param offset
+     *            Position in the buffer where the region starts.
+     * @param length
+     *            Length of the region.
+     *
+     * @return How many segments cover the region.
+     */
+    private final int pointSegments(int offset, int length) {
+        if (length <= 0) {
+            return 0;
+        }
+        int first = Math.min(length, buffer.length - offset);
+        segments[0].limit(offset + first).position(offset);
+        if (first == length) {
+            return 1;
+        }
+        segments[1].limit(length - first).position(0);
+        return 2;
+    }
+
+    /**
+     * Encodes a value of the given width in native byte order at the given position, wrapping around when needed.
+     */
+    private final void putBits(int offset, int bits, int width) {
+        for (int i = 0; i < width; i++) {
+            int shift = NATIVE_BIG_ENDIAN ? (width - 1 - i) * 8 : i * 8;
+            buffer[offset] = (byte) (bits >>> shift);
+            offset = wrap(offset + 1);
+        }
+    }
+
+    /**
+     * Decodes a value of the given width in native byte order from the given position, wrapping around when needed.
+     */
+    private final int getBits(int offset, int width) {
+        int bits = 0;
+        for (int i = 0; i < width; i++) {
+            int shift = NATIVE_BIG_ENDIAN ? (width - 1 - i) * 8 : i * 8;
+            bits |= (buffer[offset] & 0xFF) << shift;
+            offset = wrap(offset + 1);
+        }
+        return bits;
+    }
+
+    /**
+     * @return The given position folded back into the array. It must be less than twice the array length.
+     */
+    private final int wrap(int offset) {
+        return offset >= buffer.length ? offset - buffer.length : offset;
+    }
+
+    /**
+     * Accesses the buffer as native-order 16-bit samples, the layout of ENCODING_PCM_16BIT audio.
+     */
     public class ShortView {
         /**
          * Adds elements to the end of the buffer.
@@ -526,8 +767,6 @@ public final class TuyaRingBuffer {
          * @return How many elements were added.
          */
         public final int push(short[] shorts, int index, int length) {
-            // TODO: This is experimental. Memory usage needs to be improved later.
-
             Objects.requireNonNull(shorts);
 
             int available = sizeFree();
@@ -536,10 +775,9 @@ public final class TuyaRingBuffer {
                 length = available;
             }
 
-            java.nio.ByteBuffer bb = java.nio.ByteBuffer.allocate(length * 2);
-            bb.asShortBuffer().put(shorts, index, length);
+            write(shorts, index, length);
 
-            return TuyaRingBuffer.this.push(bb.array(), bb.arrayOffset(), bb.limit()) / 2;
+            return length;
         }
 
         /**
@@ -582,19 +820,27 @@ public final class TuyaRingBuffer {
          *            How many elements to extract.
          */
         public final void overrunPush(short[] shorts, int index, int length) {
-            // TODO: This is experimental. Memory usage needs to be improved later.
-
             Objects.requireNonNull(shorts);
 
-            if (sizeTotal() < 1) {
+            int total = sizeTotal();
+            if (total < 1) {
                 // Just can't do anything.
                 return;
             }
 
-            java.nio.ByteBuffer bb = java.nio.ByteBuffer.allocate(length * 2);
-            bb.asShortBuffer().put(shorts, index, length);
+            if (length > total) {
+                // Only the newest elements can survive.
+                index += length - total;
+                length = total;
+            }
 
-            TuyaRingBuffer.this.overrunPush(bb.array(), bb.arrayOffset(), bb.limit());
+            int free = sizeFree();
+            if (length > free) {
+                // Evict whole elements so the oldest survivor stays aligned.
+                drop(length - free);
+            }
+
+            write(shorts, index, length);
         }
 
         /**
@@ -663,8 +909,6 @@ public final class TuyaRingBuffer {
          * @return How many elements were retrieved.
          */
         public final int peek(short[] shorts, int index, int length) {
-            // TODO: This is experimental. Memory usage needs to be improved later.
-
             Objects.requireNonNull(shorts);
 
             int available = sizeUsed();
@@ -673,13 +917,13 @@ public final class TuyaRingBuffer {
                 length = available;
             }
 
-            java.nio.ByteBuffer bb = java.nio.ByteBuffer.allocate(length * 2);
-
-            int read = TuyaRingBuffer.this.peek(bb.array(), bb.arrayOffset() + bb.position(), bb.limit());
-
-            bb.asShortBuffer().get(shorts, index, length);
+            int offset = start;
+            for (int i = 0; i < length; i++) {
+                shorts[index + i] = (short) getBits(offset, 2);
+                offset = wrap(offset + 2);
+            }
 
-            return read / 2;
+            return length;
         }
 
         /**
@@ -741,26 +985,340 @@ public final class TuyaRingBuffer {
          * @param length
          *            How many elements to remove.
          *
-         * @return
+         * @return Number of removed elements.
          */
         public final int pop(short[] shorts, int index, int length) {
-            // TODO: This is experimental. Memory usage needs to be improved later.
+            int read = peek(shorts, index, length);
 
-            Objects.requireNonNull(shorts);
+            TuyaRingBuffer.this.drop(read * 2);
+
+            return read;
+        }
 
+        /**
+         * Removes elements from the buffer.
+         *
+         * @param elements
+         *            Number of elements to remove.
+         */
+        public final void drop(int elements) {
             int available = sizeUsed();
 
+            if (elements > available) {
+                elements = available;
+            }
+
+            TuyaRingBuffer.this.drop(elements * 2);
+        }
+
+        /**
+         * @return How many complete shorts are stored in the buffer.
+         */
+        public final int sizeUsed() {
+            return TuyaRingBuffer.this.sizeUsed() / 2;
+        }
+
+        /**
+         * @return How many complete shorts can be stored in the buffer in total.
+         */
+        public final int sizeTotal() {
+            return TuyaRingBuffer.this.sizeTotal() / 2;
+        }
+
+        /**
+         * @return How many complete shorts are free in the buffer.
+         */
+        public final int sizeFree() {
+            return TuyaRingBuffer.this.sizeFree() / 2;
+        }
+
+        /**
+         * Encodes elements at the end of the buffer and advances it. The caller makes sure there is room.
+         */
+        private void write(short[] shorts, int index, int length) {
+            int offset = nextOffset();
+            for (int i = 0; i < length; i++) {
+                putBits(offset, shorts[index + i], 2);
+                offset = wrap(offset + 2);
+            }
+
+            advance(length * 2);
+        }
+    }
+
+    /**
+     * Accesses the buffer as native-order 32-bit floats, the layout of ENCODING_PCM_FLOAT audio.
+     */
+    public class FloatView {
+        /**
+         * Adds elements to the end of the buffer.
+         *
+         * @param floats
+         *            Array that contains elements to be added. Will attempt to add them all.
+         *
+         * @return How many elements were added.
+         */
+        public final int push(float... floats) {
+            Objects.requireNonNull(floats);
+
+            return push(floats, 0, floats.length);
+        }
+
+        /**
+         * Adds elements to the end of the buffer.
+         *
+         * @param floats
+         *            Array that contains elements to be added.
+         * @param index
+         *            Where to start copying elements from the array.
+         *
+         * @return How many elements were added.
+         */
+        public final int push(float[] floats, int index) {
+            Objects.requireNonNull(floats);
+
+            return push(floats, index, floats.length - index);
+        }
+
+        /**
+         * Adds elements to the end of the buffer.
+         *
+         * @param floats
+         *            Array that contains elements to be added.
+         * @param index
+         *            Where to start copying elements from the array.
+         * @param length
+         *            How many elements to copy.
+         *
+         * @return How many elements were added.
+         */
+        public final int push(float[] floats, int index, int length) {
+            Objects.requireNonNull(floats);
+
+            int available = sizeFree();
+
             if (length > available) {
                 length = available;
             }
 
-            java.nio.ByteBuffer bb = java.nio.ByteBuffer.allocate(length * 2);
+            write(floats, index, length);
+
+            return length;
+        }
+
+        /**
+         * This version of the push method will overrun. This means that if the buffer is full then the oldest elements
+         * will be overwritten by the newest ones.
+         *
+         * @param floats
+         *            Adds entire array to buffer.
+         */
+        public final void overrunPush(float... floats) {
+            Objects.requireNonNull(floats);
+
+            overrunPush(floats, 0, floats.length);
+        }
+
+        /**
+         * This version of the push method will overrun. This means that if the buffer is full then the oldest elements
+         * will be overwritten by the newest ones.
+         *
+         * @param floats
+         *            Adds entire array to buffer.
+         * @param index
+         *            Where to begin extracting elements.
+         */
+        public final void overrunPush(float[] floats, int index) {
+            Objects.requireNonNull(floats);
+
+            overrunPush(floats, index, floats.length - index);
+        }
+
+        /**
+         * This version of the push method will overrun. This means that if the buffer is full then the oldest elements
+         * will be overwritten by the newest ones.
+         *
+         * @param floats
+         *            Adds entire array to buffer.
+         * @param index
+         *            Where to begin extracting elements.
+         * @param length
+         *            How many elements to extract.
+         */
+        public final void overrunPush(float[] floats, int index, int length) {
+            Objects.requireNonNull(floats);
+
+            int total = sizeTotal();
+            if (total < 1) {
+                // Just can't do anything.
+                return;
+            }
+
+            if (length > total) {
+                // Only the newest elements can survive.
+                index += length - total;
+                length = total;
+            }
+
+            int free = sizeFree();
+            if (length > free) {
+                // Evict whole elements so the oldest survivor stays aligned.
+                drop(length - free);
+            }
+
+            write(floats, index, length);
+        }
+
+        /**
+         * Retrieves elements from the buffer.
+         *
+         * @param length
+         *            How many elements to retrieve.
+         *
+         * @return Array of elements retrieved. Length may be less than requested if buffer doesn't have enough
+         *         elements.
+         */
+        public final float[] peek(int length) {
+            int sizeUsed = sizeUsed();
+
+            if (length > sizeUsed) {
+                length = sizeUsed;
+            }
+
+            float[] floats = new float[length];
 
-            int read = TuyaRingBuffer.this.pop(bb.array(), bb.arrayOffset() + bb.position(), bb.limit());
+            peek(floats);
 
-            bb.asShortBuffer().get(shorts, index, length);
+            return floats;
+        }
 
-            return read / 2;
+        /**
+         * Retrieves elements from the buffer and places them in a float array.
+         *
+         * @param floats
+         *            Array of floats. Will try to fill array.
+         *
+         * @return How many elements were retrieved.
+         */
+        public final int peek(float[] floats) {
+            Objects.requireNonNull(floats);
+
+            return peek(floats, 0, floats.length);
+        }
+
+        /**
+         * Retrieves elements from the buffer and places them in a float array.
+         *
+         * @param floats
+         *            Array of floats. Will try to fill array.
+         * @param index
+         *            Index where elements will be placed.
+         *
+         * @return How many elements were retrieved.
+         */
+        public final int peek(float[] floats, int index) {
+            Objects.requireNonNull(floats);
+
+            return peek(floats, index, floats.length - index);
+        }
+
+        /**
+         * Retrieves elements from the buffer and places them in a float array.
+         *
+         * @param floats
+         *            Array of floats.
+         * @param index
+         *            Index where elements will be placed.
+         * @param length
+         *            How many elements to retrieve.
+         *
+         * @return How many elements were retrieved.
+         */
+        public final int peek(float[] floats, int index, int length) {
+            Objects.requireNonNull(floats);
+
+            int available = sizeUsed();
+
+            if (length > available) {
+                length = available;
+            }
+
+            int offset = start;
+            for (int i = 0; i < length; i++) {
+                floats[index + i] = Float.intBitsToFloat(getBits(offset, 4));
+                offset = wrap(offset + 4);
+            }
+
+            return length;
+        }
+
+        /**
+         * Removes elements from the buffer and returns them.
+         *
+         * @param length
+         *            How many elements to remove.
+         *
+         * @return Array of removed elements. May not remove the same number of elements as requested if the buffer did
+         *         not have that many to begin with.
+         */
+        public final float[] pop(int length) {
+            int sizeUsed = sizeUsed();
+
+            if (length > sizeUsed) {
+                length = sizeUsed;
+            }
+
+            float[] floats = new float[length];
+
+            pop(floats);
+
+            return floats;
+        }
+
+        /**
+         * Removes elements from the buffer.
+         *
+         * @param floats
+         *            Array that will contain removed elements. Its length determines how many elements will be removed.
+         *
+         * @return Number of removed elements.
+         */
+        public final int pop(float[] floats) {
+            return pop(floats, 0, floats.length);
+        }
+
+        /**
+         * Removes elements from the buffer.
+         *
+         * @param floats
+         *            Array that will contain removed elements. Its length determines how many elements will be removed.
+         * @param index
+         *            Index where elements will be placed.
+         *
+         * @return Number of removed elements.
+         */
+        public final int pop(float[] floats, int index) {
+            return pop(floats, index, floats.length - index);
+        }
+
+        /**
+         * Removes elements from the buffer.
+         *
+         * @param floats
+         *            Array that will contain removed elements.
+         * @param index
+         *            Index where elements will be placed.
+         * @param length
+         *            How many elements to remove.
+         *
+         * @return Number of removed elements.
+         */
+        public final int pop(float[] floats, int index, int length) {
+            int read = peek(floats, index, length);
+
+            TuyaRingBuffer.this.drop(read * 4);
+
+            return read;
         }
 
         /**
@@ -776,28 +1334,41 @@ public final class TuyaRingBuffer {
                 elements = available;
             }
 
-            TuyaRingBuffer.this.drop(elements * 2);
+            TuyaRingBuffer.this.drop(elements * 4);
         }
 
         /**
-         * @return How many complete shorts are stored in the buffer.
+         * @return How many complete floats are stored in the buffer.
          */
         public final int sizeUsed() {
-            return TuyaRingBuffer.this.sizeUsed() / 2;
+            return TuyaRingBuffer.this.sizeUsed() / 4;
         }
 
         /**
-         * @return How many complete shorts can be stored in the buffer in total.
+         * @return How many complete floats can be stored in the buffer in total.
          */
         public final int sizeTotal() {
-            return TuyaRingBuffer.this.sizeTotal() / 2;
+            return TuyaRingBuffer.this.sizeTotal() / 4;
         }
 
         /**
-         * @return How many complete shorts are free in the buffer.
+         * @return How many complete floats are free in the buffer.
          */
         public final int sizeFree() {
-            return TuyaRingBuffer.this.sizeFree() / 2;
+            return TuyaRingBuffer.this.sizeFree() / 4;
+        }
+
+        /**
+         * Encodes elements at the end of the buffer and advances it. The caller makes sure there is room.
+         */
+        private void write(float[] floats, int index, int length) {
+            int offset = nextOffset();
+            for (int i = 0; i < length; i++) {
+                putBits(offset, Float.floatToRawIntBits(floats[index + i]), 4);
+                offset = wrap(offset + 4);
+            }
+
+            advance(length * 4);
         }
     }
 
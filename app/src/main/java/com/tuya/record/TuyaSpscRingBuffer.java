@@ -0,0 +1,858 @@
+package com.tuya.record;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A lock-free ring buffer for exactly one producer thread and one consumer thread.
+ *
+ * Unlike {@link TuyaRingBuffer}, the read and write cursors are separate 64-bit positions that only ever grow. The
+ * producer owns the write cursor and publishes it with a volatile write after the bytes are copied, the consumer
+ * owns the read cursor. The only shared write is {@link #overrunPush(byte[], int, int)}, which moves the read cursor
+ * forward with a CAS; readers validate their copy against the same cursor so they never return torn data.
+ *
+ * The storage is a {@link ByteBuffer}, either on the heap or direct (see {@link #allocateDirect(int)}). Each side keeps
+ * its own view of it, so {@link #drainTo(ByteBuffer)} and {@link #fillFrom(ByteBuffer)} are single bulk copies with no
+ * allocation, and work with the direct buffers handed out by MediaCodec and AudioRecord.
+ */
+public final class TuyaSpscRingBuffer implements TuyaByteRing {
+    /**
+     * Elements are stored here as bytes.
+     */
+    private final ByteBuffer buffer;
+
+    /**
+     * The producer's private view of {@link #buffer}.
+     */
+    private final ByteBuffer producerView;
+
+    /**
+     * The consumer's private view of {@link #buffer}.
+     */
+    private final ByteBuffer consumerView;
+
+    /**
+     * Size of the storage in bytes.
+     */
+    private final int capacity;
+
+    /**
+     * Absolute position of the next byte to read. Written by the consumer, and by the producer when it overruns.
+     */
+    private final AtomicLong readPosition = new AtomicLong();
+
+    /**
+     * Absolute position of the next byte to write. Written by the producer only.
+     */
+    private final AtomicLong writePosition = new AtomicLong();
+
+    /**
+     * Number of unread bytes that were overwritten by overrunPush. Written by the producer only.
+     */
+    private volatile long overrunBytes;
+
+    /**
+     * Consumer parked in one of the await methods, if any.
+     */
+    private volatile Thread waitingConsumer;
+
+    /**
+     * Producer parked in one of the await methods, if any.
+     */
+    private volatile Thread waitingProducer;
+
+    /**
+     * Creates a ring buffer that can store up to the given number of bytes.
+     *
+     * @param capacity
+     *            How many bytes can be stored in the buffer.
+     */
+    public TuyaSpscRingBuffer(int capacity) {
+        this(ByteBuffer.allocate(capacity));
+    }
+
+    /**
+     * Creates a ring buffer over the whole of the given storage, from index 0 to its capacity. The buffer takes
+     * ownership of the storage; its position and limit are ignored.
+     *
+     * @param storage
+     *            Heap, direct or mapped buffer to hold the elements.
+     */
+    TuyaSpscRingBuffer(ByteBuffer storage) {
+        this(storage, 0, 0);
+    }
+
+    /**
+     * Creates a ring buffer over storage that already holds data, as when a mapped file is reopened.
+     *
+     * @param storage
+     *            Heap, direct or mapped buffer to hold the elements.
+     * @param readPosition
+     *            Absolute position of the next byte to read.
+     * @param writePosition
+     *            Absolute position of the next byte to write. At most a capacity ahead of readPosition.
+     */
+    TuyaSpscRingBuffer(ByteBuffer storage, long readPosition, long writePosition) {
+        Objects.requireNonNull(storage);
+        if (storage.capacity() <= 0) {
+            throw new IllegalArgumentException("capacity must be positive: " + storage.capacity());
+        }
+        if (readPosition < 0 || readPosition > writePosition || writePosition - readPosition > storage.capacity()) {
+            throw new IllegalArgumentException("invalid positions: " + readPosition + ", " + writePosition);
+        }
+        buffer = storage;
+        capacity = storage.capacity();
+        producerView = storage.duplicate();
+        consumerView = storage.duplicate();
+        this.readPosition.set(readPosition);
+        this.writePosition.set(writePosition);
+    }
+
+    /**
+     * Creates a ring buffer backed by off-heap memory.
+     *
+     * @param capacity
+     *            How many bytes can be stored in the buffer.
+     */
+    public static TuyaSpscRingBuffer allocateDirect(int capacity) {
+        return new TuyaSpscRingBuffer(ByteBuffer.allocateDirect(capacity));
+    }
+
+    /**
+     * @return Whether the elements are stored off-heap.
+     */
+    public final boolean isDirect() {
+        return buffer.isDirect();
+    }
+
+    /**
+     * @return How many bytes are stored in the buffer. May be stale by the time it returns if the other side is
+     *         running.
+     */
+    public final int sizeUsed() {
+        long read = readPosition.get();
+        long used = writePosition.get() - read;
+        return (int) Math.min(used, capacity);
+    }
+
+    /**
+     * @return How many bytes can be stored in the buffer in total.
+     */
+    public final int sizeTotal() {
+        return capacity;
+    }
+
+    /**
+     * @return How many bytes are free in the buffer.
+     */
+    public final int sizeFree() {
+        return sizeTotal() - sizeUsed();
+    }
+
+    /**
+     * @return Total number of unread bytes discarded by overrunPush since the buffer was created.
+     */
+    public final long overrunBytes() {
+        return overrunBytes;
+    }
+
+    /**
+     * @return Absolute position of the next byte to read.
+     */
+    final long readPosition() {
+        return readPosition.get();
+    }
+
+    /**
+     * @return Absolute position of the next byte to write.
+     */
+    final long writePosition() {
+        return writePosition.get();
+    }
+
+    /**
+     * Adds elements to the end of the buffer. Producer thread only.
+     *
+     * @param bytes
+     *            Adds entire array to buffer.
+     *
+     * @return Number of bytes added. It may not insert every element when the buffer has not enough free space.
+     */
+    public final int push(byte... bytes) {
+        Objects.requireNonNull(bytes);
+
+        return push(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Adds elements to the end of the buffer. Producer thread only.
+     *
+     * @param bytes
+     *            Array that contains elements to be added.
+     * @param index
+     *            Where to begin extracting elements.
+     *
+     * @return Number of bytes added. It may not insert every element when the buffer has not enough free space.
+     */
+    public final int push(byte[] bytes, int index) {
+        Objects.requireNonNull(bytes);
+
+        return push(bytes, index, bytes.length - index);
+    }
+
+    /**
+     * Adds elements to the end of the buffer. Producer thread only.
+     *
+     * @param bytes
+     *            Array that contains elements to be added.
+     * @param index
+     *            Where to begin extracting elements.
+     * @param length
+     *            How many elements to extract.
+     *
+     * @return Number of bytes added. It may not insert every element when the buffer has not enough free space.
+     */
+    public final int push(byte[] bytes, int index, int length) {
+        Objects.requireNonNull(bytes);
+
+        long write = writePosition.get();
+        long free = capacity - (write - readPosition.get());
+        int copying = (int) Math.min(length, free);
+        if (copying <= 0) {
+            return 0;
+        }
+
+        copyIn(write, bytes, index, copying);
+        publishWrite(write + copying);
+        return copying;
+    }
+
+    /**
+     * This version of the push method will overrun. This means that if the buffer is full then the oldest elements will
+     * be overwritten by the newest ones. Producer thread only.
+     *
+     * @param bytes
+     *            Adds entire array to buffer.
+     */
+    public final void overrunPush(byte... bytes) {
+        Objects.requireNonNull(bytes);
+
+        overrunPush(bytes, 0, bytes.length);
+    }
+
+    /**
+     * This version of the push method will overrun. This means that if the buffer is full then the oldest elements will
+     * be overwritten by the newest ones. Producer thread only.
+     *
+     * @param bytes
+     *            Array that contains elements to be added.
+     * @param index
+     *            Where to begin extracting elements.
+     */
+    public final void overrunPush(byte[] bytes, int index) {
+        Objects.requireNonNull(bytes);
+
+        overrunPush(bytes, index, bytes.length - index);
+    }
+
+    /**
+     * This version of the push method will overrun. This means that if the buffer is full then the oldest elements will
+     * be overwritten by the newest ones. Producer thread only.
+     *
+     * @param bytes
+     *            Array that contains elements to be added.
+     * @param index
+     *            Where to begin extracting elements.
+     * @param length
+     *            How many elements to extract.
+     */
+    public final void overrunPush(byte[] bytes, int index, int length) {
+        Objects.requireNonNull(bytes);
+
+        long skipped = 0;
+        if (length > capacity) {
+            // Only the newest bytes can survive.
+            skipped = length - capacity;
+            index += skipped;
+            length = capacity;
+        }
+
+        long write = writePosition.get();
+        long required = write + length - capacity;
+        while (true) {
+            long read = readPosition.get();
+            if (required <= read) {
+                break;
+            }
+            // Claim the oldest bytes before overwriting them, so a concurrent reader fails its validation.
+            if (readPosition.compareAndSet(read, required)) {
+                skipped += required - read;
+                break;
+            }
+        }
+        if (skipped > 0) {
+            overrunBytes += skipped;
+        }
+
+        copyIn(write, bytes, index, length);
+        publishWrite(write + length);
+    }
+
+    /**
+     * Adds the remaining elements of the given buffer to the end of this one. Producer thread only.
+     *
+     * @param src
+     *            Heap or direct buffer. Its position is advanced by the number of bytes added.
+     *
+     * @return Number of bytes added. It may not insert every element when the buffer has not enough free space.
+     */
+    public final int fillFrom(ByteBuffer src) {
+        Objects.requireNonNull(src);
+
+        long write = writePosition.get();
+        long free = capacity - (write - readPosition.get());
+        int copying = (int) Math.min(src.remaining(), free);
+        if (copying <= 0) {
+            return 0;
+        }
+
+        int offset = (int) (write % capacity);
+        int first = Math.min(copying, capacity - offset);
+        int srcLimit = src.limit();
+        producerView.clear();
+        producerView.position(offset);
+        src.limit(src.position() + first);
+        producerView.put(src);
+        if (first < copying) {
+            producerView.position(0);
+            src.limit(src.position() + copying - first);
+            producerView.put(src);
+        }
+        src.limit(srcLimit);
+
+        publishWrite(write + copying);
+        return copying;
+    }
+
+    /**
+     * Exposes the free space at the end of the buffer for writing in place, for instance by AudioRecord.read. Nothing
+     * becomes visible to the consumer until {@link #commit(int)} is called. Producer thread only.
+     *
+     * @param length
+     *            How many bytes the caller would like to write.
+     *
+     * @return Up to two writable slices, in order, covering at most length free bytes. Empty if the buffer is full.
+     *         The slices are direct when the buffer is.
+     */
+    public final ByteBuffer[] reserve(int length) {
+        long write = writePosition.get();
+        long free = capacity - (write - readPosition.get());
+        int reserving = (int) Math.min(length, free);
+        if (reserving <= 0) {
+            return new ByteBuffer[0];
+        }
+
+        int offset = (int) (write % capacity);
+        int first = Math.min(reserving, capacity - offset);
+        producerView.clear();
+        producerView.position(offset);
+        producerView.limit(offset + first);
+        ByteBuffer firstSlice = producerView.slice();
+        if (first == reserving) {
+            return new ByteBuffer[]{firstSlice};
+        }
+        producerView.clear();
+        producerView.limit(reserving - first);
+        return new ByteBuffer[]{firstSlice, producerView.slice()};
+    }
+
+    /**
+     * Publishes bytes written into the slices returned by {@link #reserve(int)}. Producer thread only.
+     *
+     * @param length
+     *            How many bytes were written, counted from the start of the first slice.
+     */
+    public final void commit(int length) {
+        long write = writePosition.get();
+        long free = capacity - (write - readPosition.get());
+        if (length < 0 || length > free) {
+            throw new IllegalArgumentException("Cannot commit " + length + " bytes, " + free + " free");
+        }
+        publishWrite(write + length);
+    }
+
+    /**
+     * Moves elements from this buffer into the given one, up to its remaining space. Wrap-around is handled with at most
+     * two bulk copies. Consumer thread only.
+     *
+     * @param dst
+     *            Heap or direct buffer, for instance a MediaCodec input buffer. Its position is advanced by the number
+     *            of bytes moved.
+     *
+     * @return Number of bytes moved.
+     */
+    public final int drainTo(ByteBuffer dst) {
+        Objects.requireNonNull(dst);
+
+        int dstPosition = dst.position();
+        while (true) {
+            long read = readPosition.get();
+            int copying = (int) Math.min(Math.min(dst.remaining(), writePosition.get() - read), capacity);
+            if (copying <= 0) {
+                return 0;
+            }
+
+            int offset = (int) (read % capacity);
+            int first = Math.min(copying, capacity - offset);
+            consumerView.clear();
+            consumerView.position(offset);
+            consumerView.limit(offset + first);
+            dst.put(consumerView);
+            if (first < copying) {
+                consumerView.clear();
+                consumerView.limit(copying - first);
+                dst.put(consumerView);
+            }
+
+            if (readPosition.compareAndSet(read, read + copying)) {
+                signalProducer();
+                return copying;
+            }
+            // Overrun while copying, the bytes in dst may be torn.
+            dst.position(dstPosition);
+        }
+    }
+
+    /**
+     * Waits until at least the given number of bytes can be read. Consumer thread only.
+     *
+     * @param length
+     *            How many bytes must be readable. Must not exceed the capacity.
+     * @param timeout
+     *            How long to wait at most.
+     * @param unit
+     *            Unit of the timeout.
+     *
+     * @return True if the bytes are available, false if the timeout elapsed first.
+     */
+    public final boolean awaitUsed(int length, long timeout, TimeUnit unit) throws InterruptedException {
+        checkAwaitLength(length);
+
+        return await(true, length, true, unit.toNanos(timeout));
+    }
+
+    /**
+     * Waits until at least the given number of bytes can be written. Producer thread only.
+     *
+     * @param length
+     *            How many bytes must be free. Must not exceed the capacity.
+     * @param timeout
+     *            How long to wait at most.
+     * @param unit
+     *            Unit of the timeout.
+     *
+     * @return True if the space is available, false if the timeout elapsed first.
+     */
+    public final boolean awaitFree(int length, long timeout, TimeUnit unit) throws InterruptedException {
+        checkAwaitLength(length);
+
+        return await(false, length, true, unit.toNanos(timeout));
+    }
+
+    /**
+     * Blocks until the given number of bytes can be removed, then removes them. Consumer thread only.
+     *
+     * @param bytes
+     *            The destination array.
+     * @param length
+     *            How many elements to remove. Must not exceed the capacity.
+     *
+     * @return Number of elements removed, always length.
+     */
+    public final int awaitPop(byte[] bytes, int length) throws InterruptedException {
+        Objects.requireNonNull(bytes);
+        checkAwaitLength(length);
+
+        await(true, length, false, 0);
+        return pop(bytes, 0, length);
+    }
+
+    /**
+     * Waits up to the given time for the given number of bytes, then removes them. Consumer thread only.
+     *
+     * @param bytes
+     *            The destination array.
+     * @param length
+     *            How many elements to remove. Must not exceed the capacity.
+     * @param timeout
+     *            How long to wait at most.
+     * @param unit
+     *            Unit of the timeout.
+     *
+     * @return Number of elements removed: length, or 0 if the timeout elapsed first. Nothing is removed on timeout.
+     */
+    public final int awaitPop(byte[] bytes, int length, long timeout, TimeUnit unit) throws InterruptedException {
+        return awaitPop(bytes, 0, length, timeout, unit);
+    }
+
+    /**
+     * Waits up to the given time for the given number of bytes, then removes them. Consumer thread only.
+     *
+     * @param bytes
+     *            The destination array.
+     * @param index
+     *            Where to begin placing elements in the array.
+     * @param length
+     *            How many elements to remove. Must not exceed the capacity.
+     * @param timeout
+     *            How long to wait at most.
+     * @param unit
+     *            Unit of the timeout.
+     *
+     * @return Number of elements removed: length, or 0 if the timeout elapsed first. Nothing is removed on timeout.
+     */
+    public final int awaitPop(byte[] bytes, int index, int length, long timeout, TimeUnit unit)
+            throws InterruptedException {
+        Objects.requireNonNull(bytes);
+
+        if (!awaitUsed(length, timeout, unit)) {
+            return 0;
+        }
+        return pop(bytes, index, length);
+    }
+
+    /**
+     * Blocks until there is room for every given element, then adds them. Producer thread only.
+     *
+     * @param bytes
+     *            Array that contains elements to be added.
+     * @param index
+     *            Where to begin extracting elements.
+     * @param length
+     *            How many elements to add. Must not exceed the capacity.
+     *
+     * @return Number of bytes added, always length.
+     */
+    public final int awaitPush(byte[] bytes, int index, int length) throws InterruptedException {
+        Objects.requireNonNull(bytes);
+        checkAwaitLength(length);
+
+        await(false, length, false, 0);
+        return push(bytes, index, length);
+    }
+
+    /**
+     * Waits up to the given time for room for every given element, then adds them. Producer thread only.
+     *
+     * @param bytes
+     *            Array that contains elements to be added.
+     * @param index
+     *            Where to begin extracting elements.
+     * @param length
+     *            How many elements to add. Must not exceed the capacity.
+     * @param timeout
+     *            How long to wait at most.
+     * @param unit
+     *            Unit of the timeout.
+     *
+     * @return Number of bytes added: length, or 0 if the timeout elapsed first. Nothing is added on timeout.
+     */
+    public final int awaitPush(byte[] bytes, int index, int length, long timeout, TimeUnit unit)
+            throws InterruptedException {
+        Objects.requireNonNull(bytes);
+
+        if (!awaitFree(length, timeout, unit)) {
+            return 0;
+        }
+        return push(bytes, index, length);
+    }
+
+    /**
+     * Retrieves elements from the buffer. Consumer thread only.
+     *
+     * @param length
+     *            How many elements to retrieve.
+     *
+     * @return Array of elements retrieved. Length may be less than requested if buffer doesn't have enough elements.
+     */
+    public final byte[] peek(int length) {
+        int sizeUsed = sizeUsed();
+
+        if (length > sizeUsed) {
+            length = sizeUsed;
+        }
+
+        byte[] bytes = new byte[length];
+
+        int read = peek(bytes);
+
+        return read == length ? bytes : Arrays.copyOf(bytes, read);
+    }
+
+    /**
+     * Retrieves elements from the buffer and stores them in another array. Consumer thread only.
+     *
+     * @param bytes
+     *            Where elements will be stored. The size of the array indicates how many elements will be retrieved.
+     *
+     * @return Number of elements that were copied.
+     */
+    public final int peek(byte[] bytes) {
+        Objects.requireNonNull(bytes);
+
+        return peek(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Retrieves elements from the buffer and stores them in another array. Consumer thread only.
+     *
+     * @param bytes
+     *            Where elements will be stored.
+     * @param index
+     *            Where to start placing elements in the given array.
+     * @param length
+     *            How many elements to copy.
+     *
+     * @return Number of elements that were copied.
+     */
+    public final int peek(byte[] bytes, int index, int length) {
+        Objects.requireNonNull(bytes);
+
+        while (true) {
+            long read = readPosition.get();
+            int copying = (int) Math.min(Math.min(length, writePosition.get() - read), capacity);
+            if (copying <= 0) {
+                return 0;
+            }
+            copyOut(read, bytes, index, copying);
+            // A CAS that changes nothing still orders the copy before it and fails if the producer overran us.
+            if (readPosition.compareAndSet(read, read)) {
+                return copying;
+            }
+        }
+    }
+
+    /**
+     * Removes elements from the buffer and returns them. Consumer thread only.
+     *
+     * @param length
+     *            How many elements to remove.
+     *
+     * @return Array of removed elements. May not remove the same number of elements as requested if the buffer did not
+     *         have that many to begin with.
+     */
+    public final byte[] pop(int length) {
+        int sizeUsed = sizeUsed();
+
+        if (length > sizeUsed) {
+            length = sizeUsed;
+        }
+
+        byte[] bytes = new byte[length];
+
+        int read = pop(bytes);
+
+        return read == length ? bytes : Arrays.copyOf(bytes, read);
+    }
+
+    /**
+     * Moves elements from the buffer to the given array. Consumer thread only.
+     *
+     * @param bytes
+     *            The destination array. Its size determines how many elements to remove.
+     *
+     * @return Number of elements removed. It may be less than the size of the given array if the buffer does not have
+     *         enough elements to fill the array.
+     */
+    public final int pop(byte[] bytes) {
+        return pop(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Moves elements from the buffer to the given array. Consumer thread only.
+     *
+     * @param bytes
+     *            The destination array. Its size determines how many elements to remove.
+     * @param index
+     *            Where to begin placing elements in the array.
+     *
+     * @return Number of elements removed.
+     */
+    public final int pop(byte[] bytes, int index) {
+        return pop(bytes, index, bytes.length - index);
+    }
+
+    /**
+     * Moves elements from the buffer to the given array. Consumer thread only.
+     *
+     * @param bytes
+     *            The destination array.
+     * @param index
+     *            Where to begin placing elements in the array.
+     * @param length
+     *            How many elements to remove.
+     *
+     * @return Number of elements removed. It may be less than the size of the provided length if the buffer does not
+     *         have enough elements to fill the array.
+     */
+    public final int pop(byte[] bytes, int index, int length) {
+        Objects.requireNonNull(bytes);
+
+        while (true) {
+            long read = readPosition.get();
+            int copying = (int) Math.min(Math.min(length, writePosition.get() - read), capacity);
+            if (copying <= 0) {
+                return 0;
+            }
+            copyOut(read, bytes, index, copying);
+            if (readPosition.compareAndSet(read, read + copying)) {
+                signalProducer();
+                return copying;
+            }
+        }
+    }
+
+    /**
+     * Removes elements from the buffer. Consumer thread only.
+     *
+     * @param elements
+     *            Number of elements to remove.
+     */
+    public final void drop(int elements) {
+        while (true) {
+            long read = readPosition.get();
+            long dropping = Math.min(elements, writePosition.get() - read);
+            if (dropping <= 0) {
+                return;
+            }
+            if (readPosition.compareAndSet(read, read + dropping)) {
+                signalProducer();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Removes every element currently in the buffer. Consumer thread only.
+     */
+    public final void clear() {
+        while (true) {
+            long read = readPosition.get();
+            long write = writePosition.get();
+            if (read >= write) {
+                return;
+            }
+            if (readPosition.compareAndSet(read, write)) {
+                signalProducer();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Parks the calling thread until the consumer can read, or the producer can write, the given number of bytes.
+     *
+     * @return False if timed and the timeout elapsed first.
+     */
+    private boolean await(boolean consumer, int length, boolean timed, long nanos) throws InterruptedException {
+        final long deadline = timed ? System.nanoTime() + nanos : 0L;
+        while (!ready(consumer, length)) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            long remaining = 0L;
+            if (timed) {
+                remaining = deadline - System.nanoTime();
+                if (remaining <= 0L) {
+                    return false;
+                }
+            }
+
+            // Advertise ourselves, then look again so a wake-up sent in between is not lost.
+            Thread current = Thread.currentThread();
+            if (consumer) {
+                waitingConsumer = current;
+            } else {
+                waitingProducer = current;
+            }
+            if (!ready(consumer, length)) {
+                if (timed) {
+                    LockSupport.parkNanos(this, remaining);
+                } else {
+                    LockSupport.park(this);
+                }
+            }
+            if (consumer) {
+                waitingConsumer = null;
+            } else {
+                waitingProducer = null;
+            }
+        }
+        return true;
+    }
+
+    private boolean ready(boolean consumer, int length) {
+        return consumer ? sizeUsed() >= length : sizeFree() >= length;
+    }
+
+    private void checkAwaitLength(int length) {
+        if (length < 0 || length > capacity) {
+            throw new IllegalArgumentException("Cannot wait for " + length + " bytes, capacity is " + capacity);
+        }
+    }
+
+    /**
+     * Makes written bytes visible to the consumer and wakes it up if it is waiting for them.
+     */
+    private void publishWrite(long position) {
+        writePosition.set(position);
+        Thread consumer = waitingConsumer;
+        if (consumer != null) {
+            LockSupport.unpark(consumer);
+        }
+    }
+
+    /**
+     * Wakes the producer up if it is waiting for free space.
+     */
+    private void signalProducer() {
+        Thread producer = waitingProducer;
+        if (producer != null) {
+            LockSupport.unpark(producer);
+        }
+    }
+
+    /**
+     * Copies bytes into the buffer at the given absolute position, wrapping around when needed.
+     */
+    private void copyIn(long position, byte[] bytes, int index, int length) {
+        int offset = (int) (position % capacity);
+        int first = Math.min(length, capacity - offset);
+        producerView.clear();
+        producerView.position(offset);
+        producerView.put(bytes, index, first);
+        if (first < length) {
+            producerView.position(0);
+            producerView.put(bytes, index + first, length - first);
+        }
+    }
+
+    /**
+     * Copies bytes out of the buffer from the given absolute position, wrapping around when needed.
+     */
+    private void copyOut(long position, byte[] bytes, int index, int length) {
+        int offset = (int) (position % capacity);
+        int first = Math.min(length, capacity - offset);
+        consumerView.clear();
+        consumerView.position(offset);
+        consumerView.get(bytes, index, first);
+        if (first < length) {
+            consumerView.position(0);
+            consumerView.get(bytes, index + first, length - first);
+        }
+    }
+}
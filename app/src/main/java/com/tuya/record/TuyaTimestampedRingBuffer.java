@@ -0,0 +1,295 @@
+package com.tuya.record;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A PCM ring buffer that remembers when its bytes were captured, so the encoder can stamp each input buffer with the
+ * capture time of its first sample instead of the time it happened to be popped.
+ *
+ * As data is pushed, the producer records anchors mapping an absolute byte position to a capture time. Between
+ * anchors, time is derived from the sample count at the configured sample rate, so consecutive buffers are exactly
+ * one buffer duration apart. A new anchor is only recorded when the clock runs ahead of the sample count by more than
+ * {@link #RESYNC_THRESHOLD_NS}, for instance after the capture stalled, or when the caller supplies a later capture
+ * time than the sample count. A time behind the sample count only means reads are catching up on a backlog, and is
+ * ignored: moving the anchor back would make time go backwards.
+ *
+ * Anchors live in a small fixed ring of primitive arrays, published with a volatile count. The consumer keeps a
+ * cursor into them that only moves forward, so a lookup is constant time on average and allocates nothing. Times are
+ * reported on the {@link System#nanoTime()} clock, in microseconds, like the rest of the recorder: the wall clock can
+ * be set back while recording.
+ *
+ * Same threading rule as {@link TuyaSpscRingBuffer}: one producer thread, one consumer thread.
+ */
+public final class TuyaTimestampedRingBuffer implements TuyaByteRing {
+    /**
+     * How far the clock may run ahead of the sample count before a new anchor is recorded.
+     */
+    public static final long RESYNC_THRESHOLD_NS = TimeUnit.MILLISECONDS.toNanos(20);
+
+    private static final int ANCHOR_COUNT = 64;
+
+    private final TuyaSpscRingBuffer ring;
+
+    private final long[] anchorPositions = new long[ANCHOR_COUNT];
+    private final long[] anchorNanos = new long[ANCHOR_COUNT];
+
+    /**
+     * Number of anchors ever recorded. Written by the producer after the anchor itself.
+     */
+    private volatile long anchorsRecorded;
+
+    /**
+     * Anchor the consumer looked up last. Consumer thread only.
+     */
+    private long lookupAnchor;
+
+    private volatile int sampleRate;
+    private volatile int bytesPerFrame;
+
+    /**
+     * Makes the producer record an anchor on its next push. Set when the format changes.
+     */
+    private volatile boolean resync = true;
+
+    /**
+     * Creates a direct ring buffer for PCM of the given format.
+     *
+     * @param capacity
+     *            How many bytes can be stored in the buffer.
+     * @param sampleRate
+     *            Frames per second.
+     * @param bytesPerFrame
+     *            Size of one frame, all channels included.
+     */
+    public TuyaTimestampedRingBuffer(int capacity, int sampleRate, int bytesPerFrame) {
+        checkFormat(sampleRate, bytesPerFrame);
+        ring = TuyaSpscRingBuffer.allocateDirect(capacity);
+        this.sampleRate = sampleRate;
+        this.bytesPerFrame = bytesPerFrame;
+    }
+
+    /**
+     * Changes the PCM format. Call it from the consumer while the buffer is empty, before the producer pushes data in
+     * the new format; the next push records a fresh anchor.
+     */
+    public final void setFormat(int sampleRate, int bytesPerFrame) {
+        checkFormat(sampleRate, bytesPerFrame);
+        this.sampleRate = sampleRate;
+        this.bytesPerFrame = bytesPerFrame;
+        resync = true;
+    }
+
+    public final int sizeUsed() {
+        return ring.sizeUsed();
+    }
+
+    public final int sizeTotal() {
+        return ring.sizeTotal();
+    }
+
+    public final int sizeFree() {
+        return ring.sizeFree();
+    }
+
+    /**
+     * @return Total number of unread bytes discarded by overrunPush since the buffer was created.
+     */
+    public final long overrunBytes() {
+        return ring.overrunBytes();
+    }
+
+    /**
+     * Adds elements captured just now, as far as the clock can tell. Producer thread only.
+     */
+    public final int push(byte[] bytes, int index, int length) {
+        observe(ring.writePosition(), Math.min(length, ring.sizeFree()), -1);
+        return ring.push(bytes, index, length);
+    }
+
+    /**
+     * Adds elements whose first sample was captured at the given time. Producer thread only.
+     *
+     * @param captureNanos
+     *            {@link System#nanoTime()} at which the first element was captured.
+     */
+    public final int push(byte[] bytes, int index, int length, long captureNanos) {
+        observe(ring.writePosition(), length, captureNanos);
+        return ring.push(bytes, index, length);
+    }
+
+    /**
+     * Adds elements captured just now, discarding the oldest ones when full. Producer thread only.
+     */
+    public final void overrunPush(byte[] bytes, int index, int length) {
+        int stored = Math.min(length, ring.sizeTotal());
+        observe(ring.writePosition(), stored, -1);
+        ring.overrunPush(bytes, index, length);
+    }
+
+    /**
+     * Adds elements whose first sample was captured at the given time, discarding the oldest ones when full. Producer
+     * thread only.
+     *
+     * @param captureNanos
+     *            {@link System#nanoTime()} at which the first element was captured.
+     */
+    public final void overrunPush(byte[] bytes, int index, int length, long captureNanos) {
+        int stored = Math.min(length, ring.sizeTotal());
+        observe(ring.writePosition(), stored, captureNanos + framesToNanos(length - stored));
+        ring.overrunPush(bytes, index, length);
+    }
+
+    /**
+     * Moves elements captured just now from the given buffer. Producer thread only.
+     */
+    public final int fillFrom(ByteBuffer src) {
+        observe(ring.writePosition(), Math.min(src.remaining(), ring.sizeFree()), -1);
+        return ring.fillFrom(src);
+    }
+
+    /**
+     * Producer thread only.
+     */
+    public final ByteBuffer[] reserve(int length) {
+        return ring.reserve(length);
+    }
+
+    /**
+     * Publishes reserved bytes captured just now. Producer thread only.
+     */
+    public final void commit(int length) {
+        observe(ring.writePosition(), length, -1);
+        ring.commit(length);
+    }
+
+    /**
+     * Publishes reserved bytes whose first sample was captured at the given time. Producer thread only.
+     *
+     * @param captureNanos
+     *            {@link System#nanoTime()} at which the first element was captured.
+     */
+    public final void commit(int length, long captureNanos) {
+        observe(ring.writePosition(), length, captureNanos);
+        ring.commit(length);
+    }
+
+    /**
+     * Consumer thread only.
+     */
+    public final int peek(byte[] bytes, int index, int length) {
+        return ring.peek(bytes, index, length);
+    }
+
+    /**
+     * Consumer thread only.
+     */
+    public final int pop(byte[] bytes, int index, int length) {
+        return ring.pop(bytes, index, length);
+    }
+
+    /**
+     * Consumer thread only.
+     */
+    public final int drainTo(ByteBuffer dst) {
+        return ring.drainTo(dst);
+    }
+
+    /**
+     * Consumer thread only.
+     */
+    public final void drop(int elements) {
+        ring.drop(elements);
+    }
+
+    /**
+     * Consumer thread only.
+     */
+    public final void clear() {
+        ring.clear();
+    }
+
+    /**
+     * @return Capture time of the next byte to read, in microseconds on the {@link System#nanoTime()} clock.
+     *         Consumer thread only.
+     */
+    public final long readPresentationTimeUs() {
+        return presentationTimeUs(ring.readPosition());
+    }
+
+    /**
+     * @param position
+     *            Absolute byte position, not before the last one looked up.
+     * @return Capture time of the byte at the given position, in microseconds on the {@link System#nanoTime()} clock.
+     *         Consumer thread only.
+     */
+    final long presentationTimeUs(long position) {
+        while (true) {
+            long recorded = anchorsRecorded;
+            if (recorded == 0) {
+                return TimeUnit.NANOSECONDS.toMicros(System.nanoTime());
+            }
+            long anchor = Math.max(lookupAnchor, recorded - ANCHOR_COUNT);
+            while (anchor + 1 < recorded && anchorPositions[slot(anchor + 1)] <= position) {
+                anchor++;
+            }
+            long anchorPosition = anchorPositions[slot(anchor)];
+            long nanos = anchorNanos[slot(anchor)];
+            if (anchorsRecorded - ANCHOR_COUNT > anchor) {
+                // The producer reused the slot while we were reading it.
+                continue;
+            }
+            lookupAnchor = anchor;
+            return (nanos + framesToNanos(position - anchorPosition)) / 1000;
+        }
+    }
+
+    /**
+     * Records an anchor for bytes about to be written at the given position, if the clock calls for one.
+     *
+     * @param captureNanos
+     *            Capture time of the first byte, or -1 to derive it from the clock at the end of the capture.
+     */
+    private void observe(long position, int length, long captureNanos) {
+        if (length <= 0) {
+            return;
+        }
+        boolean explicit = captureNanos >= 0;
+        if (!explicit) {
+            captureNanos = System.nanoTime() - framesToNanos(length);
+        }
+
+        long recorded = anchorsRecorded;
+        if (!resync && recorded > 0) {
+            int last = slot(recorded - 1);
+            long predicted = anchorNanos[last] + framesToNanos(position - anchorPositions[last]);
+            // A supplied time is trusted when it moves forward at all, a derived one only past the threshold.
+            if (captureNanos - predicted <= (explicit ? 0 : RESYNC_THRESHOLD_NS)) {
+                return;
+            }
+        }
+        int slot = slot(recorded);
+        anchorPositions[slot] = position;
+        anchorNanos[slot] = captureNanos;
+        resync = false;
+        anchorsRecorded = recorded + 1;
+    }
+
+    /**
+     * @return Duration of the given number of bytes of PCM, in whole frames.
+     */
+    private long framesToNanos(long bytes) {
+        long frames = bytes / bytesPerFrame;
+        return frames * 1000000000L / sampleRate;
+    }
+
+    private static int slot(long anchor) {
+        return (int) (anchor % ANCHOR_COUNT);
+    }
+
+    private static void checkFormat(int sampleRate, int bytesPerFrame) {
+        if (sampleRate <= 0 || bytesPerFrame <= 0) {
+            throw new IllegalArgumentException("invalid format: " + sampleRate + " Hz, " + bytesPerFrame + " bytes");
+        }
+    }
+}
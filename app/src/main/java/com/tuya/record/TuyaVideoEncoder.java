@@ -1,8 +1,10 @@
 package com.tuya.record;
 
+import android.annotation.TargetApi;
+import android.graphics.ImageFormat;
+import android.media.Image;
 import android.media.MediaCodec;
 import android.media.MediaCodecInfo;
-import android.media.MediaCodecList;
 import android.media.MediaFormat;
 import android.os.Build;
 import android.os.Bundle;
@@ -10,10 +12,14 @@ import android.os.SystemClock;
 import android.util.Log;
 
 
+import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
+import com.erick.utils.libyuv.YuvUtils;
+
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 
 public class TuyaVideoEncoder {
@@ -31,10 +37,33 @@ public class TuyaVideoEncoder {
 
     private volatile boolean running;
     private boolean endOfStream;
-    private long videoTimestampBase;
 
     private static final int MEDIA_CODEC_RELEASE_TIMEOUT_MS = 5000;
     private static final int DEQUEUE_OUTPUT_BUFFER_TIMEOUT_US = 10000;
+    private static final int MAX_PENDING_FRAMES = 3;
+    private static final long DEFAULT_OUTPUT_POOL_BYTES = 8 * 1024 * 1024;
+
+    // Asynchronous mode: the codec calls back on TuyaCodecThread instead of being polled by outputThread.
+    private final boolean asyncMode;
+    private final Object inputLock = new Object();
+    // Guarded by inputLock.
+    private final ArrayDeque<Integer> freeInputBuffers = new ArrayDeque<>();
+    private final VideoFrame[] pendingFrames = new VideoFrame[MAX_PENDING_FRAMES];
+    private final long[] pendingTimestampsUs = new long[MAX_PENDING_FRAMES];
+    private int pendingHead;
+    private int pendingCount;
+    private boolean endOfStreamPending;
+    private boolean outputEnded;
+    private long droppedFrames;
+
+    // Encoded frames are copied into buffers from this pool before they reach the callback.
+    private volatile TuyaBufferPool outputPool = new TuyaBufferPool(DEFAULT_OUTPUT_POOL_BYTES);
+
+    // Layout of the codec input, as a YuvUtils FourCC, and of the frames it was negotiated for.
+    private int inputFourcc;
+    private int sourceFourcc;
+    // Plane offsets and strides of input buffers, from the colour format and the strides the codec reports.
+    private TuyaYuvLayout inputLayout;
 
 
     /**
@@ -100,6 +129,10 @@ public class TuyaVideoEncoder {
             return framerate;
         }
 
+        /**
+         * @return Capture time in nanoseconds on the clock of {@link System#nanoTime()}, which the audio track also
+         *         uses, or 0 if unknown.
+         */
         public long getTimestampNs() {
             return timestampNs;
         }
@@ -119,20 +152,28 @@ public class TuyaVideoEncoder {
         this.mimeType = mime;
         this.isEncodeReady = false;
         this.endOfStream = false;
-        this.videoTimestampBase = 0L;
-
-
+        this.asyncMode = TuyaCodecThread.isAsyncSupported();
     }
     public VideoCodecStatus initEncode() {
+        return initEncode(0);
+    }
+
+    /**
+     * Like {@link #initEncode()}, but prefers a codec colour format with the same layout as the frames that will be
+     * encoded, so they are copied as they are. Otherwise each frame is converted once, straight into the input buffer.
+     *
+     * @param pixelFmt
+     *            {@link VideoFrame#getPixelFmt()} of the frames to come.
+     */
+    public VideoCodecStatus initEncode(int pixelFmt) {
         if (codec != null) {
             return VideoCodecStatus.OK;
         }
-        videoTimestampBase = 0L;
         Log.i(TAG, "initVideoParam width: "+settings.width+" height: "+settings.height+ " fps: "+ settings.fps + " IframeInterval: " +
                 settings.keyFrameIntervalSec + " bitrate: " + settings.bitrate );
         supportColorFormatList = new ArrayList<>();
 
-        MediaCodecInfo vCodecInfo = selectCodec(mimeType.mimeType());
+        MediaCodecInfo vCodecInfo = TuyaCodecProbe.selectEncoder(mimeType.mimeType());
         if (vCodecInfo == null) {
             Log.e(TAG, "initVideoParam Unable to find an appropriate codec for " + mimeType.mimeType());
             return VideoCodecStatus.ERR_PARAMETER;
@@ -144,13 +185,20 @@ public class TuyaVideoEncoder {
         Log.i(TAG, "initVideoParam found video codec: " + vCodecInfo.getName());
         //根据MIME格式,选择颜色格式
         int colorFormat = 0;
-        Integer fmt = selectColorFormat(ENCODER_COLOR_FORMATS, vCodecInfo.getCapabilitiesForType(mimeType.mimeType()));
+        sourceFourcc = sourceFourcc(pixelFmt);
+        int[] preferredFormats = TuyaCodecProbe.rankColorFormats(mimeType.mimeType(), vCodecInfo.getName(),
+                ENCODER_COLOR_FORMATS);
+        Integer fmt = selectColorFormat(preferredFormats, vCodecInfo.getCapabilitiesForType(mimeType.mimeType()),
+                sourceFourcc);
         if (fmt == null) {
             Log.e(TAG, "initVideoParam Unable to find an appropriate colorFormat " + mimeType.mimeType());
             return VideoCodecStatus.ERR_PARAMETER;
         }
 
         colorFormat = fmt.intValue();
+        inputFourcc = codecFourcc(colorFormat);
+        Log.i(TAG, "initVideoParam color format " + colorFormat + (inputFourcc == sourceFourcc
+                ? ", frames copied as they are" : ", frames converted into the input buffer"));
         //colorFormat = MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420SemiPlanar;
 
         MediaFormat format = MediaFormat.createVideoFormat(mimeType.mimeType(), settings.width, settings.height);
@@ -163,14 +211,35 @@ public class TuyaVideoEncoder {
         Log.i(TAG, "initVideoParam video format: " + format.toString());
 
         try {
-            codec = MediaCodec.createByCodecName(vCodecInfo.getName());
+            if (asyncMode) {
+                TuyaCodecThread.acquire();
+                codec = TuyaCodecThread.createCodec(vCodecInfo.getName(), false);
+                setAsyncCallback();
+            } else {
+                codec = MediaCodec.createByCodecName(vCodecInfo.getName());
+            }
         } catch (IOException | IllegalArgumentException e) {
             Log.e(TAG, "Cannot create media encoder " + vCodecInfo.getName());
+            if (asyncMode) {
+                TuyaCodecThread.release();
+            }
+            codec = null;
             return VideoCodecStatus.FALLBACK_SOFTWARE;
         }
 
+        running = true;
         codec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+        int[] strides = new int[2];
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            readInputStrides(strides);
+        }
+        inputLayout = TuyaYuvLayout.forColorFormat(colorFormat, settings.width, settings.height, strides[0], strides[1]);
+        Log.i(TAG, "initVideoParam input layout " + inputLayout);
         codec.start();
+        if (asyncMode) {
+            isEncodeReady = true;
+            return VideoCodecStatus.OK;
+        }
 
         outputBuffers = codec.getOutputBuffers();
 
@@ -191,7 +260,6 @@ public class TuyaVideoEncoder {
         }
         final int frameWidth = videoFrame.getWidth();
         final int frameHeight = videoFrame.getHeight();
-        int bufferSize = frameWidth * frameHeight * 3 / 2;
         if (frameWidth != settings.width || frameHeight != settings.height) {
             VideoCodecStatus status = resetCodec(frameWidth, frameHeight);
             if (status != VideoCodecStatus.OK) {
@@ -199,7 +267,7 @@ public class TuyaVideoEncoder {
             }
         }
 
-        VideoCodecStatus ret = encodeByteBuffer(videoFrame, bufferSize);
+        VideoCodecStatus ret = encodeByteBuffer(videoFrame);
         return ret;
     }
 
@@ -216,9 +284,16 @@ public class TuyaVideoEncoder {
         }
 
         endOfStream = true;
+        if (asyncMode) {
+            synchronized (inputLock) {
+                endOfStreamPending = true;
+                feedInputLocked();
+            }
+            return VideoCodecStatus.OK;
+        }
 
 
-        long presentationTimestampUs = System.currentTimeMillis()*1000;
+        long presentationTimestampUs = System.nanoTime()/1000;
 
         // No timeout.  Don't block for an input buffer, drop frames if the encoder falls behind.
         int index;
@@ -256,18 +331,15 @@ public class TuyaVideoEncoder {
     }
 
 
-    private VideoCodecStatus encodeByteBuffer(
-            VideoFrame videoFrame, int bufferSize) {
-        // Frame timestamp rounded to the nearest microsecond.
+    private VideoCodecStatus encodeByteBuffer(VideoFrame videoFrame) {
+        // Capture time of the frame, so frames that waited for the encoder keep their spacing.
+        long presentationTimestampUs = videoFrame.getTimestampNs() > 0
+                ? videoFrame.getTimestampNs() / 1000 : System.nanoTime()/1000;
 
-        long presentationTimestampUs = System.currentTimeMillis()*1000;
-        if (videoTimestampBase == 0L) {
-            videoTimestampBase = presentationTimestampUs;
+        if (asyncMode) {
+            return enqueueFrame(videoFrame, presentationTimestampUs);
         }
 
-        long relativeTS = presentationTimestampUs - videoTimestampBase;
-
-
         // No timeout.  Don't block for an input buffer, drop frames if the encoder falls behind.
         int index;
         try {
@@ -280,6 +352,9 @@ public class TuyaVideoEncoder {
         if (index == -1) {
             // Encoder is falling behind.  No input buffers available.  Drop the frame.
             Log.d(TAG, "Dropped frame, no input buffers available");
+            synchronized (inputLock) {
+                droppedFrames++;
+            }
             return VideoCodecStatus.NO_OUTPUT; // See webrtc bug 2887.
         }
 
@@ -291,11 +366,16 @@ public class TuyaVideoEncoder {
             return VideoCodecStatus.ERROR;
         }
 
-        fillInputBuffer(buffer, videoFrame);
+        buffer.clear();
+        int bufferSize = fillInputBuffer(buffer, videoFrame);
+        if (bufferSize < 0) {
+            // Hand the buffer back empty rather than leak it.
+            bufferSize = 0;
+        }
 
         try {
             codec.queueInputBuffer(
-                    index, 0 /* offset */, bufferSize, relativeTS, 0 /* flags */);
+                    index, 0 /* offset */, bufferSize, presentationTimestampUs, 0 /* flags */);
         } catch (IllegalStateException e) {
             Log.e(TAG, "queueInputBuffer failed", e);
             // IllegalStateException thrown when the codec is in the wrong state.
@@ -345,35 +425,65 @@ public class TuyaVideoEncoder {
             if (outputBuffers == null) {
                 return;
             }
-            ByteBuffer codecOutputBuffer = outputBuffers[index];
+            deliverOutput(codec, outputBuffers[index], index, info);
+        } catch (IllegalStateException e) {
+            Log.e(TAG, "deliverOutput failed", e);
+            e.printStackTrace();
+
+        }
+    }
+
+    /**
+     * Hands an encoded buffer to the callback and returns it to the codec. Used by both modes.
+     */
+    private void deliverOutput(
+            MediaCodec mediaCodec, ByteBuffer codecOutputBuffer, int index, MediaCodec.BufferInfo info) {
+        try {
             codecOutputBuffer.position(info.offset);
             codecOutputBuffer.limit(info.offset + info.size);
 
             if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
                 Log.d(TAG, "Config frame generated. Offset: " + info.offset + ". Size: " + info.size);
                 info.size = 0;
+                mediaCodec.releaseOutputBuffer(index, false);
             } else {
                 final boolean isKeyFrame = (info.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0;
                 if (isKeyFrame) {
                     Log.d(TAG, "Sync frame generated");
                 }
 
-                final ByteBuffer frameBuffer;
-                frameBuffer = codecOutputBuffer.slice();
+                // Copy the frame out so the codec gets its buffer back before the muxer writes it.
+                final ByteBuffer frameBuffer = outputPool.acquire(info.size);
+                if (frameBuffer != null) {
+                    frameBuffer.put(codecOutputBuffer);
+                    frameBuffer.flip();
+                }
 
                 try {
-                    codec.releaseOutputBuffer(index, false);
+                    mediaCodec.releaseOutputBuffer(index, false);
                 } catch (Exception e) {
                     Log.e(TAG, "releaseOutputBuffer failed", e);
                 }
 
-                info.presentationTimeUs = System.currentTimeMillis()*1000;
+                if (frameBuffer == null) {
+                    Log.w(TAG, "Output pool full, dropped frame of " + info.size + " bytes");
+                    synchronized (inputLock) {
+                        droppedFrames++;
+                    }
+                    // Later frames depend on the dropped one: restart from a key frame.
+                    requestKeyFrame(0);
+                    return;
+                }
+
+                info.offset = 0;
                 //Log.e(TAG, "video ts =====> " + info.presentationTimeUs);
                 // TODO(mellem):  Set codec-specific info.
                 if (!endOfStream) {
+                    // The callback now owns frameBuffer and returns it to the output pool.
                     callback.onVideoFrame(frameBuffer, info);
+                } else {
+                    outputPool.release(frameBuffer);
                 }
-                // Note that the callback may have retained the image.
 
             }
         } catch (IllegalStateException e) {
@@ -411,12 +521,26 @@ public class TuyaVideoEncoder {
         }
         settings.width = newWidth;
         settings.height = newHeight;
-        return initEncode();
+        return initEncode(sourceFourcc);
     }
 
 
     public VideoCodecStatus release() {
         VideoCodecStatus returnValue = VideoCodecStatus.OK;
+        if (asyncMode) {
+            if (codec != null) {
+                synchronized (inputLock) {
+                    running = false;
+                    freeInputBuffers.clear();
+                    clearPendingFramesLocked();
+                    endOfStreamPending = false;
+                }
+                releaseCodecOnOutputThread();
+                TuyaCodecThread.release();
+            }
+            codec = null;
+            return returnValue;
+        }
         if (outputThread == null) {
             returnValue = VideoCodecStatus.OK;
         } else {
@@ -441,6 +565,60 @@ public class TuyaVideoEncoder {
     }
 
 
+    /**
+     * Encodes the frames already handed over, delivers their output to the callback as usual, then releases the codec.
+     * Used to retire an encoder in the background once another one has taken over, so the frames it holds are not lost.
+     *
+     * @param timeoutMs
+     *            How long to wait for the codec to finish before releasing it anyway.
+     */
+    public VideoCodecStatus drainAndRelease(long timeoutMs) {
+        if (codec == null) {
+            return VideoCodecStatus.OK;
+        }
+        final long deadlineMs = SystemClock.elapsedRealtime() + timeoutMs;
+        if (asyncMode) {
+            synchronized (inputLock) {
+                endOfStreamPending = true;
+                feedInputLocked();
+                boolean wasInterrupted = false;
+                long remainingMs;
+                while (!outputEnded && (remainingMs = deadlineMs - SystemClock.elapsedRealtime()) > 0) {
+                    try {
+                        inputLock.wait(remainingMs);
+                    } catch (InterruptedException e) {
+                        wasInterrupted = true;
+                    }
+                }
+                if (wasInterrupted) {
+                    Thread.currentThread().interrupt();
+                }
+                if (!outputEnded) {
+                    Log.w(TAG, "Video encoder not drained in " + timeoutMs + " ms");
+                }
+            }
+            return release();
+        }
+
+        // The output thread stops and releases the codec by itself once the end of stream comes out.
+        try {
+            int index = -1;
+            while (index < 0 && SystemClock.elapsedRealtime() < deadlineMs) {
+                index = codec.dequeueInputBuffer(DEQUEUE_OUTPUT_BUFFER_TIMEOUT_US);
+            }
+            if (index >= 0) {
+                codec.queueInputBuffer(index, 0 /* offset */, 0, System.nanoTime()/1000,
+                        MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                if (outputThread != null) {
+                    joinUninterruptibly(outputThread, Math.max(1, deadlineMs - SystemClock.elapsedRealtime()));
+                }
+            }
+        } catch (IllegalStateException e) {
+            Log.e(TAG, "Video encoder drain failed", e);
+        }
+        return release();
+    }
+
     private boolean joinUninterruptibly(final Thread thread, long timeoutMs) {
         final long startTimeMs = SystemClock.elapsedRealtime();
         long timeRemainingMs = timeoutMs;
@@ -464,14 +642,250 @@ public class TuyaVideoEncoder {
         return !thread.isAlive();
     }
 
+    /**
+     * @return Frames dropped because the codec had no free input buffer for too long, or because encoded frames were
+     *         not written out fast enough and the output pool was full.
+     */
+    public long getDroppedFrames() {
+        synchronized (inputLock) {
+            return droppedFrames;
+        }
+    }
+
+    /**
+     * Queues a frame until the codec reports a free input buffer. Only the newest frames are kept if it falls behind.
+     */
+    private VideoCodecStatus enqueueFrame(VideoFrame videoFrame, long presentationTimestampUs) {
+        synchronized (inputLock) {
+            if (!running) {
+                return VideoCodecStatus.UNINITIALIZED;
+            }
+            if (pendingCount == MAX_PENDING_FRAMES) {
+                pendingFrames[pendingHead] = null;
+                pendingHead = (pendingHead + 1) % MAX_PENDING_FRAMES;
+                pendingCount--;
+                droppedFrames++;
+                Log.d(TAG, "Dropped oldest pending frame, encoder is behind");
+            }
+            int slot = (pendingHead + pendingCount) % MAX_PENDING_FRAMES;
+            pendingFrames[slot] = videoFrame;
+            pendingTimestampsUs[slot] = presentationTimestampUs;
+            pendingCount++;
+            feedInputLocked();
+        }
+        return VideoCodecStatus.OK;
+    }
+
+    /**
+     * Pairs pending frames with free input buffers, in order. Called with inputLock held, from the thread that
+     * enqueued a frame or from the codec thread when a buffer frees up.
+     */
+    private void feedInputLocked() {
+        while (running && pendingCount > 0 && !freeInputBuffers.isEmpty()) {
+            int index = freeInputBuffers.poll();
+            VideoFrame frame = pendingFrames[pendingHead];
+            long presentationTimestampUs = pendingTimestampsUs[pendingHead];
+            pendingFrames[pendingHead] = null;
+            pendingHead = (pendingHead + 1) % MAX_PENDING_FRAMES;
+            pendingCount--;
+            queueInput(index, frame, presentationTimestampUs, 0);
+        }
+        if (running && endOfStreamPending && pendingCount == 0 && !freeInputBuffers.isEmpty()) {
+            endOfStreamPending = false;
+            queueInput(freeInputBuffers.poll(), null, System.nanoTime()/1000,
+                    MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private void queueInput(int index, VideoFrame frame, long presentationTimestampUs, int flags) {
+        try {
+            int size = 0;
+            if (frame != null) {
+                // The Image knows the real plane layout; fall back to the buffer for formats it cannot describe.
+                Image image = sourceFourcc(frame.getPixelFmt()) != 0 ? codec.getInputImage(index) : null;
+                if (image != null) {
+                    size = fillInputImage(image, frame);
+                } else {
+                    ByteBuffer buffer = codec.getInputBuffer(index);
+                    buffer.clear();
+                    size = fillInputBuffer(buffer, frame);
+                }
+                size = Math.max(size, 0);
+            }
+            codec.queueInputBuffer(index, 0 /* offset */, size, presentationTimestampUs, flags);
+        } catch (IllegalStateException e) {
+            Log.e(TAG, "queueInputBuffer failed", e);
+        }
+    }
+
+    private void clearPendingFramesLocked() {
+        for (int i = 0; i < MAX_PENDING_FRAMES; i++) {
+            pendingFrames[i] = null;
+        }
+        pendingHead = 0;
+        pendingCount = 0;
+    }
+
+    /**
+     * Must be called before configure.
+     */
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private void setAsyncCallback() {
+        codec.setCallback(new AsyncCallback());
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private class AsyncCallback extends MediaCodec.Callback {
+        @Override
+        public void onInputBufferAvailable(@NonNull MediaCodec mediaCodec, int index) {
+            synchronized (inputLock) {
+                if (!running) {
+                    return;
+                }
+                freeInputBuffers.add(index);
+                feedInputLocked();
+            }
+        }
+
+        @Override
+        public void onOutputBufferAvailable(@NonNull MediaCodec mediaCodec, int index,
+                                            @NonNull MediaCodec.BufferInfo info) {
+            if (!running) {
+                return;
+            }
+            try {
+                if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                    Log.i(TAG, "Recv Video Encoder BUFFER_FLAG_END_OF_STREAM");
+                    mediaCodec.releaseOutputBuffer(index, false);
+                    synchronized (inputLock) {
+                        outputEnded = true;
+                        inputLock.notifyAll();
+                    }
+                    return;
+                }
+                deliverOutput(mediaCodec, mediaCodec.getOutputBuffer(index), index, info);
+            } catch (IllegalStateException e) {
+                Log.e(TAG, "deliverOutput failed", e);
+            }
+        }
+
+        @Override
+        public void onError(@NonNull MediaCodec mediaCodec, @NonNull MediaCodec.CodecException e) {
+            Log.e(TAG, "Video encoder error", e);
+        }
+
+        @Override
+        public void onOutputFormatChanged(@NonNull MediaCodec mediaCodec, @NonNull MediaFormat format) {
+            callback.onAddVideoTrack(format);
+        }
+    }
+
+    /**
+     * Writes a frame into a codec input buffer, laid out as {@link #inputLayout} says.
+     *
+     * @return Bytes to queue, or -1 if the frame could not be written.
+     */
     // Visible for testing.
-    protected void fillInputBuffer(ByteBuffer buffer, VideoFrame frame) {
-        if ((buffer != null) && (frame != null)) {
-            //Log.e(TAG, "width " + frame.getWidth() + " height " + frame.getHeight());
+    protected int fillInputBuffer(ByteBuffer buffer, VideoFrame frame) {
+        if ((buffer == null) || (frame == null)) {
+            return -1;
+        }
+        //Log.e(TAG, "width " + frame.getWidth() + " height " + frame.getHeight());
+        TuyaYuvLayout layout = inputLayout;
+        int frameFourcc = sourceFourcc(frame.getPixelFmt());
+        if (frameFourcc == 0 || layout == null || !buffer.isDirect()
+                || layout.matchesPacked(frameFourcc, frame.getWidth(), frame.getHeight())) {
+            if (buffer.remaining() < frame.getData().length) {
+                Log.e(TAG, "Frame of " + frame.getData().length + " bytes does not fit in " + buffer.remaining());
+                return -1;
+            }
             buffer.put(frame.getData());
+            return frame.getWidth() * frame.getHeight() * 3 / 2;
+        }
+        // One pass from the frame into the codec's memory, padding included, no intermediate frame.
+        int base = buffer.position();
+        int result = YuvUtils.yuvConvertToPlanes(frame.getData(), frameFourcc, frame.getWidth(), frame.getHeight(),
+                buffer, base, layout.yRowStride,
+                buffer, base + layout.uOffset, layout.chromaRowStride,
+                buffer, base + layout.vOffset, layout.chromaRowStride,
+                layout.chromaPixelStride);
+        if (result < 0) {
+            Log.e(TAG, "Cannot convert frame " + frame.getWidth() + "x" + frame.getHeight() + " format "
+                    + frame.getPixelFmt() + " into " + layout + ", buffer of " + buffer.capacity());
+            return -1;
+        }
+        return layout.size;
+    }
+
+    /**
+     * Writes a frame into the planes of a codec input image, following their row and pixel strides.
+     *
+     * @return Bytes from the start of the Y plane to the last byte written, to queue, or -1 if the frame could not be
+     *         written.
+     */
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private int fillInputImage(Image image, VideoFrame frame) {
+        Image.Plane[] planes = image.getPlanes();
+        ByteBuffer y = planes[0].getBuffer();
+        ByteBuffer u = planes[1].getBuffer();
+        ByteBuffer v = planes[2].getBuffer();
+        int result = YuvUtils.yuvConvertToPlanes(frame.getData(), sourceFourcc(frame.getPixelFmt()),
+                frame.getWidth(), frame.getHeight(),
+                y, y.position(), planes[0].getRowStride(),
+                u, u.position(), planes[1].getRowStride(),
+                v, v.position(), planes[2].getRowStride(),
+                planes[1].getPixelStride());
+        if (result < 0) {
+            Log.e(TAG, "Cannot convert frame " + frame.getWidth() + "x" + frame.getHeight() + " format "
+                    + frame.getPixelFmt() + " into input image, chroma pixel stride " + planes[1].getPixelStride());
+            return -1;
+        }
+        // The span of the planes as written, which may differ from the layout the format announced.
+        return result;
+    }
+
+    /**
+     * Reads the Y row stride and slice height the configured codec expects, leaving 0 for those it does not report.
+     */
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private void readInputStrides(int[] strides) {
+        try {
+            MediaFormat inputFormat = codec.getInputFormat();
+            if (inputFormat.containsKey(MediaFormat.KEY_STRIDE)) {
+                strides[0] = inputFormat.getInteger(MediaFormat.KEY_STRIDE);
+            }
+            if (inputFormat.containsKey(MediaFormat.KEY_SLICE_HEIGHT)) {
+                strides[1] = inputFormat.getInteger(MediaFormat.KEY_SLICE_HEIGHT);
+            }
+        } catch (IllegalStateException e) {
+            Log.e(TAG, "getInputFormat failed", e);
         }
     }
 
+    /**
+     * Changes the target bitrate of the running codec without restarting it. Needs API 19; does nothing before.
+     *
+     * @return Whether the codec accepted the new bitrate.
+     */
+    public boolean setBitrate(int bitrate) {
+        MediaCodec mediaCodec = codec;
+        if (mediaCodec == null || Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT) {
+            return false;
+        }
+        try {
+            Bundle b = new Bundle();
+            b.putInt(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, bitrate);
+            mediaCodec.setParameters(b);
+        } catch (IllegalStateException e) {
+            Log.e(TAG, "setBitrate failed", e);
+            return false;
+        }
+        // Also used if the codec is reset for a new frame size.
+        settings.bitrate = bitrate;
+        return true;
+    }
+
     public void requestKeyFrame(long presentationTimestampNs) {
         // Ideally MediaCodec would honor BUFFER_FLAG_SYNC_FRAME so we could
         // indicate this in queueInputBuffer() below and guarantee _this_ frame
@@ -489,25 +903,6 @@ public class TuyaVideoEncoder {
         }
     }
 
-    private MediaCodecInfo selectCodec(String mimeType) {
-        int numCodecs = MediaCodecList.getCodecCount();
-        for (int i = 0; i < numCodecs; i++) {
-            MediaCodecInfo codecInfo = MediaCodecList.getCodecInfoAt(i);
-            if (!codecInfo.isEncoder()) {
-                continue;
-            }
-            String[] types = codecInfo.getSupportedTypes();
-            for (int j = 0; j < types.length; j++) {
-                if (types[j].equalsIgnoreCase(mimeType)) {
-                    return codecInfo;
-                }
-            }
-        }
-        return null;
-    }
-
-
-
     private void selectColorFormat(MediaCodecInfo codecInfo, String mimeType) {
         MediaCodecInfo.CodecCapabilities capabilities = codecInfo
                 .getCapabilitiesForType(mimeType);
@@ -521,8 +916,23 @@ public class TuyaVideoEncoder {
 
 
 
+    /**
+     * Picks the first supported colour format whose layout matches the source, or else the first supported one.
+     */
     private Integer selectColorFormat(
-            int[] supportedColorFormats, MediaCodecInfo.CodecCapabilities capabilities) {
+            int[] supportedColorFormats, MediaCodecInfo.CodecCapabilities capabilities, int sourceFourcc) {
+        if (sourceFourcc != 0) {
+            for (int supportedColorFormat : supportedColorFormats) {
+                if (codecFourcc(supportedColorFormat) != sourceFourcc) {
+                    continue;
+                }
+                for (int codecColorFormat : capabilities.colorFormats) {
+                    if (codecColorFormat == supportedColorFormat) {
+                        return codecColorFormat;
+                    }
+                }
+            }
+        }
         for (int supportedColorFormat : supportedColorFormats) {
             for (int codecColorFormat : capabilities.colorFormats) {
                 if (codecColorFormat == supportedColorFormat) {
@@ -533,6 +943,85 @@ public class TuyaVideoEncoder {
         return null;
     }
 
+    /**
+     * Scales a frame to another size, as I420. Used to keep an encoder busy while another one is started for the new
+     * size of the source.
+     *
+     * @return The scaled frame, or null if frames in this format cannot be scaled.
+     */
+    static VideoFrame scaleFrame(VideoFrame frame, int width, int height) {
+        byte[] i420 = toI420(frame);
+        if (i420 == null) {
+            return null;
+        }
+        byte[] scaled = new byte[width * height * 3 / 2];
+        YuvUtils.yuvScaleI420(i420, frame.getWidth(), frame.getHeight(), scaled, width, height, 0);
+        return new VideoFrame(scaled, YuvUtils.FOURCC_I420, width, height, frame.getFramerate(),
+                frame.getTimestampNs());
+    }
+
+    /**
+     * @return The data of a frame as I420, the frame's own array if it is already, or null for an unknown format.
+     */
+    static byte[] toI420(VideoFrame frame) {
+        byte[] src = frame.getData();
+        int lumaSize = frame.getWidth() * frame.getHeight();
+        int chromaSize = lumaSize / 4;
+        byte[] i420;
+        switch (sourceFourcc(frame.getPixelFmt())) {
+            case YuvUtils.FOURCC_I420:
+                return src;
+            case YuvUtils.FOURCC_NV21:
+                i420 = new byte[lumaSize + chromaSize * 2];
+                YuvUtils.yuvNV21ToI420(src, frame.getWidth(), frame.getHeight(), i420);
+                return i420;
+            case YuvUtils.FOURCC_YV12:
+                // Same planes as I420, with V before U.
+                i420 = new byte[lumaSize + chromaSize * 2];
+                System.arraycopy(src, 0, i420, 0, lumaSize);
+                System.arraycopy(src, lumaSize + chromaSize, i420, lumaSize, chromaSize);
+                System.arraycopy(src, lumaSize, i420, lumaSize + chromaSize, chromaSize);
+                return i420;
+            case YuvUtils.FOURCC_NV12:
+                i420 = new byte[lumaSize + chromaSize * 2];
+                System.arraycopy(src, 0, i420, 0, lumaSize);
+                for (int i = 0; i < chromaSize; i++) {
+                    i420[lumaSize + i] = src[lumaSize + 2 * i];
+                    i420[lumaSize + chromaSize + i] = src[lumaSize + 2 * i + 1];
+                }
+                return i420;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * @return Layout of a codec colour format from {@link #ENCODER_COLOR_FORMATS}, as a YuvUtils FourCC.
+     */
+    static int codecFourcc(int colorFormat) {
+        return colorFormat == MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Planar
+                ? YuvUtils.FOURCC_I420 : YuvUtils.FOURCC_NV12;
+    }
+
+    /**
+     * @param pixelFmt
+     *            A YuvUtils FourCC, or an {@link ImageFormat} constant as reported by the camera.
+     * @return Layout of frames in the given format as a YuvUtils FourCC, or 0 if it is unknown.
+     */
+    static int sourceFourcc(int pixelFmt) {
+        switch (pixelFmt) {
+            case ImageFormat.NV21:
+                return YuvUtils.FOURCC_NV21;
+            case YuvUtils.FOURCC_I420:
+            case YuvUtils.FOURCC_YV12:
+            case YuvUtils.FOURCC_NV12:
+            case YuvUtils.FOURCC_NV21:
+                return pixelFmt;
+            default:
+                return 0;
+        }
+    }
+
     private boolean codecSupportsType(MediaCodecInfo info, MimeType type) {
         for (String mimeType : info.getSupportedTypes()) {
             if (type.mimeType().equals(mimeType)) {
@@ -599,7 +1088,38 @@ public class TuyaVideoEncoder {
         }
     }
 
+    /**
+     * @return The settings the codec is configured with. The size follows the frames once {@link #encode} has reset the
+     *         codec for them.
+     */
+    Settings getSettings() {
+        return settings;
+    }
+
+    /**
+     * Makes encoded frames come from the given pool, for instance one shared with the audio encoder. Call before
+     * {@link #initEncode()}.
+     */
+    public void setOutputPool(TuyaBufferPool pool) {
+        if (pool == null) {
+            throw new IllegalArgumentException("pool is null");
+        }
+        outputPool = pool;
+    }
+
+    /**
+     * @return The pool that buffers passed to {@link Callback#onVideoFrame} must be released to.
+     */
+    public TuyaBufferPool getOutputPool() {
+        return outputPool;
+    }
+
     public interface Callback {
+        /**
+         * @param frame
+         *            Encoded frame in a buffer from {@link #getOutputPool()}. The callback owns it and must release it
+         *            to the pool once it is done, on any thread.
+         */
         public void onVideoFrame(ByteBuffer frame, MediaCodec.BufferInfo bufferInfo);
 
         public void onAddVideoTrack(MediaFormat format);
@@ -0,0 +1,116 @@
+package com.tuya.record;
+
+import android.media.MediaCodecInfo;
+
+import com.erick.utils.libyuv.YuvUtils;
+
+/**
+ * Where the planes of a YUV 4:2:0 frame go in a codec input buffer of a given colour format, once the row stride and
+ * slice height the codec asks for are taken into account. Offsets are from the start of the buffer.
+ *
+ * Planar formats keep U after the Y plane and V after U, each chroma row half as long as a Y row. Semi-planar formats
+ * interleave U and V after the Y plane. Qualcomm's 32m format (the Venus layout) aligns rows to 128 bytes, Y lines to
+ * 32 and chroma lines to 16, and rounds the whole buffer up to 4 KiB.
+ */
+final class TuyaYuvLayout {
+    static final int VENUS_STRIDE_ALIGNMENT = 128;
+    static final int VENUS_Y_SCANLINE_ALIGNMENT = 32;
+    static final int VENUS_UV_SCANLINE_ALIGNMENT = 16;
+    static final int VENUS_BUFFER_ALIGNMENT = 4096;
+
+    final int width;
+    final int height;
+    final int yRowStride;
+    final int uOffset;
+    final int vOffset;
+    final int chromaRowStride;
+    final int chromaPixelStride;
+
+    /**
+     * Bytes to queue for one frame.
+     */
+    final int size;
+
+    private TuyaYuvLayout(int width, int height, int yRowStride, int uOffset, int vOffset, int chromaRowStride,
+                          int chromaPixelStride, int size) {
+        this.width = width;
+        this.height = height;
+        this.yRowStride = yRowStride;
+        this.uOffset = uOffset;
+        this.vOffset = vOffset;
+        this.chromaRowStride = chromaRowStride;
+        this.chromaPixelStride = chromaPixelStride;
+        this.size = size;
+    }
+
+    /**
+     * @param colorFormat
+     *            One of {@link TuyaVideoEncoder#ENCODER_COLOR_FORMATS}.
+     * @param stride
+     *            Row stride of the Y plane reported by the codec, or 0 if it did not report one.
+     * @param sliceHeight
+     *            Number of Y lines reported by the codec, or 0 if it did not report one.
+     */
+    static TuyaYuvLayout forColorFormat(int colorFormat, int width, int height, int stride, int sliceHeight) {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("invalid size: " + width + "x" + height);
+        }
+        int yRowStride = Math.max(stride, width);
+        int ySliceHeight = Math.max(sliceHeight, height);
+        int chromaWidth = (width + 1) / 2;
+        int chromaHeight = (height + 1) / 2;
+
+        switch (colorFormat) {
+            case MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Planar: {
+                int chromaRowStride = (yRowStride + 1) / 2;
+                int chromaSliceHeight = (ySliceHeight + 1) / 2;
+                int uOffset = yRowStride * ySliceHeight;
+                int vOffset = uOffset + chromaRowStride * chromaSliceHeight;
+                return new TuyaYuvLayout(width, height, yRowStride, uOffset, vOffset, chromaRowStride, 1,
+                        vOffset + chromaRowStride * chromaHeight);
+            }
+            case TuyaVideoEncoder.COLOR_QCOM_FORMATYUV420PackedSemiPlanar32m: {
+                yRowStride = align(yRowStride, VENUS_STRIDE_ALIGNMENT);
+                ySliceHeight = align(ySliceHeight, VENUS_Y_SCANLINE_ALIGNMENT);
+                int uOffset = yRowStride * ySliceHeight;
+                int chromaPlane = yRowStride * align(chromaHeight, VENUS_UV_SCANLINE_ALIGNMENT);
+                return new TuyaYuvLayout(width, height, yRowStride, uOffset, uOffset + 1, yRowStride, 2,
+                        align(uOffset + chromaPlane + VENUS_BUFFER_ALIGNMENT, VENUS_BUFFER_ALIGNMENT));
+            }
+            default: {
+                // COLOR_FormatYUV420SemiPlanar and COLOR_QCOM_FormatYUV420SemiPlanar. A chroma row of an odd width
+                // is one byte longer than a Y row.
+                yRowStride = Math.max(yRowStride, chromaWidth * 2);
+                int uOffset = yRowStride * ySliceHeight;
+                return new TuyaYuvLayout(width, height, yRowStride, uOffset, uOffset + 1, yRowStride, 2,
+                        uOffset + yRowStride * chromaHeight);
+            }
+        }
+    }
+
+    /**
+     * @return Whether a tightly packed frame of the given YuvUtils FourCC already has this layout, so it can be
+     *         copied as it is.
+     */
+    boolean matchesPacked(int fourcc, int frameWidth, int frameHeight) {
+        if (frameWidth != width || frameHeight != height || yRowStride != width || uOffset != width * height) {
+            return false;
+        }
+        int chromaSize = ((width + 1) / 2) * ((height + 1) / 2);
+        if (chromaPixelStride == 1) {
+            return fourcc == YuvUtils.FOURCC_I420 && vOffset == uOffset + chromaSize
+                    && size == vOffset + chromaSize;
+        }
+        return fourcc == YuvUtils.FOURCC_NV12 && size == uOffset + chromaSize * 2;
+    }
+
+    private static int align(int value, int alignment) {
+        return (value + alignment - 1) / alignment * alignment;
+    }
+
+    @Override
+    public String toString() {
+        return width + "x" + height + " stride " + yRowStride + " u " + uOffset + " v " + vOffset + " chroma stride "
+                + chromaRowStride + "/" + chromaPixelStride + " size " + size;
+    }
+}
@@ -0,0 +1,98 @@
+package com.tuya.record;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link TuyaAsyncFileWriter}.
+ */
+public class TuyaAsyncFileWriterTest {
+    private static File newFile() throws IOException {
+        File file = File.createTempFile("async", ".bin");
+        file.deleteOnExit();
+        return file;
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            byte[] bytes = new byte[(int) in.length()];
+            in.readFully(bytes);
+            return bytes;
+        } finally {
+            in.close();
+        }
+    }
+
+    @Test
+    public void coalescesSmallWritesInOrder() throws IOException {
+        File file = newFile();
+        TuyaAsyncFileWriter writer = new TuyaAsyncFileWriter(file, TuyaAsyncFileWriter.Durability.NEVER, 0, 1024, 3);
+        byte[] expected = new byte[100 * 37];
+        for (int i = 0; i < 100; i++) {
+            ByteBuffer packet = ByteBuffer.allocate(37);
+            for (int j = 0; j < 37; j++) {
+                packet.put((byte) (i * 37 + j));
+                expected[i * 37 + j] = (byte) (i * 37 + j);
+            }
+            packet.flip();
+            writer.write(new ByteBuffer[]{packet});
+            assertEquals(0, packet.position());
+        }
+        writer.close();
+        assertArrayEquals(expected, readFile(file));
+
+        TuyaAsyncFileWriter.Stats stats = writer.getStats();
+        assertEquals(expected.length, stats.bytesWritten);
+        // Three full buffers and the tail at most, in as many or fewer writes.
+        assertTrue(stats.toString(), stats.writes >= 1 && stats.writes <= 4);
+        assertEquals(0, stats.syncs);
+        assertTrue(stats.latencyP50Us <= stats.latencyP99Us);
+        assertTrue(stats.latencyP99Us <= stats.maxLatencyUs);
+    }
+
+    @Test
+    public void splitsLargeWritesIntoWholeBuffers() throws IOException {
+        File file = newFile();
+        TuyaAsyncFileWriter writer = new TuyaAsyncFileWriter(file, TuyaAsyncFileWriter.Durability.ON_CLOSE, 0, 4096,
+                2);
+        byte[] bytes = new byte[3 * 4096 + 100];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) (i * 7);
+        }
+        ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length);
+        direct.put(bytes);
+        direct.flip();
+        writer.write(direct);
+        writer.close();
+        writer.close();
+        assertArrayEquals(bytes, readFile(file));
+        assertEquals(1, writer.getStats().syncs);
+    }
+
+    @Test
+    public void syncsOnInterval() throws IOException {
+        File file = newFile();
+        TuyaAsyncFileWriter writer = new TuyaAsyncFileWriter(file, TuyaAsyncFileWriter.Durability.INTERVAL, 0, 16, 2);
+        for (int i = 0; i < 4; i++) {
+            writer.write(ByteBuffer.allocate(16));
+        }
+        writer.close();
+        assertEquals(64, file.length());
+        // At least one batch synced on the way, and the close.
+        assertTrue(writer.getStats().syncs >= 2);
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsWritesAfterClose() throws IOException {
+        TuyaAsyncFileWriter writer = new TuyaAsyncFileWriter(newFile(), TuyaAsyncFileWriter.Durability.NEVER, 0);
+        writer.close();
+        writer.write(ByteBuffer.allocate(1));
+    }
+}
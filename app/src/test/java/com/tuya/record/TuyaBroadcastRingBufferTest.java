@@ -0,0 +1,110 @@
+package com.tuya.record;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link TuyaBroadcastRingBuffer}.
+ */
+public class TuyaBroadcastRingBufferTest {
+    @Test
+    public void readersDrainIndependently() {
+        TuyaBroadcastRingBuffer ring = new TuyaBroadcastRingBuffer(8);
+        TuyaBroadcastRingBuffer.Reader encoder = ring.register(TuyaBroadcastRingBuffer.OverrunPolicy.PUSH_FORWARD);
+        TuyaBroadcastRingBuffer.Reader meter = ring.register(TuyaBroadcastRingBuffer.OverrunPolicy.DETECT_LAG);
+        assertEquals(2, ring.readerCount());
+
+        ring.push(new byte[]{1, 2, 3, 4});
+        byte[] out = new byte[8];
+        assertEquals(4, encoder.pop(out, 0, 8));
+        assertEquals(2, meter.pop(out, 0, 2));
+        assertEquals(0, encoder.sizeUsed());
+        assertEquals(2, meter.sizeUsed());
+
+        ring.unregister(encoder);
+        assertEquals(1, ring.readerCount());
+    }
+
+    @Test
+    public void pushForwardReaderIsMovedByWriter() {
+        TuyaBroadcastRingBuffer ring = new TuyaBroadcastRingBuffer(4);
+        TuyaBroadcastRingBuffer.Reader reader = ring.register(TuyaBroadcastRingBuffer.OverrunPolicy.PUSH_FORWARD);
+
+        ring.push(new byte[]{1, 2, 3});
+        ring.push(new byte[]{4, 5, 6});
+        assertEquals(2, reader.lostBytes());
+        assertEquals(2, reader.position());
+
+        byte[] out = new byte[4];
+        assertEquals(4, reader.pop(out, 0, 4));
+        assertArrayEquals(new byte[]{3, 4, 5, 6}, out);
+    }
+
+    @Test
+    public void detectLagReaderReportsGapOnce() {
+        TuyaBroadcastRingBuffer ring = new TuyaBroadcastRingBuffer(4);
+        TuyaBroadcastRingBuffer.Reader reader = ring.register(TuyaBroadcastRingBuffer.OverrunPolicy.DETECT_LAG);
+
+        ring.push(new byte[]{1, 2, 3});
+        ring.push(new byte[]{4, 5, 6});
+        assertEquals(0, reader.lostBytes());
+
+        byte[] out = new byte[4];
+        assertEquals(TuyaBroadcastRingBuffer.LAGGED, reader.pop(out, 0, 4));
+        assertEquals(2, reader.lostBytes());
+        assertEquals(1, reader.overruns());
+        assertEquals(4, reader.pop(out, 0, 4));
+        assertArrayEquals(new byte[]{3, 4, 5, 6}, out);
+    }
+
+    @Test(timeout = 60000)
+    public void concurrentReadersNeverSeeTornChunks() throws Exception {
+        final TuyaBroadcastRingBuffer ring = new TuyaBroadcastRingBuffer(1021);
+        final TuyaBroadcastRingBuffer.OverrunPolicy[] policies = {
+                TuyaBroadcastRingBuffer.OverrunPolicy.PUSH_FORWARD,
+                TuyaBroadcastRingBuffer.OverrunPolicy.DETECT_LAG,
+                TuyaBroadcastRingBuffer.OverrunPolicy.PUSH_FORWARD};
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final long total = 4 * 1024 * 1024;
+        Thread[] consumers = new Thread[policies.length];
+
+        for (int c = 0; c < policies.length; c++) {
+            final TuyaBroadcastRingBuffer.Reader reader = ring.register(policies[c]);
+            final int chunkSize = 64 + c * 200;
+            consumers[c] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    byte[] chunk = new byte[chunkSize];
+                    while (reader.position() < total && failure.get() == null) {
+                        int popped = reader.pop(chunk, 0, chunk.length);
+                        for (int i = 1; i < popped; i++) {
+                            if (chunk[i] != (byte) ((chunk[i - 1] & 0xFF) + 1)) {
+                                failure.set(new AssertionError("Torn chunk"));
+                                return;
+                            }
+                        }
+                    }
+                }
+            });
+            consumers[c].start();
+        }
+
+        byte[] chunk = new byte[333];
+        long position = 0;
+        while (position < total) {
+            int length = (int) Math.min(chunk.length, total - position);
+            for (int i = 0; i < length; i++) {
+                chunk[i] = (byte) (position + i);
+            }
+            ring.push(chunk, 0, length);
+            position += length;
+        }
+        for (Thread consumer : consumers) {
+            consumer.join();
+        }
+        assertNull(failure.get());
+    }
+}
@@ -0,0 +1,78 @@
+package com.tuya.record;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link TuyaBufferPool}.
+ */
+public class TuyaBufferPoolTest {
+    @Test
+    public void roundsUpToSizeClass() {
+        TuyaBufferPool pool = new TuyaBufferPool(1 << 20);
+        ByteBuffer small = pool.acquire(10);
+        assertTrue(small.isDirect());
+        assertEquals(TuyaBufferPool.MIN_BUFFER_SIZE, small.capacity());
+        assertEquals(0, small.position());
+        assertEquals(10, small.limit());
+        assertEquals(4096, pool.acquire(4096).capacity());
+        assertEquals(8192, pool.acquire(4097).capacity());
+        assertEquals(1024 + 4096 + 8192, pool.allocatedBytes());
+    }
+
+    @Test
+    public void steadyStateReusesBuffers() {
+        TuyaBufferPool pool = new TuyaBufferPool(1 << 20);
+        for (int i = 0; i < 100; i++) {
+            ByteBuffer a = pool.acquire(3000 + i);
+            ByteBuffer b = pool.acquire(100);
+            a.put((byte) 1);
+            pool.release(a);
+            pool.release(b);
+        }
+        assertEquals(2, pool.allocations());
+        assertEquals(0, pool.outstandingBuffers());
+
+        ByteBuffer again = pool.acquire(2000);
+        assertEquals(0, again.position());
+        assertEquals(2000, again.limit());
+    }
+
+    @Test
+    public void capacityIsEnforced() {
+        TuyaBufferPool pool = new TuyaBufferPool(8192);
+        ByteBuffer first = pool.acquire(4096);
+        ByteBuffer second = pool.acquire(4096);
+        assertNull(pool.acquire(1));
+        assertEquals(1, pool.rejections());
+
+        // A free buffer of another class makes room for the new one.
+        pool.release(first);
+        ByteBuffer small = pool.acquire(1);
+        assertNotNull(small);
+        assertEquals(4096 + 1024, pool.allocatedBytes());
+        assertTrue(pool.allocatedBytes() <= pool.capacity());
+
+        pool.release(second);
+        pool.release(small);
+        pool.trim();
+        assertEquals(0, pool.allocatedBytes());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsForeignBuffer() {
+        TuyaBufferPool pool = new TuyaBufferPool(8192);
+        pool.release(ByteBuffer.allocateDirect(1024));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsDoubleRelease() {
+        TuyaBufferPool pool = new TuyaBufferPool(8192);
+        ByteBuffer buffer = pool.acquire(100);
+        pool.release(buffer);
+        pool.release(buffer);
+    }
+}
@@ -0,0 +1,59 @@
+package com.tuya.record;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for the result file of {@link TuyaCodecProbe}.
+ */
+public class TuyaCodecProbeTest {
+    private static final String FINGERPRINT = "vendor/device/device:11/RQ1A/1234:user/release-keys";
+
+    private static byte[] write(String fingerprint, int sdkInt, List<TuyaCodecProbe.Result> results)
+            throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        TuyaCodecProbe.writeResults(out, fingerprint, sdkInt, results);
+        return out.toByteArray();
+    }
+
+    @Test
+    public void resultsRoundTripFastestFirst() throws IOException {
+        byte[] file = write(FINGERPRINT, 30, Arrays.asList(
+                new TuyaCodecProbe.Result("video/avc", "OMX.google.h264.encoder", 19, 41.5f),
+                new TuyaCodecProbe.Result("video/avc", "OMX.qcom.video.encoder.avc", 21, 240f),
+                new TuyaCodecProbe.Result("video/avc", "OMX.qcom.video.encoder.avc", 2141391876, 0f)));
+
+        List<TuyaCodecProbe.Result> read =
+                TuyaCodecProbe.readResults(new ByteArrayInputStream(file), FINGERPRINT, 30);
+        assertEquals(3, read.size());
+        assertEquals("OMX.qcom.video.encoder.avc", read.get(0).codecName);
+        assertEquals(21, read.get(0).colorFormat);
+        assertEquals(240f, read.get(0).framesPerSecond, 0f);
+        assertEquals("OMX.google.h264.encoder", read.get(1).codecName);
+        assertEquals("video/avc", read.get(1).mimeType);
+        assertEquals(0f, read.get(2).framesPerSecond, 0f);
+    }
+
+    @Test
+    public void otherBuildIsIgnored() throws IOException {
+        byte[] file = write(FINGERPRINT, 30, Arrays.asList(
+                new TuyaCodecProbe.Result("video/avc", "c2.android.avc.encoder", 21, 60f)));
+        assertNull(TuyaCodecProbe.readResults(new ByteArrayInputStream(file), FINGERPRINT + "2", 30));
+        assertNull(TuyaCodecProbe.readResults(new ByteArrayInputStream(file), FINGERPRINT, 31));
+        assertNull(TuyaCodecProbe.readResults(new ByteArrayInputStream(new byte[16]), FINGERPRINT, 30));
+    }
+
+    @Test(expected = IOException.class)
+    public void truncatedFileFails() throws IOException {
+        byte[] file = write(FINGERPRINT, 30, Arrays.asList(
+                new TuyaCodecProbe.Result("video/avc", "c2.android.avc.encoder", 21, 60f)));
+        TuyaCodecProbe.readResults(new ByteArrayInputStream(Arrays.copyOf(file, file.length - 3)), FINGERPRINT, 30);
+    }
+}
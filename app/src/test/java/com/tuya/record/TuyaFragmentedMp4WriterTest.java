@@ -0,0 +1,300 @@
+package com.tuya.record;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link TuyaFragmentedMp4Writer}, reading the file back box by box.
+ */
+public class TuyaFragmentedMp4WriterTest {
+    private static final byte[] SPS = {0x67, 0x42, (byte) 0xC0, 0x1F, 0x11};
+    private static final byte[] PPS = {0x68, (byte) 0xCE, 0x3C, (byte) 0x80};
+    private static final byte[] ASC = {0x12, 0x10};
+    private static final long FRAME_US = 33333;
+
+    private static File newFile() throws IOException {
+        File file = File.createTempFile("fmp4", ".mp4");
+        file.deleteOnExit();
+        return file;
+    }
+
+    private static final class Box {
+        final String type;
+        final ByteBuffer body;
+        final long offset;
+
+        Box(String type, ByteBuffer body, long offset) {
+            this.type = type;
+            this.body = body;
+            this.offset = offset;
+        }
+    }
+
+    private static List<Box> parse(ByteBuffer buffer, long base) {
+        List<Box> boxes = new ArrayList<>();
+        while (buffer.remaining() >= 8) {
+            int start = buffer.position();
+            int size = buffer.getInt();
+            byte[] type = new byte[4];
+            buffer.get(type);
+            assertTrue("box size " + size, size >= 8 && start + size <= buffer.limit());
+            ByteBuffer body = buffer.duplicate();
+            body.limit(start + size);
+            body = body.slice();
+            boxes.add(new Box(new String(type, StandardCharsets.US_ASCII),
+                    body, base + start + 8));
+            buffer.position(start + size);
+        }
+        assertEquals(0, buffer.remaining());
+        return boxes;
+    }
+
+    private static Box child(Box parent, String type) {
+        for (Box box : parse(parent.body.duplicate(), parent.offset)) {
+            if (box.type.equals(type)) {
+                return box;
+            }
+        }
+        fail("no " + type + " in " + parent.type);
+        return null;
+    }
+
+    private static ByteBuffer readFile(File file) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            byte[] bytes = new byte[(int) in.length()];
+            in.readFully(bytes);
+            return ByteBuffer.wrap(bytes);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static String types(List<Box> boxes) {
+        StringBuilder types = new StringBuilder();
+        for (Box box : boxes) {
+            types.append(box.type).append(' ');
+        }
+        return types.toString().trim();
+    }
+
+    private static ByteBuffer annexB(int frame, boolean key) {
+        ByteBuffer buffer = ByteBuffer.allocate(32);
+        if (key) {
+            buffer.put(new byte[]{0, 0, 0, 1, 0x65, (byte) frame, 0, 0, 3, 1});
+        } else {
+            buffer.put(new byte[]{0, 0, 1, 0x41, (byte) frame, 0, 0, 1, 0x41, 7});
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    @Test
+    public void writesOneFragmentPerGop() throws IOException {
+        File file = newFile();
+        TuyaFragmentedMp4Writer writer = new TuyaFragmentedMp4Writer(file, 0);
+        int video = writer.addAvcTrack(640, 360, SPS, PPS);
+        writer.start();
+        for (int i = 0; i < 9; i++) {
+            ByteBuffer sample = annexB(i, i % 3 == 0);
+            int position = sample.position();
+            writer.writeSample(video, sample, 1000000 + i * FRAME_US, i % 3 == 0);
+            assertEquals(position, sample.position());
+        }
+        assertEquals(2, writer.getFragmentCount());
+        writer.close();
+        assertEquals(3, writer.getFragmentCount());
+        assertEquals(file.length(), writer.getBytesWritten());
+
+        List<Box> boxes = parse(readFile(file), 0);
+        assertEquals("ftyp moov moof mdat moof mdat moof mdat", types(boxes));
+
+        Box stsd = child(child(child(child(child(boxes.get(1), "trak"), "mdia"), "minf"), "stbl"), "stsd");
+        stsd.body.position(8);
+        Box avc1 = parse(stsd.body.slice(), 0).get(0);
+        assertEquals("avc1", avc1.type);
+        avc1.body.position(24);
+        assertEquals(640, avc1.body.getShort());
+        assertEquals(360, avc1.body.getShort());
+
+        long lastDecodeTime = -1;
+        for (int f = 0; f < 3; f++) {
+            Box moof = boxes.get(2 + f * 2);
+            Box mdat = boxes.get(3 + f * 2);
+            assertEquals(f + 1, child(moof, "mfhd").body.getInt(4));
+            Box traf = child(moof, "traf");
+            long decodeTime = child(traf, "tfdt").body.getLong(4);
+            assertTrue(decodeTime > lastDecodeTime);
+            lastDecodeTime = decodeTime;
+
+            ByteBuffer trun = child(traf, "trun").body;
+            assertEquals(3, trun.getInt(4));
+            int dataOffset = trun.getInt(8);
+            assertEquals(mdat.offset, moof.offset - 8 + dataOffset);
+            assertEquals(0x02000000, trun.getInt(20));
+            assertEquals(0x01010000, trun.getInt(32));
+
+            // Key frame: one NAL with its start code replaced by a length.
+            ByteBuffer data = mdat.body;
+            assertEquals(10, trun.getInt(16));
+            assertEquals(6, data.getInt(0));
+            assertEquals(0x65, data.get(4));
+            assertEquals(f * 3, data.get(5));
+            // Other frames: two NALs behind 3-byte start codes.
+            assertEquals(12, trun.getInt(28));
+            assertEquals(2, data.getInt(10));
+            assertEquals(0x41, data.get(14));
+            assertEquals(f * 3 + 1, data.get(15));
+            assertEquals(2, data.getInt(16));
+            assertEquals(7, data.get(21));
+
+            assertEquals(3000, trun.getInt(12));
+        }
+    }
+
+    @Test
+    public void endsFragmentWithoutKeyFrameAfterWaiting() throws IOException {
+        File file = newFile();
+        TuyaFragmentedMp4Writer writer = new TuyaFragmentedMp4Writer(file, 1000000);
+        int video = writer.addAvcTrack(640, 360, SPS, PPS);
+        writer.start();
+        // One key frame, then a GOP far longer than the fragment duration.
+        long waitFrames = (1000000 + TuyaFragmentedMp4Writer.KEY_FRAME_WAIT_US) / FRAME_US;
+        for (int i = 0; i <= waitFrames + 1; i++) {
+            writer.writeSample(video, annexB(i, i == 0), i * FRAME_US, i == 0);
+        }
+        assertEquals(1, writer.getFragmentCount());
+        writer.close();
+
+        List<Box> boxes = parse(readFile(file), 0);
+        assertEquals("ftyp moov moof mdat moof mdat", types(boxes));
+        ByteBuffer trun = child(child(boxes.get(4), "traf"), "trun").body;
+        // The second fragment starts mid-GOP.
+        assertEquals(0x01010000, trun.getInt(20));
+    }
+
+    @Test
+    public void interleavesTracksInOneFragment() throws IOException {
+        File file = newFile();
+        TuyaFragmentedMp4Writer writer = new TuyaFragmentedMp4Writer(file, 500000);
+        int video = writer.addAvcTrack(320, 240, SPS, PPS);
+        int audio = writer.addAacTrack(44100, 1, ASC);
+        writer.start();
+        ByteBuffer aac = ByteBuffer.wrap(new byte[]{1, 2, 3, 4, 5, 6});
+        int audioSamples = 0;
+        for (int i = 0; i < 30; i++) {
+            long pts = i * FRAME_US;
+            writer.writeSample(video, annexB(i, i % 10 == 0), pts, i % 10 == 0);
+            while (audioSamples * 1024 * 1000000L / 44100 <= pts) {
+                writer.writeSample(audio, aac, audioSamples * 1024 * 1000000L / 44100, true);
+                audioSamples++;
+            }
+        }
+        // Ten frames are shorter than the fragment duration: the GOPs are paired.
+        assertEquals(1, writer.getFragmentCount());
+        writer.close();
+
+        List<Box> boxes = parse(readFile(file), 0);
+        assertEquals("ftyp moov moof mdat moof mdat", types(boxes));
+        int trexCount = 0;
+        for (Box box : parse(child(boxes.get(1), "mvex").body.duplicate(), 0)) {
+            trexCount += box.type.equals("trex") ? 1 : 0;
+        }
+        assertEquals(2, trexCount);
+
+        int totalAudio = 0;
+        for (int f = 0; f < 2; f++) {
+            Box moof = boxes.get(2 + f * 2);
+            Box mdat = boxes.get(3 + f * 2);
+            List<Box> trafs = new ArrayList<>();
+            for (Box box : parse(moof.body.duplicate(), moof.offset)) {
+                if (box.type.equals("traf")) {
+                    trafs.add(box);
+                }
+            }
+            assertEquals(2, trafs.size());
+            ByteBuffer videoRun = child(trafs.get(0), "trun").body;
+            ByteBuffer audioRun = child(trafs.get(1), "trun").body;
+            assertEquals(f == 0 ? 20 : 10, videoRun.getInt(4));
+            int videoBytes = 0;
+            for (int s = 0; s < videoRun.getInt(4); s++) {
+                videoBytes += videoRun.getInt(16 + s * 12);
+            }
+            int audioCount = audioRun.getInt(4);
+            totalAudio += audioCount;
+            assertEquals(1024, audioRun.getInt(12));
+            assertEquals(6, audioRun.getInt(16));
+            assertEquals(videoRun.getInt(8) + videoBytes, audioRun.getInt(8));
+            assertEquals(mdat.body.limit(), videoBytes + audioCount * 6);
+            assertEquals(1, mdat.body.get(videoBytes));
+        }
+        assertEquals(audioSamples, totalAudio);
+    }
+
+    @Test
+    public void keepsDecodeTimesIncreasing() throws IOException {
+        File file = newFile();
+        TuyaFragmentedMp4Writer writer = new TuyaFragmentedMp4Writer(file, 0);
+        int audio = writer.addAacTrack(48000, 2, ASC);
+        writer.start();
+        ByteBuffer aac = ByteBuffer.wrap(new byte[]{9});
+        writer.writeSample(audio, aac, 500000, true);
+        writer.writeSample(audio, aac, 500000, true);
+        writer.writeSample(audio, aac, 400000, true);
+        writer.close();
+
+        List<Box> boxes = parse(readFile(file), 0);
+        assertEquals("ftyp moov moof mdat", types(boxes));
+        Box traf = child(boxes.get(2), "traf");
+        assertEquals(0, child(traf, "tfdt").body.getLong(4));
+        ByteBuffer trun = child(traf, "trun").body;
+        assertEquals(3, trun.getInt(4));
+        assertEquals(1, trun.getInt(12));
+        assertEquals(1, trun.getInt(24));
+        assertEquals(1, trun.getInt(36));
+    }
+
+    @Test
+    public void writesSameFileThroughAsyncWriter() throws IOException {
+        File direct = newFile();
+        File async = newFile();
+        TuyaFragmentedMp4Writer[] writers = {
+                new TuyaFragmentedMp4Writer(direct, 0),
+                new TuyaFragmentedMp4Writer(new TuyaAsyncFileWriter(async, TuyaAsyncFileWriter.Durability.NEVER, 0,
+                        256, 2), 0)
+        };
+        for (TuyaFragmentedMp4Writer writer : writers) {
+            int video = writer.addAvcTrack(640, 360, SPS, PPS);
+            writer.start();
+            for (int i = 0; i < 20; i++) {
+                writer.writeSample(video, annexB(i, i % 5 == 0), i * FRAME_US, i % 5 == 0);
+            }
+            writer.close();
+        }
+        ByteBuffer expected = readFile(direct);
+        assertEquals(expected, readFile(async));
+        assertEquals(expected.capacity(), writers[1].getBytesWritten());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void rejectsTracksAfterStart() throws IOException {
+        File file = newFile();
+        TuyaFragmentedMp4Writer writer = new TuyaFragmentedMp4Writer(file, 0);
+        try {
+            writer.addAacTrack(48000, 2, ASC);
+            writer.start();
+            writer.addAvcTrack(640, 360, SPS, PPS);
+        } finally {
+            writer.close();
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package com.tuya.record;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link TuyaFramePacer}.
+ */
+public class TuyaFramePacerTest {
+    private static final long MS = 1000000L;
+
+    private static String pace(TuyaFramePacer pacer, int sourceFps, int frames, long startNs) {
+        StringBuilder kept = new StringBuilder();
+        for (int i = 0; i < frames; i++) {
+            kept.append(pacer.accept(startNs + i * 1000000000L / sourceFps) ? 'K' : '.');
+        }
+        return kept.toString();
+    }
+
+    @Test
+    public void halvesDoubleRate() {
+        TuyaFramePacer pacer = new TuyaFramePacer(30);
+        assertEquals("K.K.K.K.K.K.", pace(pacer, 60, 12, 0));
+        assertEquals(6, pacer.getKeptFrames());
+        assertEquals(6, pacer.getDecimatedFrames());
+    }
+
+    @Test
+    public void keepsEvenCadence() {
+        TuyaFramePacer pacer = new TuyaFramePacer(20);
+        String kept = pace(pacer, 30, 30, 5 * MS);
+        assertEquals(20, pacer.getKeptFrames());
+        assertEquals(10, pacer.getDecimatedFrames());
+        // Never two drops in a row, never three frames kept in a row.
+        assertFalse(kept, kept.contains(".."));
+        assertFalse(kept, kept.contains("KKK"));
+    }
+
+    @Test
+    public void keepsEverythingFromSlowerSource() {
+        TuyaFramePacer pacer = new TuyaFramePacer(30);
+        assertEquals("KKKKKKKKKK", pace(pacer, 15, 10, 0));
+
+        TuyaFramePacer jittery = new TuyaFramePacer(30);
+        long[] arrivals = {0, 31, 68, 99, 134, 165, 201, 232};
+        for (long arrival : arrivals) {
+            assertTrue(jittery.accept(arrival * MS));
+        }
+        assertEquals(0, jittery.getDecimatedFrames());
+    }
+
+    @Test
+    public void noBurstAfterPause() {
+        TuyaFramePacer pacer = new TuyaFramePacer(30);
+        assertEquals("K.K.", pace(pacer, 60, 4, 0));
+        // One second without frames, then 60 fps again.
+        assertEquals("K.K.K.", pace(pacer, 60, 6, 1000 * MS));
+    }
+
+    @Test
+    public void restartsWhenClockGoesBack() {
+        TuyaFramePacer pacer = new TuyaFramePacer(30);
+        assertTrue(pacer.accept(500 * MS));
+        assertFalse(pacer.accept(510 * MS));
+        assertTrue(pacer.accept(100 * MS));
+        assertFalse(pacer.accept(110 * MS));
+        assertTrue(pacer.accept(134 * MS));
+    }
+
+    @Test
+    public void zeroRateKeepsEveryFrame() {
+        TuyaFramePacer pacer = new TuyaFramePacer(0);
+        assertEquals("KKKK", pace(pacer, 1000, 4, 0));
+        assertEquals(0, pacer.getDecimatedFrames());
+    }
+}
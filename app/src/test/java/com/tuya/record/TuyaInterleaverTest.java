@@ -0,0 +1,88 @@
+package com.tuya.record;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link TuyaInterleaver}.
+ */
+public class TuyaInterleaverTest {
+    private static final int VIDEO = 0;
+    private static final int AUDIO = 1;
+
+    private static String drain(TuyaInterleaver<String> interleaver) {
+        StringBuilder out = new StringBuilder();
+        String packet;
+        while ((packet = interleaver.poll()) != null) {
+            out.append(packet).append(' ');
+        }
+        return out.toString().trim();
+    }
+
+    @Test
+    public void ordersTracksByPts() {
+        TuyaInterleaver<String> interleaver = new TuyaInterleaver<>(2, 200000);
+        interleaver.push(VIDEO, 0, "v0");
+        interleaver.push(VIDEO, 33000, "v33");
+        interleaver.push(VIDEO, 66000, "v66");
+        // Nothing from audio yet: it may still send something earlier.
+        assertEquals("", drain(interleaver));
+        interleaver.push(AUDIO, 10000, "a10");
+        assertEquals("v0 a10", drain(interleaver));
+        interleaver.push(AUDIO, 40000, "a40");
+        interleaver.push(AUDIO, 70000, "a70");
+        assertEquals("v33 a40 v66", drain(interleaver));
+        assertEquals(1, interleaver.size());
+        assertEquals("a70", interleaver.flush());
+        assertNull(interleaver.flush());
+        assertEquals(0, interleaver.getLatePackets());
+        assertEquals(66000, interleaver.getMaxOccupancyUs());
+        assertEquals(4, interleaver.getMaxPackets());
+    }
+
+    @Test
+    public void quietTrackHoldsOthersForWindowOnly() {
+        TuyaInterleaver<String> interleaver = new TuyaInterleaver<>(2, 100000);
+        interleaver.push(AUDIO, 0, "a0");
+        interleaver.push(AUDIO, 50000, "a50");
+        assertEquals("", drain(interleaver));
+        interleaver.push(AUDIO, 100000, "a100");
+        assertEquals("a0", drain(interleaver));
+        assertEquals(50000, interleaver.getOccupancyUs());
+        interleaver.push(AUDIO, 160000, "a160");
+        assertEquals("a50", drain(interleaver));
+
+        // The video track comes back: order holds again, and what it sends now is late.
+        interleaver.push(VIDEO, 40000, "v40");
+        assertEquals(1, interleaver.getLatePackets());
+        interleaver.push(VIDEO, 120000, "v120");
+        assertEquals("v40 a100 v120", drain(interleaver));
+    }
+
+    @Test
+    public void singleTrackPassesThrough() {
+        TuyaInterleaver<String> interleaver = new TuyaInterleaver<>(1, 200000);
+        interleaver.push(0, 0, "p0");
+        assertEquals("p0", interleaver.poll());
+        interleaver.push(0, 10, "p1");
+        assertEquals("p1", interleaver.poll());
+        assertNull(interleaver.poll());
+    }
+
+    @Test
+    public void zeroWindowNeverWaits() {
+        TuyaInterleaver<String> interleaver = new TuyaInterleaver<>(2, 0);
+        interleaver.push(VIDEO, 0, "v0");
+        interleaver.push(VIDEO, 33000, "v33");
+        assertEquals("v0 v33", drain(interleaver));
+        interleaver.push(AUDIO, 20000, "a20");
+        assertEquals("a20", drain(interleaver));
+        assertEquals(1, interleaver.getLatePackets());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNoTracks() {
+        new TuyaInterleaver<String>(0, 0);
+    }
+}
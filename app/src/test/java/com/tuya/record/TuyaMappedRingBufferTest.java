@@ -0,0 +1,100 @@
+package com.tuya.record;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link TuyaMappedRingBuffer}, reopening the backing file as a restarted process would.
+ */
+public class TuyaMappedRingBufferTest {
+    private static File tempFile() throws Exception {
+        File file = File.createTempFile("ring", ".bin");
+        file.deleteOnExit();
+        return file;
+    }
+
+    @Test
+    public void reopenRecoversUnreadBytes() throws Exception {
+        File file = tempFile();
+
+        TuyaMappedRingBuffer ring = new TuyaMappedRingBuffer(file, 8);
+        assertEquals(0, ring.recoveredBytes());
+        ring.push(new byte[]{1, 2, 3, 4, 5, 6}, 0, 6);
+        assertEquals(2, ring.pop(new byte[2], 0, 2));
+        ring.push(new byte[]{7, 8, 9}, 0, 3);
+        ring.close();
+        assertEquals(TuyaMappedRingBuffer.HEADER_SIZE + 8, file.length());
+
+        TuyaMappedRingBuffer reopened = new TuyaMappedRingBuffer(file, 8);
+        assertEquals(7, reopened.recoveredBytes());
+        byte[] bytes = new byte[8];
+        assertEquals(7, reopened.pop(bytes, 0, 8));
+        assertArrayEquals(new byte[]{3, 4, 5, 6, 7, 8, 9, 0}, bytes);
+        reopened.close();
+    }
+
+    @Test
+    public void reopenAfterOverrunKeepsNewestBytes() throws Exception {
+        File file = tempFile();
+
+        TuyaMappedRingBuffer ring = new TuyaMappedRingBuffer(file, 4);
+        ring.overrunPush(new byte[]{1, 2, 3}, 0, 3);
+        ring.overrunPush(new byte[]{4, 5, 6}, 0, 3);
+        assertEquals(2, ring.overrunBytes());
+        // No close: the header must already be right, as after a crash.
+
+        TuyaMappedRingBuffer reopened = new TuyaMappedRingBuffer(file, 4);
+        assertEquals(4, reopened.recoveredBytes());
+        byte[] bytes = new byte[4];
+        assertEquals(4, reopened.pop(bytes, 0, 4));
+        assertArrayEquals(new byte[]{3, 4, 5, 6}, bytes);
+        reopened.close();
+        ring.close();
+    }
+
+    @Test
+    public void reserveAndDrainThroughInterface() throws Exception {
+        File file = tempFile();
+
+        TuyaByteRing ring = new TuyaMappedRingBuffer(file, 8);
+        ByteBuffer[] slices = ring.reserve(3);
+        assertEquals(1, slices.length);
+        assertTrue(slices[0].isDirect());
+        slices[0].put(new byte[]{1, 2, 3});
+        ring.commit(3);
+
+        ByteBuffer dst = ByteBuffer.allocateDirect(2);
+        assertEquals(2, ring.drainTo(dst));
+        ((TuyaMappedRingBuffer) ring).close();
+
+        TuyaMappedRingBuffer reopened = new TuyaMappedRingBuffer(file, 8);
+        assertEquals(1, reopened.recoveredBytes());
+        byte[] bytes = new byte[1];
+        reopened.peek(bytes, 0, 1);
+        assertEquals(3, bytes[0]);
+        reopened.close();
+    }
+
+    @Test
+    public void corruptOrResizedFileStartsEmpty() throws Exception {
+        File file = tempFile();
+        RandomAccessFile garbage = new RandomAccessFile(file, "rw");
+        garbage.write(new byte[]{9, 9, 9, 9, 9, 9, 9, 9});
+        garbage.close();
+
+        TuyaMappedRingBuffer ring = new TuyaMappedRingBuffer(file, 16);
+        assertEquals(0, ring.recoveredBytes());
+        ring.push(new byte[]{1, 2}, 0, 2);
+        ring.close();
+
+        TuyaMappedRingBuffer resized = new TuyaMappedRingBuffer(file, 32);
+        assertEquals(0, resized.recoveredBytes());
+        assertEquals(32, resized.sizeFree());
+        resized.close();
+    }
+}
@@ -0,0 +1,181 @@
+package com.tuya.record;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link TuyaMuxerQueue}.
+ */
+public class TuyaMuxerQueueTest {
+    private static final class Recorder implements TuyaMuxerQueue.Callback<String>, TuyaMuxerQueue.WatermarkListener {
+        final List<String> dropped = new ArrayList<>();
+        final List<String> watermarks = new ArrayList<>();
+        int keyFramesNeeded;
+
+        @Override
+        public void onDropped(String packet, TuyaMuxerQueue.DropReason reason) {
+            dropped.add(packet);
+        }
+
+        @Override
+        public void onKeyFrameNeeded() {
+            keyFramesNeeded++;
+        }
+
+        @Override
+        public void onQueueWatermark(boolean high, long bytes) {
+            watermarks.add((high ? "high " : "low ") + bytes);
+        }
+    }
+
+    private static String drain(TuyaMuxerQueue<String> queue) {
+        StringBuilder out = new StringBuilder();
+        String packet;
+        while ((packet = queue.poll()) != null) {
+            out.append(packet).append(' ');
+        }
+        return out.toString().trim();
+    }
+
+    private static void video(TuyaMuxerQueue<String> queue, String name, boolean key) throws InterruptedException {
+        queue.put(name, true, key, true, 10);
+    }
+
+    @Test
+    public void dropsWholeGops() throws InterruptedException {
+        Recorder recorder = new Recorder();
+        TuyaMuxerQueue<String> queue = new TuyaMuxerQueue<>(60, TuyaMuxerQueue.Policy.DROP_GOP, recorder);
+        video(queue, "p1", false);
+        queue.put("a1", false, true, true, 10);
+        video(queue, "k2", true);
+        video(queue, "p2", false);
+        video(queue, "k3", true);
+        video(queue, "p3", false);
+        // Full: the tail of the first GOP goes, then the writer continues with k2.
+        video(queue, "p4", false);
+        assertEquals("[p1]", recorder.dropped.toString());
+        assertEquals(1, queue.getDropped(TuyaMuxerQueue.DropReason.GOP));
+        // Two more packets: the whole k2 GOP goes.
+        queue.put("a2", false, true, true, 20);
+        assertEquals("[p1, k2, p2]", recorder.dropped.toString());
+        assertEquals(0, recorder.keyFramesNeeded);
+        assertEquals("a1 k3 p3 p4 a2", drain(queue));
+    }
+
+    @Test
+    public void skipsToNextKeyFrameWhenNoneQueued() throws InterruptedException {
+        Recorder recorder = new Recorder();
+        TuyaMuxerQueue<String> queue = new TuyaMuxerQueue<>(30, TuyaMuxerQueue.Policy.DROP_GOP, recorder);
+        video(queue, "k1", true);
+        video(queue, "p1", false);
+        video(queue, "p2", false);
+        video(queue, "p3", false);
+        assertEquals("[k1, p1, p2, p3]", recorder.dropped.toString());
+        assertEquals(1, recorder.keyFramesNeeded);
+        video(queue, "p4", false);
+        queue.put("a1", false, true, true, 10);
+        video(queue, "k2", true);
+        video(queue, "p5", false);
+        assertEquals("[k1, p1, p2, p3, p4]", recorder.dropped.toString());
+        assertEquals(5, queue.getDropped(TuyaMuxerQueue.DropReason.GOP));
+        assertEquals("a1 k2 p5", drain(queue));
+    }
+
+    @Test
+    public void dropsNonReferenceFramesFirst() throws InterruptedException {
+        Recorder recorder = new Recorder();
+        TuyaMuxerQueue<String> queue = new TuyaMuxerQueue<>(40, TuyaMuxerQueue.Policy.DROP_NON_REFERENCE, recorder);
+        video(queue, "k1", true);
+        queue.put("b1", true, false, false, 10);
+        video(queue, "p1", false);
+        queue.put("b2", true, false, false, 10);
+        video(queue, "p2", false);
+        video(queue, "p3", false);
+        assertEquals("[b1, b2]", recorder.dropped.toString());
+        // None left: the incoming non-reference frame itself goes.
+        assertFalse(queue.put("b3", true, false, false, 10));
+        assertEquals("[b1, b2, b3]", recorder.dropped.toString());
+        assertEquals(3, queue.getDropped(TuyaMuxerQueue.DropReason.NON_REFERENCE));
+        // Only reference frames: whole GOPs, and the incoming frame continues the dropped one.
+        video(queue, "p4", false);
+        assertEquals(1, recorder.keyFramesNeeded);
+        assertEquals(5, queue.getDropped(TuyaMuxerQueue.DropReason.GOP));
+        assertEquals("", drain(queue));
+    }
+
+    @Test
+    public void dropsAudioWithoutVideoToDrop() throws InterruptedException {
+        Recorder recorder = new Recorder();
+        TuyaMuxerQueue<String> queue = new TuyaMuxerQueue<>(20, TuyaMuxerQueue.Policy.DROP_GOP, recorder);
+        assertTrue(queue.put("a1", false, true, true, 10));
+        assertTrue(queue.put("a2", false, true, true, 10));
+        assertFalse(queue.put("a3", false, true, true, 10));
+        assertEquals(1, queue.getDropped(TuyaMuxerQueue.DropReason.OVERFLOW));
+        // An oversized packet still goes into an empty queue.
+        drain(queue);
+        assertTrue(queue.put("big", false, true, true, 50));
+    }
+
+    @Test
+    public void blocksUntilWriterCatchesUp() throws Exception {
+        Recorder recorder = new Recorder();
+        final TuyaMuxerQueue<String> queue = new TuyaMuxerQueue<>(20, TuyaMuxerQueue.Policy.BLOCK, recorder);
+        queue.put("a1", false, true, true, 10);
+        queue.put("a2", false, true, true, 10);
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                    queue.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        writer.start();
+        assertTrue(queue.put("a3", false, true, true, 10));
+        writer.join();
+        assertEquals("a2 a3", drain(queue));
+
+        queue.setBlockTimeout(20);
+        queue.put("a4", false, true, true, 10);
+        queue.put("a5", false, true, true, 10);
+        assertFalse(queue.put("a6", false, true, true, 10));
+        assertEquals(1, queue.getDropped(TuyaMuxerQueue.DropReason.BLOCK_TIMEOUT));
+        assertEquals("a4", queue.poll(10, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void reportsWatermarksOnce() throws InterruptedException {
+        Recorder recorder = new Recorder();
+        TuyaMuxerQueue<String> queue = new TuyaMuxerQueue<>(100, TuyaMuxerQueue.Policy.DROP_GOP, recorder);
+        queue.setWatermarks(30, 10, recorder);
+        for (int i = 0; i < 5; i++) {
+            queue.put("a" + i, false, true, true, 10);
+        }
+        assertEquals(50, queue.getMaxBytes());
+        for (int i = 0; i < 5; i++) {
+            queue.poll();
+        }
+        queue.put("a5", false, true, true, 10);
+        assertEquals("[high 40, low 0]", recorder.watermarks.toString());
+    }
+
+    @Test
+    public void findsReferenceFlagOfFirstSlice() {
+        ByteBuffer nonReference = ByteBuffer.wrap(new byte[]{0, 0, 0, 1, 0x09, 0x10, 0, 0, 1, 0x01, (byte) 0x88});
+        ByteBuffer reference = ByteBuffer.wrap(new byte[]{0, 0, 1, 0x41, (byte) 0x9A});
+        ByteBuffer keyFrame = ByteBuffer.wrap(new byte[]{0, 0, 0, 1, 0x67, 0x42, 0, 0, 1, 0x65, (byte) 0x88});
+        assertFalse(TuyaMuxerQueue.isAvcReference(nonReference));
+        assertTrue(TuyaMuxerQueue.isAvcReference(reference));
+        assertTrue(TuyaMuxerQueue.isAvcReference(keyFrame));
+        assertTrue(TuyaMuxerQueue.isAvcReference(ByteBuffer.wrap(new byte[]{1, 2, 3})));
+    }
+}
@@ -0,0 +1,130 @@
+package com.tuya.record;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link TuyaPacketRingBuffer}.
+ */
+public class TuyaPacketRingBufferTest {
+    private static final int VIDEO = 0;
+    private static final int AUDIO = 1;
+
+    private static ByteBuffer payload(int size, int value) {
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        for (int i = 0; i < size; i++) {
+            buffer.put((byte) value);
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Drains the ring and returns the presentation times it delivered, checking every payload.
+     */
+    private static List<Long> drain(TuyaPacketRingBuffer ring) {
+        final List<Long> times = new ArrayList<>();
+        ring.drainTo(new TuyaPacketRingBuffer.PacketCallback() {
+            @Override
+            public void onPacket(int track, ByteBuffer data, long presentationTimeUs, int flags) {
+                while (data.hasRemaining()) {
+                    assertEquals((byte) presentationTimeUs, data.get());
+                }
+                times.add(presentationTimeUs);
+            }
+        });
+        return times;
+    }
+
+    private static List<Long> times(long... values) {
+        List<Long> list = new ArrayList<>();
+        for (long value : values) {
+            list.add(value);
+        }
+        return list;
+    }
+
+    @Test
+    public void waitsForSyncFrameAndKeepsPayloads() {
+        TuyaPacketRingBuffer ring = new TuyaPacketRingBuffer(64, 16, VIDEO, Long.MAX_VALUE);
+        assertFalse(ring.push(AUDIO, payload(4, 1), 1, 0));
+        assertFalse(ring.push(VIDEO, payload(4, 2), 2, 0));
+        ByteBuffer key = payload(8, 3);
+        assertTrue(ring.push(VIDEO, key, 3, TuyaPacketRingBuffer.FLAG_SYNC));
+        assertEquals(8, key.remaining());
+        assertTrue(ring.push(AUDIO, payload(4, 4), 4, 0));
+        assertEquals(2, ring.droppedPackets());
+
+        assertEquals(times(3, 4), drain(ring));
+        assertEquals(0, ring.packetCount());
+    }
+
+    @Test
+    public void evictsWholeGopWhenArenaIsFull() {
+        TuyaPacketRingBuffer ring = new TuyaPacketRingBuffer(40, 16, VIDEO, Long.MAX_VALUE);
+        ring.push(VIDEO, payload(10, 1), 1, TuyaPacketRingBuffer.FLAG_SYNC);
+        ring.push(VIDEO, payload(10, 2), 2, 0);
+        ring.push(VIDEO, payload(10, 3), 3, TuyaPacketRingBuffer.FLAG_SYNC);
+        ring.push(AUDIO, payload(5, 4), 4, 0);
+        // 35 of 40 bytes used: the next 10 evict the first GOP (packets 1 and 2), not just packet 1.
+        assertTrue(ring.push(VIDEO, payload(10, 5), 5, 0));
+        assertEquals(3, ring.packetCount());
+
+        assertEquals(times(3, 4, 5), drain(ring));
+    }
+
+    @Test
+    public void wrapsPayloadToArenaStartInsteadOfSplitting() {
+        TuyaPacketRingBuffer ring = new TuyaPacketRingBuffer(32, 16, TuyaPacketRingBuffer.NO_GOP_TRACK,
+                Long.MAX_VALUE);
+        ring.push(AUDIO, payload(12, 1), 1, 0);
+        ring.push(AUDIO, payload(12, 2), 2, 0);
+        // 8 bytes left at the end: packet 3 goes to offset 0 after evicting packet 1 and skips the tail.
+        assertTrue(ring.push(AUDIO, payload(12, 3), 3, 0));
+        assertEquals(32, ring.sizeUsed());
+        assertEquals(times(2, 3), drain(ring));
+    }
+
+    @Test
+    public void slotLimitEvictsWholeGop() {
+        TuyaPacketRingBuffer ring = new TuyaPacketRingBuffer(1024, 4, VIDEO, Long.MAX_VALUE);
+        ring.push(VIDEO, payload(1, 10), 10, TuyaPacketRingBuffer.FLAG_SYNC);
+        ring.push(VIDEO, payload(1, 20), 20, 0);
+        ring.push(VIDEO, payload(1, 60), 60, TuyaPacketRingBuffer.FLAG_SYNC);
+        ring.push(VIDEO, payload(1, 70), 70, 0);
+        // Out of slots: the GOP at 10 goes.
+        assertTrue(ring.push(VIDEO, payload(1, 80), 80, 0));
+        assertEquals(3, ring.packetCount());
+        assertEquals(20, ring.durationUs());
+        assertEquals(times(60, 70, 80), drain(ring));
+    }
+
+    @Test
+    public void retentionKeepsJustEnoughGops() {
+        TuyaPacketRingBuffer ring = new TuyaPacketRingBuffer(1024, 16, VIDEO, 100);
+        ring.push(VIDEO, payload(1, 10), 10, TuyaPacketRingBuffer.FLAG_SYNC);
+        ring.push(VIDEO, payload(1, 60), 60, TuyaPacketRingBuffer.FLAG_SYNC);
+        ring.push(VIDEO, payload(1, 120), 120, 0);
+        // The GOP at 60 alone does not cover 100 us yet, so the one at 10 stays.
+        assertEquals(3, ring.packetCount());
+
+        ring.push(VIDEO, payload(1, 160), 160, 0);
+        assertEquals(times(60, 120, 160), drain(ring));
+    }
+
+    @Test
+    public void losingTheOnlyGopDropsItsDependents() {
+        TuyaPacketRingBuffer ring = new TuyaPacketRingBuffer(16, 16, VIDEO, Long.MAX_VALUE);
+        ring.push(VIDEO, payload(8, 1), 1, TuyaPacketRingBuffer.FLAG_SYNC);
+        ring.push(VIDEO, payload(6, 2), 2, 0);
+        assertFalse(ring.push(VIDEO, payload(8, 3), 3, 0));
+        assertEquals(0, ring.packetCount());
+        assertFalse(ring.push(VIDEO, payload(32, 4), 4, TuyaPacketRingBuffer.FLAG_SYNC));
+        assertEquals(2, ring.droppedPackets());
+    }
+}
@@ -0,0 +1,116 @@
+package com.tuya.record;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link TuyaRateController}.
+ */
+public class TuyaRateControllerTest {
+    private static final int MIN = 500_000;
+    private static final int MAX = 4_000_000;
+    private static final long BYTES_PER_SECOND = 250_000;
+
+    @Test
+    public void decreasesOnCongestion() {
+        TuyaRateController controller = new TuyaRateController(MIN, MAX);
+        assertEquals(2_000_000, controller.reset(2_000_000));
+        assertEquals(2_000_000, controller.update(0, 0, 0, 0, 0));
+        // Less than an interval: nothing is decided yet.
+        assertEquals(2_000_000, controller.update(500, 3, 0, 0, 0));
+
+        // Dropped frames.
+        assertEquals(1_500_000, controller.update(1000, 3, 0, BYTES_PER_SECOND, BYTES_PER_SECOND));
+        // Queue at the high watermark.
+        assertEquals(1_125_000, controller.update(2000, 3, TuyaRateController.DEFAULT_HIGH_WATERMARK,
+                BYTES_PER_SECOND * 2, BYTES_PER_SECOND * 2));
+        // Writer behind.
+        assertEquals(843_750, controller.update(3000, 3, 0, BYTES_PER_SECOND * 3, BYTES_PER_SECOND * 2));
+        // Clamped to the minimum.
+        assertEquals(632_812, controller.update(4000, 4, 0, BYTES_PER_SECOND * 4, BYTES_PER_SECOND * 4));
+        assertEquals(MIN, controller.update(5000, 5, 0, BYTES_PER_SECOND * 5, BYTES_PER_SECOND * 5));
+        assertEquals(MIN, controller.update(6000, 6, 0, BYTES_PER_SECOND * 6, BYTES_PER_SECOND * 6));
+    }
+
+    @Test
+    public void increasesOnlyAfterSustainedHeadroom() {
+        TuyaRateController controller = new TuyaRateController(MIN, MAX);
+        controller.reset(1_000_000);
+        controller.update(0, 0, 0, 0, 0);
+        long now = 0;
+        long bytes = 0;
+        for (int i = 1; i < TuyaRateController.INCREASE_INTERVALS; i++) {
+            now += 1000;
+            bytes += BYTES_PER_SECOND;
+            assertEquals(1_000_000, controller.update(now, 0, 0, bytes, bytes));
+        }
+        now += 1000;
+        bytes += BYTES_PER_SECOND;
+        assertEquals(1_100_000, controller.update(now, 0, 0, bytes, bytes));
+
+        // A queue between the watermarks starts the count over.
+        for (int i = 1; i < TuyaRateController.INCREASE_INTERVALS; i++) {
+            now += 1000;
+            bytes += BYTES_PER_SECOND;
+            assertEquals(1_100_000, controller.update(now, 0, 0, bytes, bytes));
+        }
+        now += 1000;
+        bytes += BYTES_PER_SECOND;
+        assertEquals(1_100_000, controller.update(now, 0, 10, bytes, bytes));
+        now += 1000;
+        bytes += BYTES_PER_SECOND;
+        assertEquals(1_100_000, controller.update(now, 0, 0, bytes, bytes));
+    }
+
+    @Test
+    public void staysWithinBounds() {
+        TuyaRateController controller = new TuyaRateController(MIN, MAX);
+        assertEquals(MAX, controller.reset(10_000_000));
+        controller.update(0, 0, 0, 0, 0);
+        for (int i = 1; i <= TuyaRateController.INCREASE_INTERVALS * 3; i++) {
+            assertEquals(MAX, controller.update(i * 1000, 0, 0, 0, 0));
+        }
+        assertEquals(MIN, controller.reset(1));
+    }
+
+    @Test
+    public void reportsEveryDecision() {
+        TuyaRateController controller = new TuyaRateController(MIN, MAX);
+        controller.setQueueWatermarks(1, 5);
+        final List<TuyaRateController.Decision> decisions = new ArrayList<>();
+        final long[] last = new long[6];
+        controller.setListener(new TuyaRateController.Listener() {
+            @Override
+            public void onRateDecision(TuyaRateController.Decision decision, int previousBitrate, int bitrate,
+                                       long droppedFrames, int queueDepth, long producedBitsPerSecond,
+                                       long writtenBitsPerSecond) {
+                decisions.add(decision);
+                last[0] = previousBitrate;
+                last[1] = bitrate;
+                last[2] = droppedFrames;
+                last[3] = queueDepth;
+                last[4] = producedBitsPerSecond;
+                last[5] = writtenBitsPerSecond;
+            }
+        });
+        controller.reset(2_000_000);
+        controller.update(0, 2, 0, 0, 0);
+        assertTrue(decisions.isEmpty());
+
+        controller.update(1000, 2, 3, BYTES_PER_SECOND, BYTES_PER_SECOND);
+        controller.update(2000, 2, 5, BYTES_PER_SECOND * 2, BYTES_PER_SECOND * 2);
+        assertEquals(2, decisions.size());
+        assertEquals(TuyaRateController.Decision.HOLD, decisions.get(0));
+        assertEquals(TuyaRateController.Decision.DECREASE, decisions.get(1));
+        assertArrayEquals(new long[]{2_000_000, 1_500_000, 0, 5, BYTES_PER_SECOND * 8, BYTES_PER_SECOND * 8}, last);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsInvertedBounds() {
+        new TuyaRateController(MAX, MIN);
+    }
+}
@@ -0,0 +1,131 @@
+package com.tuya.record;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Pipe;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link TuyaRingBuffer}.
+ */
+public class TuyaRingBufferTest {
+    @Test
+    public void drainToDirectBufferAcrossWrap() {
+        TuyaRingBuffer ring = new TuyaRingBuffer(6);
+        ring.push(new byte[]{1, 2, 3, 4});
+        ring.drop(3);
+        ring.push(new byte[]{5, 6, 7, 8});
+
+        ByteBuffer direct = ByteBuffer.allocateDirect(8);
+        assertEquals(5, ring.peek(direct, 8));
+        assertEquals(0, direct.position());
+
+        assertEquals(5, ring.drainTo(direct));
+        assertEquals(5, direct.position());
+        assertEquals(0, ring.sizeUsed());
+        direct.flip();
+        byte[] drained = new byte[5];
+        direct.get(drained);
+        assertArrayEquals(new byte[]{4, 5, 6, 7, 8}, drained);
+    }
+
+    @Test
+    public void fillFromDirectBufferStopsWhenFull() {
+        TuyaRingBuffer ring = new TuyaRingBuffer(4);
+        ring.push(new byte[]{9, 9, 9});
+        ring.drop(3);
+
+        ByteBuffer direct = ByteBuffer.allocateDirect(6);
+        direct.put(new byte[]{1, 2, 3, 4, 5, 6}).flip();
+        assertEquals(4, ring.fillFrom(direct));
+        assertEquals(2, direct.remaining());
+        assertArrayEquals(new byte[]{1, 2, 3, 4}, ring.pop(4));
+    }
+
+    @Test
+    public void reserveAndCommitWriteInPlace() {
+        TuyaRingBuffer ring = new TuyaRingBuffer(5);
+        ring.push(new byte[]{1, 2, 3});
+        ring.drop(2);
+
+        ByteBuffer[] slices = ring.reserve(3);
+        assertEquals(2, slices.length);
+        assertEquals(2, slices[0].remaining());
+        assertEquals(1, slices[1].remaining());
+        slices[0].put(new byte[]{4, 5});
+        slices[1].put((byte) 6);
+        ring.commit(3);
+
+        assertEquals(1, ring.reserve(2)[0].remaining());
+        assertArrayEquals(new byte[]{3, 4, 5, 6}, ring.pop(4));
+    }
+
+    @Test
+    public void shortViewUsesNativeOrderAcrossWrap() {
+        TuyaRingBuffer ring = new TuyaRingBuffer(7);
+        ring.push(new byte[]{0, 0, 0});
+        ring.drop(3);
+
+        TuyaRingBuffer.ShortView shorts = ring.shortView();
+        assertEquals(3, shorts.push((short) 1, (short) -2, (short) 0x1234, (short) 5));
+
+        byte[] raw = ring.peek(6);
+        ByteBuffer expected = ByteBuffer.allocate(6).order(ByteOrder.nativeOrder());
+        expected.putShort((short) 1).putShort((short) -2).putShort((short) 0x1234);
+        assertArrayEquals(expected.array(), raw);
+
+        assertArrayEquals(new short[]{1, -2}, shorts.pop(2));
+        shorts.overrunPush((short) 6, (short) 7, (short) 8, (short) 9);
+        assertArrayEquals(new short[]{7, 8, 9}, shorts.pop(10));
+    }
+
+    @Test
+    public void floatViewRoundTrip() {
+        TuyaRingBuffer ring = new TuyaRingBuffer(10);
+        ring.push(new byte[]{0, 0, 0, 0, 0, 0});
+        ring.drop(6);
+
+        TuyaRingBuffer.FloatView floats = ring.floatView();
+        assertEquals(2, floats.push(0.5f, -1.25f, 3f));
+        assertEquals(2, floats.sizeUsed());
+        assertArrayEquals(new float[]{0.5f, -1.25f}, floats.peek(2), 0f);
+        floats.drop(1);
+        assertArrayEquals(new float[]{-1.25f}, floats.pop(5), 0f);
+    }
+
+    @Test
+    public void channelTransferAcrossWrap() throws Exception {
+        Pipe pipe = Pipe.open();
+        TuyaRingBuffer source = new TuyaRingBuffer(8);
+        source.push(new byte[]{1, 2, 3, 4, 5, 6});
+        source.drop(5);
+        source.push(new byte[]{7, 8, 9, 10});
+
+        assertEquals(5, source.writeTo(pipe.sink()));
+        assertEquals(0, source.sizeUsed());
+        assertEquals(0, source.writeTo(pipe.sink()));
+
+        TuyaRingBuffer sink = new TuyaRingBuffer(8);
+        sink.push(new byte[]{0, 0, 0, 0, 0});
+        sink.drop(5);
+        assertEquals(5, sink.readFrom(pipe.source()));
+        assertArrayEquals(new byte[]{6, 7, 8, 9, 10}, sink.pop(8));
+
+        pipe.sink().close();
+        assertEquals(-1, sink.readFrom(pipe.source()));
+        assertEquals(0, sink.sizeUsed());
+    }
+
+    @Test
+    public void overrunPushCountsLostBytes() {
+        TuyaRingBuffer ring = new TuyaRingBuffer(4);
+        ring.overrunPush(new byte[]{1, 2, 3});
+        assertEquals(0, ring.overrunBytes());
+        ring.overrunPush(new byte[]{4, 5, 6});
+        assertEquals(2, ring.overrunBytes());
+        assertArrayEquals(new byte[]{3, 4, 5, 6}, ring.pop(4));
+    }
+}
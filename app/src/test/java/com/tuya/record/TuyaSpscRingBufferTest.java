@@ -0,0 +1,270 @@
+package com.tuya.record;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link TuyaSpscRingBuffer}, including a two-thread stress run on the host JVM.
+ */
+public class TuyaSpscRingBufferTest {
+    private static final int STRESS_BYTES = 8 * 1024 * 1024;
+
+    /**
+     * Byte expected at the given absolute stream position. 251 is prime so wrap-around bugs shift the pattern.
+     */
+    private static byte pattern(long position) {
+        return (byte) (position % 251);
+    }
+
+    @Test
+    public void pushAndPopWrapAround() {
+        TuyaSpscRingBuffer ring = new TuyaSpscRingBuffer(8);
+        assertEquals(6, ring.push(new byte[]{1, 2, 3, 4, 5, 6}));
+        assertEquals(4, ring.pop(new byte[4]));
+
+        assertEquals(6, ring.push(new byte[]{7, 8, 9, 10, 11, 12, 13}));
+        assertEquals(8, ring.sizeUsed());
+        assertEquals(0, ring.sizeFree());
+        assertArrayEquals(new byte[]{5, 6, 7, 8}, ring.peek(4));
+        assertArrayEquals(new byte[]{5, 6, 7, 8, 9, 10, 11, 12}, ring.pop(100));
+        assertEquals(0, ring.sizeUsed());
+    }
+
+    @Test
+    public void overrunPushKeepsNewestBytes() {
+        TuyaSpscRingBuffer ring = new TuyaSpscRingBuffer(4);
+        ring.overrunPush(new byte[]{1, 2, 3});
+        ring.overrunPush(new byte[]{4, 5, 6});
+        assertEquals(2, ring.overrunBytes());
+        assertArrayEquals(new byte[]{3, 4, 5, 6}, ring.pop(4));
+
+        ring.overrunPush(new byte[]{7, 8, 9, 10, 11, 12});
+        assertEquals(4, ring.overrunBytes());
+        assertArrayEquals(new byte[]{9, 10, 11, 12}, ring.pop(4));
+    }
+
+    @Test
+    public void dropAndClear() {
+        TuyaSpscRingBuffer ring = new TuyaSpscRingBuffer(8);
+        ring.push(new byte[]{1, 2, 3, 4, 5});
+        ring.drop(2);
+        assertArrayEquals(new byte[]{3}, ring.peek(1));
+        ring.drop(100);
+        assertEquals(0, ring.sizeUsed());
+        ring.push(new byte[]{1, 2});
+        ring.clear();
+        assertEquals(0, ring.sizeUsed());
+        assertEquals(8, ring.sizeFree());
+    }
+
+    @Test
+    public void directDrainToAndFillFromWrapAround() {
+        TuyaSpscRingBuffer ring = TuyaSpscRingBuffer.allocateDirect(8);
+        assertTrue(ring.isDirect());
+
+        ByteBuffer src = ByteBuffer.allocateDirect(16);
+        src.put(new byte[]{1, 2, 3, 4, 5, 6}).flip();
+        assertEquals(6, ring.fillFrom(src));
+        assertEquals(0, src.remaining());
+        assertEquals(4, ring.pop(new byte[4]));
+
+        src.clear();
+        src.put(new byte[]{7, 8, 9, 10, 11, 12, 13}).flip();
+        assertEquals(6, ring.fillFrom(src));
+        assertEquals(1, src.remaining());
+
+        ByteBuffer dst = ByteBuffer.allocateDirect(5);
+        assertEquals(5, ring.drainTo(dst));
+        dst.flip();
+        byte[] drained = new byte[5];
+        dst.get(drained);
+        assertArrayEquals(new byte[]{5, 6, 7, 8, 9}, drained);
+        assertArrayEquals(new byte[]{10, 11, 12}, ring.pop(8));
+    }
+
+    @Test
+    public void reserveCoversFreeRegionAcrossWrap() {
+        TuyaSpscRingBuffer ring = TuyaSpscRingBuffer.allocateDirect(8);
+        ring.push(new byte[]{1, 2, 3, 4, 5, 6});
+        ring.drop(4);
+
+        ByteBuffer[] slices = ring.reserve(100);
+        assertEquals(2, slices.length);
+        assertEquals(2, slices[0].remaining());
+        assertEquals(4, slices[1].remaining());
+        assertTrue(slices[0].isDirect());
+        slices[0].put((byte) 7).put((byte) 8);
+        slices[1].put((byte) 9);
+        assertEquals(2, ring.sizeUsed());
+
+        ring.commit(3);
+        assertArrayEquals(new byte[]{5, 6, 7, 8, 9}, ring.pop(8));
+        assertEquals(0, ring.reserve(0).length);
+    }
+
+    @Test(timeout = 10000)
+    public void awaitPopTimesOutWithoutRemovingAnything() throws Exception {
+        TuyaSpscRingBuffer ring = new TuyaSpscRingBuffer(16);
+        ring.push(new byte[]{1, 2, 3});
+
+        long startNs = System.nanoTime();
+        assertEquals(0, ring.awaitPop(new byte[4], 4, 50, TimeUnit.MILLISECONDS));
+        assertTrue(System.nanoTime() - startNs >= TimeUnit.MILLISECONDS.toNanos(50));
+        assertEquals(3, ring.sizeUsed());
+    }
+
+    @Test(timeout = 10000)
+    public void awaitPopWakesWhenProducerCompletesFrame() throws Exception {
+        final TuyaSpscRingBuffer ring = new TuyaSpscRingBuffer(4096);
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                byte[] chunk = new byte[512];
+                for (int i = 0; i < 8; i++) {
+                    try {
+                        Thread.sleep(5);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    chunk[0] = (byte) i;
+                    ring.push(chunk);
+                }
+            }
+        });
+        producer.start();
+
+        byte[] frame = new byte[2048];
+        assertEquals(2048, ring.awaitPop(frame, frame.length));
+        assertEquals(0, frame[0]);
+        assertEquals(3, frame[1536]);
+        assertEquals(2048, ring.awaitPop(frame, 0, frame.length, 5, TimeUnit.SECONDS));
+        producer.join();
+    }
+
+    @Test(timeout = 10000)
+    public void awaitPushBlocksUntilConsumerFreesSpace() throws Exception {
+        final TuyaSpscRingBuffer ring = new TuyaSpscRingBuffer(8);
+        ring.push(new byte[]{1, 2, 3, 4, 5, 6});
+        assertEquals(0, ring.awaitPush(new byte[4], 0, 4, 10, TimeUnit.MILLISECONDS));
+
+        Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(20);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                ring.drop(3);
+            }
+        });
+        consumer.start();
+        assertEquals(4, ring.awaitPush(new byte[]{7, 8, 9, 10}, 0, 4));
+        consumer.join();
+        assertArrayEquals(new byte[]{4, 5, 6, 7, 8, 9, 10}, ring.pop(8));
+    }
+
+    @Test(timeout = 10000, expected = InterruptedException.class)
+    public void awaitPopIsInterruptible() throws Exception {
+        TuyaSpscRingBuffer ring = new TuyaSpscRingBuffer(16);
+        Thread.currentThread().interrupt();
+        ring.awaitPop(new byte[8], 8);
+    }
+
+    @Test(timeout = 60000)
+    public void concurrentPushPopPreservesStream() throws Exception {
+        final TuyaSpscRingBuffer ring = new TuyaSpscRingBuffer(4093);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Random random = new Random(1);
+                byte[] chunk = new byte[1500];
+                long position = 0;
+                while (position < STRESS_BYTES) {
+                    int length = (int) Math.min(1 + random.nextInt(chunk.length), STRESS_BYTES - position);
+                    for (int i = 0; i < length; i++) {
+                        chunk[i] = pattern(position + i);
+                    }
+                    int offset = 0;
+                    while (offset < length) {
+                        int pushed = ring.push(chunk, offset, length - offset);
+                        if (pushed == 0) {
+                            Thread.yield();
+                        }
+                        offset += pushed;
+                    }
+                    position += length;
+                }
+            }
+        });
+
+        producer.start();
+        Random random = new Random(2);
+        byte[] chunk = new byte[2048];
+        long position = 0;
+        while (position < STRESS_BYTES && failure.get() == null) {
+            int popped = ring.pop(chunk, 0, 1 + random.nextInt(chunk.length));
+            if (popped == 0) {
+                Thread.yield();
+            }
+            for (int i = 0; i < popped; i++) {
+                if (chunk[i] != pattern(position + i)) {
+                    failure.set(new AssertionError("Mismatch at " + (position + i)));
+                    break;
+                }
+            }
+            position += popped;
+        }
+        producer.join();
+
+        assertNull(failure.get());
+        assertEquals(STRESS_BYTES, position);
+        assertEquals(0, ring.sizeUsed());
+        assertEquals(0, ring.overrunBytes());
+    }
+
+    @Test(timeout = 60000)
+    public void concurrentOverrunNeverReturnsTornChunks() throws Exception {
+        final TuyaSpscRingBuffer ring = new TuyaSpscRingBuffer(1021);
+
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Random random = new Random(3);
+                byte[] chunk = new byte[700];
+                long position = 0;
+                while (position < STRESS_BYTES) {
+                    int length = (int) Math.min(1 + random.nextInt(chunk.length), STRESS_BYTES - position);
+                    for (int i = 0; i < length; i++) {
+                        chunk[i] = pattern(position + i);
+                    }
+                    ring.overrunPush(chunk, 0, length);
+                    position += length;
+                }
+            }
+        });
+
+        producer.start();
+        byte[] chunk = new byte[512];
+        long consumed = 0;
+        while (producer.isAlive() || ring.sizeUsed() > 0) {
+            int popped = ring.pop(chunk);
+            for (int i = 1; i < popped; i++) {
+                // Every chunk handed out must be a contiguous run of the producer's stream.
+                assertEquals(((chunk[i - 1] & 0xFF) + 1) % 251, chunk[i] & 0xFF);
+            }
+            consumed += popped;
+        }
+        producer.join();
+
+        assertEquals(STRESS_BYTES, consumed + ring.overrunBytes());
+    }
+}
@@ -0,0 +1,96 @@
+package com.tuya.record;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link TuyaTimestampedRingBuffer}.
+ */
+public class TuyaTimestampedRingBufferTest {
+    /**
+     * 16 kHz, 16-bit mono: 32 bytes per millisecond.
+     */
+    private static final int SAMPLE_RATE = 16000;
+    private static final int BYTES_PER_FRAME = 2;
+
+    @Test
+    public void interpolatesBySampleCount() {
+        TuyaTimestampedRingBuffer ring = new TuyaTimestampedRingBuffer(4096, SAMPLE_RATE, BYTES_PER_FRAME);
+        long capture = System.nanoTime();
+        ring.push(new byte[320], 0, 320, capture);
+        ring.push(new byte[320], 0, 320, capture + TimeUnit.MILLISECONDS.toNanos(10));
+
+        long first = ring.readPresentationTimeUs();
+        ring.drop(32);
+        assertEquals(first + 1000, ring.readPresentationTimeUs());
+        ring.drop(320 - 32 + 160);
+        assertEquals(first + 15000, ring.readPresentationTimeUs());
+    }
+
+    @Test
+    public void explicitAnchorsCoverCaptureGaps() {
+        TuyaTimestampedRingBuffer ring = new TuyaTimestampedRingBuffer(4096, SAMPLE_RATE, BYTES_PER_FRAME);
+        long capture = System.nanoTime();
+        ring.push(new byte[320], 0, 320, capture);
+        // The capture stalled for 500 ms before the next chunk.
+        ring.push(new byte[320], 0, 320, capture + TimeUnit.MILLISECONDS.toNanos(510));
+
+        long first = ring.readPresentationTimeUs();
+        assertEquals(320, ring.pop(new byte[320], 0, 320));
+        assertEquals(first + 510000, ring.readPresentationTimeUs());
+    }
+
+    @Test
+    public void overrunPushKeepsCaptureTimeOfSurvivors() {
+        TuyaTimestampedRingBuffer ring = new TuyaTimestampedRingBuffer(320, SAMPLE_RATE, BYTES_PER_FRAME);
+        long capture = System.nanoTime();
+        // Chunks replayed in a burst keep the time they were captured at.
+        ring.overrunPush(new byte[160], 0, 160, capture);
+        long first = ring.readPresentationTimeUs();
+        ring.drop(160);
+        // Only the last 320 of 480 bytes fit: they start 5 ms into the chunk.
+        ring.overrunPush(new byte[480], 0, 480, capture + TimeUnit.MILLISECONDS.toNanos(20));
+        assertEquals(first + 25000, ring.readPresentationTimeUs());
+    }
+
+    @Test
+    public void manyAnchorsDoNotBreakLookup() {
+        TuyaTimestampedRingBuffer ring = new TuyaTimestampedRingBuffer(1 << 16, SAMPLE_RATE, BYTES_PER_FRAME);
+        long capture = System.nanoTime();
+        for (int i = 0; i < 200; i++) {
+            // Each chunk is 1 ms long but arrives 2 ms after the previous one: every push is an anchor.
+            ring.push(new byte[32], 0, 32, capture + TimeUnit.MILLISECONDS.toNanos(2 * i));
+        }
+        // Only the last 64 anchors are kept: position 0 is extrapolated back from anchor 136, at 272 ms, to 136 ms.
+        long oldest = ring.readPresentationTimeUs();
+        ring.drop(32 * 150);
+        assertEquals(oldest + 164000, ring.readPresentationTimeUs());
+        ring.drop(32);
+        assertEquals(oldest + 166000, ring.readPresentationTimeUs());
+    }
+
+    @Test
+    public void lateReadThenBurstKeepsTimeIncreasing() {
+        TuyaTimestampedRingBuffer ring = new TuyaTimestampedRingBuffer(1 << 16, SAMPLE_RATE, BYTES_PER_FRAME);
+        ring.push(new byte[320], 0, 320);
+        // The next read came back late, so its chunk is stamped well after the previous one ended.
+        ring.push(new byte[320], 0, 320, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100));
+        // The backlog then arrives in a burst, each chunk stamped behind the sample count.
+        for (int i = 0; i < 10; i++) {
+            ring.push(new byte[320], 0, 320);
+            ring.push(new byte[320], 0, 320, System.nanoTime());
+        }
+
+        ring.drop(320);
+        long previous = ring.readPresentationTimeUs();
+        for (int i = 0; i < 20; i++) {
+            ring.drop(320);
+            long next = ring.readPresentationTimeUs();
+            assertEquals(previous + 10000, next);
+            previous = next;
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package com.tuya.record;
+
+import com.erick.utils.libyuv.YuvUtils;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link TuyaYuvLayout}.
+ */
+public class TuyaYuvLayoutTest {
+    private static final int PLANAR = 19;        // COLOR_FormatYUV420Planar
+    private static final int SEMI_PLANAR = 21;   // COLOR_FormatYUV420SemiPlanar
+    private static final int QCOM_SEMI_PLANAR = 0x7FA30C00;
+    private static final int QCOM_32M = TuyaVideoEncoder.COLOR_QCOM_FORMATYUV420PackedSemiPlanar32m;
+
+    /**
+     * colorFormat, width, height, stride, sliceHeight,
+     * then the expected yRowStride, uOffset, vOffset, chromaRowStride, chromaPixelStride, size.
+     */
+    private static final int[][] CASES = {
+            // Tightly packed.
+            {PLANAR, 640, 480, 0, 0, 640, 307200, 384000, 320, 1, 460800},
+            {SEMI_PLANAR, 640, 480, 0, 0, 640, 307200, 307201, 640, 2, 460800},
+            {QCOM_SEMI_PLANAR, 320, 240, 0, 0, 320, 76800, 76801, 320, 2, 115200},
+            // Stride and slice height reported by the codec.
+            {PLANAR, 1280, 720, 1536, 736, 1536, 1130496, 1413120, 768, 1, 1689600},
+            {SEMI_PLANAR, 1280, 720, 1280, 736, 1280, 942080, 942081, 1280, 2, 1402880},
+            // Reported values smaller than the frame are ignored.
+            {SEMI_PLANAR, 640, 360, 320, 100, 640, 230400, 230401, 640, 2, 345600},
+            // Odd sizes round the chroma planes up.
+            {PLANAR, 5, 3, 0, 0, 5, 15, 21, 3, 1, 27},
+            {SEMI_PLANAR, 5, 3, 0, 0, 6, 18, 19, 6, 2, 30},
+            // Venus alignment: 128-byte rows, 32 Y lines, 16 chroma lines, 4 KiB total.
+            {QCOM_32M, 1280, 720, 0, 0, 1280, 942080, 942081, 1280, 2, 1417216},
+            {QCOM_32M, 640, 360, 0, 0, 640, 245760, 245761, 640, 2, 372736},
+            {QCOM_32M, 176, 144, 0, 0, 256, 40960, 40961, 256, 2, 65536},
+            {QCOM_32M, 1920, 1080, 1920, 1088, 1920, 2088960, 2088961, 1920, 2, 3137536},
+    };
+
+    @Test
+    public void layoutTable() {
+        for (int[] c : CASES) {
+            TuyaYuvLayout layout = TuyaYuvLayout.forColorFormat(c[0], c[1], c[2], c[3], c[4]);
+            String name = Integer.toHexString(c[0]) + " " + c[1] + "x" + c[2] + " stride " + c[3] + " slice " + c[4];
+            assertEquals(name + " yRowStride", c[5], layout.yRowStride);
+            assertEquals(name + " uOffset", c[6], layout.uOffset);
+            assertEquals(name + " vOffset", c[7], layout.vOffset);
+            assertEquals(name + " chromaRowStride", c[8], layout.chromaRowStride);
+            assertEquals(name + " chromaPixelStride", c[9], layout.chromaPixelStride);
+            assertEquals(name + " size", c[10], layout.size);
+        }
+    }
+
+    @Test
+    public void chromaPlanesDoNotOverlap() {
+        for (int[] c : CASES) {
+            TuyaYuvLayout layout = TuyaYuvLayout.forColorFormat(c[0], c[1], c[2], c[3], c[4]);
+            int chromaWidth = (c[1] + 1) / 2;
+            int chromaHeight = (c[2] + 1) / 2;
+            int rowBytes = (chromaWidth - 1) * layout.chromaPixelStride + 1;
+            assertTrue(layout.yRowStride >= c[1]);
+            assertTrue(layout.uOffset >= layout.yRowStride * (c[2] - 1) + c[1]);
+            assertTrue(layout.chromaRowStride >= rowBytes);
+            int uEnd = layout.uOffset + layout.chromaRowStride * (chromaHeight - 1) + rowBytes;
+            int vEnd = layout.vOffset + layout.chromaRowStride * (chromaHeight - 1) + rowBytes;
+            if (layout.chromaPixelStride == 1) {
+                assertTrue(layout.vOffset >= uEnd);
+            }
+            assertTrue(layout.size >= Math.max(uEnd, vEnd));
+        }
+    }
+
+    @Test
+    public void onlyPackedLayoutsMatchPackedFrames() {
+        assertTrue(TuyaYuvLayout.forColorFormat(PLANAR, 640, 480, 0, 0)
+                .matchesPacked(YuvUtils.FOURCC_I420, 640, 480));
+        assertFalse(TuyaYuvLayout.forColorFormat(PLANAR, 640, 480, 0, 0)
+                .matchesPacked(YuvUtils.FOURCC_NV12, 640, 480));
+        assertTrue(TuyaYuvLayout.forColorFormat(SEMI_PLANAR, 640, 480, 0, 0)
+                .matchesPacked(YuvUtils.FOURCC_NV12, 640, 480));
+        assertFalse(TuyaYuvLayout.forColorFormat(SEMI_PLANAR, 640, 480, 0, 0)
+                .matchesPacked(YuvUtils.FOURCC_NV12, 320, 240));
+        assertFalse(TuyaYuvLayout.forColorFormat(SEMI_PLANAR, 640, 480, 0, 496)
+                .matchesPacked(YuvUtils.FOURCC_NV12, 640, 480));
+        assertFalse(TuyaYuvLayout.forColorFormat(QCOM_32M, 1280, 720, 0, 0)
+                .matchesPacked(YuvUtils.FOURCC_NV12, 1280, 720));
+    }
+}
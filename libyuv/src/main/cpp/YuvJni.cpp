@@ -550,4 +550,249 @@ Java_com_erick_utils_libyuv_YuvUtils_yuvI420Compress(JNIEnv *env, jclass clazz,
     if (i420_mirror_data != NULL) free(i420_mirror_data);
     if (i420_scale_data != NULL) free(i420_scale_data);
     if (i420_rotate_data != NULL) free(i420_rotate_data);
-}
\ No newline at end of file
+}
+
+// 将一帧 i420/yv12/nv12/nv21 直接转换到目标平面, 不经过中间缓冲区
+// 色度像素间距为 1 时目标为 i420; 为 2 时按 u, v 的地址判断目标为 nv12 或 nv21; 成功返回 0, 失败返回 -1
+int convertToPlanes(const uint8_t *src, jint src_fourcc, jint width, jint height,
+                    uint8_t *dst_y, jint dst_stride_y,
+                    uint8_t *dst_u, jint dst_stride_u,
+                    uint8_t *dst_v, jint dst_stride_v,
+                    jint dst_pixel_stride) {
+    jint src_y_size = width * height;
+    jint src_chroma_width = (width + 1) >> 1;
+    jint src_chroma_size = src_chroma_width * ((height + 1) >> 1);
+
+    const uint8_t *src_y = src;
+    const uint8_t *src_u = NULL;
+    const uint8_t *src_v = NULL;
+    const uint8_t *src_uv = src + src_y_size;
+    if (src_fourcc == libyuv::FOURCC_I420) {
+        src_u = src + src_y_size;
+        src_v = src + src_y_size + src_chroma_size;
+    } else if (src_fourcc == libyuv::FOURCC_YV12) {
+        src_v = src + src_y_size;
+        src_u = src + src_y_size + src_chroma_size;
+    } else if (src_fourcc != libyuv::FOURCC_NV12 && src_fourcc != libyuv::FOURCC_NV21) {
+        return -1;
+    }
+
+    if (dst_pixel_stride == 1) {
+        if (src_u != NULL) {
+            return libyuv::I420Copy(src_y, width,
+                                    src_u, src_chroma_width,
+                                    src_v, src_chroma_width,
+                                    dst_y, dst_stride_y,
+                                    dst_u, dst_stride_u,
+                                    dst_v, dst_stride_v,
+                                    width, height);
+        } else if (src_fourcc == libyuv::FOURCC_NV12) {
+            return libyuv::NV12ToI420(src_y, width,
+                                      src_uv, src_chroma_width << 1,
+                                      dst_y, dst_stride_y,
+                                      dst_u, dst_stride_u,
+                                      dst_v, dst_stride_v,
+                                      width, height);
+        } else {
+            return libyuv::NV21ToI420(src_y, width,
+                                      src_uv, src_chroma_width << 1,
+                                      dst_y, dst_stride_y,
+                                      dst_u, dst_stride_u,
+                                      dst_v, dst_stride_v,
+                                      width, height);
+        }
+    }
+    if (dst_pixel_stride != 2 || dst_stride_u != dst_stride_v) {
+        return -1;
+    }
+
+    // 半平面格式: nv12 的 v 紧跟 u, nv21 的 u 紧跟 v
+    jint dst_fourcc;
+    uint8_t *dst_chroma;
+    if (dst_v == dst_u + 1) {
+        dst_fourcc = libyuv::FOURCC_NV12;
+        dst_chroma = dst_u;
+    } else if (dst_u == dst_v + 1) {
+        dst_fourcc = libyuv::FOURCC_NV21;
+        dst_chroma = dst_v;
+    } else {
+        return -1;
+    }
+
+    if (src_u != NULL) {
+        if (dst_fourcc == libyuv::FOURCC_NV12) {
+            return libyuv::I420ToNV12(src_y, width,
+                                      src_u, src_chroma_width,
+                                      src_v, src_chroma_width,
+                                      dst_y, dst_stride_y,
+                                      dst_chroma, dst_stride_u,
+                                      width, height);
+        }
+        return libyuv::I420ToNV21(src_y, width,
+                                  src_u, src_chroma_width,
+                                  src_v, src_chroma_width,
+                                  dst_y, dst_stride_y,
+                                  dst_chroma, dst_stride_u,
+                                  width, height);
+    }
+    if (src_fourcc == dst_fourcc) {
+        libyuv::CopyPlane(src_y, width, dst_y, dst_stride_y, width, height);
+        libyuv::CopyPlane(src_uv, src_chroma_width << 1, dst_chroma, dst_stride_u,
+                          src_chroma_width << 1, (height + 1) >> 1);
+        return 0;
+    }
+    // nv12 与 nv21 之间只需交换 u 和 v
+    return libyuv::NV21ToNV12(src_y, width,
+                              src_uv, src_chroma_width << 1,
+                              dst_y, dst_stride_y,
+                              dst_chroma, dst_stride_u,
+                              width, height);
+}
+
+// 将一帧 i420/yv12/nv12/nv21 直接转换到 direct ByteBuffer (例如 MediaCodec 的输入缓冲区), 不经过中间缓冲区
+// 目标为 i420 或 nv12, 平面间距按 stride 和 slice height 计算
+int convertToBuffer(const uint8_t *src, jint src_fourcc, jint width, jint height,
+                    uint8_t *dst, jint dst_fourcc, jint dst_stride, jint dst_slice_height) {
+    uint8_t *dst_y = dst;
+    uint8_t *dst_chroma = dst + dst_stride * dst_slice_height;
+
+    if (dst_fourcc == libyuv::FOURCC_I420) {
+        jint dst_chroma_stride = dst_stride >> 1;
+        return convertToPlanes(src, src_fourcc, width, height,
+                               dst_y, dst_stride,
+                               dst_chroma, dst_chroma_stride,
+                               dst_chroma + dst_chroma_stride * (dst_slice_height >> 1), dst_chroma_stride,
+                               1);
+    } else if (dst_fourcc == libyuv::FOURCC_NV12) {
+        return convertToPlanes(src, src_fourcc, width, height,
+                               dst_y, dst_stride,
+                               dst_chroma, dst_stride,
+                               dst_chroma + 1, dst_stride,
+                               2);
+    }
+    return -1;
+}
+
+// 平面最后一个像素之后的位置, 最后一行只需要 width 个像素
+jlong planeEnd(jint offset, jint row_stride, jint pixel_stride, jint width, jint rows) {
+    return (jlong) offset + (jlong) row_stride * (rows - 1) + (jlong) (width - 1) * pixel_stride + 1;
+}
+
+// 检查一个平面是否在缓冲区内, 最后一行只需要 width 个像素
+bool planeFits(jlong capacity, jint offset, jint row_stride, jint pixel_stride, jint width, jint rows) {
+    if (offset < 0 || row_stride < (jlong) (width - 1) * pixel_stride + 1) {
+        return false;
+    }
+    return planeEnd(offset, row_stride, pixel_stride, width, rows) <= capacity;
+}
+
+
+extern "C"
+JNIEXPORT jint JNICALL
+Java_com_erick_utils_libyuv_YuvUtils_yuvConvertToBuffer(JNIEnv *env, jclass clazz, jbyteArray src,
+                                                        jint src_fourcc, jint width, jint height,
+                                                        jobject dst, jint dst_offset,
+                                                        jint dst_fourcc, jint dst_stride,
+                                                        jint dst_slice_height) {
+    uint8_t *dst_data = (uint8_t *) env->GetDirectBufferAddress(dst);
+    jlong dst_capacity = env->GetDirectBufferCapacity(dst);
+    if (dst_data == NULL || dst_capacity < 0 || width <= 0 || height <= 0 ||
+        dst_stride < width || dst_slice_height < height || dst_offset < 0) {
+        return -1;
+    }
+
+    // 源数据的大小
+    jlong src_size = (jlong) width * height +
+                     2L * ((width + 1) >> 1) * ((height + 1) >> 1);
+    if (env->GetArrayLength(src) < src_size) {
+        return -1;
+    }
+
+    // 目标数据的大小, 最后一行色度不需要完整的 stride
+    jlong dst_size;
+    if (dst_fourcc == libyuv::FOURCC_I420) {
+        if ((dst_stride >> 1) < ((width + 1) >> 1)) {
+            return -1;
+        }
+        dst_size = (jlong) dst_stride * dst_slice_height +
+                   (jlong) (dst_stride >> 1) * (dst_slice_height >> 1) +
+                   (jlong) (dst_stride >> 1) * (((height + 1) >> 1) - 1) + ((width + 1) >> 1);
+    } else if (dst_fourcc == libyuv::FOURCC_NV12) {
+        dst_size = (jlong) dst_stride * dst_slice_height +
+                   (jlong) dst_stride * (((height + 1) >> 1) - 1) + (((width + 1) >> 1) << 1);
+    } else {
+        return -1;
+    }
+    if (dst_offset + dst_size > dst_capacity) {
+        return -1;
+    }
+
+    // 转换期间不能调用其他 JNI 函数
+    uint8_t *src_data = (uint8_t *) env->GetPrimitiveArrayCritical(src, NULL);
+    if (src_data == NULL) {
+        return -1;
+    }
+    int ret = convertToBuffer(src_data, src_fourcc, width, height,
+                              dst_data + dst_offset, dst_fourcc, dst_stride, dst_slice_height);
+    env->ReleasePrimitiveArrayCritical(src, src_data, JNI_ABORT);
+    return ret == 0 ? (jint) dst_size : -1;
+}
+
+
+extern "C"
+JNIEXPORT jint JNICALL
+Java_com_erick_utils_libyuv_YuvUtils_yuvConvertToPlanes(JNIEnv *env, jclass clazz, jbyteArray src,
+                                                        jint src_fourcc, jint width, jint height,
+                                                        jobject dst_y, jint offset_y, jint stride_y,
+                                                        jobject dst_u, jint offset_u, jint stride_u,
+                                                        jobject dst_v, jint offset_v, jint stride_v,
+                                                        jint pixel_stride) {
+    uint8_t *dst_y_data = (uint8_t *) env->GetDirectBufferAddress(dst_y);
+    uint8_t *dst_u_data = (uint8_t *) env->GetDirectBufferAddress(dst_u);
+    uint8_t *dst_v_data = (uint8_t *) env->GetDirectBufferAddress(dst_v);
+    if (dst_y_data == NULL || dst_u_data == NULL || dst_v_data == NULL || width <= 0 || height <= 0) {
+        return -1;
+    }
+
+    jint chroma_width = (width + 1) >> 1;
+    jint chroma_height = (height + 1) >> 1;
+    if (!planeFits(env->GetDirectBufferCapacity(dst_y), offset_y, stride_y, 1, width, height) ||
+        !planeFits(env->GetDirectBufferCapacity(dst_u), offset_u, stride_u, pixel_stride, chroma_width, chroma_height) ||
+        !planeFits(env->GetDirectBufferCapacity(dst_v), offset_v, stride_v, pixel_stride, chroma_width, chroma_height)) {
+        return -1;
+    }
+
+    jlong src_size = (jlong) width * height + 2L * chroma_width * chroma_height;
+    if (env->GetArrayLength(src) < src_size) {
+        return -1;
+    }
+
+    // 转换期间不能调用其他 JNI 函数
+    uint8_t *src_data = (uint8_t *) env->GetPrimitiveArrayCritical(src, NULL);
+    if (src_data == NULL) {
+        return -1;
+    }
+    int ret = convertToPlanes(src_data, src_fourcc, width, height,
+                              dst_y_data + offset_y, stride_y,
+                              dst_u_data + offset_u, stride_u,
+                              dst_v_data + offset_v, stride_v,
+                              pixel_stride);
+    env->ReleasePrimitiveArrayCritical(src, src_data, JNI_ABORT);
+    if (ret != 0) {
+        return -1;
+    }
+
+    // 从 Y 平面起点到写入的最后一个字节, 平面可以在同一块内存里, 按地址计算
+    uint8_t *start = dst_y_data + offset_y;
+    uint8_t *end = dst_y_data + planeEnd(offset_y, stride_y, 1, width, height);
+    uint8_t *end_u = dst_u_data + planeEnd(offset_u, stride_u, pixel_stride, chroma_width, chroma_height);
+    uint8_t *end_v = dst_v_data + planeEnd(offset_v, stride_v, pixel_stride, chroma_width, chroma_height);
+    if (end_u > end) {
+        end = end_u;
+    }
+    if (end_v > end) {
+        end = end_v;
+    }
+    jlong span = end - start;
+    return span > 0 && span <= INT32_MAX ? (jint) span : -1;
+}
@@ -1,5 +1,7 @@
 package com.erick.utils.libyuv;
 
+import java.nio.ByteBuffer;
+
 /**
  * 版本编号: 1.0;
  * 创建作者: jinjian;
@@ -11,6 +13,14 @@ public class YuvUtils {
         System.loadLibrary("yuvutil");
     }
 
+    /**
+     * yuvConvertToBuffer 使用的像素格式, 与 libyuv 的 FourCC 取值相同
+     */
+    public static final int FOURCC_I420 = 0x30323449; // 'I420'
+    public static final int FOURCC_YV12 = 0x32315659; // 'YV12'
+    public static final int FOURCC_NV12 = 0x3231564E; // 'NV12'
+    public static final int FOURCC_NV21 = 0x3132564E; // 'NV21'
+
     /**
      * YUV数据的基本处理(i420-->mirror-->scale-->rotate-->nv21)
      */
@@ -112,4 +122,41 @@ public class YuvUtils {
 
     public static native void yuvARGBToNV21(byte[] argbSrc, int width, int height, byte[] nv21Dst);
 
+    /**
+     * 将一帧 YUV 数据一次转换写入 direct ByteBuffer, 例如 MediaCodec 的输入缓冲区, 没有中间拷贝
+     *
+     * @param src            原始数据, 紧密排列
+     * @param srcFourcc      原始格式, FOURCC_I420, FOURCC_YV12, FOURCC_NV12 或 FOURCC_NV21
+     * @param width          宽
+     * @param height         高
+     * @param dst            目标缓冲区, 必须是 direct ByteBuffer, 位置和限制不会改变
+     * @param dstOffset      写入的起始位置
+     * @param dstFourcc      目标格式, FOURCC_I420 或 FOURCC_NV12
+     * @param dstStride      目标 Y 平面的行跨度, 不小于 width
+     * @param dstSliceHeight 目标 Y 平面的行数, 不小于 height, 色度平面紧跟其后
+     * @return 写入的字节数, 参数不合法或格式不支持时返回 -1
+     */
+    public static native int yuvConvertToBuffer(byte[] src, int srcFourcc, int width, int height, ByteBuffer dst, int dstOffset, int dstFourcc, int dstStride, int dstSliceHeight);
+
+    /**
+     * 将一帧 YUV 数据一次转换写入三个平面, 例如 MediaCodec 输入 Image 的平面, 按各平面的行跨度和像素间距写入
+     *
+     * @param src         原始数据, 紧密排列
+     * @param srcFourcc   原始格式, FOURCC_I420, FOURCC_YV12, FOURCC_NV12 或 FOURCC_NV21
+     * @param width       宽
+     * @param height      高
+     * @param dstY        Y 平面所在的 direct ByteBuffer
+     * @param offsetY     Y 平面的起始位置
+     * @param strideY     Y 平面的行跨度
+     * @param dstU        U 平面所在的 direct ByteBuffer, 可以与其他平面相同
+     * @param offsetU     U 平面的起始位置
+     * @param strideU     U 平面的行跨度
+     * @param dstV        V 平面所在的 direct ByteBuffer, 可以与其他平面相同
+     * @param offsetV     V 平面的起始位置
+     * @param strideV     V 平面的行跨度
+     * @param pixelStride U 和 V 平面的像素间距, 1 为平面格式, 2 为 U 和 V 交错的半平面格式
+     * @return 成功返回从 Y 平面起点到写入的最后一个字节的字节数, 参数不合法或布局不支持时返回 -1
+     */
+    public static native int yuvConvertToPlanes(byte[] src, int srcFourcc, int width, int height, ByteBuffer dstY, int offsetY, int strideY, ByteBuffer dstU, int offsetU, int strideU, ByteBuffer dstV, int offsetV, int strideV, int pixelStride);
+
 }